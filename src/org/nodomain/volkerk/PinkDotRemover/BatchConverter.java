@@ -0,0 +1,355 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * Converts a batch of files on a pool of worker threads. Files can be
+ * submitted while the conversion is already running.
+ *
+ * This is the common conversion engine for the command line and the GUI.
+ */
+public class BatchConverter extends LoggingClass {
+
+    /**
+     * Callbacks for the state of the individual files. The methods are called
+     * from the worker threads.
+     */
+    public interface Listener
+    {
+        /**
+         * A worker thread starts converting a file
+         *
+         * @param f the file
+         */
+        void fileStarted(File f);
+
+        /**
+         * A file has been converted or the conversion failed
+         *
+         * @param f the file
+         * @param success true if the file has been converted completely
+         */
+        void fileFinished(File f, boolean success);
+
+        /**
+         * A file has not been (completely) converted because the batch has been cancelled
+         *
+         * @param f the file
+         */
+        void fileSkipped(File f);
+    }
+
+    /**
+     * The database with the dot locations
+     */
+    protected final DotLocationDB db;
+
+    /**
+     * The cam type to use
+     */
+    protected final String camType;
+
+    /**
+     * Calculates the new values of the dot pixels
+     */
+    protected final RemovalStrategy strategy;
+
+    /**
+     * The receiver of file state changes; may be null
+     */
+    protected final Listener listener;
+
+    /**
+     * The worker threads
+     */
+    protected final ExecutorService pool;
+
+    /**
+     * All removers that are currently working; needed for cancellation
+     */
+    protected final Set<PinkDotRemover> activeRemovers;
+
+    /**
+     * The number of files that failed
+     */
+    protected final AtomicInteger failCount;
+
+    /**
+     * The frame and byte progress of the whole batch
+     */
+    protected final ConversionProgress progress;
+
+    /**
+     * Set by cancel()
+     */
+    protected volatile boolean cancelled;
+
+    /**
+     * The frames of RAW files to convert; null for all frames
+     */
+    protected volatile FrameRange frameRange = null;
+
+    /**
+     * The preflight check with the dot plans of all resolutions; null if the dots are looked up per file
+     */
+    protected volatile BatchPlanner plan = null;
+
+    /**
+     * If true, the digest of each converted file is stored in a sidecar file
+     */
+    protected volatile boolean digestEnabled = false;
+
+    /**
+     * If true, the original dot values of RAW files are recorded in undo sidecars
+     */
+    protected volatile boolean undoEnabled = true;
+
+    /**
+     * Limits the concurrent disk accesses per device; shared by all files of the batch
+     */
+    protected volatile IoScheduler ioScheduler = IoScheduler.NONE;
+
+    /**
+     * Constructor. Starts the worker threads.
+     *
+     * @param _db the database with the dot locations
+     * @param _camType the cam type to use
+     * @param _strategy calculates the new values of the dot pixels, see RemovalStrategies
+     * @param threadCount the number of files to convert in parallel
+     * @param _listener the receiver of file state changes; may be null
+     */
+    public BatchConverter(DotLocationDB _db, String _camType, RemovalStrategy _strategy, int threadCount, Listener _listener)
+    {
+        if (threadCount < 1) throw new IllegalArgumentException("Need at least one worker thread!");
+
+        db = _db;
+        camType = _camType;
+        strategy = _strategy;
+        listener = _listener;
+        activeRemovers = Collections.newSetFromMap(new ConcurrentHashMap<PinkDotRemover, Boolean>());
+        failCount = new AtomicInteger();
+        progress = new ConversionProgress();
+        cancelled = false;
+
+        final AtomicInteger threadNum = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "BatchConverter-" + threadNum.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * The default number of worker threads
+     *
+     * @return the number of available CPU cores
+     */
+    public static int defaultThreadCount()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Restricts the conversion of RAW files to a range of frames; must be called before submitting files
+     *
+     * @param _frameRange the frames to convert or null for all frames
+     */
+    public void setFrameRange(FrameRange _frameRange)
+    {
+        frameRange = _frameRange;
+    }
+
+    /**
+     * Sets the preflight check of the batch, whose dot plans are used instead
+     * of looking up the dots for each file; must be called before submitting files
+     *
+     * @param _plan the preflight check or null
+     */
+    public void setPlan(BatchPlanner _plan)
+    {
+        plan = _plan;
+    }
+
+    /**
+     * Enables the output digests; must be called before submitting files
+     *
+     * @param enabled true to store the digest of each converted file in a sidecar file, see OutputDigest
+     */
+    public void setOutputDigest(boolean enabled)
+    {
+        digestEnabled = enabled;
+    }
+
+    /**
+     * Enables the undo sidecars of RAW files (enabled by default); must be called before submitting files
+     *
+     * @param enabled true to record the original dot values, see UndoLog
+     */
+    public void setUndoLog(boolean enabled)
+    {
+        undoEnabled = enabled;
+    }
+
+    /**
+     * Sets the limits of the concurrent disk accesses per device; must be called before submitting files
+     *
+     * @param _ioScheduler the scheduler or IoScheduler.NONE for no limits
+     */
+    public void setIoScheduler(IoScheduler _ioScheduler)
+    {
+        ioScheduler = _ioScheduler;
+    }
+
+    /**
+     * Queues a file for conversion
+     *
+     * @param f the DNG or RAW file to convert
+     */
+    public void submit(final File f)
+    {
+        final long size = f.length();
+        progress.addExpectedBytes(size);
+
+        pool.execute(new Runnable() {
+            public void run()
+            {
+                convert(f, size);
+            }
+        });
+    }
+
+    /**
+     * Converts a single file; called on a worker thread
+     *
+     * @param f the file to convert
+     * @param size the size of the file at the time of its submission
+     */
+    protected void convert(File f, long size)
+    {
+        if (cancelled)
+        {
+            progress.fileDone(size, 0);
+            if (listener != null) listener.fileSkipped(f);
+            return;
+        }
+
+        if (listener != null) listener.fileStarted(f);
+
+        boolean success = false;
+        PinkDotRemover pdr = null;
+        try
+        {
+            // the workers run in parallel, so their log lines are flat; nested
+            // levels of different files would interleave on the shared log
+            dbg("Instanciating dot remover class for ", f);
+            pdr = new PinkDotRemover(f.toString(), db, camType);
+            pdr.setProgress(progress);
+            pdr.setFrameRange(frameRange);
+            pdr.setOutputDigest(digestEnabled);
+            pdr.setUndoLog(undoEnabled);
+            pdr.setIoScheduler(ioScheduler);
+            BatchPlanner.Group g = (plan != null) ? plan.getGroup(f) : null;
+            if (g != null) pdr.setDotPlan(g.getWidth(), g.getHeight(), g.getPlan());
+
+            activeRemovers.add(pdr);
+
+            // the batch might have been cancelled while we were opening the file
+            if (cancelled) pdr.cancel();
+
+            dbg("Starting dot removal for ", f);
+            success = pdr.doRemoval(strategy);
+            dbg("Dot removal for ", f, success ? ": done" : ": failed");
+        }
+        catch (Exception e)
+        {
+            failed("Exception while converting ", f, ": ", e.getMessage());
+        }
+        finally
+        {
+            if (pdr != null) activeRemovers.remove(pdr);
+        }
+
+        // remove the work that hasn't been done from the expected total
+        if (pdr != null) progress.fileDone(size - pdr.getBytesReported(), pdr.getFramesExpected() - pdr.getFramesReported());
+        else progress.fileDone(size, 0);
+
+        if ((pdr != null) && (pdr.wasCancelled()))
+        {
+            if (listener != null) listener.fileSkipped(f);
+            return;
+        }
+
+        if (!success) failCount.incrementAndGet();
+        if (listener != null) listener.fileFinished(f, success);
+    }
+
+    /**
+     * Stops the conversion. Files that haven't been started yet are skipped,
+     * RAW files that are currently being converted stop after the current frame.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        for (PinkDotRemover pdr : activeRemovers) pdr.cancel();
+    }
+
+    /**
+     * @return true if cancel() has been called
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * @return the frame and byte progress of the batch; may be read from any thread at any time
+     */
+    public ConversionProgress getProgress()
+    {
+        return progress;
+    }
+
+    /**
+     * @return the number of files that could not be converted so far
+     */
+    public int getFailCount()
+    {
+        return failCount.get();
+    }
+
+    /**
+     * Waits until all submitted files have been processed and terminates the
+     * worker threads. No further files can be submitted afterwards.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedException
+    {
+        pool.shutdown();
+        while (!(pool.awaitTermination(1, TimeUnit.SECONDS)));
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * The preflight check of a batch: probes the headers of all files in
+ * parallel, groups the files by resolution and compiles the dot plan of
+ * each resolution once, including its dot mask.
+ *
+ * All files are checked, also after failures, so that every unsupported
+ * file is reported before the first file is converted. The dot plans are
+ * handed to the conversion (see BatchConverter.setPlan()), so the dot
+ * locations aren't calculated again for each file.
+ */
+public class BatchPlanner extends LoggingClass {
+
+    /**
+     * The files of one resolution and their dot plan
+     */
+    public static class Group
+    {
+        protected final int width;
+        protected final int height;
+        protected final List<FileProbe> files = new ArrayList<FileProbe>();
+        protected DotAnalysis.Verdict verdict = DotAnalysis.Verdict.UNSUPPORTED;
+        protected DotPlan plan = null;
+
+        Group(int _width, int _height)
+        {
+            width = _width;
+            height = _height;
+        }
+
+        /**
+         * @return the image width
+         */
+        public int getWidth()
+        {
+            return width;
+        }
+
+        /**
+         * @return the image height
+         */
+        public int getHeight()
+        {
+            return height;
+        }
+
+        /**
+         * @return the files with this resolution in the order of the batch
+         */
+        public List<FileProbe> getFiles()
+        {
+            return files;
+        }
+
+        /**
+         * @return SPECIFIC, GENERIC or UNSUPPORTED
+         */
+        public DotAnalysis.Verdict getVerdict()
+        {
+            return verdict;
+        }
+
+        /**
+         * @return the dot plan for this resolution or null if there's no dot set
+         */
+        public DotPlan getPlan()
+        {
+            return plan;
+        }
+    }
+
+    protected final String camType;
+
+    /**
+     * The probes in the order of the batch
+     */
+    protected final List<FileProbe> probes;
+
+    /**
+     * The groups by resolution
+     */
+    protected final Map<String, Group> groups;
+
+    /**
+     * The probe of each file
+     */
+    protected final Map<File, FileProbe> byFile;
+
+    /**
+     * Constructor; use plan()
+     */
+    protected BatchPlanner(String _camType, List<FileProbe> _probes)
+    {
+        camType = _camType;
+        probes = _probes;
+        groups = new TreeMap<String, Group>();
+        byFile = new HashMap<File, FileProbe>();
+
+        for (FileProbe p : probes)
+        {
+            byFile.put(p.getFile(), p);
+            if (p.getError() != null) continue;
+
+            Group g = groups.get(p.getResolution());
+            if (g == null)
+            {
+                g = new Group(p.getWidth(), p.getHeight());
+                groups.put(p.getResolution(), g);
+            }
+            g.files.add(p);
+        }
+    }
+
+    /**
+     * Probes all files and compiles the dot plans of all resolutions
+     *
+     * @param db the database with the dot locations
+     * @param camType the camera type
+     * @param files the files of the batch
+     * @param threadCount the number of files to probe in parallel
+     *
+     * @return the plan
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for the probes
+     */
+    public static BatchPlanner plan(final DotLocationDB db, final String camType, List<File> files, int threadCount) throws InterruptedException
+    {
+        logPush("Probing ", files.size(), " files with ", threadCount, " thread(s)");
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        try
+        {
+            // only the headers are read
+            ArrayList<Future<FileProbe>> futures = new ArrayList<Future<FileProbe>>();
+            for (final File f : files)
+            {
+                futures.add(pool.submit(new Callable<FileProbe>() {
+                    public FileProbe call()
+                    {
+                        return FileProbe.probe(f);
+                    }
+                }));
+            }
+            ArrayList<FileProbe> probes = new ArrayList<FileProbe>();
+            for (Future<FileProbe> fut : futures) probes.add(get(fut));
+
+            // one dot plan per resolution
+            BatchPlanner result = new BatchPlanner(camType, probes);
+            ArrayList<Future<?>> compiled = new ArrayList<Future<?>>();
+            for (final Group g : result.groups.values())
+            {
+                compiled.add(pool.submit(new Runnable() {
+                    public void run()
+                    {
+                        DotSet ds = db.findDotSet(camType, g.width, g.height);
+                        if (ds == null) return;
+
+                        g.plan = new DotPlan(ds.getAllCoordinates(g.width, g.height));
+                        g.plan.getMask(g.width, g.height);
+                        g.verdict = ds.isGeneric() ? DotAnalysis.Verdict.GENERIC : DotAnalysis.Verdict.SPECIFIC;
+                    }
+                }));
+            }
+            for (Future<?> fut : compiled) get(fut);
+            logPop("Done");
+
+            return result;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for a task that doesn't throw
+     */
+    protected static <T> T get(Future<T> fut) throws InterruptedException
+    {
+        try
+        {
+            return fut.get();
+        }
+        catch (ExecutionException e)
+        {
+            // can't happen for probes, FileProbe.probe() catches everything
+            throw new IllegalStateException("Preflight task failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * @return the probes of all files in the order of the batch
+     */
+    public List<FileProbe> getProbes()
+    {
+        return probes;
+    }
+
+    /**
+     * @return the groups of all files with a readable header, sorted by resolution
+     */
+    public Collection<Group> getGroups()
+    {
+        return groups.values();
+    }
+
+    /**
+     * @param f a file of the batch
+     *
+     * @return the file's group or null if its header couldn't be read
+     */
+    public Group getGroup(File f)
+    {
+        FileProbe p = byFile.get(f);
+        if ((p == null) || (p.getError() != null)) return null;
+
+        return groups.get(p.getResolution());
+    }
+
+    /**
+     * @param f a file of the batch
+     *
+     * @return the reason why the file can't be converted or null if it can be converted
+     */
+    public String getProblem(File f)
+    {
+        FileProbe p = byFile.get(f);
+        if (p == null) return "Not part of the batch";
+        if (p.getError() != null) return p.getError();
+        if (getGroup(f).plan == null) return "No dot set for " + camType + " and " + p.getResolution();
+
+        return null;
+    }
+
+    /**
+     * @return the files that can't be converted, in the order of the batch
+     */
+    public List<File> getUnsupported()
+    {
+        ArrayList<File> result = new ArrayList<File>();
+        for (FileProbe p : probes)
+        {
+            if (getProblem(p.getFile()) != null) result.add(p.getFile());
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the column headers matching printReport()
+     */
+    public static String getHeader()
+    {
+        return "verdict\tcam\tresolution\tbits\tframes\tdots\taccess\tfile\tproblem";
+    }
+
+    /**
+     * Prints one tab separated line per file, grouped by resolution; files with unreadable headers come last
+     *
+     * @param out the stream to print to
+     */
+    public void printReport(PrintStream out)
+    {
+        out.println(getHeader());
+        for (Group g : groups.values())
+        {
+            int dots = (g.plan != null) ? g.plan.getDots().length : 0;
+            for (FileProbe p : g.files)
+            {
+                out.println(g.verdict + "\t" + camType + "\t" + p.getResolution() + "\t" + p.getBitsPerSample() + "\t" +
+                        p.getFrameCount() + "\t" + dots + "\t" + (p.hasRowAccess() ? "rows" : "handler") + "\t" +
+                        p.getFile() + "\t" + ((g.plan != null) ? "" : getProblem(p.getFile())));
+            }
+        }
+        for (FileProbe p : probes)
+        {
+            if (p.getError() == null) continue;
+
+            out.println(DotAnalysis.Verdict.ERROR + "\t" + camType + "\t-\t-\t-\t-\t-\t" + p.getFile() + "\t" + p.getError());
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A band of consecutive rows of an uncompressed CFA image.
+ *
+ * The rows are kept in their packed file representation, so that modified
+ * rows can be written back to their original file position without touching
+ * the rest of the image.
+ */
+public class CfaBand extends PackedBand {
+
+    /**
+     * Constructor for an empty band; the data is filled in by the creator
+     *
+     * @param _width the width of the whole image
+     * @param _height the height of the whole image
+     * @param _y0 the first row of the band
+     * @param _y1 the row after the last row of the band
+     * @param _bitsPerSample the number of bits per pixel (1...16)
+     * @param _littleEndian the byte order for 16 bit samples
+     * @param _segWidth the number of pixels per row segment
+     * @param _segCount the number of segments per row
+     */
+    public CfaBand(int _width, int _height, int _y0, int _y1, int _bitsPerSample, boolean _littleEndian, int _segWidth, int _segCount)
+    {
+        this(_width, _height, _y0, _y1, _bitsPerSample, _littleEndian, false, _segWidth, _segCount);
+    }
+
+    /**
+     * Constructor for an empty band; the data is filled in by the creator
+     *
+     * @param _width the width of the whole image
+     * @param _height the height of the whole image
+     * @param _y0 the first row of the band
+     * @param _y1 the row after the last row of the band
+     * @param _bitsPerSample the number of bits per pixel (1...16)
+     * @param _littleEndian the byte order for 16 bit samples
+     * @param _wordSwapped true if smaller bit depths are stored in 16 bit little endian words
+     * @param _segWidth the number of pixels per row segment
+     * @param _segCount the number of segments per row
+     */
+    public CfaBand(int _width, int _height, int _y0, int _y1, int _bitsPerSample, boolean _littleEndian, boolean _wordSwapped,
+            int _segWidth, int _segCount)
+    {
+        super(_width, _height, _y0, _y1, _bitsPerSample, _littleEndian, _wordSwapped, _segWidth, _segCount);
+    }
+
+    /**
+     * Creates a deep copy of the band; the copy has no modified segments
+     *
+     * @return the copy
+     */
+    @Override
+    public CfaBand getCopy()
+    {
+        CfaBand result = new CfaBand(width, height, y0, y1, bitsPerSample, littleEndian, wordSwapped, segWidth, segCount);
+        for (int i=0; i < data.length; i++)
+        {
+            result.data[i] = data[i].clone();
+            result.fileOffsets[i] = fileOffsets[i];
+        }
+
+        return result;
+    }
+
+    /**
+     * Stores the packed data of a row segment; called while reading the band
+     *
+     * @param y the row
+     * @param seg the segment in the row
+     * @param offset the file offset of the segment
+     * @param bytes the packed pixel data
+     */
+    void setSegment(int y, int seg, long offset, byte[] bytes)
+    {
+        int idx = (y - y0) * segCount + seg;
+        data[idx] = bytes;
+        fileOffsets[idx] = offset;
+    }
+
+    /**
+     * Copies the packed data of a row segment into the band, reusing the segment's
+     * array if it has the right size; the segment is no longer marked as modified
+     *
+     * @param y the row
+     * @param seg the segment in the row
+     * @param offset the file offset of the segment
+     * @param src the packed pixel data
+     * @param srcPos the start of the segment in src
+     * @param len the number of bytes of the segment
+     */
+    void fillSegment(int y, int seg, long offset, byte[] src, int srcPos, int len)
+    {
+        int idx = (y - y0) * segCount + seg;
+        if ((data[idx] == null) || (data[idx].length != len)) data[idx] = new byte[len];
+        System.arraycopy(src, srcPos, data[idx], 0, len);
+        fileOffsets[idx] = offset;
+        dirty[idx] = false;
+    }
+
+    /**
+     * @param w the width of the whole image
+     * @param h the height of the whole image
+     * @param first the first row of the band
+     * @param end the row after the last row of the band
+     * @param bits the number of bits per pixel
+     *
+     * @return true if the band has the given rows of a single segment of an image with the given layout
+     */
+    boolean hasLayout(int w, int h, int first, int end, int bits)
+    {
+        return (width == w) && (height == h) && (y0 == first) && (y1 == end) && (bitsPerSample == bits) && (segCount == 1);
+    }
+
+    /**
+     * Writes all modified segments back to their original position in a file
+     *
+     * @param ch a writable channel for a file with the same layout as the source file
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException in case of write errors
+     */
+    public long writeModified(FileChannel ch) throws IOException
+    {
+        long written = 0;
+        for (int i=0; i < data.length; i++)
+        {
+            if (!(dirty[i])) continue;
+
+            ByteBuffer buf = ByteBuffer.wrap(data[i]);
+            long pos = fileOffsets[i];
+            while (buf.hasRemaining()) pos += ch.write(buf, pos);
+            written += data[i].length;
+        }
+
+        return written;
+    }
+
+    /**
+     * Passes all modified segments with their original positions to a patched copy
+     *
+     * @param dst the copy
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException in case of write errors
+     */
+    long writeModified(DngFile.PatchTarget dst) throws IOException
+    {
+        long written = 0;
+        for (int i=0; i < data.length; i++)
+        {
+            if (!(dirty[i])) continue;
+
+            dst.write(ByteBuffer.wrap(data[i]), fileOffsets[i]);
+            written += data[i].length;
+        }
+
+        return written;
+    }
+
+    /**
+     * Writes all modified segments back to their original position in a buffer
+     *
+     * @param dst a buffer with the same layout as the source; the offsets are relative to its
+     * position, which is not changed
+     *
+     * @return the number of bytes written
+     */
+    public long writeModified(ByteBuffer dst)
+    {
+        long written = 0;
+        ByteBuffer buf = dst.duplicate();
+        for (int i=0; i < data.length; i++)
+        {
+            if (!(dirty[i])) continue;
+
+            buf.position(dst.position() + (int) fileOffsets[i]);
+            buf.put(data[i]);
+            written += data[i].length;
+        }
+
+        return written;
+    }
+
+    @Override
+    long writePatches(DngFile src, DngFile.PatchTarget dst) throws IOException
+    {
+        return writeModified(dst);
+    }
+}
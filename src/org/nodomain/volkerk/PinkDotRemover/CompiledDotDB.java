@@ -0,0 +1,401 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * A binary, precompiled representation of all dot set definition files in
+ * a dot data directory.
+ * 
+ * The file is memory-mapped. Only the small camera index is decoded when
+ * the file is opened; the dot sets of a camera are decoded on first request.
+ * 
+ * File layout (big endian):
+ * 
+ *   int     MAGIC
+ *   int     VERSION
+ *   long    fingerprint of the source text files
+ *   int     number of cameras
+ *   per camera:
+ *     short + bytes  camera name (UTF-8)
+ *     int            offset of the camera section
+ *     int            length of the camera section
+ *     int            CRC32 of the camera section
+ *   int     CRC32 of all preceding bytes
+ * 
+ *   camera section:
+ *     int     number of dot sets
+ *     per dot set:
+ *       int   width
+ *       int   height
+ *       byte  roundDown (0 or 1)
+ *       int   number of grid blocks
+ *       int[5] per grid block (x0, dy0, dy1, stepX, stepY)
+ */
+public class CompiledDotDB extends LoggingClass {
+
+    protected static final int MAGIC = 0x50444442;  // "PDDB"
+    protected static final int VERSION = 1;
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The mapped content of the database file
+     */
+    protected MappedByteBuffer buf;
+
+    /**
+     * Camera name --> {section offset, section length, section CRC}
+     */
+    protected LinkedHashMap<String, int[]> camIndex;
+
+    /**
+     * Constructor. Use open() or compile() to get an instance
+     */
+    protected CompiledDotDB(MappedByteBuffer _buf, LinkedHashMap<String, int[]> _camIndex)
+    {
+        buf = _buf;
+        camIndex = _camIndex;
+    }
+
+    /**
+     * Calculates a fingerprint of a set of dot data files from their names,
+     * sizes and modification times. The file contents are not read.
+     * 
+     * @param files the dot data files
+     * 
+     * @return the fingerprint
+     */
+    public static long fingerprint(File[] files)
+    {
+        File[] sorted = Arrays.copyOf(files, files.length);
+        Arrays.sort(sorted, new Comparator<File>() {
+            public int compare(File f1, File f2)
+            {
+                return f1.getName().compareTo(f2.getName());
+            }
+        });
+
+        CRC32 crc = new CRC32();
+        ByteBuffer tmp = ByteBuffer.allocate(16);
+        for (File f : sorted)
+        {
+            crc.update(f.getName().getBytes(UTF8));
+            tmp.clear();
+            tmp.putLong(f.length());
+            tmp.putLong(f.lastModified());
+            crc.update(tmp.array());
+        }
+
+        // mix in the number of files so that an empty set is not zero
+        return (crc.getValue() << 16) ^ sorted.length;
+    }
+
+    /**
+     * Opens and validates a compiled database file
+     * 
+     * @param dbFile the compiled database file
+     * @param expectedFingerprint the fingerprint of the current source files
+     * 
+     * @return the database or null if the file doesn't exist, is corrupt or outdated
+     */
+    public static CompiledDotDB open(File dbFile, long expectedFingerprint)
+    {
+        if (!(dbFile.isFile())) return null;
+
+        MappedByteBuffer mbb;
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(dbFile, "r");
+            try
+            {
+                mbb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch (IOException e)
+        {
+            failed("Could not map compiled dot database ", dbFile, " ; Reason: ", e.getMessage());
+            return null;
+        }
+
+        // parse and validate the header and the camera index
+        LinkedHashMap<String, int[]> idx = new LinkedHashMap<String, int[]>();
+        try
+        {
+            ByteBuffer b = mbb.duplicate();
+            if (b.getInt() != MAGIC) return null;
+            if (b.getInt() != VERSION) return null;
+            if (b.getLong() != expectedFingerprint)
+            {
+                dbg("Compiled dot database ", dbFile, " is outdated");
+                return null;
+            }
+
+            int camCount = b.getInt();
+            for (int i=0; i < camCount; i++)
+            {
+                byte[] name = new byte[b.getShort()];
+                b.get(name);
+                int[] entry = new int[] {b.getInt(), b.getInt(), b.getInt()};
+                idx.put(new String(name, UTF8), entry);
+            }
+
+            int headerLen = b.position();
+            int storedCrc = b.getInt();
+            if (storedCrc != crcOf(mbb, 0, headerLen))
+            {
+                failed("Compiled dot database ", dbFile, " has an invalid header checksum");
+                return null;
+            }
+
+            // make sure all sections are inside the file
+            for (int[] entry : idx.values())
+            {
+                if ((entry[0] < b.position()) || (entry[1] < 0) || ((long) entry[0] + entry[1] > mbb.capacity()))
+                {
+                    failed("Compiled dot database ", dbFile, " is truncated");
+                    return null;
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // BufferUnderflowException, NegativeArraySizeException, ...
+            failed("Compiled dot database ", dbFile, " is corrupt");
+            return null;
+        }
+
+        dbg("Opened compiled dot database ", dbFile, " with ", idx.size(), " camera(s)");
+        return new CompiledDotDB(mbb, idx);
+    }
+
+    /**
+     * Writes a list of dot sets to a compiled database file and opens the result.
+     * The file is first written to a temporary file which then replaces
+     * the target, so that concurrent readers never see a partial file.
+     * 
+     * @param dbFile the compiled database file
+     * @param fingerprint the fingerprint of the source files the dot sets were parsed from
+     * @param sets the dot sets to store
+     * 
+     * @return the opened database or null if the file could not be written
+     */
+    public static CompiledDotDB compile(File dbFile, long fingerprint, List<DotSet> sets)
+    {
+        // group the sets by camera, preserving the original order
+        LinkedHashMap<String, ArrayList<DotSet>> byCam = new LinkedHashMap<String, ArrayList<DotSet>>();
+        for (DotSet ds : sets)
+        {
+            ArrayList<DotSet> camSets = byCam.get(ds.getCamType());
+            if (camSets == null)
+            {
+                camSets = new ArrayList<DotSet>();
+                byCam.put(ds.getCamType(), camSets);
+            }
+            camSets.add(ds);
+        }
+
+        File tmpFile = new File(dbFile.getParentFile(), dbFile.getName() + ".tmp");
+        try
+        {
+            // serialize all camera sections
+            ArrayList<byte[]> sections = new ArrayList<byte[]>();
+            for (ArrayList<DotSet> camSets : byCam.values())
+            {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bos);
+                out.writeInt(camSets.size());
+                for (DotSet ds : camSets)
+                {
+                    out.writeInt(ds.getWidth());
+                    out.writeInt(ds.getHeight());
+                    out.writeByte(ds.isRoundDown() ? 1 : 0);
+                    int[][] grid = ds.getGridInfo();
+                    out.writeInt(grid.length);
+                    for (int[] gi : grid)
+                    {
+                        for (int v : gi) out.writeInt(v);
+                    }
+                }
+                out.close();
+                sections.add(bos.toByteArray());
+            }
+
+            // determine the header size to calculate the section offsets
+            int headerLen = 4 + 4 + 8 + 4;
+            for (String cam : byCam.keySet()) headerLen += 2 + cam.getBytes(UTF8).length + 12;
+            headerLen += 4;
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(byCam.size());
+            int offset = headerLen;
+            int i = 0;
+            for (String cam : byCam.keySet())
+            {
+                byte[] name = cam.getBytes(UTF8);
+                byte[] sec = sections.get(i++);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(offset);
+                out.writeInt(sec.length);
+                CRC32 crc = new CRC32();
+                crc.update(sec);
+                out.writeInt((int) crc.getValue());
+                offset += sec.length;
+            }
+            out.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bos.toByteArray());
+            out.writeInt((int) crc.getValue());
+            for (byte[] sec : sections) out.write(sec);
+            out.close();
+
+            Files.write(tmpFile.toPath(), bos.toByteArray());
+            try
+            {
+                Files.move(tmpFile.toPath(), dbFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e)
+            {
+                Files.move(tmpFile.toPath(), dbFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e)
+        {
+            failed("Could not write compiled dot database ", dbFile, " ; Reason: ", e.getMessage());
+            tmpFile.delete();
+            return null;
+        }
+
+        dbg("Wrote compiled dot database ", dbFile);
+
+        return open(dbFile, fingerprint);
+    }
+
+    /**
+     * Retrieves a list of all distinct camera models in the database
+     * 
+     * @return a String array with the model names in the order of their definition
+     */
+    public String[] getAllModels()
+    {
+        return camIndex.keySet().toArray(new String[camIndex.size()]);
+    }
+
+    /**
+     * Checks whether the database contains dot sets for a camera model
+     * 
+     * @param cam the name of the camera model
+     * 
+     * @return true if there is at least one dot set for this model
+     */
+    public boolean hasModel(String cam)
+    {
+        return camIndex.containsKey(cam);
+    }
+
+    /**
+     * Decodes all dot sets of a camera model
+     * 
+     * @param cam the name of the camera model
+     * 
+     * @return a list of dot sets (empty for unknown models) or null if the camera section is corrupt
+     */
+    public List<DotSet> getDotSets(String cam)
+    {
+        ArrayList<DotSet> result = new ArrayList<DotSet>();
+
+        int[] entry = camIndex.get(cam);
+        if (entry == null) return result;
+
+        if (entry[2] != crcOf(buf, entry[0], entry[1]))
+        {
+            failed("Checksum error in compiled dot data for ", cam);
+            return null;
+        }
+
+        try
+        {
+            ByteBuffer b = buf.duplicate();
+            b.position(entry[0]);
+            b.limit(entry[0] + entry[1]);
+            int setCount = b.getInt();
+            for (int i=0; i < setCount; i++)
+            {
+                int w = b.getInt();
+                int h = b.getInt();
+                boolean roundDown = (b.get() != 0);
+                int gridCount = b.getInt();
+                ArrayList<int[]> grid = new ArrayList<int[]>(gridCount);
+                for (int n=0; n < gridCount; n++)
+                {
+                    grid.add(new int[] {b.getInt(), b.getInt(), b.getInt(), b.getInt(), b.getInt()});
+                }
+                result.add(new DotSet(cam, w, h, roundDown, grid));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            failed("Compiled dot data for ", cam, " is corrupt");
+            return null;
+        }
+
+        return result;
+    }
+
+    /**
+     * Calculates the CRC32 of a range in a buffer
+     */
+    protected static int crcOf(ByteBuffer b, int offset, int len)
+    {
+        ByteBuffer range = b.duplicate();
+        range.position(offset);
+        range.limit(offset + len);
+
+        byte[] tmp = new byte[Math.min(len, 8192)];
+        CRC32 crc = new CRC32();
+        while (range.hasRemaining())
+        {
+            int n = Math.min(tmp.length, range.remaining());
+            range.get(tmp, 0, n);
+            crc.update(tmp, 0, n);
+        }
+
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+/**
+ * Emits events for the stages of a conversion, so that a flight recording of
+ * a real batch shows which files and which stages are slow.
+ *
+ * This base class does nothing. If the JVM supports Java Flight Recorder,
+ * get() returns a JfrConversionEvents instance instead; the JFR classes are
+ * never loaded on JVMs without JFR.
+ *
+ * Each stage is bracketed by a begin...() call that returns a handle and an
+ * end...() call that commits the event; the handle may be null.
+ */
+public class ConversionEvents {
+
+    /**
+     * The class that implements the events with JFR
+     */
+    protected static final String JFR_IMPL = "org.nodomain.volkerk.PinkDotRemover.JfrConversionEvents";
+
+    /**
+     * The events used by all conversions
+     */
+    protected static final ConversionEvents instance = create();
+
+    /**
+     * Appended to the name of the removal strategy for kernel runs that fix the image in place
+     */
+    public static final String MODE_IN_PLACE = " in place";
+
+    /**
+     * Constructor; use get()
+     */
+    protected ConversionEvents()
+    {
+    }
+
+    /**
+     * @return the events used by all conversions
+     */
+    public static ConversionEvents get()
+    {
+        return instance;
+    }
+
+    /**
+     * Creates the JFR implementation if the JVM supports JFR and the no-op base class otherwise
+     *
+     * @return the instance
+     */
+    protected static ConversionEvents create()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event");
+            return (ConversionEvents) Class.forName(JFR_IMPL).getDeclaredConstructor().newInstance();
+        }
+        catch (Throwable e)
+        {
+            // JFR is not available on this JVM
+            return new ConversionEvents();
+        }
+    }
+
+    /**
+     * @return true if events are actually recorded (not necessarily enabled)
+     */
+    public boolean isSupported()
+    {
+        return false;
+    }
+
+    /**
+     * @return a handle for endOpen()
+     */
+    public Object beginOpen()
+    {
+        return null;
+    }
+
+    /**
+     * A file has been opened and its structure has been parsed
+     *
+     * @param handle the result of beginOpen()
+     * @param file the file name
+     * @param format the kind of file access
+     * @param width the image width or 0 if not known yet
+     * @param height the image height or 0 if not known yet
+     * @param frameCount the number of frames in the file
+     * @param fileSize the size of the file in bytes
+     */
+    public void endOpen(Object handle, String file, String format, int width, int height, int frameCount, long fileSize)
+    {
+    }
+
+    /**
+     * @return a handle for endLookup()
+     */
+    public Object beginLookup()
+    {
+        return null;
+    }
+
+    /**
+     * A dot set has been looked up
+     *
+     * @param handle the result of beginLookup()
+     * @param model the camera model
+     * @param width the image width
+     * @param height the image height
+     * @param found true if there's a dot set for the model and resolution
+     * @param generic true if the generic dot set of the model is used as fallback
+     * @param reloaded true if the database had to be re-read because the compiled database is damaged
+     */
+    public void endLookup(Object handle, String model, int width, int height, boolean found, boolean generic, boolean reloaded)
+    {
+    }
+
+    /**
+     * @return a handle for endKernel()
+     */
+    public Object beginKernel()
+    {
+        return null;
+    }
+
+    /**
+     * The dots of a frame have been fixed in memory
+     *
+     * @param handle the result of beginKernel()
+     * @param file the file name
+     * @param frame the frame index
+     * @param width the image width
+     * @param height the image height
+     * @param dotCount the number of dots
+     * @param mode the name of the removal strategy, followed by MODE_IN_PLACE for images fixed in place
+     * @param parallel true if the dots have been fixed on several threads
+     */
+    public void endKernel(Object handle, String file, int frame, int width, int height, int dotCount, String mode, boolean parallel)
+    {
+    }
+
+    /**
+     * @return a handle for endFrameRead()
+     */
+    public Object beginFrameRead()
+    {
+        return null;
+    }
+
+    /**
+     * A frame or a band of a frame has been read
+     *
+     * @param handle the result of beginFrameRead()
+     * @param file the file name
+     * @param frame the frame index
+     * @param width the image width
+     * @param height the image height
+     * @param bytes the number of bytes read
+     */
+    public void endFrameRead(Object handle, String file, int frame, int width, int height, long bytes)
+    {
+    }
+
+    /**
+     * @return a handle for endFrameWrite()
+     */
+    public Object beginFrameWrite()
+    {
+        return null;
+    }
+
+    /**
+     * A frame has been written back to its source file
+     *
+     * @param handle the result of beginFrameWrite()
+     * @param file the file name
+     * @param frame the frame index
+     * @param width the image width
+     * @param height the image height
+     * @param bytes the number of bytes written
+     */
+    public void endFrameWrite(Object handle, String file, int frame, int width, int height, long bytes)
+    {
+    }
+
+    /**
+     * @return a handle for endSave()
+     */
+    public Object beginSave()
+    {
+        return null;
+    }
+
+    /**
+     * An output file has been saved
+     *
+     * @param handle the result of beginSave()
+     * @param srcFile the source file name
+     * @param dstFile the output file name
+     * @param bytes the size of the output file
+     */
+    public void endSave(Object handle, String srcFile, String dstFile, long bytes)
+    {
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+
+/**
+ * A single file in a batch together with its conversion status.
+ *
+ * The status may be changed from any thread; everything else is immutable
+ * or owned by the JobListModel.
+ */
+public class ConversionJob {
+
+    /**
+     * The conversion status of a file
+     */
+    public enum Status
+    {
+        QUEUED(""),
+        RUNNING("converting..."),
+        DONE("done"),
+        FAILED("FAILED");
+
+        /**
+         * The text to display next to the file name
+         */
+        protected final String label;
+
+        Status(String _label)
+        {
+            label = _label;
+        }
+
+        /**
+         * @return the text to display next to the file name; empty for queued files
+         */
+        public String getLabel()
+        {
+            return label;
+        }
+    }
+
+    /**
+     * The file to convert
+     */
+    protected final File file;
+
+    /**
+     * True if the file is a RAW file that will be overwritten in place
+     */
+    protected final boolean raw;
+
+    /**
+     * The current conversion status
+     */
+    protected volatile Status status;
+
+    /**
+     * The position of the job in its JobListModel; only accessed by the model
+     */
+    int index;
+
+    /**
+     * Constructor for a queued job
+     *
+     * @param _file the file to convert
+     */
+    public ConversionJob(File _file)
+    {
+        file = _file;
+        raw = file.getName().toLowerCase().endsWith("raw");
+        status = Status.QUEUED;
+        index = -1;
+    }
+
+    /**
+     * @return the file to convert
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return true if the file is a RAW file that will be overwritten in place
+     */
+    public boolean isRAW()
+    {
+        return raw;
+    }
+
+    /**
+     * @return the current conversion status
+     */
+    public Status getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * Changes the conversion status; may be called from any thread
+     *
+     * @param _status the new status
+     */
+    public void setStatus(Status _status)
+    {
+        status = _status;
+    }
+
+    /**
+     * @return the text for the file list
+     */
+    @Override
+    public String toString()
+    {
+        Status s = status;
+        if (s == Status.QUEUED) return file.toString();
+
+        return file.toString() + "   [" + s.getLabel() + "]";
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free progress counters of a batch conversion.
+ *
+ * The conversion threads only increment counters; readers (e. g. a timer in the
+ * GUI) sample the counters whenever they like. The individual values are
+ * consistent on their own, but not necessarily with each other.
+ */
+public class ConversionProgress {
+
+    /**
+     * The number of files that have been finished (successfully or not)
+     */
+    protected final AtomicInteger filesDone = new AtomicInteger();
+
+    /**
+     * The number of frames in all files that have been opened so far
+     */
+    protected final AtomicLong framesTotal = new AtomicLong();
+
+    /**
+     * The number of frames that have been written back to disk
+     */
+    protected final AtomicLong framesDone = new AtomicLong();
+
+    /**
+     * The size of all submitted files in bytes
+     */
+    protected final AtomicLong bytesTotal = new AtomicLong();
+
+    /**
+     * The number of bytes of all frames that have been written back to disk
+     */
+    protected final AtomicLong bytesDone = new AtomicLong();
+
+    /**
+     * The time of the creation of this object in ns, as returned by System.nanoTime()
+     */
+    protected final long startTime = System.nanoTime();
+
+    /**
+     * Adds a file to the expected amount of work
+     *
+     * @param bytes the size of the file
+     */
+    public void addExpectedBytes(long bytes)
+    {
+        bytesTotal.addAndGet(bytes);
+    }
+
+    /**
+     * Adds the frames of a file that has just been opened to the expected amount of work
+     *
+     * @param frames the number of frames in the file
+     */
+    public void addExpectedFrames(long frames)
+    {
+        framesTotal.addAndGet(frames);
+    }
+
+    /**
+     * Reports a frame that has been written back to disk
+     *
+     * @param bytes the part of the file size that is covered by the frame
+     */
+    public void frameDone(long bytes)
+    {
+        framesDone.incrementAndGet();
+        bytesDone.addAndGet(bytes);
+    }
+
+    /**
+     * Reports a file that has been finished. Work that has been expected
+     * for the file but that hasn't been done (e. g. because of errors or
+     * cancellation) is removed from the expected amount of work.
+     *
+     * @param bytesNotDone the number of bytes that haven't been reported via frameDone()
+     * @param framesNotDone the number of frames that haven't been reported via frameDone()
+     */
+    public void fileDone(long bytesNotDone, long framesNotDone)
+    {
+        if (bytesNotDone > 0) bytesTotal.addAndGet(-bytesNotDone);
+        if (framesNotDone > 0) framesTotal.addAndGet(-framesNotDone);
+        filesDone.incrementAndGet();
+    }
+
+    /**
+     * @return the number of files that have been finished (successfully or not)
+     */
+    public int getFilesDone()
+    {
+        return filesDone.get();
+    }
+
+    /**
+     * @return the number of frames in all files that have been opened so far
+     */
+    public long getFramesTotal()
+    {
+        return framesTotal.get();
+    }
+
+    /**
+     * @return the number of frames that have been written back to disk
+     */
+    public long getFramesDone()
+    {
+        return framesDone.get();
+    }
+
+    /**
+     * @return the size of all files that are expected to be converted
+     */
+    public long getBytesTotal()
+    {
+        return bytesTotal.get();
+    }
+
+    /**
+     * @return the number of bytes that have been converted
+     */
+    public long getBytesDone()
+    {
+        return bytesDone.get();
+    }
+
+    /**
+     * @return the time since the start of the conversion in seconds
+     */
+    public double getElapsedSeconds()
+    {
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+
+    /**
+     * @return the average number of frames per second since the start of the conversion
+     */
+    public double getFramesPerSecond()
+    {
+        double t = getElapsedSeconds();
+        return (t > 0) ? getFramesDone() / t : 0;
+    }
+
+    /**
+     * @return the average number of bytes per second since the start of the conversion
+     */
+    public double getBytesPerSecond()
+    {
+        double t = getElapsedSeconds();
+        return (t > 0) ? getBytesDone() / t : 0;
+    }
+
+    /**
+     * Estimates the remaining conversion time from the average throughput so far
+     *
+     * @return the estimated remaining time in seconds or -1 if there is no estimate yet
+     */
+    public long getEstimatedSecondsLeft()
+    {
+        double rate = getBytesPerSecond();
+        if (rate <= 0) return -1;
+
+        long left = Math.max(0, getBytesTotal() - getBytesDone());
+        return (long) Math.ceil(left / rate);
+    }
+
+    /**
+     * @return the converted fraction of all expected bytes, between 0 and 1
+     */
+    public double getFraction()
+    {
+        long total = getBytesTotal();
+        if (total <= 0) return 0;
+
+        return Math.min(1.0, getBytesDone() / (double) total);
+    }
+}
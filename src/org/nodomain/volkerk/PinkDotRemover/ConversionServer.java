@@ -0,0 +1,612 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * A small HTTP service that converts files without paying the JVM startup
+ * and the dot database initialization for every file.
+ *
+ * Endpoints:
+ *
+ *   POST /convert?name=<file name>[&cam=<type>][&mode=<method or tier>][&response=file|summary]
+ *        converts the uploaded request body; "name" is needed for the file type
+ *   POST /convert?path=<local file>[&cam=<type>][&mode=...][&response=summary|file]
+ *        converts a local file like the command line interface does; the
+ *        request must carry the header LOCAL_CLIENT_HEADER
+ *   GET  /health
+ *   GET  /metrics  (Prometheus text format)
+ *
+ * The mode is the name of a removal strategy or quality tier, see
+ * RemovalStrategies; the default is "interpolate".
+ *
+ * Conversion requests with an "Origin" header are rejected, since browsers
+ * add it to requests of web pages. Web pages could send a plain POST to
+ * localhost otherwise and modify local files through path mode. A web page
+ * can't add LOCAL_CLIENT_HEADER without a CORS preflight request, which
+ * this server doesn't answer.
+ *
+ * At most workerCount files are converted at the same time and at most
+ * queueSize further requests wait for a worker; all other requests are
+ * rejected with "503 Service Unavailable".
+ */
+public class ConversionServer extends LoggingClass {
+
+    /**
+     * The default number of requests that may wait for a worker
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 16;
+
+    /**
+     * The header that requests for local paths must carry; its value doesn't matter
+     */
+    public static final String LOCAL_CLIENT_HEADER = "X-PinkDotRemover-Client";
+
+    protected static final String RESPONSE_FILE = "file";
+    protected static final String RESPONSE_SUMMARY = "summary";
+
+    /**
+     * The database with the dot locations
+     */
+    protected final DotLocationDB db;
+
+    /**
+     * The underlying HTTP server
+     */
+    protected final HttpServer server;
+
+    /**
+     * The threads that handle the requests; conversions are limited by the semaphores
+     */
+    protected final ExecutorService dispatcher;
+
+    /**
+     * The number of files that are converted in parallel
+     */
+    protected final int workerCount;
+
+    /**
+     * The number of requests that may wait for a worker
+     */
+    protected final int queueSize;
+
+    /**
+     * Permits for all accepted conversion requests (working and waiting)
+     */
+    protected final Semaphore admission;
+
+    /**
+     * Permits for the actual conversions
+     */
+    protected final Semaphore workers;
+
+    /**
+     * Counters for /health and /metrics
+     */
+    protected final AtomicLong requestCount = new AtomicLong();
+    protected final AtomicLong convertedCount = new AtomicLong();
+    protected final AtomicLong failedCount = new AtomicLong();
+    protected final AtomicLong rejectedCount = new AtomicLong();
+    protected final AtomicLong bytesIn = new AtomicLong();
+    protected final AtomicLong bytesOut = new AtomicLong();
+    protected final AtomicLong conversionNanos = new AtomicLong();
+    protected final AtomicInteger activeCount = new AtomicInteger();
+    protected final AtomicInteger waitingCount = new AtomicInteger();
+
+    /**
+     * Constructor. Binds the server socket but doesn't accept requests before start().
+     *
+     * @param _db the database with the dot locations
+     * @param addr the address to listen on; port 0 selects a free port
+     * @param _workerCount the number of files that are converted in parallel
+     * @param _queueSize the number of requests that may wait for a worker
+     *
+     * @throws IOException if the socket can't be bound
+     */
+    public ConversionServer(DotLocationDB _db, InetSocketAddress addr, int _workerCount, int _queueSize) throws IOException
+    {
+        if (_workerCount < 1) throw new IllegalArgumentException("Need at least one worker thread!");
+        if (_queueSize < 0) throw new IllegalArgumentException("Invalid queue size " + _queueSize);
+
+        db = _db;
+        workerCount = _workerCount;
+        queueSize = _queueSize;
+        admission = new Semaphore(workerCount + queueSize);
+        workers = new Semaphore(workerCount, true);
+
+        // waiting requests block their thread, so the dispatcher must not be
+        // bounded by the number of workers; the admission semaphore limits it
+        final AtomicInteger threadNum = new AtomicInteger();
+        dispatcher = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "ConversionServer-" + threadNum.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        server = HttpServer.create(addr, 0);
+        server.setExecutor(dispatcher);
+        server.createContext("/convert", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException
+            {
+                dispatch(ex, "convert");
+            }
+        });
+        server.createContext("/health", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException
+            {
+                dispatch(ex, "health");
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException
+            {
+                dispatch(ex, "metrics");
+            }
+        });
+    }
+
+    /**
+     * Starts accepting requests
+     */
+    public void start()
+    {
+        server.start();
+        dbg("Conversion server listening on ", server.getAddress());
+    }
+
+    /**
+     * Stops the server; running conversions get up to delay seconds to finish
+     *
+     * @param delay the maximum time to wait in seconds
+     */
+    public void stop(int delay)
+    {
+        server.stop(delay);
+        dispatcher.shutdownNow();
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Calls the handler for an endpoint and makes sure that every exchange gets an answer and is closed
+     *
+     * @param ex the exchange
+     * @param endpoint the name of the endpoint
+     */
+    protected void dispatch(HttpExchange ex, String endpoint)
+    {
+        requestCount.incrementAndGet();
+        try
+        {
+            if (endpoint.equals("convert")) handleConvert(ex);
+            else if (endpoint.equals("health")) handleHealth(ex);
+            else handleMetrics(ex);
+        }
+        catch (Exception e)
+        {
+            failed("Request ", ex.getRequestURI(), " failed: ", e.getMessage());
+            try
+            {
+                sendJson(ex, 500, "{\"error\":" + jsonString(String.valueOf(e.getMessage())) + "}");
+            }
+            catch (IOException e2)
+            {
+                // the response has already been started or the client is gone
+            }
+        }
+        finally
+        {
+            ex.close();
+        }
+    }
+
+    /**
+     * Handles /convert
+     *
+     * @param ex the exchange
+     *
+     * @throws IOException in case of network or file errors
+     */
+    protected void handleConvert(HttpExchange ex) throws IOException
+    {
+        if (!(ex.getRequestMethod().equalsIgnoreCase("POST")))
+        {
+            sendError(ex, 405, "Use POST");
+            return;
+        }
+
+        // only requests of local programs are accepted, not those of web pages
+        if (ex.getRequestHeaders().getFirst("Origin") != null)
+        {
+            sendError(ex, 403, "Requests from web pages are not allowed");
+            return;
+        }
+
+        Map<String, String> query = parseQuery(ex.getRequestURI().getRawQuery());
+
+        String camType = PinkDotRemover.DEFAULT_CAM_TYPE;
+        if (query.containsKey("cam"))
+        {
+            camType = null;
+            for (String knownCam : db.getAllModels())
+            {
+                if (knownCam.equalsIgnoreCase(query.get("cam"))) camType = knownCam;
+            }
+            if (camType == null)
+            {
+                sendError(ex, 400, "Unknown camera type " + query.get("cam"));
+                return;
+            }
+        }
+
+        RemovalStrategy strategy = RemovalStrategies.INTERPOLATE;
+        if (query.containsKey("mode"))
+        {
+            strategy = RemovalStrategies.find(query.get("mode"));
+            if (strategy == null)
+            {
+                sendError(ex, 400, "Invalid mode " + query.get("mode"));
+                return;
+            }
+        }
+
+        String localPath = query.get("path");
+        String responseType = query.get("response");
+        if (responseType == null) responseType = (localPath != null) ? RESPONSE_SUMMARY : RESPONSE_FILE;
+        if (!(responseType.equals(RESPONSE_FILE) || responseType.equals(RESPONSE_SUMMARY)))
+        {
+            sendError(ex, 400, "Invalid response type " + responseType);
+            return;
+        }
+
+        File src;
+        if (localPath != null)
+        {
+            if (ex.getRequestHeaders().getFirst(LOCAL_CLIENT_HEADER) == null)
+            {
+                sendError(ex, 403, "Local paths require the header " + LOCAL_CLIENT_HEADER);
+                return;
+            }
+
+            src = new File(localPath);
+            if (!(src.isFile()))
+            {
+                sendError(ex, 404, "No such file: " + localPath);
+                return;
+            }
+        }
+        else
+        {
+            String name = query.get("name");
+            if (name == null) name = ex.getRequestHeaders().getFirst("X-File-Name");
+            if (name == null)
+            {
+                sendError(ex, 400, "The file name is missing");
+                return;
+            }
+            src = new File(new File(name).getName());
+        }
+        if (!(PinkDotRemover.isSupportedFile(src)))
+        {
+            sendError(ex, 400, "Not a DNG or RAW file: " + src.getName());
+            return;
+        }
+
+        // don't accept more requests than we can queue
+        if (!(admission.tryAcquire()))
+        {
+            rejectedCount.incrementAndGet();
+            ex.getResponseHeaders().set("Retry-After", "1");
+            sendError(ex, 503, "All workers are busy");
+            return;
+        }
+
+        Path tmpDir = null;
+        try
+        {
+            // uploads are spooled to a private directory, next to their output file
+            if (localPath == null)
+            {
+                tmpDir = Files.createTempDirectory("PinkDotRemover-");
+                File upload = new File(tmpDir.toFile(), src.getName());
+                InputStream in = ex.getRequestBody();
+                bytesIn.addAndGet(Files.copy(in, upload.toPath(), StandardCopyOption.REPLACE_EXISTING));
+                src = upload;
+            }
+
+            convertAndRespond(ex, src, camType, strategy, responseType);
+        }
+        finally
+        {
+            admission.release();
+            if (tmpDir != null) deleteDir(tmpDir.toFile());
+        }
+    }
+
+    /**
+     * Waits for a worker, converts a file and sends the result
+     *
+     * @param ex the exchange
+     * @param src the file to convert
+     * @param camType the camera type
+     * @param strategy calculates the new values of the dot pixels
+     * @param responseType RESPONSE_FILE or RESPONSE_SUMMARY
+     *
+     * @throws IOException in case of network or file errors
+     */
+    protected void convertAndRespond(HttpExchange ex, File src, String camType, RemovalStrategy strategy, String responseType) throws IOException
+    {
+        waitingCount.incrementAndGet();
+        try
+        {
+            workers.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            sendError(ex, 503, "Server is shutting down");
+            return;
+        }
+        finally
+        {
+            waitingCount.decrementAndGet();
+        }
+
+        boolean success = false;
+        String errorMsg = null;
+        PinkDotRemover pdr = null;
+        long t0 = System.nanoTime();
+        activeCount.incrementAndGet();
+        try
+        {
+            pdr = new PinkDotRemover(src.toString(), db, camType);
+            success = pdr.doRemoval(strategy);
+            if (!success) errorMsg = "No dot set for this image or the file could not be converted";
+        }
+        catch (Exception e)
+        {
+            errorMsg = e.getMessage();
+        }
+        finally
+        {
+            activeCount.decrementAndGet();
+            workers.release();
+        }
+        long nanos = System.nanoTime() - t0;
+        conversionNanos.addAndGet(nanos);
+
+        if (!success)
+        {
+            failedCount.incrementAndGet();
+            failed("Conversion of ", src, " failed: ", errorMsg);
+            sendError(ex, 422, String.valueOf(errorMsg));
+            return;
+        }
+        convertedCount.incrementAndGet();
+
+        // DNGs are written to a new file, RAW files are modified in place
+        File dst = src;
+        if (src.getName().toLowerCase().endsWith("dng")) dst = new File(src.getParentFile(), "_" + src.getName());
+
+        if (responseType.equals(RESPONSE_FILE))
+        {
+            ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            ex.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + dst.getName() + "\"");
+            ex.sendResponseHeaders(200, dst.length());
+            OutputStream out = ex.getResponseBody();
+            bytesOut.addAndGet(Files.copy(dst.toPath(), out));
+            out.close();
+            return;
+        }
+
+        String summary = String.format(Locale.ROOT,
+                "{\"file\":%s,\"output\":%s,\"cam\":%s,\"mode\":%s,\"frames\":%d,\"dotsPerFrame\":%d,"
+                + "\"pixelsPatched\":%d,\"bytes\":%d,\"millis\":%d}",
+                jsonString(src.getName()), jsonString(dst.getName()), jsonString(camType), jsonString(strategy.getName()),
+                pdr.getFramesReported(), pdr.getDotsPerFrame(), pdr.getPixelsPatched(),
+                dst.length(), nanos / 1000000);
+        sendJson(ex, 200, summary);
+    }
+
+    /**
+     * Handles /health
+     *
+     * @param ex the exchange
+     *
+     * @throws IOException in case of network errors
+     */
+    protected void handleHealth(HttpExchange ex) throws IOException
+    {
+        String health = String.format(Locale.ROOT,
+                "{\"status\":\"ok\",\"workers\":%d,\"active\":%d,\"queued\":%d,\"queueCapacity\":%d,\"jfr\":%b}",
+                workerCount, activeCount.get(), waitingCount.get(), queueSize, ConversionEvents.get().isSupported());
+        sendJson(ex, 200, health);
+    }
+
+    /**
+     * Handles /metrics
+     *
+     * @param ex the exchange
+     *
+     * @throws IOException in case of network errors
+     */
+    protected void handleMetrics(HttpExchange ex) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        appendMetric(sb, "pinkdot_requests_total", "counter", "HTTP requests received", requestCount.get());
+        appendMetric(sb, "pinkdot_conversions_total", "counter", "Files converted successfully", convertedCount.get());
+        appendMetric(sb, "pinkdot_conversion_failures_total", "counter", "Files that could not be converted", failedCount.get());
+        appendMetric(sb, "pinkdot_rejected_total", "counter", "Conversion requests rejected because the queue was full", rejectedCount.get());
+        appendMetric(sb, "pinkdot_upload_bytes_total", "counter", "Bytes received as uploads", bytesIn.get());
+        appendMetric(sb, "pinkdot_download_bytes_total", "counter", "Bytes of converted files sent", bytesOut.get());
+        sb.append("# HELP pinkdot_conversion_seconds_total Time spent converting files\n");
+        sb.append("# TYPE pinkdot_conversion_seconds_total counter\n");
+        sb.append(String.format(Locale.ROOT, "pinkdot_conversion_seconds_total %.3f\n", conversionNanos.get() / 1e9));
+        appendMetric(sb, "pinkdot_active_conversions", "gauge", "Files being converted", activeCount.get());
+        appendMetric(sb, "pinkdot_queued_conversions", "gauge", "Requests waiting for a worker", waitingCount.get());
+        appendMetric(sb, "pinkdot_workers", "gauge", "Maximum number of parallel conversions", workerCount);
+
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        ex.sendResponseHeaders(200, body.length);
+        OutputStream out = ex.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * Appends a single metric in Prometheus text format
+     */
+    protected static void appendMetric(StringBuilder sb, String name, String type, String help, long value)
+    {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Sends an error as JSON object
+     *
+     * @param ex the exchange
+     * @param status the HTTP status code
+     * @param msg the error message
+     *
+     * @throws IOException in case of network errors
+     */
+    protected static void sendError(HttpExchange ex, int status, String msg) throws IOException
+    {
+        sendJson(ex, status, "{\"error\":" + jsonString(msg) + "}");
+    }
+
+    /**
+     * Sends a JSON response
+     *
+     * @param ex the exchange
+     * @param status the HTTP status code
+     * @param json the response body
+     *
+     * @throws IOException in case of network errors
+     */
+    protected static void sendJson(HttpExchange ex, int status, String json) throws IOException
+    {
+        byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, body.length);
+        OutputStream out = ex.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * @param s any string
+     *
+     * @return s as quoted JSON string
+     */
+    protected static String jsonString(String s)
+    {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i=0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\')) sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Splits a raw URL query into its decoded parameters
+     *
+     * @param rawQuery the query or null
+     *
+     * @return the parameters; the last value wins for repeated names
+     */
+    protected static Map<String, String> parseQuery(String rawQuery)
+    {
+        HashMap<String, String> result = new HashMap<String, String>();
+        if (rawQuery == null) return result;
+
+        for (String param : rawQuery.split("&"))
+        {
+            if (param.length() == 0) continue;
+
+            int eq = param.indexOf('=');
+            String name = (eq < 0) ? param : param.substring(0, eq);
+            String value = (eq < 0) ? "" : param.substring(eq + 1);
+            try
+            {
+                result.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                // can't happen, UTF-8 is always supported
+            }
+            catch (IllegalArgumentException e)
+            {
+                // malformed escape sequence, ignore the parameter
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Deletes a temporary directory and the files in it
+     *
+     * @param dir the directory
+     */
+    protected static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        if (files != null)
+        {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,1011 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * Row based access to the CFA image of an uncompressed or lossless JPEG
+ * compressed DNG file.
+ *
+ * Only the TIFF structure is parsed when the file is opened; pixel rows are
+ * read on demand from a read-only memory mapping of the file. Results are
+ * written by copying the source file and patching only the modified rows,
+ * so the rest of the file remains byte-identical.
+ *
+ * Compressed images are accessed per tile (or strip): only the tiles that
+ * are needed are decoded, and only modified tiles are encoded again. A new
+ * tile that fits into the space of the old one replaces it, otherwise it is
+ * appended to the file; the tile tables are updated in place in both cases.
+ *
+ * A DNG image that is already in memory can be opened from a ByteBuffer and
+ * patched into a buffer in the same way.
+ *
+ * If the content digest of the result is needed, the copy is streamed from
+ * the mapping with the patches applied on the fly, so the digest is
+ * calculated from the written bytes without reading the result again.
+ */
+public class DngFile extends LoggingClass {
+
+    protected static final int TAG_NEW_SUBFILE_TYPE = 254;
+    protected static final int TAG_IMAGE_WIDTH = 256;
+    protected static final int TAG_IMAGE_LENGTH = 257;
+    protected static final int TAG_BITS_PER_SAMPLE = 258;
+    protected static final int TAG_COMPRESSION = 259;
+    protected static final int TAG_PHOTOMETRIC = 262;
+    protected static final int TAG_FILL_ORDER = 266;
+    protected static final int TAG_STRIP_OFFSETS = 273;
+    protected static final int TAG_SAMPLES_PER_PIXEL = 277;
+    protected static final int TAG_ROWS_PER_STRIP = 278;
+    protected static final int TAG_STRIP_BYTE_COUNTS = 279;
+    protected static final int TAG_TILE_WIDTH = 322;
+    protected static final int TAG_TILE_LENGTH = 323;
+    protected static final int TAG_TILE_OFFSETS = 324;
+    protected static final int TAG_TILE_BYTE_COUNTS = 325;
+    protected static final int TAG_SUB_IFDS = 330;
+
+    protected static final int PHOTOMETRIC_CFA = 32803;
+    protected static final int COMPRESSION_NONE = 1;
+    protected static final int COMPRESSION_LJ92 = 7;
+
+    /**
+     * Protection against corrupt files with IFD loops
+     */
+    protected static final int MAX_IFDS = 64;
+
+    /**
+     * The chunk size for streamed copies
+     */
+    protected static final int COPY_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * The file name; null for images in memory
+     */
+    protected final String fileName;
+
+    /**
+     * The contents of the whole file: a memory mapping of the file or a slice of the caller's buffer
+     */
+    protected final ByteBuffer map;
+
+    /**
+     * The caller's buffer for images in memory; null for files
+     */
+    protected final ByteBuffer source;
+
+    /**
+     * The byte order of the file
+     */
+    protected final boolean littleEndian;
+
+    /**
+     * Image properties of the CFA image
+     */
+    protected int width;
+    protected int height;
+    protected int bitsPerSample;
+
+    /**
+     * True for tiled images, false for strips
+     */
+    protected boolean tiled;
+
+    /**
+     * Rows per strip or tile length
+     */
+    protected int blockRows;
+
+    /**
+     * Image width for strips, tile width for tiles
+     */
+    protected int blockWidth;
+
+    /**
+     * The file offsets of all strips or tiles
+     */
+    protected long[] blockOffsets;
+
+    /**
+     * True for lossless JPEG compressed strips or tiles
+     */
+    protected boolean compressed;
+
+    /**
+     * The sizes of all compressed strips or tiles
+     */
+    protected long[] blockByteCounts;
+
+    /**
+     * The file offsets of the IFD entries with the offsets and the sizes of the
+     * compressed strips or tiles, for updating them after re-encoding
+     */
+    protected long blockOffsetsEntry;
+    protected long blockByteCountsEntry;
+
+    /**
+     * Constructor. Maps the file and parses the TIFF header.
+     *
+     * @param fName the DNG file
+     *
+     * @throws IOException if the file can't be read
+     */
+    protected DngFile(String fName) throws IOException
+    {
+        this(fName, null, mapFile(fName));
+    }
+
+    /**
+     * Constructor. Parses the TIFF header of a file or an image in memory.
+     *
+     * @param fName the DNG file; null for images in memory
+     * @param _source the caller's buffer for images in memory; null for files
+     * @param data the contents of the file, starting at position 0
+     *
+     * @throws IOException if the data is not a TIFF file
+     */
+    protected DngFile(String fName, ByteBuffer _source, ByteBuffer data) throws IOException
+    {
+        fileName = fName;
+        source = _source;
+        map = data;
+
+        if (map.limit() < 8) throw new IOException("Not a TIFF file");
+        int bo = map.getShort(0) & 0xffff;
+        if (bo == 0x4949) littleEndian = true;
+        else if (bo == 0x4d4d) littleEndian = false;
+        else throw new IOException("Not a TIFF file");
+        map.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+        if ((map.getShort(2) & 0xffff) != 42) throw new IOException("Not a classic TIFF file");
+    }
+
+    /**
+     * Opens a DNG file for row based access
+     *
+     * @param fName the DNG file
+     *
+     * @return the opened file or null if the file's CFA image is not supported (e. g. lossy compressed)
+     *
+     * @throws IOException if the file can't be read or is not a TIFF file
+     */
+    public static DngFile open(String fName) throws IOException
+    {
+        DngFile result = new DngFile(fName);
+        if (!(result.findCfaImage())) return null;
+
+        return result;
+    }
+
+    /**
+     * Opens a DNG image in memory for row based access
+     *
+     * @param data the DNG image from the buffer's position to its limit; neither the buffer's
+     * contents nor its position are changed
+     *
+     * @return the opened image or null if its CFA image is not supported (e. g. lossy compressed)
+     *
+     * @throws IOException if the data is not a TIFF file
+     */
+    public static DngFile open(ByteBuffer data) throws IOException
+    {
+        DngFile result = new DngFile(null, data, data.slice());
+        if (!(result.findCfaImage())) return null;
+
+        return result;
+    }
+
+    /**
+     * Maps a file read-only into memory
+     *
+     * @param fName the file
+     *
+     * @return the mapping of the whole file
+     *
+     * @throws IOException if the file can't be read or is too large
+     */
+    protected static MappedByteBuffer mapFile(String fName) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(fName, "r");
+        try
+        {
+            if (raf.length() > Integer.MAX_VALUE) throw new IOException("File too large for mapping");
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the size of the DNG file or image in bytes
+     */
+    public int getSize()
+    {
+        return map.limit();
+    }
+
+    /**
+     * Walks all IFDs including SubIFDs and picks the main CFA image
+     *
+     * @return true if a supported CFA image has been found
+     */
+    protected boolean findCfaImage()
+    {
+        HashSet<Long> visited = new HashSet<Long>();
+        long fallback = -1;
+
+        // breadth-first over the IFD chain and the SubIFD trees
+        ArrayDeque<Long> queue = new ArrayDeque<Long>();
+        queue.add(map.getInt(4) & 0xffffffffL);
+        while ((!(queue.isEmpty())) && (visited.size() < MAX_IFDS))
+        {
+            long ifd = queue.poll();
+            if ((ifd == 0) || (ifd + 2 > map.limit()) || (!(visited.add(ifd)))) continue;
+
+            if (getTagValue(ifd, TAG_PHOTOMETRIC, -1) == PHOTOMETRIC_CFA)
+            {
+                // prefer the full resolution image over previews
+                if (getTagValue(ifd, TAG_NEW_SUBFILE_TYPE, 0) == 0) return parseCfaIfd(ifd);
+                if (fallback < 0) fallback = ifd;
+            }
+
+            long[] subs = getTagValues(ifd, TAG_SUB_IFDS);
+            if (subs != null) for (long s : subs) queue.add(s);
+
+            int n = map.getShort((int) ifd) & 0xffff;
+            long nextPos = ifd + 2 + 12L * n;
+            if (nextPos + 4 <= map.limit()) queue.add(map.getInt((int) nextPos) & 0xffffffffL);
+        }
+
+        if (fallback >= 0) return parseCfaIfd(fallback);
+
+        return false;
+    }
+
+    /**
+     * Reads the image properties of a CFA IFD and checks if they're supported
+     *
+     * @param ifd the IFD's file offset
+     *
+     * @return true if the image can be accessed by this class
+     */
+    protected boolean parseCfaIfd(long ifd)
+    {
+        width = (int) getTagValue(ifd, TAG_IMAGE_WIDTH, 0);
+        height = (int) getTagValue(ifd, TAG_IMAGE_LENGTH, 0);
+        bitsPerSample = (int) getTagValue(ifd, TAG_BITS_PER_SAMPLE, 1);
+
+        if ((width <= 0) || (height <= 0)) return false;
+        if ((bitsPerSample < 1) || (bitsPerSample > 16)) return false;
+        long compression = getTagValue(ifd, TAG_COMPRESSION, COMPRESSION_NONE);
+        if ((compression != COMPRESSION_NONE) && (compression != COMPRESSION_LJ92)) return false;
+        if (getTagValue(ifd, TAG_SAMPLES_PER_PIXEL, 1) != 1) return false;
+        if (getTagValue(ifd, TAG_FILL_ORDER, 1) != 1) return false;
+        compressed = (compression == COMPRESSION_LJ92);
+
+        tiled = (getTagValues(ifd, TAG_TILE_OFFSETS) != null);
+        int blocksDown;
+        if (tiled)
+        {
+            blockWidth = (int) getTagValue(ifd, TAG_TILE_WIDTH, 0);
+            blockRows = (int) getTagValue(ifd, TAG_TILE_LENGTH, 0);
+            blockOffsets = getTagValues(ifd, TAG_TILE_OFFSETS);
+            blockByteCounts = getTagValues(ifd, TAG_TILE_BYTE_COUNTS);
+            blockOffsetsEntry = findTagEntry(ifd, TAG_TILE_OFFSETS);
+            blockByteCountsEntry = findTagEntry(ifd, TAG_TILE_BYTE_COUNTS);
+            if ((blockWidth <= 0) || (blockRows <= 0)) return false;
+            blocksDown = (height + blockRows - 1) / blockRows;
+            if (blockOffsets.length != blocksDown * ((width + blockWidth - 1) / blockWidth)) return false;
+        }
+        else
+        {
+            blockWidth = width;
+            blockRows = (int) Math.min(height, getTagValue(ifd, TAG_ROWS_PER_STRIP, height));
+            blockOffsets = getTagValues(ifd, TAG_STRIP_OFFSETS);
+            blockByteCounts = getTagValues(ifd, TAG_STRIP_BYTE_COUNTS);
+            blockOffsetsEntry = findTagEntry(ifd, TAG_STRIP_OFFSETS);
+            blockByteCountsEntry = findTagEntry(ifd, TAG_STRIP_BYTE_COUNTS);
+            if ((blockRows <= 0) || (blockOffsets == null)) return false;
+            blocksDown = (height + blockRows - 1) / blockRows;
+            if (blockOffsets.length != blocksDown) return false;
+        }
+
+        // all blocks must be completely inside the file
+        if (compressed)
+        {
+            if ((blockByteCounts == null) || (blockByteCounts.length != blockOffsets.length)) return false;
+            for (int i=0; i < blockOffsets.length; i++)
+            {
+                if (blockOffsets[i] + blockByteCounts[i] > map.limit()) return false;
+            }
+        }
+        else
+        {
+            long blockBytes = (long) blockRows * getSegmentBytes();
+            for (long off : blockOffsets)
+            {
+                if ((off < 0) || (off + blockBytes > map.limit())) return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds the IFD entry of a tag
+     *
+     * @param ifd the IFD's file offset
+     * @param tag the tag ID
+     *
+     * @return the file offset of the entry or -1 if the tag doesn't exist
+     */
+    protected long findTagEntry(long ifd, int tag)
+    {
+        int n = map.getShort((int) ifd) & 0xffff;
+        for (int i=0; i < n; i++)
+        {
+            long e = ifd + 2 + 12L * i;
+            if (e + 12 > map.limit()) return -1;
+            if ((map.getShort((int) e) & 0xffff) == tag) return e;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param type a TIFF field type
+     *
+     * @return the size of a value of a BYTE, SHORT, LONG or IFD field or 0 for other types
+     */
+    protected static int getTypeSize(int type)
+    {
+        if (type == 1) return 1;        // BYTE
+        if (type == 3) return 2;        // SHORT
+        if ((type == 4) || (type == 13)) return 4;   // LONG, IFD
+
+        return 0;
+    }
+
+    /**
+     * Determines where the values of an IFD entry are stored
+     *
+     * @param e the file offset of the entry
+     *
+     * @return the file offset of the first value; inside the entry for values that fit into four bytes
+     */
+    protected long getValuePos(long e)
+    {
+        int size = getTypeSize(map.getShort((int) e + 2) & 0xffff);
+        long count = map.getInt((int) e + 4) & 0xffffffffL;
+
+        return ((size * count) <= 4) ? e + 8 : map.getInt((int) e + 8) & 0xffffffffL;
+    }
+
+    /**
+     * Retrieves the values of a tag with type BYTE, SHORT or LONG
+     *
+     * @param ifd the IFD's file offset
+     * @param tag the tag ID
+     *
+     * @return the values or null if the tag doesn't exist or has an unsupported type
+     */
+    protected long[] getTagValues(long ifd, int tag)
+    {
+        long e = findTagEntry(ifd, tag);
+        if (e < 0) return null;
+
+        int size = getTypeSize(map.getShort((int) e + 2) & 0xffff);
+        if (size == 0) return null;
+
+        long count = map.getInt((int) e + 4) & 0xffffffffL;
+        long valPos = getValuePos(e);
+        if ((count > Integer.MAX_VALUE / 4) || (valPos + size * count > map.limit())) return null;
+
+        long[] result = new long[(int) count];
+        for (int k=0; k < count; k++)
+        {
+            int p = (int) (valPos + (long) k * size);
+            if (size == 1) result[k] = map.get(p) & 0xff;
+            else if (size == 2) result[k] = map.getShort(p) & 0xffff;
+            else result[k] = map.getInt(p) & 0xffffffffL;
+        }
+
+        return result;
+    }
+
+    /**
+     * Retrieves the first value of a tag
+     *
+     * @param ifd the IFD's file offset
+     * @param tag the tag ID
+     * @param defaultValue the value to return if the tag doesn't exist
+     *
+     * @return the tag's first value or the default value
+     */
+    protected long getTagValue(long ifd, int tag, long defaultValue)
+    {
+        long[] v = getTagValues(ifd, tag);
+        if ((v == null) || (v.length == 0)) return defaultValue;
+
+        return v[0];
+    }
+
+    /**
+     * @return the number of bytes of a row within a strip or tile; rows start at byte boundaries
+     */
+    protected int getSegmentBytes()
+    {
+        return (int) (((long) blockWidth * bitsPerSample + 7) / 8);
+    }
+
+    /**
+     * @return the width of the CFA image
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return the height of the CFA image
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return the number of bits per pixel
+     */
+    public int getBitsPerSample()
+    {
+        return bitsPerSample;
+    }
+
+    /**
+     * @return true if the CFA image consists of lossless JPEG compressed strips or tiles
+     */
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+
+    /**
+     * Reads a band of rows of the CFA image
+     *
+     * @param y0 the first row to read
+     * @param y1 the row after the last row to read
+     *
+     * @return the band with the packed pixel data of the requested rows; for compressed images, the
+     * band is extended to whole tiles and all tiles in these rows are decoded
+     *
+     * @throws IOException if a compressed tile can't be decoded
+     */
+    public PackedBand readBand(int y0, int y1) throws IOException
+    {
+        if (compressed)
+        {
+            int blocksAcross = (width + blockWidth - 1) / blockWidth;
+            boolean[] wanted = new boolean[blockOffsets.length];
+            for (int y = y0 - y0 % blockRows; y < y1; y += blockRows)
+            {
+                for (int seg=0; seg < blocksAcross; seg++) wanted[(y / blockRows) * blocksAcross + seg] = true;
+            }
+            return readBlocks(wanted);
+        }
+
+        int segBytes = getSegmentBytes();
+        int blocksAcross = (width + blockWidth - 1) / blockWidth;
+        CfaBand band = new CfaBand(width, height, y0, y1, bitsPerSample, littleEndian, blockWidth, blocksAcross);
+
+        ByteBuffer src = map.duplicate();
+        for (int y = y0; y < y1; y++)
+        {
+            for (int seg=0; seg < blocksAcross; seg++)
+            {
+                long off = blockOffsets[(y / blockRows) * blocksAcross + seg] + (long) (y % blockRows) * segBytes;
+                byte[] b = new byte[segBytes];
+                src.position((int) off);
+                src.get(b);
+                band.setSegment(y, seg, off, b);
+            }
+        }
+
+        return band;
+    }
+
+    /**
+     * Reads the part of the CFA image that contains the dots and their neighborhood
+     *
+     * @param plan the dot locations
+     *
+     * @return the band with the rows of the plan; for compressed images only the tiles
+     * that contain dots or their neighbors are decoded
+     *
+     * @throws IOException if a compressed tile can't be decoded
+     */
+    public PackedBand readDotBand(DotPlan plan) throws IOException
+    {
+        if (!(compressed)) return readBand(plan.getBandStart(height), plan.getBandEnd(height));
+
+        int blocksAcross = (width + blockWidth - 1) / blockWidth;
+        boolean[] wanted = new boolean[blockOffsets.length];
+        int r = plan.getNeighborhood();
+        for (int[] dot : plan.getDots())
+        {
+            if ((dot[0] < 0) || (dot[0] >= width) || (dot[1] < 0) || (dot[1] >= height)) continue;
+
+            int bx0 = Math.max(0, dot[0] - r) / blockWidth;
+            int bx1 = Math.min(width - 1, dot[0] + r) / blockWidth;
+            int by0 = Math.max(0, dot[1] - r) / blockRows;
+            int by1 = Math.min(height - 1, dot[1] + r) / blockRows;
+            for (int by = by0; by <= by1; by++)
+            {
+                for (int bx = bx0; bx <= bx1; bx++) wanted[by * blocksAcross + bx] = true;
+            }
+        }
+
+        return readBlocks(wanted);
+    }
+
+    /**
+     * Decodes compressed strips or tiles
+     *
+     * @param wanted the strips or tiles to decode per index
+     *
+     * @return a band that spans all rows of the decoded strips or tiles
+     *
+     * @throws IOException if a strip or tile can't be decoded
+     */
+    protected TileBand readBlocks(boolean[] wanted) throws IOException
+    {
+        int blocksAcross = (width + blockWidth - 1) / blockWidth;
+        int first = -1;
+        int last = -1;
+        for (int b=0; b < wanted.length; b++)
+        {
+            if (!(wanted[b])) continue;
+            if (first < 0) first = b;
+            last = b;
+        }
+
+        int y0 = (first < 0) ? 0 : (first / blocksAcross) * blockRows;
+        int y1 = (first < 0) ? 0 : Math.min(height, (last / blocksAcross + 1) * blockRows);
+        TileBand band = new TileBand(width, height, y0, y1, bitsPerSample, blockWidth, blockRows, blocksAcross, blockOffsets.length);
+
+        ByteBuffer src = map.duplicate();
+        for (int b=0; b < wanted.length; b++)
+        {
+            if (!(wanted[b])) continue;
+
+            byte[] jpeg = new byte[(int) blockByteCounts[b]];
+            src.position((int) blockOffsets[b]);
+            src.get(jpeg);
+
+            // TIFF allows the last strip to end with the image instead of being padded
+            LosslessJpeg img = LosslessJpeg.decode(jpeg, 0, jpeg.length);
+            int rows = tiled ? blockRows : Math.min(blockRows, height - (b / blocksAcross) * blockRows);
+            int n = img.getSamples().length;
+            if ((img.getPrecision() > bitsPerSample) || ((n != blockWidth * blockRows) && (n != blockWidth * rows)))
+            {
+                throw new IOException("Tile " + b + " doesn't match the image layout");
+            }
+            band.setBlock(b, img);
+        }
+
+        return band;
+    }
+
+    /**
+     * Writes a copy of this file with the modified rows of a band
+     *
+     * @param band a band read from this file and modified afterwards; null for an unmodified copy
+     * @param dst the file to write; existing files will be overwritten
+     *
+     * @throws IOException in case of write errors
+     */
+    public void writePatched(PackedBand band, Path dst) throws IOException
+    {
+        writePatched(band, dst, null);
+    }
+
+    /**
+     * Writes a copy of this file with the modified rows of a band and calculates the digest of the copy
+     *
+     * @param band a band read from this file and modified afterwards; null for an unmodified copy
+     * @param dst the file to write; existing files will be overwritten
+     * @param md receives all bytes of the copy; null if no digest is needed
+     *
+     * @throws IOException in case of write errors
+     */
+    public void writePatched(PackedBand band, Path dst, MessageDigest md) throws IOException
+    {
+        if (md != null)
+        {
+            // collect the patches first and apply them while streaming the copy through the digest
+            PatchList patches = new PatchList(map.limit());
+            if (band != null) band.writePatches(this, patches);
+
+            FileChannel ch = FileChannel.open(dst, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try
+            {
+                writeStreamed(patches, ch, md);
+            }
+            finally
+            {
+                ch.close();
+            }
+            dbg("Streamed ", patches.size(), " bytes with ", patches.getCount(), " patches to ", dst);
+
+            return;
+        }
+
+        if (fileName == null)
+        {
+            // images in memory are written completely
+            FileChannel ch = FileChannel.open(dst, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try
+            {
+                writeFully(ch, map.duplicate(), 0);
+            }
+            finally
+            {
+                ch.close();
+            }
+        }
+        else
+        {
+            File src = new File(fileName);
+            if (!(src.getCanonicalFile().equals(dst.toFile().getCanonicalFile())))
+            {
+                Files.copy(src.toPath(), dst, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (band == null) return;
+
+        FileChannel ch = FileChannel.open(dst, StandardOpenOption.WRITE);
+        try
+        {
+            long n = band.writePatches(this, new ChannelTarget(ch));
+            dbg("Patched ", n, " bytes in ", dst);
+        }
+        finally
+        {
+            ch.close();
+        }
+    }
+
+    /**
+     * Writes a copy of this image with the modified rows of a band into a buffer
+     *
+     * @param band a band read from this image and modified afterwards; null for an unmodified copy
+     * @param dst the buffer that receives the image at its position; pass the buffer that the image
+     * has been opened from to patch it in place. The buffer's position is not changed.
+     *
+     * @return the size of the patched image; re-encoded tiles that don't fit into the space of the
+     * old ones are appended to the image, so this requires room between the image and the buffer's limit
+     *
+     * @throws IOException if the buffer is too small
+     */
+    public int writePatched(PackedBand band, ByteBuffer dst) throws IOException
+    {
+        if (dst.remaining() < map.limit()) throw new IOException("The buffer is too small for the image");
+        if (dst != source) dst.duplicate().put(map.duplicate());
+        if (band == null) return map.limit();
+
+        BufferTarget target = new BufferTarget(dst, map.limit());
+        long n = band.writePatches(this, target);
+        dbg("Patched ", n, " bytes in memory");
+
+        return (int) target.size();
+    }
+
+    /**
+     * Encodes the modified tiles of a band and stores them in a copy of this
+     * file. A tile is written to its old position if it fits into the old
+     * tile's space and appended to the file otherwise. The offset and size
+     * of each written tile are updated in the tile tables.
+     *
+     * @param band a band read from this file and modified afterwards
+     * @param dst a copy of this file
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException in case of write errors, if there's no room for the new tiles or if they
+     * can't be referenced by the tile tables
+     */
+    protected long writeBlocks(TileBand band, PatchTarget dst) throws IOException
+    {
+        List<Integer> modified = band.getModifiedBlocks();
+
+        // encode and place all tiles before anything is written
+        byte[][] jpegs = new byte[modified.size()][];
+        long[] offsets = new long[modified.size()];
+        long end = dst.size();
+        for (int i=0; i < jpegs.length; i++)
+        {
+            int b = modified.get(i);
+            jpegs[i] = band.encodeBlock(b);
+            if (jpegs[i].length <= blockByteCounts[b]) offsets[i] = blockOffsets[b];
+            else
+            {
+                // TIFF data starts at word boundaries
+                end = (end + 1) & ~1L;
+                offsets[i] = end;
+                end += jpegs[i].length;
+            }
+
+            checkTableValue(blockOffsetsEntry, offsets[i]);
+            checkTableValue(blockByteCountsEntry, jpegs[i].length);
+        }
+        if (end > dst.getLimit()) throw new IOException("No room for the re-encoded tiles: " + end + " bytes needed, " + dst.getLimit() + " available");
+
+        long written = 0;
+        for (int i=0; i < jpegs.length; i++)
+        {
+            int b = modified.get(i);
+            dst.write(ByteBuffer.wrap(jpegs[i]), offsets[i]);
+            putTableValue(dst, blockOffsetsEntry, b, offsets[i]);
+            putTableValue(dst, blockByteCountsEntry, b, jpegs[i].length);
+            written += jpegs[i].length;
+        }
+        dbg("Re-encoded ", jpegs.length, " of ", blockOffsets.length, " tiles, file size ", map.limit(), " -> ", Math.max(end, map.limit()));
+
+        return written;
+    }
+
+    /**
+     * Writes the patched copy sequentially and feeds each written chunk into a digest. The
+     * channel is truncated to the size of the copy; it may belong to this file, because every
+     * chunk is read from the mapping before it is written.
+     *
+     * @param patches the patches to apply to this file; the gap between the end of this file
+     * and appended patches is filled with zeros
+     * @param ch the channel of the copy
+     * @param md receives all bytes of the copy
+     *
+     * @throws IOException in case of write errors
+     */
+    protected void writeStreamed(PatchList patches, FileChannel ch, MessageDigest md) throws IOException
+    {
+        long size = patches.size();
+        byte[] chunk = new byte[(int) Math.min(COPY_CHUNK_SIZE, Math.max(1, size))];
+        for (long pos = 0; pos < size; pos += chunk.length)
+        {
+            int n = (int) Math.min(chunk.length, size - pos);
+
+            // the source bytes, padded with zeros beyond the end of this file
+            int fromMap = (int) Math.max(0, Math.min(n, map.limit() - pos));
+            if (fromMap > 0)
+            {
+                ByteBuffer src = map.duplicate();
+                src.position((int) pos);
+                src.get(chunk, 0, fromMap);
+            }
+            Arrays.fill(chunk, fromMap, n, (byte) 0);
+
+            // all patches that overlap the chunk
+            Long first = patches.patches.floorKey(pos);
+            for (Map.Entry<Long, byte[]> e : patches.patches.tailMap((first != null) ? first : pos).entrySet())
+            {
+                long p = e.getKey();
+                if (p >= pos + n) break;
+
+                byte[] b = e.getValue();
+                int from = (int) Math.max(0, pos - p);
+                int to = (int) Math.min(b.length, pos + n - p);
+                if (from < to) System.arraycopy(b, from, chunk, (int) (p + from - pos), to - from);
+            }
+
+            md.update(chunk, 0, n);
+            writeFully(ch, ByteBuffer.wrap(chunk, 0, n), pos);
+        }
+        ch.truncate(size);
+    }
+
+    /**
+     * Checks that a value can be stored in a table of SHORT or LONG values
+     *
+     * @param e the file offset of the table's IFD entry
+     * @param value the value
+     *
+     * @throws IOException if the value doesn't fit
+     */
+    protected void checkTableValue(long e, long value) throws IOException
+    {
+        int type = (e < 0) ? 0 : map.getShort((int) e + 2) & 0xffff;
+        if ((type != 3) && (type != 4)) throw new IOException("Unsupported type of the tile tables");
+        if (value > ((type == 3) ? 0xffffL : 0xffffffffL)) throw new IOException("Value " + value + " doesn't fit into the tile tables");
+    }
+
+    /**
+     * Replaces a value in a table of SHORT or LONG values
+     *
+     * @param dst the copy to patch
+     * @param e the file offset of the table's IFD entry
+     * @param index the index of the value in the table
+     * @param value the new value
+     *
+     * @throws IOException in case of write errors
+     */
+    protected void putTableValue(PatchTarget dst, long e, int index, long value) throws IOException
+    {
+        boolean isShort = ((map.getShort((int) e + 2) & 0xffff) == 3);
+        ByteBuffer buf = ByteBuffer.allocate(isShort ? 2 : 4).order(map.order());
+        if (isShort) buf.putShort((short) value);
+        else buf.putInt((int) value);
+        buf.flip();
+
+        dst.write(buf, getValuePos(e) + (long) index * buf.capacity());
+    }
+
+    /**
+     * Writes the complete contents of a buffer at a file position
+     */
+    protected static void writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException
+    {
+        while (buf.hasRemaining()) pos += ch.write(buf, pos);
+    }
+
+    /**
+     * The destination of a patched copy: a file or a buffer
+     */
+    protected interface PatchTarget
+    {
+        /**
+         * @return the current size of the copy
+         */
+        long size() throws IOException;
+
+        /**
+         * @return the size that the copy may grow to
+         */
+        long getLimit();
+
+        /**
+         * Writes the complete contents of a buffer at a position of the copy
+         */
+        void write(ByteBuffer buf, long pos) throws IOException;
+    }
+
+    /**
+     * A copy in a file
+     */
+    protected static class ChannelTarget implements PatchTarget
+    {
+        protected final FileChannel ch;
+
+        ChannelTarget(FileChannel _ch)
+        {
+            ch = _ch;
+        }
+
+        public long size() throws IOException
+        {
+            return ch.size();
+        }
+
+        public long getLimit()
+        {
+            return Long.MAX_VALUE;
+        }
+
+        public void write(ByteBuffer buf, long pos) throws IOException
+        {
+            writeFully(ch, buf, pos);
+        }
+    }
+
+    /**
+     * A copy in a buffer, starting at the buffer's position
+     */
+    protected static class BufferTarget implements PatchTarget
+    {
+        protected final ByteBuffer dst;
+        protected long size;
+
+        BufferTarget(ByteBuffer _dst, long _size)
+        {
+            dst = _dst;
+            size = _size;
+        }
+
+        public long size()
+        {
+            return size;
+        }
+
+        public long getLimit()
+        {
+            return dst.remaining();
+        }
+
+        public void write(ByteBuffer buf, long pos)
+        {
+            size = Math.max(size, pos + buf.remaining());
+            ByteBuffer d = dst.duplicate();
+            d.position(dst.position() + (int) pos);
+            d.put(buf);
+        }
+    }
+
+    /**
+     * A copy that is written later by writeStreamed(): the patches are
+     * collected by their position; they must not overlap
+     */
+    protected static class PatchList implements PatchTarget
+    {
+        protected final TreeMap<Long, byte[]> patches = new TreeMap<Long, byte[]>();
+        protected long size;
+
+        PatchList(long _size)
+        {
+            size = _size;
+        }
+
+        public long size()
+        {
+            return size;
+        }
+
+        public long getLimit()
+        {
+            return Long.MAX_VALUE;
+        }
+
+        public void write(ByteBuffer buf, long pos)
+        {
+            byte[] b = new byte[buf.remaining()];
+            buf.get(b);
+            patches.put(pos, b);
+            size = Math.max(size, pos + b.length);
+        }
+
+        /**
+         * @return the number of patches
+         */
+        public int getCount()
+        {
+            return patches.size();
+        }
+    }
+
+    /**
+     * Prints the image layout to the debug log
+     */
+    public void dumpInfo()
+    {
+        dbg("DNG ", (fileName != null) ? fileName : "in memory", ": ", width, "x", height, ", ", bitsPerSample, " bits per pixel, ",
+                blockOffsets.length, compressed ? " lossless JPEG" : "", tiled ? " tiles of " : " strips of ",
+                blockWidth, "x", blockRows, littleEndian ? ", little endian" : ", big endian");
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.util.Locale;
+
+/**
+ * The result of a dry run of the dot removal for a single file
+ */
+public class DotAnalysis {
+
+    /**
+     * The outcome of the dot set lookup
+     */
+    public enum Verdict
+    {
+        /**
+         * There's a dot set for exactly this resolution
+         */
+        SPECIFIC,
+
+        /**
+         * The dots are scaled from the camera's generic dot set
+         */
+        GENERIC,
+
+        /**
+         * There's no dot set for this camera and resolution
+         */
+        UNSUPPORTED,
+
+        /**
+         * The file couldn't be read
+         */
+        ERROR
+    }
+
+    protected final String fileName;
+    protected final String camType;
+    protected final Verdict verdict;
+    protected final int width;
+    protected final int height;
+    protected final int frameCount;
+    protected final int framesSampled;
+    protected final int dotCount;
+    protected final int fixableDots;
+    protected final long devSum;
+    protected final int devMax;
+    protected final long devCount;
+    protected final long bytesToWrite;
+
+    /**
+     * Constructor
+     *
+     * @param _fileName the analyzed file
+     * @param _camType the camera type used for the dot set lookup
+     * @param _verdict the outcome of the dot set lookup
+     * @param _width the image width or 0 if unknown
+     * @param _height the image height or 0 if unknown
+     * @param _frameCount the number of frames in the file
+     * @param _framesSampled the number of frames the deviation statistics are based on
+     * @param _dotCount the number of dots per frame
+     * @param _fixableDots the number of dots per frame that are far enough from the image border for interpolation
+     * @param _devSum the sum of all absolute deviations between dot pixels and their interpolated values
+     * @param _devMax the maximum absolute deviation between a dot pixel and its interpolated value
+     * @param _devCount the number of deviations in devSum
+     * @param _bytesToWrite the number of bytes a real conversion would write
+     */
+    public DotAnalysis(String _fileName, String _camType, Verdict _verdict, int _width, int _height,
+            int _frameCount, int _framesSampled, int _dotCount, int _fixableDots,
+            long _devSum, int _devMax, long _devCount, long _bytesToWrite)
+    {
+        fileName = _fileName;
+        camType = _camType;
+        verdict = _verdict;
+        width = _width;
+        height = _height;
+        frameCount = _frameCount;
+        framesSampled = _framesSampled;
+        dotCount = _dotCount;
+        fixableDots = _fixableDots;
+        devSum = _devSum;
+        devMax = _devMax;
+        devCount = _devCount;
+        bytesToWrite = _bytesToWrite;
+    }
+
+    /**
+     * Creates the result for a file that couldn't be analyzed at all
+     *
+     * @param fileName the file
+     * @param camType the camera type
+     *
+     * @return a result with verdict ERROR
+     */
+    public static DotAnalysis error(String fileName, String camType)
+    {
+        return new DotAnalysis(fileName, camType, Verdict.ERROR, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @return the analyzed file
+     */
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    /**
+     * @return the camera type used for the dot set lookup
+     */
+    public String getCamType()
+    {
+        return camType;
+    }
+
+    /**
+     * @return the outcome of the dot set lookup
+     */
+    public Verdict getVerdict()
+    {
+        return verdict;
+    }
+
+    /**
+     * @return the image width or 0 if unknown
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return the image height or 0 if unknown
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return the number of frames in the file
+     */
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * @return the number of frames the deviation statistics are based on
+     */
+    public int getFramesSampled()
+    {
+        return framesSampled;
+    }
+
+    /**
+     * @return the number of dots per frame
+     */
+    public int getDotCount()
+    {
+        return dotCount;
+    }
+
+    /**
+     * @return the number of dots per frame that are far enough from the image border for interpolation
+     */
+    public int getFixableDots()
+    {
+        return fixableDots;
+    }
+
+    /**
+     * @return the mean absolute deviation between dot pixels and their interpolated values
+     */
+    public double getMeanDeviation()
+    {
+        return (devCount == 0) ? 0 : devSum / (double) devCount;
+    }
+
+    /**
+     * @return the maximum absolute deviation between a dot pixel and its interpolated value
+     */
+    public int getMaxDeviation()
+    {
+        return devMax;
+    }
+
+    /**
+     * @return the number of pixels a real conversion would modify in the whole file
+     */
+    public long getPixelsToFix()
+    {
+        return (long) fixableDots * frameCount;
+    }
+
+    /**
+     * @return the number of bytes a real conversion would write
+     */
+    public long getBytesToWrite()
+    {
+        return bytesToWrite;
+    }
+
+    /**
+     * @return true if a real conversion of the file would be possible
+     */
+    public boolean isConvertible()
+    {
+        return ((verdict == Verdict.SPECIFIC) || (verdict == Verdict.GENERIC));
+    }
+
+    /**
+     * @return the column headers matching toString()
+     */
+    public static String getHeader()
+    {
+        return "verdict\tcam\tresolution\tframes\tsampled\tdots\tfixable\tmean_dev\tmax_dev\tpixels_to_fix\tbytes_to_write\tfile";
+    }
+
+    /**
+     * @return a tab separated line with all statistics, matching getHeader()
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.ROOT, "%s\t%s\t%dx%d\t%d\t%d\t%d\t%d\t%.1f\t%d\t%d\t%d\t%s",
+                verdict, camType, width, height, frameCount, framesSampled, dotCount, fixableDots,
+                getMeanDeviation(), devMax, getPixelsToFix(), bytesToWrite, fileName);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * Watches a dot data directory in a background thread and reloads
+ * the associated database whenever dot set definition files change
+ */
+public class DotDataWatcher extends LoggingClass implements Runnable {
+
+    /**
+     * Time in ms to wait for further changes before reloading; editors
+     * usually produce several events for a single save operation
+     */
+    protected static final long SETTLE_TIME_MS = 300;
+
+    /**
+     * The database to reload
+     */
+    protected final DotLocationDB db;
+
+    /**
+     * The watch service for the dot data directory
+     */
+    protected final WatchService ws;
+
+    /**
+     * The background thread
+     */
+    protected final Thread thread;
+
+    /**
+     * Constructor. Registers the directory with a new watch service, but
+     * doesn't start watching yet.
+     *
+     * @param _db the database to reload on changes
+     * @param dir the dot data directory
+     *
+     * @throws IOException if the directory can't be watched
+     */
+    public DotDataWatcher(DotLocationDB _db, File dir) throws IOException
+    {
+        db = _db;
+        ws = FileSystems.getDefault().newWatchService();
+        dir.toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        thread = new Thread(this, "DotDataWatcher " + dir);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the background thread
+     */
+    public void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * Stops watching and terminates the background thread
+     */
+    public void stop()
+    {
+        try
+        {
+            ws.close();
+        }
+        catch (IOException e)
+        {
+            // nothing we could do about it
+        }
+        thread.interrupt();
+    }
+
+    /**
+     * The watch loop of the background thread
+     */
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                // wait for the first relevant event and collect all
+                // events that follow within SETTLE_TIME_MS
+                boolean relevant = handleEvents(ws.take());
+                WatchKey key;
+                while ((key = ws.poll(SETTLE_TIME_MS, TimeUnit.MILLISECONDS)) != null)
+                {
+                    relevant |= handleEvents(key);
+                }
+
+                if (!relevant) continue;
+
+                try
+                {
+                    if (db.reload()) dbg("Dot data reloaded after file system change");
+                }
+                catch (RuntimeException e)
+                {
+                    // keep the old data and keep watching
+                    failed("Reloading the dot data failed: ", e.getMessage());
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // stop() has been called
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            // stop() has been called
+        }
+    }
+
+    /**
+     * Consumes all events of a watch key and re-arms the key
+     *
+     * @param key the signalled key
+     *
+     * @return true if at least one event refers to a dot set definition file
+     */
+    protected boolean handleEvents(WatchKey key)
+    {
+        boolean relevant = false;
+        for (WatchEvent<?> ev : key.pollEvents())
+        {
+            // OVERFLOW: we don't know what happened, so better reload
+            if (ev.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                relevant = true;
+                continue;
+            }
+
+            // ignore our own compiled database and other unrelated files
+            Path p = (Path) ev.context();
+            if (p.toString().endsWith(DotLocationDB.DOT_FILE_EXT)) relevant = true;
+        }
+        key.reset();
+
+        return relevant;
+    }
+}
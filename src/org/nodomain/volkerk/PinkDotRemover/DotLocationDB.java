@@ -13,6 +13,7 @@
 package org.nodomain.volkerk.PinkDotRemover;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -32,21 +33,44 @@ public class DotLocationDB extends LoggingClass {
     protected static final String DOT_FILE_EXT = "txt";
         
     /**
-     * All dot sets in this database
+     * Name of the directory with the dot data files, relative to the JAR's location
      */
-    ArrayList<DotSet> dsLib;
+    public static final String DEFAULT_DOT_DATA_DIR = "dotData";
+    
+    /**
+     * Name of the precompiled binary database inside the dot data directory
+     */
+    public static final String COMPILED_DB_NAME = "dotData.bin";
+    
+    /**
+     * The currently published state of the database. Readers fetch the
+     * reference once and work with it; reload() replaces it atomically.
+     */
+    protected volatile DotSetSnapshot snapshot;
+    
+    /**
+     * The directory with the dot set definition files
+     */
+    File dotDataDir;
+    
+    /**
+     * A watcher that triggers reload() on changes in the dot data directory; null if not watching
+     */
+    protected DotDataWatcher watcher;
     
     /**
      * Constructor. Reads non-recursively all dot set definition files (ending with .txt) from a directory
-     * and initializes the database with this data
+     * and initializes the database with this data.
+     * 
+     * If the directory contains an up-to-date compiled database (see COMPILED_DB_NAME), the
+     * text files are not parsed at all and the dot sets are loaded on demand per camera.
+     * Otherwise, the text files are parsed and the compiled database is (re-)generated
+     * for the next start.
      * 
      * @param dotDataPath String with the name/path of the directory to read from
      */
     public DotLocationDB(String dotDataPath)
     {
-        // initialize the list of all dot sets
-        dsLib = new ArrayList<DotSet>();
-        
         // the provided path must exist and point to a directory
         File pDotData = new File(dotDataPath);
         if ((pDotData == null) || (!(pDotData.exists())) || (!(pDotData.isDirectory())))
@@ -55,29 +79,200 @@ public class DotLocationDB extends LoggingClass {
         }
         
         dbg(dotDataPath, " is a valid path.");
+        dotDataDir = pDotData;
+        
+        File[] srcFiles = listDotDataFiles();
+        snapshot = loadSnapshot(srcFiles, CompiledDotDB.fingerprint(srcFiles), false);
+    }
+    
+    /**
+     * Determines the path of the dot data directory that is shipped next to the
+     * JAR file (or next to the class files when executed from the IDE)
+     * 
+     * @return the path of the dot data directory or null in case of errors
+     */
+    public static String defaultDotDataDir()
+    {
+        preLog(LVL_DEBUG, "Trying to determine JAR / execution path");
+        String jarPath;
+        try
+        {
+            jarPath = (new File(DotLocationDB.class.getProtectionDomain().getCodeSource().getLocation().toURI())).toString();
+        }
+        catch (Exception e)
+        {
+            resultLog(LOG_FAIL);
+            failed("WTF!? URI error while trying to determine dot database path...");
+            return null;
+        }
+        resultLog(LOG_OK);
+        
+        if (jarPath.endsWith(".jar")) jarPath = new File(jarPath).getParent();
+        dbg("JAR path is ", jarPath);
+        
+        return Paths.get(jarPath, DEFAULT_DOT_DATA_DIR).toString();
+    }
+    
+    /**
+     * Lists all dot set definition files in the dot data directory
+     * 
+     * @return an array with all regular files ending with .txt
+     */
+    protected File[] listDotDataFiles()
+    {
+        ArrayList<File> result = new ArrayList<File>();
+        File[] allFiles = dotDataDir.listFiles();
+        if (allFiles == null) return new File[0];
+        
+        for (File f : allFiles)
+        {
+            if (isDotDataFile(f)) result.add(f);
+        }
+        
+        return result.toArray(new File[result.size()]);
+    }
+    
+    /**
+     * Checks whether a file is a candidate for a dot set definition file
+     * 
+     * @param f the file to check
+     * 
+     * @return true if the file is an existing, regular file ending with .txt
+     */
+    protected static boolean isDotDataFile(File f)
+    {
+        // the file handle must be valid and point to an existing, regular file
+        if ((f == null) || (!(f.exists())) || (!(f.isFile()))) return false;
+        
+        // dot set definitions must end with .txt
+        return f.toString().endsWith(DOT_FILE_EXT);
+    }
+    
+    /**
+     * Creates a new snapshot of the dot data files, either from an up-to-date
+     * compiled database or by parsing the text files. In the latter case the
+     * compiled database is (re-)generated from the parsing results.
+     * 
+     * @param srcFiles the dot set definition files
+     * @param fingerprint the fingerprint of srcFiles
+     * @param ignoreCompiled if true, the text files are always parsed
+     * 
+     * @return the new snapshot
+     */
+    protected DotSetSnapshot loadSnapshot(File[] srcFiles, long fingerprint, boolean ignoreCompiled)
+    {
+        File dbFile = new File(dotDataDir, COMPILED_DB_NAME);
         
-        logPush("Start parsing all files in ", dotDataPath);
-        parseDotDataFiles(pDotData.listFiles());
+        // try the compiled database first
+        if (!ignoreCompiled)
+        {
+            CompiledDotDB compiledDb = CompiledDotDB.open(dbFile, fingerprint);
+            if (compiledDb != null)
+            {
+                dbg("Using compiled dot database ", dbFile);
+                return new DotSetSnapshot(fingerprint, compiledDb);
+            }
+        }
+        
+        logPush("Start parsing all files in ", dotDataDir);
+        ArrayList<DotSet> allSets = parseDotDataFiles(srcFiles);
         logPop(("Done"));
         
+        // store the parsing result for the next start; failures
+        // (e.g. a read-only installation directory) are not critical
+        logPush("Writing compiled dot database");
+        CompiledDotDB.compile(dbFile, fingerprint, allSets);
+        logPop("Done");
+        
+        return new DotSetSnapshot(fingerprint, allSets);
+    }
+    
+    /**
+     * Re-reads the dot data directory if any dot set definition file has been
+     * added, removed or modified since the last (re-)load. The new data is
+     * published atomically; conversions that are already running continue
+     * with the data they started with.
+     * 
+     * @return true if a new snapshot has been published
+     */
+    public synchronized boolean reload()
+    {
+        File[] srcFiles = listDotDataFiles();
+        long fingerprint = CompiledDotDB.fingerprint(srcFiles);
+        
+        DotSetSnapshot old = snapshot;
+        if ((old.getFingerprint() == fingerprint) && (!(old.isDamaged()))) return false;
+        
+        logPush("Reloading dot data from ", dotDataDir);
+        snapshot = loadSnapshot(srcFiles, fingerprint, old.isDamaged());
+        logPop("Done");
+        
+        return true;
+    }
+    
+    /**
+     * Returns the currently published state of the database. The result
+     * is immutable and doesn't change on subsequent reloads.
+     * 
+     * @return the current snapshot
+     */
+    public DotSetSnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+    
+    /**
+     * Starts watching the dot data directory for changes and automatically
+     * calls reload() when dot set definition files change. Does nothing if
+     * the directory is already being watched.
+     * 
+     * @return true if the directory is being watched
+     */
+    public synchronized boolean startWatching()
+    {
+        if (watcher != null) return true;
+        
+        try
+        {
+            watcher = new DotDataWatcher(this, dotDataDir);
+        }
+        catch (IOException e)
+        {
+            failed("Can't watch ", dotDataDir, " ; Reason: ", e.getMessage());
+            return false;
+        }
+        watcher.start();
+        
+        return true;
+    }
+    
+    /**
+     * Stops watching the dot data directory
+     */
+    public synchronized void stopWatching()
+    {
+        if (watcher == null) return;
+        watcher.stop();
+        watcher = null;
     }
     
     /**
      * Takes an array of File-instances and tries to read dot definitions from them.
-     * Valid dot sets are stored in the library for later use.
+     * Invalid lines are skipped.
      * 
      * @param files is an array of File-instances with are parse as dot set definitions
+     * 
+     * @return a list of all valid dot sets in the order of their definition
      */
-    protected void parseDotDataFiles(File[] files)
+    protected ArrayList<DotSet> parseDotDataFiles(File[] files)
     {
+        ArrayList<DotSet> result = new ArrayList<DotSet>();
+        
         // loop over all files in the provided array
         for (File f : files)
         {
-            // the file handle must be valid and point to an existing, regular file
-            if ((f == null) || (!(f.exists())) || (!(f.isFile()))) continue;
-            
-            // dot set definitions must end with .txt
-            if (!(f.toString().endsWith(DOT_FILE_EXT))) continue;
+            // skip everything that's not a .txt file
+            if (!(isDotDataFile(f))) continue;
             
             dbg("Found valid file ", f);
             
@@ -93,8 +288,10 @@ public class DotLocationDB extends LoggingClass {
                 continue;
             }
             
-            // a temporary dot set for the dot set that's currently being read
+            // a temporary dot set with the camera and resolution of the dot set that's
+            // currently being read and a list for its grid definitions
             DotSet newDots = null;
+            ArrayList<int[]> newGrid = new ArrayList<int[]>();
             
             logPush("Start parsing file ", f);
             
@@ -116,8 +313,9 @@ public class DotLocationDB extends LoggingClass {
                     if (newDots != null)
                     {
                         dbg("Storing dot set ", newDots.getCombinedName());
-                        dsLib.add(newDots);
+                        result.add(new DotSet(newDots, newGrid));
                         newDots = null;
+                        newGrid.clear();
                     }
                     
                     // start of a new dot set?
@@ -155,9 +353,16 @@ public class DotLocationDB extends LoggingClass {
                 // append the dot definition to the current dot set
                 // parsing the Strings as ints might throw exceptions which
                 // we gracefully ignore....
-                newDots.addCoordinates(Integer.parseInt(x0), Integer.parseInt(dy0),
+                try
+                {
+                    newGrid.add(new int[] {Integer.parseInt(x0), Integer.parseInt(dy0),
                         Integer.parseInt(dy1),
-                        Integer.parseInt(stepX), Integer.parseInt(stepY));
+                        Integer.parseInt(stepX), Integer.parseInt(stepY)});
+                }
+                catch (NumberFormatException e)
+                {
+                    failed("Skipping invalid line '", line, "' in file ", f);
+                }
                 
             }
             
@@ -167,11 +372,12 @@ public class DotLocationDB extends LoggingClass {
             if (newDots != null)
             {
                 dbg("Storing dot set ", newDots.getCombinedName());
-                dsLib.add(newDots);
+                result.add(new DotSet(newDots, newGrid));
             }
                     
         }
         
+        return result;
     }
 
     /**
@@ -230,7 +436,7 @@ public class DotLocationDB extends LoggingClass {
         }
         
         // initialize a new dot set with the parameters
-        DotSet newDotSet = new DotSet(cam, res[0], res[1], roundDown);
+        DotSet newDotSet = new DotSet(cam, res[0], res[1], roundDown, new ArrayList<int[]>());
         
         return newDotSet;
     }
@@ -268,17 +474,7 @@ public class DotLocationDB extends LoggingClass {
      */
     public String[] getAllModels()
     {
-        ArrayList<String> allCams = new ArrayList<String>();
-        
-        for (DotSet ds : dsLib)
-        {
-            String mod = ds.getCamType();
-            if (!(allCams.contains(mod))) allCams.add(mod);
-        }
-        
-        String[] dummy = new String[1];  // only necessary to convert the ArrayList to String[]
-        
-        return allCams.toArray(dummy);
+        return snapshot.getAllModels();
     }
     
     /**
@@ -286,22 +482,52 @@ public class DotLocationDB extends LoggingClass {
      */
     public void dumpInfo()
     {
+        DotSetSnapshot snap = snapshot;
         String nl = System.lineSeparator();
         
         String out = "------------ Dot Lib Info ------------" + nl + nl;
         
-        for (DotSet d : dsLib)
+        for (DotSet d : snap.getAllDotSets())
         {
             out += "  " + d.getCombinedName() + nl;
         }
         
         out += nl + "List of all cam types: ";
-        for (String cam : getAllModels()) out += cam + ", ";
+        for (String cam : snap.getAllModels()) out += cam + ", ";
         out += nl;
         
         System.err.println(out);
     }
     
+    /**
+     * Determines the dot set that is used for a given camera and image resolution
+     * 
+     * @param model is the camera model
+     * @param w is the width of the RAW image in pixels (outer dimensions; ignore ActiveArea etc.)
+     * @param h is the height of the RAW image in pixels (outer dimensions; ignore ActiveArea etc.)
+     * 
+     * @return the specific dot set for the resolution, the generic dot set of the model or null if there's none
+     */
+    public DotSet findDotSet(String model, int w, int h)
+    {
+        Object ev = ConversionEvents.get().beginLookup();
+        DotSetSnapshot snap = snapshot;
+        DotSet result = snap.findDotSet(model, w, h);
+        
+        // the compiled database is damaged, fall back to the text files
+        boolean reloaded = snap.isDamaged();
+        if (reloaded)
+        {
+            failed("Compiled dot database is damaged, re-reading dot data files");
+            reload();
+            result = snapshot.findDotSet(model, w, h);
+        }
+        
+        ConversionEvents.get().endLookup(ev, model, w, h, result != null, (result != null) && result.isGeneric(), reloaded);
+        
+        return result;
+    }
+    
     /**
      * Returns a list of all pink dot coordinates for a given camera and image resolution.
      * 
@@ -317,38 +543,11 @@ public class DotLocationDB extends LoggingClass {
      */
     public int[][] getAllDots(String model, int w, int h)
     {
-        // try to get a specific dot set for this resolution
-        preLog(LVL_DEBUG, "Trying to find specific dot set for ", model, " and ", w, "x", h);
-        DotSet ds = null;
-        for (DotSet tmp : dsLib)
-        {
-            if (tmp.isSet(model, w, h))
-            {
-                ds = tmp;
-                resultLog(LOG_OK);
-            }
-        }
-        
-        // no match. Try to get a generic dot set for this model
+        DotSet ds = findDotSet(model, w, h);
         if (ds == null)
         {
-            resultLog(LOG_FAIL);
-            preLog(LVL_DEBUG, "Trying to find generic dot set for ", model);
-            for (DotSet tmp : dsLib)
-            {
-                if (tmp.isSet(model, 0, 0)) ds = tmp;
-            }
-            
-            // still no match. So we don't have any
-            // usable dot data for this cam
-            if (ds == null)
-            {
-                resultLog(LOG_FAIL);
-                failed("Unable to find dot set for ", model, " and ", w, "x", h);
-                return null;
-            }
-            
-            resultLog(LOG_OK);
+            failed("Unable to find dot set for ", model, " and ", w, "x", h);
+            return null;
         }
         
         return ds.getAllCoordinates(w, h);
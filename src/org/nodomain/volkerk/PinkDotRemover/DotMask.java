@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+/**
+ * A bitmask of the dot pixels of an image for constant time "is this
+ * pixel a dot" checks.
+ *
+ * The mask only covers the rows from the first to the last row with dots,
+ * one bit per pixel, so its size is proportional to the dot band and not
+ * to the image. Dots outside of the image are ignored. Instances are
+ * immutable and can be shared between threads.
+ */
+public class DotMask {
+
+    /**
+     * The image dimensions
+     */
+    protected final int width;
+    protected final int height;
+
+    /**
+     * The first row of the mask and the row after the last row of the mask
+     */
+    protected final int y0;
+    protected final int y1;
+
+    /**
+     * One bit per pixel of the rows y0...y1-1
+     */
+    protected final long[] bits;
+
+    /**
+     * Constructor
+     *
+     * @param dots all [x,y] dot locations
+     * @param _width the image width
+     * @param _height the image height
+     */
+    public DotMask(int[][] dots, int _width, int _height)
+    {
+        width = _width;
+        height = _height;
+
+        int minY = height;
+        int maxY = -1;
+        for (int[] dot : dots)
+        {
+            if (!(isInside(dot[0], dot[1]))) continue;
+            minY = Math.min(minY, dot[1]);
+            maxY = Math.max(maxY, dot[1]);
+        }
+        y0 = (maxY < 0) ? 0 : minY;
+        y1 = maxY + 1;
+
+        bits = new long[(int) (((long) Math.max(0, y1 - y0) * width + 63) / 64)];
+        for (int[] dot : dots)
+        {
+            if (!(isInside(dot[0], dot[1]))) continue;
+            long idx = (long) (dot[1] - y0) * width + dot[0];
+            bits[(int) (idx >>> 6)] |= 1L << idx;
+        }
+    }
+
+    /**
+     * @return true if the pixel is inside the image
+     */
+    protected boolean isInside(int x, int y)
+    {
+        return (x >= 0) && (x < width) && (y >= 0) && (y < height);
+    }
+
+    /**
+     * @param x the x-coordinate
+     * @param y the y-coordinate
+     *
+     * @return true if the pixel is a dot; false for pixels outside of the image
+     */
+    public boolean isDot(int x, int y)
+    {
+        if ((x < 0) || (x >= width) || (y < y0) || (y >= y1)) return false;
+
+        long idx = (long) (y - y0) * width + x;
+        return (bits[(int) (idx >>> 6)] & (1L << idx)) != 0;
+    }
+
+    /**
+     * @param w an image width
+     * @param h an image height
+     *
+     * @return true if the mask has been created for an image of this size
+     */
+    public boolean matches(int w, int h)
+    {
+        return (w == width) && (h == height);
+    }
+
+    /**
+     * @return the memory used for the bits in bytes
+     */
+    public long getByteCount()
+    {
+        return 8L * bits.length;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The dot locations of an image, sorted by rows, together with the band of
+ * rows that has to be read for fixing them
+ */
+public class DotPlan {
+
+    /**
+     * The number of rows above and below a dot that the interpolation reads
+     */
+    public static final int NEIGHBORHOOD = 2;
+
+    /**
+     * The number of rows and columns around a dot that are read for fixing it
+     */
+    protected final int neighborhood;
+
+    /**
+     * All [x,y] dot locations, sorted by y and then by x
+     */
+    protected final int[][] dots;
+
+    /**
+     * The smallest y-coordinate of all dots
+     */
+    protected final int minY;
+
+    /**
+     * The largest y-coordinate of all dots
+     */
+    protected final int maxY;
+
+    /**
+     * The bitmask of the dots, created on first use by getMask()
+     */
+    protected volatile DotMask mask = null;
+
+    /**
+     * Orders dot locations by y and then by x
+     */
+    public static final Comparator<int[]> ROW_ORDER = new Comparator<int[]>() {
+        public int compare(int[] a, int[] b)
+        {
+            if (a[1] != b[1]) return (a[1] < b[1]) ? -1 : 1;
+            if (a[0] != b[0]) return (a[0] < b[0]) ? -1 : 1;
+            return 0;
+        }
+    };
+
+    /**
+     * @param dotList [x,y] dot locations
+     *
+     * @return dotList itself if it is sorted by y and then by x, otherwise a sorted copy
+     */
+    public static int[][] sortedByRows(int[][] dotList)
+    {
+        for (int i = 1; i < dotList.length; i++)
+        {
+            if (ROW_ORDER.compare(dotList[i - 1], dotList[i]) > 0)
+            {
+                int[][] sorted = dotList.clone();
+                Arrays.sort(sorted, ROW_ORDER);
+                return sorted;
+            }
+        }
+
+        return dotList;
+    }
+
+    /**
+     * Constructor for the neighborhood of the interpolation. Sorts the dots by rows.
+     *
+     * @param dotList all [x,y] dot locations
+     */
+    public DotPlan(int[][] dotList)
+    {
+        this(dotList, NEIGHBORHOOD);
+    }
+
+    /**
+     * Constructor. Sorts the dots by rows.
+     *
+     * @param dotList all [x,y] dot locations
+     * @param _neighborhood the number of rows and columns around a dot that are read for fixing it
+     */
+    public DotPlan(int[][] dotList, int _neighborhood)
+    {
+        neighborhood = _neighborhood;
+        dots = dotList.clone();
+        Arrays.sort(dots, ROW_ORDER);
+
+        minY = (dots.length != 0) ? dots[0][1] : 0;
+        maxY = (dots.length != 0) ? dots[dots.length - 1][1] : -1;
+    }
+
+    /**
+     * Constructor for a plan with the same dots and a different neighborhood
+     *
+     * @param other the plan whose sorted dots and mask are shared
+     * @param _neighborhood the number of rows and columns around a dot that are read for fixing it
+     */
+    protected DotPlan(DotPlan other, int _neighborhood)
+    {
+        neighborhood = _neighborhood;
+        dots = other.dots;
+        minY = other.minY;
+        maxY = other.maxY;
+        mask = other.mask;
+    }
+
+    /**
+     * @param _neighborhood the number of rows and columns around a dot that are read for fixing it
+     *
+     * @return a plan for the same dots with the given neighborhood; the dots aren't sorted again
+     */
+    public DotPlan withNeighborhood(int _neighborhood)
+    {
+        if (_neighborhood == neighborhood) return this;
+
+        return new DotPlan(this, _neighborhood);
+    }
+
+    /**
+     * Returns the bitmask of the dots; it's created on the first call and
+     * cached with the plan
+     *
+     * @param w the image width
+     * @param h the image height
+     *
+     * @return the mask of all dots inside the image
+     */
+    public DotMask getMask(int w, int h)
+    {
+        DotMask m = mask;
+        if ((m == null) || !(m.matches(w, h)))
+        {
+            m = new DotMask(dots, w, h);
+            mask = m;
+        }
+
+        return m;
+    }
+
+    /**
+     * @return all [x,y] dot locations, sorted by y and then by x
+     */
+    public int[][] getDots()
+    {
+        return dots;
+    }
+
+    /**
+     * @return the smallest y-coordinate of all dots
+     */
+    public int getMinY()
+    {
+        return minY;
+    }
+
+    /**
+     * @return the largest y-coordinate of all dots or -1 if there are no dots
+     */
+    public int getMaxY()
+    {
+        return maxY;
+    }
+
+    /**
+     * @return the number of rows and columns around a dot that are read for fixing it
+     */
+    public int getNeighborhood()
+    {
+        return neighborhood;
+    }
+
+    /**
+     * @param h the image height
+     *
+     * @return the first row of the band that contains all dots and their neighborhood
+     */
+    public int getBandStart(int h)
+    {
+        return Math.max(0, Math.min(h, minY - neighborhood));
+    }
+
+    /**
+     * @param h the image height
+     *
+     * @return the row after the last row of the band that contains all dots and their neighborhood
+     */
+    public int getBandEnd(int h)
+    {
+        return Math.max(getBandStart(h), Math.min(h, maxY + neighborhood + 1));
+    }
+}
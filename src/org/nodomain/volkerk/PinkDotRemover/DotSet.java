@@ -12,55 +12,60 @@
 package org.nodomain.volkerk.PinkDotRemover;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
- * A container for dot locations for a specific camera type and a specific resolution
+ * A container for dot locations for a specific camera type and a specific resolution.
+ * 
+ * Instances are immutable and can be shared between threads without locking.
  */
 public class DotSet {
     
     /**
      * The camera type this DotSet is valid for
      */
-    String camType;
+    final String camType;
     
     /**
      * The RAW image width associated with this dot set
      */
-    int width;
+    final int width;
     
     /**
      * The RAW image height associated with this dot set
      */
-    int height;
+    final int height;
 
      /**
      * Should the offset be rounded up or rounded down if height and width aren't divisible by 4
      */
-    boolean roundDown = false;
+    final boolean roundDown;
     
     /**
-     * A list for all the "grid-like" dot information
+     * All the "grid-like" dot information as {x0, dy0, dy1, stepX, stepY} blocks
      */
-    ArrayList<int[]> gridInfo;
+    final int[][] gridInfo;
 
     /**
-     * Constructor. Stores cam data and initializes a default dot set (w=0, h=0)
+     * Constructor. Stores cam data and initializes an empty default dot set (w=0, h=0)
      * 
      * @param _camType string containing the camera type / name
      */
     public DotSet(String _camType)
     {
-        this(_camType, 0, 0, false);
+        this(_camType, 0, 0, false, new ArrayList<int[]>());
     }
     
     /**
-     * Constructor. Stores cam data and resolution info and initializes (empty) dot lists and other member vars
+     * Constructor. Stores cam data, resolution info and the dot definitions
      * 
      * @param _camType string containing the camera type / name
      * @param _w is the RAW width (ignore ActiveArea) of the image for this dot set (zero for default dot set)
      * @param _h is the RAW height (ignore ActiveArea) of the image for this dot set (zero for default dot set)
+     * @param _roundDown true if the image center shall be rounded down for resolutions not divisible by 4
+     * @param _gridInfo a list of "grid blocks" {x0, dy0, dy1, stepX, stepY}; the list is copied
      */
-    public DotSet(String _camType, int _w, int _h, boolean _roundDown)
+    public DotSet(String _camType, int _w, int _h, boolean _roundDown, List<int[]> _gridInfo)
     {
         // FIX: some range checking could be useful here...
         camType = _camType;
@@ -68,23 +73,27 @@ public class DotSet {
         width = _w;
         roundDown = _roundDown;
         
-        gridInfo = new ArrayList<int[]>();
+        gridInfo = new int[_gridInfo.size()][];
+        for (int i=0; i < gridInfo.length; i++)
+        {
+            int[] gi = _gridInfo.get(i);
+            if (gi.length != 5) throw new IllegalArgumentException("A grid block needs five values!");
+            gridInfo[i] = gi.clone();
+        }
     }
-        
+    
     /**
-     * Add a "grid block" of dots to the dot set
+     * Constructor. Copies cam data and resolution info from a template and
+     * uses a new list of dot definitions
      * 
-     * @param x0 the offset of the first dot column, relative to the image center in RAW coordinates (ignore ActiveArea)
-     * @param dy0 the offset of the first dot row, relative to image center in RAW coordinates (ignore ActiveArea)
-     * @param dy1 the offset of the last dot row, relative to image center in RAW coordinates (ignore ActiveArea)
-     * @param stepX the x-offset between to grid dots
-     * @param stepY the y-offset between to grid dots
+     * @param template the dot set to take camera type, resolution and rounding mode from
+     * @param _gridInfo a list of "grid blocks" {x0, dy0, dy1, stepX, stepY}; the list is copied
      */
-    public void addCoordinates(int x0, int dy0, int dy1, int stepX, int stepY)
+    public DotSet(DotSet template, List<int[]> _gridInfo)
     {
-        gridInfo.add(new int[]{x0, dy0, dy1, stepX, stepY});
+        this(template.camType, template.width, template.height, template.roundDown, _gridInfo);
     }
-    
+        
     /**
      * Provides a list of all dot locations covered by this dot set. Expands
      * grid dots to single coordinates and interpolates to new resolutions, if necessary
@@ -153,6 +162,59 @@ public class DotSet {
         return camType;
     }
     
+    /**
+     * Retrieves the RAW image width associated with this dot set
+     * 
+     * @return the width or zero for a default dot set
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+    
+    /**
+     * Retrieves the RAW image height associated with this dot set
+     * 
+     * @return the height or zero for a default dot set
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    /**
+     * Retrieves the rounding mode for image centers of resolutions which are not divisible by 4
+     * 
+     * @return true if the center offset is rounded down
+     */
+    public boolean isRoundDown()
+    {
+        return roundDown;
+    }
+    
+    /**
+     * Retrieves the "grid block" definitions of this dot set
+     * 
+     * @return a copy of all {x0, dy0, dy1, stepX, stepY} blocks
+     */
+    public int[][] getGridInfo()
+    {
+        int[][] result = new int[gridInfo.length][];
+        for (int i=0; i < gridInfo.length; i++) result[i] = gridInfo[i].clone();
+        
+        return result;
+    }
+    
+    /**
+     * Checks whether this is a generic dot set that is scaled to any resolution
+     * 
+     * @return true if no resolution is associated with this dot set
+     */
+    public boolean isGeneric()
+    {
+        return ((width == 0) && (height == 0));
+    }
+    
     /**
      * A String of the format "wxh" (e. g. "1280x720") representing the resolution associated with this dot set
      * @return a string representing the resolution for this dot set (e. g. "1280x720")
@@ -0,0 +1,243 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * An immutable view of all dot sets in a dot data directory at a certain point in time.
+ * 
+ * A snapshot never changes after its creation and can be used by any number
+ * of threads without locking. The only internal state change is the on-demand
+ * decoding of a camera's dot sets from a compiled database, which is invisible
+ * to callers.
+ */
+public class DotSetSnapshot extends LoggingClass {
+
+    /**
+     * The fingerprint of the dot data files this snapshot was created from
+     */
+    protected final long fingerprint;
+
+    /**
+     * The compiled database to load dot sets from; null if all sets were parsed from text
+     */
+    protected final CompiledDotDB compiledDb;
+
+    /**
+     * All camera models in the order of their definition
+     */
+    protected final String[] models;
+
+    /**
+     * Camera model --> unmodifiable list of its dot sets, for all models loaded so far
+     */
+    protected final ConcurrentHashMap<String, List<DotSet>> setsByModel;
+
+    /**
+     * Set if the compiled database turned out to be damaged while loading dot sets
+     */
+    protected volatile boolean damaged;
+
+    /**
+     * Constructor for a snapshot with all dot sets already in memory
+     * 
+     * @param _fingerprint the fingerprint of the dot data files
+     * @param allSets all dot sets in the order of their definition
+     */
+    public DotSetSnapshot(long _fingerprint, List<DotSet> allSets)
+    {
+        fingerprint = _fingerprint;
+        compiledDb = null;
+
+        LinkedHashMap<String, ArrayList<DotSet>> byModel = new LinkedHashMap<String, ArrayList<DotSet>>();
+        for (DotSet ds : allSets)
+        {
+            ArrayList<DotSet> modelSets = byModel.get(ds.getCamType());
+            if (modelSets == null)
+            {
+                modelSets = new ArrayList<DotSet>();
+                byModel.put(ds.getCamType(), modelSets);
+            }
+            modelSets.add(ds);
+        }
+
+        models = byModel.keySet().toArray(new String[byModel.size()]);
+        setsByModel = new ConcurrentHashMap<String, List<DotSet>>();
+        for (String model : models)
+        {
+            setsByModel.put(model, Collections.unmodifiableList(byModel.get(model)));
+        }
+    }
+
+    /**
+     * Constructor for a snapshot that loads its dot sets on demand from a compiled database
+     * 
+     * @param _fingerprint the fingerprint of the dot data files
+     * @param _compiledDb the compiled database
+     */
+    public DotSetSnapshot(long _fingerprint, CompiledDotDB _compiledDb)
+    {
+        fingerprint = _fingerprint;
+        compiledDb = _compiledDb;
+        models = compiledDb.getAllModels();
+        setsByModel = new ConcurrentHashMap<String, List<DotSet>>();
+    }
+
+    /**
+     * @return the fingerprint of the dot data files this snapshot was created from
+     */
+    public long getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * @return true if the underlying compiled database turned out to be damaged
+     */
+    public boolean isDamaged()
+    {
+        return damaged;
+    }
+
+    /**
+     * Retrieves a list of all distinct camera models in the snapshot
+     * 
+     * @return a String array with the model names
+     */
+    public String[] getAllModels()
+    {
+        return models.clone();
+    }
+
+    /**
+     * Retrieves all dot sets of a camera model
+     * 
+     * @param model the name of the camera model
+     * 
+     * @return an unmodifiable list of dot sets; empty for unknown models
+     */
+    public List<DotSet> getDotSets(String model)
+    {
+        List<DotSet> result = setsByModel.get(model);
+        if (result != null) return result;
+
+        List<DotSet> empty = Collections.emptyList();
+        if ((compiledDb == null) || (!(compiledDb.hasModel(model)))) return empty;
+
+        List<DotSet> loaded = compiledDb.getDotSets(model);
+        if (loaded == null)
+        {
+            damaged = true;
+            return empty;
+        }
+        dbg("Loaded ", loaded.size(), " dot set(s) for ", model, " from compiled database");
+
+        // another thread might have been faster; both results are identical anyway
+        result = setsByModel.putIfAbsent(model, Collections.unmodifiableList(loaded));
+        return (result != null) ? result : setsByModel.get(model);
+    }
+
+    /**
+     * Retrieves all dot sets of all camera models
+     * 
+     * @return a list of all dot sets
+     */
+    public List<DotSet> getAllDotSets()
+    {
+        ArrayList<DotSet> result = new ArrayList<DotSet>();
+        for (String model : models) result.addAll(getDotSets(model));
+
+        return result;
+    }
+
+    /**
+     * Returns a list of all pink dot coordinates for a given camera and image resolution.
+     * 
+     * If a dot set is explicitly defined for the requested resolution, the specific dot set
+     * is used for calculate all dots. Otherwise, the dot locations are interpolated from the
+     * default dot set for the cam.
+     * 
+     * @param model is the camera model for which the dot locations shall be retrieved
+     * @param w is the width of the RAW image in pixels (outer dimensions; ignore ActiveArea etc.)
+     * @param h is the height of the RAW image in pixels (outer dimensions; ignore ActiveArea etc.)
+     * 
+     * @return an array of all [x,y] dot locations or null in case of errors
+     */
+    public int[][] getAllDots(String model, int w, int h)
+    {
+        DotSet ds = findDotSet(model, w, h);
+        if (ds == null)
+        {
+            failed("Unable to find dot set for ", model, " and ", w, "x", h);
+            return null;
+        }
+
+        return ds.getAllCoordinates(w, h);
+    }
+
+    /**
+     * Determines the dot set that is used for a given camera and image resolution.
+     * A specific dot set for the resolution takes precedence over the generic dot set.
+     * 
+     * @param model is the camera model
+     * @param w is the width of the RAW image in pixels (outer dimensions; ignore ActiveArea etc.)
+     * @param h is the height of the RAW image in pixels (outer dimensions; ignore ActiveArea etc.)
+     * 
+     * @return the dot set or null if there's neither a specific nor a generic dot set
+     */
+    public DotSet findDotSet(String model, int w, int h)
+    {
+        List<DotSet> modelSets = getDotSets(model);
+
+        // try to get a specific dot set for this resolution
+        preLog(LVL_DEBUG, "Trying to find specific dot set for ", model, " and ", w, "x", h);
+        DotSet ds = null;
+        for (DotSet tmp : modelSets)
+        {
+            if (tmp.isSet(model, w, h))
+            {
+                ds = tmp;
+                resultLog(LOG_OK);
+            }
+        }
+
+        // no match. Try to get a generic dot set for this model
+        if (ds == null)
+        {
+            resultLog(LOG_FAIL);
+            preLog(LVL_DEBUG, "Trying to find generic dot set for ", model);
+            for (DotSet tmp : modelSets)
+            {
+                if (tmp.isSet(model, 0, 0)) ds = tmp;
+            }
+
+            // still no match. So we don't have any
+            // usable dot data for this cam
+            if (ds == null)
+            {
+                resultLog(LOG_FAIL);
+                return null;
+            }
+
+            resultLog(LOG_OK);
+        }
+
+        return ds;
+    }
+}
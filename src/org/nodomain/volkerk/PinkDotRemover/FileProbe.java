@@ -0,0 +1,218 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import org.nodomain.volkerk.SimpleTIFFlib.ImageFileDirectory;
+import org.nodomain.volkerk.SimpleTIFFlib.RawImageSequenceHandler;
+import org.nodomain.volkerk.SimpleTIFFlib.TIFFhandler;
+
+/**
+ * The image layout of a DNG or RAW file as read from its header.
+ *
+ * Probing never reads pixel data: for DNG files only the TIFF structure is
+ * parsed (the file is mapped, so only the pages with IFDs are read), for RAW
+ * files only the lv_rec footer. This is much cheaper than instantiating a
+ * PinkDotRemover, which sets up the TIFF handlers if a DNG can't be accessed
+ * row by row.
+ *
+ * Files that can't be accessed row by row are probed through the same
+ * SimpleTIFFlib handlers that PinkDotRemover falls back to, so the preflight
+ * check only rejects files that can't be converted at all. The handlers don't
+ * report the bits per pixel, so these files have a bit depth of 0.
+ */
+public class FileProbe {
+
+    protected final File file;
+    protected final boolean raw;
+    protected final int width;
+    protected final int height;
+    protected final int bitsPerSample;
+    protected final int frameCount;
+    protected final boolean rowAccess;
+    protected final String error;
+
+    /**
+     * Constructor
+     *
+     * @param _file the probed file
+     * @param _raw true for RAW files, false for DNG files
+     * @param _width the image width or 0 if unknown
+     * @param _height the image height or 0 if unknown
+     * @param _bitsPerSample the number of bits per pixel or 0 if unknown
+     * @param _frameCount the number of frames
+     * @param _rowAccess true if the file can be converted row by row, false if it needs the SimpleTIFFlib handlers
+     * @param _error the reason why the file can't be converted or null if it can be converted
+     */
+    public FileProbe(File _file, boolean _raw, int _width, int _height, int _bitsPerSample, int _frameCount,
+            boolean _rowAccess, String _error)
+    {
+        file = _file;
+        raw = _raw;
+        width = _width;
+        height = _height;
+        bitsPerSample = _bitsPerSample;
+        frameCount = _frameCount;
+        rowAccess = _rowAccess;
+        error = _error;
+    }
+
+    /**
+     * Reads the header of a file; never throws, errors are recorded in the result
+     *
+     * @param f the DNG or RAW file
+     *
+     * @return the image layout or the reason why the file can't be converted
+     */
+    public static FileProbe probe(File f)
+    {
+        String fName = f.getName().toLowerCase();
+        boolean raw = fName.endsWith("raw");
+        if (!(raw || fName.endsWith("dng"))) return new FileProbe(f, false, 0, 0, 0, 0, false, "Not a DNG or RAW file");
+
+        try
+        {
+            if (raw)
+            {
+                RawFile rf = RawFile.open(f.toString());
+                if (rf != null) return new FileProbe(f, true, rf.getWidth(), rf.getHeight(), rf.getBitsPerSample(), rf.getFrameCount(), true, null);
+            }
+            else
+            {
+                // the image properties are set even if the layout isn't supported for row based access
+                DngFile dng = new DngFile(f.toString());
+                boolean rowAccess = dng.findCfaImage();
+                if ((dng.getWidth() > 0) && (dng.getHeight() > 0))
+                {
+                    return new FileProbe(f, false, dng.getWidth(), dng.getHeight(), dng.getBitsPerSample(), 1, rowAccess, null);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // PinkDotRemover falls back to the handlers in this case, too
+        }
+        catch (RuntimeException e)
+        {
+            // corrupt headers may point anywhere; the handlers have the last word
+        }
+
+        return probeWithHandler(f, raw);
+    }
+
+    /**
+     * Reads the image layout through the SimpleTIFFlib handlers that
+     * PinkDotRemover uses if a file can't be accessed row by row. Unlike
+     * probe(), this may read the whole file.
+     *
+     * @param f the DNG or RAW file
+     * @param raw true for RAW files, false for DNG files
+     *
+     * @return the image layout or the reason why the file can't be converted
+     */
+    protected static FileProbe probeWithHandler(File f, boolean raw)
+    {
+        try
+        {
+            if (raw)
+            {
+                RawImageSequenceHandler h = new RawImageSequenceHandler(f.toString());
+                if ((h.getWidth() <= 0) || (h.getHeight() <= 0)) return new FileProbe(f, true, 0, 0, 0, 0, false, "Unsupported RAW layout");
+
+                return new FileProbe(f, true, h.getWidth(), h.getHeight(), 0, h.getFrameCount(), false, null);
+            }
+
+            ImageFileDirectory ifd = new TIFFhandler(f.toString()).getFirstIFDwithCFA();
+            if ((ifd == null) || (ifd.imgWidth() <= 0) || (ifd.imgHeight() <= 0)) return new FileProbe(f, false, 0, 0, 0, 1, false, "No CFA image found");
+
+            return new FileProbe(f, false, (int) ifd.imgWidth(), (int) ifd.imgHeight(), 0, 1, false, null);
+        }
+        catch (Exception e)
+        {
+            return new FileProbe(f, raw, 0, 0, 0, 0, false, "Unreadable header: " + e);
+        }
+    }
+
+    /**
+     * @return the probed file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return true for RAW files, false for DNG files
+     */
+    public boolean isRaw()
+    {
+        return raw;
+    }
+
+    /**
+     * @return the image width or 0 if unknown
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return the image height or 0 if unknown
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return the number of bits per pixel or 0 if unknown
+     */
+    public int getBitsPerSample()
+    {
+        return bitsPerSample;
+    }
+
+    /**
+     * @return the number of frames
+     */
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * @return true if the file can be converted row by row, false if it needs the SimpleTIFFlib handlers
+     */
+    public boolean hasRowAccess()
+    {
+        return rowAccess;
+    }
+
+    /**
+     * @return the reason why the file can't be converted or null if the header is fine
+     */
+    public String getError()
+    {
+        return error;
+    }
+
+    /**
+     * @return the resolution as "<width>x<height>"
+     */
+    public String getResolution()
+    {
+        return width + "x" + height;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.SwingWorker;
+
+/**
+ * Expands dropped or selected files and directories in the background and
+ * streams all valid input files in chunks to the main window
+ */
+public class FileScanWorker extends SwingWorker<Integer, File> {
+
+    /**
+     * The maximum number of files that are collected before they're published
+     */
+    protected static final int CHUNK_SIZE = 500;
+
+    /**
+     * The maximum time in ms that found files are held back before they're published
+     */
+    protected static final long CHUNK_TIME_MS = 200;
+
+    /**
+     * The main window that receives the files
+     */
+    protected final MainFrame parent;
+
+    /**
+     * The files and directories to scan
+     */
+    protected final ArrayList<File> roots;
+
+    /**
+     * If true, sub directories are scanned as well
+     */
+    protected final boolean recursive;
+
+    /**
+     * Constructor
+     *
+     * @param _parent the main window that receives the files
+     * @param _roots the files and directories to scan
+     * @param _recursive if true, sub directories are scanned as well
+     */
+    public FileScanWorker(MainFrame _parent, List<File> _roots, boolean _recursive)
+    {
+        parent = _parent;
+        roots = new ArrayList<File>(_roots);
+        recursive = _recursive;
+    }
+
+    @Override
+    protected Integer doInBackground()
+    {
+        ArrayList<File> chunk = new ArrayList<File>();
+        long lastPublish = System.currentTimeMillis();
+        int found = 0;
+
+        // directories that still have to be scanned
+        ArrayDeque<Path> dirs = new ArrayDeque<Path>();
+
+        for (File f : roots)
+        {
+            if (f.isDirectory()) dirs.add(f.toPath());
+            else if (f.isFile() && PinkDotRemover.isSupportedFile(f))
+            {
+                chunk.add(f);
+                found++;
+            }
+        }
+
+        while ((!(dirs.isEmpty())) && (!(isCancelled())))
+        {
+            Path dir = dirs.poll();
+
+            // stream the directory entries instead of listing the whole directory at once
+            DirectoryStream<Path> ds = null;
+            try
+            {
+                ds = Files.newDirectoryStream(dir);
+                for (Path p : ds)
+                {
+                    if (isCancelled()) break;
+
+                    // don't follow links to directories to avoid cycles
+                    if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS))
+                    {
+                        if (recursive) dirs.add(p);
+                        continue;
+                    }
+
+                    File f = p.toFile();
+                    if (!(PinkDotRemover.isSupportedFile(f))) continue;
+                    if (!(f.isFile())) continue;
+
+                    chunk.add(f);
+                    found++;
+
+                    long now = System.currentTimeMillis();
+                    if ((chunk.size() >= CHUNK_SIZE) || (now - lastPublish >= CHUNK_TIME_MS))
+                    {
+                        publish(chunk.toArray(new File[chunk.size()]));
+                        chunk.clear();
+                        lastPublish = now;
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // unreadable directory, skip it
+            }
+            catch (DirectoryIteratorException e)
+            {
+                // directory became unreadable while scanning, skip the rest of it
+            }
+            finally
+            {
+                if (ds != null)
+                {
+                    try
+                    {
+                        ds.close();
+                    }
+                    catch (IOException e)
+                    {
+                        // nothing we could do about it
+                    }
+                }
+            }
+        }
+
+        if (chunk.size() != 0) publish(chunk.toArray(new File[chunk.size()]));
+
+        return found;
+    }
+
+    @Override
+    protected void process(List<File> files)
+    {
+        if (isCancelled()) return;
+        parent.addFiles(files);
+    }
+
+    @Override
+    protected void done()
+    {
+        parent.scanFinished(this);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One of n disjoint parts of a batch of files, e.g. for several machines
+ * that convert the same directory on a shared storage.
+ *
+ * A file belongs to shard k if the CRC32 of its path relative to the
+ * directory it has been found in is k-1 modulo n. Directories are scanned
+ * non-recursively, so this is the file name. The partition doesn't depend
+ * on the order of the directory listing, on the mount point or on the other
+ * files, so the processes need no coordination and files that are added
+ * later don't move between the shards.
+ */
+public class FileShard {
+
+    /**
+     * The shard number (1...shardCount) and the number of shards
+     */
+    protected final int shard;
+    protected final int shardCount;
+
+    /**
+     * Constructor
+     *
+     * @param _shard the shard number (1..._shardCount)
+     * @param _shardCount the number of shards
+     */
+    public FileShard(int _shard, int _shardCount)
+    {
+        if ((_shardCount < 1) || (_shard < 1) || (_shard > _shardCount))
+        {
+            throw new IllegalArgumentException("Invalid shard " + _shard + "/" + _shardCount);
+        }
+
+        shard = _shard;
+        shardCount = _shardCount;
+    }
+
+    /**
+     * Parses a shard definition
+     *
+     * @param s "k/n" with 1 <= k <= n
+     *
+     * @return the shard or null if s is invalid
+     */
+    public static FileShard parse(String s)
+    {
+        FrameRange r = FrameRange.parseShard(s);
+        if (r == null) return null;
+
+        return new FileShard(r.getShard(), r.getShardCount());
+    }
+
+    /**
+     * @param relativePath the path of a file relative to the directory it has been found in
+     * @param shardCount the number of shards
+     *
+     * @return the shard number (1...shardCount) of the file
+     */
+    public static int getShardOf(String relativePath, int shardCount)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(relativePath.replace(File.separatorChar, '/').getBytes(StandardCharsets.UTF_8));
+
+        return (int) (crc.getValue() % shardCount) + 1;
+    }
+
+    /**
+     * @param f a file of the batch
+     *
+     * @return true if the file belongs to this shard
+     */
+    public boolean contains(File f)
+    {
+        return (getShardOf(f.getName(), shardCount) == shard);
+    }
+
+    /**
+     * @param files all files of the batch
+     *
+     * @return the files that belong to this shard, in their original order
+     */
+    public List<File> select(List<File> files)
+    {
+        ArrayList<File> result = new ArrayList<File>();
+        for (File f : files)
+        {
+            if (contains(f)) result.add(f);
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "file shard " + shard + "/" + shardCount;
+    }
+}
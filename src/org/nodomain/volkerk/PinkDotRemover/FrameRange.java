@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+/**
+ * The frames of a RAW file that a process shall convert: either an explicit
+ * range of frame indices or one of n shards of equal size. Shards are
+ * resolved against the actual frame count, so all processes of a render farm
+ * can use the same command line apart from the shard number.
+ */
+public class FrameRange {
+
+    /**
+     * The first and last frame (inclusive) of an explicit range; last == -1 means "until the end"
+     */
+    protected final int first;
+    protected final int last;
+
+    /**
+     * The shard number (1...shardCount) and the number of shards; shardCount == 0 for explicit ranges
+     */
+    protected final int shard;
+    protected final int shardCount;
+
+    /**
+     * Constructor; use parseFrames() or parseShard()
+     */
+    protected FrameRange(int _first, int _last, int _shard, int _shardCount)
+    {
+        first = _first;
+        last = _last;
+        shard = _shard;
+        shardCount = _shardCount;
+    }
+
+    /**
+     * Parses an explicit range of frames
+     *
+     * @param s "a-b" (inclusive), "a-" (from a until the end) or "a" (a single frame); frames count from 0
+     *
+     * @return the range or null if s is invalid
+     */
+    public static FrameRange parseFrames(String s)
+    {
+        try
+        {
+            int dash = s.indexOf('-');
+            if (dash < 0)
+            {
+                int n = Integer.parseInt(s.trim());
+                return (n < 0) ? null : new FrameRange(n, n, 0, 0);
+            }
+
+            int a = Integer.parseInt(s.substring(0, dash).trim());
+            String tail = s.substring(dash + 1).trim();
+            int b = (tail.length() == 0) ? -1 : Integer.parseInt(tail);
+            if ((a < 0) || ((b != -1) && (b < a))) return null;
+
+            return new FrameRange(a, b, 0, 0);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a shard definition
+     *
+     * @param s "k/n" with 1 <= k <= n
+     *
+     * @return the shard or null if s is invalid
+     */
+    public static FrameRange parseShard(String s)
+    {
+        int slash = s.indexOf('/');
+        if (slash < 0) return null;
+
+        try
+        {
+            int k = Integer.parseInt(s.substring(0, slash).trim());
+            int n = Integer.parseInt(s.substring(slash + 1).trim());
+            if ((n < 1) || (k < 1) || (k > n)) return null;
+
+            return new FrameRange(0, -1, k, n);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this is a shard definition and not an explicit range
+     */
+    public boolean isShard()
+    {
+        return (shardCount != 0);
+    }
+
+    /**
+     * @return the shard number (1...getShardCount()) or 0 for explicit ranges
+     */
+    public int getShard()
+    {
+        return shard;
+    }
+
+    /**
+     * @return the number of shards or 0 for explicit ranges
+     */
+    public int getShardCount()
+    {
+        return shardCount;
+    }
+
+    /**
+     * @param frameCount the number of frames in the file
+     *
+     * @return the first frame to convert
+     */
+    public int getFirst(int frameCount)
+    {
+        if (isShard()) return (int) ((long) frameCount * (shard - 1) / shardCount);
+
+        return first;
+    }
+
+    /**
+     * @param frameCount the number of frames in the file
+     *
+     * @return the last frame to convert (inclusive); smaller than getFirst() if there's nothing to do
+     */
+    public int getLast(int frameCount)
+    {
+        if (isShard()) return (int) ((long) frameCount * shard / shardCount) - 1;
+        if (last == -1) return frameCount - 1;
+
+        return Math.min(last, frameCount - 1);
+    }
+
+    @Override
+    public String toString()
+    {
+        if (isShard()) return "shard " + shard + "/" + shardCount;
+
+        return "frames " + first + "-" + ((last == -1) ? "" : String.valueOf(last));
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * Schedules the disk accesses of a batch with regard to the storage devices.
+ *
+ * order() sorts the files of a batch by device, directory and name and
+ * interleaves the devices, so that each device is read sequentially while
+ * all devices are busy. The permits limit the number of concurrent reads and
+ * writes per device independently of the number of worker threads: spinning
+ * disks and card readers are much slower with parallel random accesses than
+ * with sequential ones, while the CPU work of the other threads goes on.
+ *
+ * In the adaptive mode, the limits start at 1 and are tuned per device and
+ * direction by hill climbing on the measured throughput.
+ *
+ * Only the per-frame and per-file accesses of PinkDotRemover, including the
+ * reads for the output digest, are scheduled;
+ * DNG files without row based access are read by SimpleTIFFlib when they are
+ * opened.
+ */
+public class IoScheduler extends LoggingClass {
+
+    /**
+     * No limits; used when no scheduler has been configured
+     */
+    public static final IoScheduler NONE = new IoScheduler(0, 0, false);
+
+    /**
+     * The number of completed accesses after which the adaptive mode reevaluates a limit
+     */
+    protected static final int ADAPT_WINDOW = 16;
+
+    /**
+     * The relative change of the throughput that the adaptive mode considers significant
+     */
+    protected static final double ADAPT_THRESHOLD = 0.05;
+
+    /**
+     * A permit for one access; must be released when the access is done
+     */
+    public static class Permit
+    {
+        protected final Gate gate;
+
+        Permit(Gate _gate)
+        {
+            gate = _gate;
+        }
+
+        /**
+         * Releases the permit
+         *
+         * @param bytes the number of bytes that have been transferred, for the adaptive mode
+         */
+        public void release(long bytes)
+        {
+            if (gate != null) gate.release(bytes);
+        }
+    }
+
+    /**
+     * The limit of concurrent accesses in one direction of one device
+     */
+    protected static class Gate
+    {
+        protected final String name;
+        protected final int maxLimit;
+        protected final boolean adaptive;
+        protected int limit;
+        protected int active = 0;
+
+        /**
+         * The measurement window of the adaptive mode
+         */
+        protected long windowStart = System.nanoTime();
+        protected long windowBytes = 0;
+        protected int windowOps = 0;
+        protected double lastThroughput = -1;
+        protected int step = 1;
+
+        Gate(String _name, int _limit, boolean _adaptive)
+        {
+            name = _name;
+            maxLimit = _limit;
+            adaptive = _adaptive;
+            limit = adaptive ? 1 : _limit;
+        }
+
+        /**
+         * Waits until an access is allowed; interrupts are deferred until then
+         */
+        synchronized Permit acquire()
+        {
+            boolean interrupted = false;
+            while (active >= limit)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            active++;
+            if (interrupted) Thread.currentThread().interrupt();
+
+            return new Permit(this);
+        }
+
+        synchronized void release(long bytes)
+        {
+            active--;
+            if (adaptive) adapt(bytes);
+            notifyAll();
+        }
+
+        /**
+         * Moves the limit in the direction that increased the throughput in the last window
+         */
+        protected void adapt(long bytes)
+        {
+            windowBytes += bytes;
+            if (++windowOps < ADAPT_WINDOW) return;
+
+            long now = System.nanoTime();
+            double throughput = windowBytes * 1e9 / Math.max(1, now - windowStart);
+            if ((lastThroughput >= 0) && (throughput < lastThroughput * (1 - ADAPT_THRESHOLD))) step = -step;
+            if ((lastThroughput < 0) || (Math.abs(throughput - lastThroughput) > lastThroughput * ADAPT_THRESHOLD))
+            {
+                int newLimit = Math.max(1, Math.min(maxLimit, limit + step));
+                if (newLimit != limit) dbg("I/O limit of ", name, ": ", limit, " --> ", newLimit, " at ", (long) (throughput / 1024), " KiB/s");
+                else step = -step;
+                limit = newLimit;
+            }
+
+            lastThroughput = throughput;
+            windowStart = now;
+            windowBytes = 0;
+            windowOps = 0;
+        }
+
+        synchronized int getLimit()
+        {
+            return limit;
+        }
+    }
+
+    /**
+     * The gates of a storage device
+     */
+    protected static class Device
+    {
+        final Gate reads;
+        final Gate writes;
+
+        Device(String name, int readLimit, int writeLimit, boolean adaptive)
+        {
+            reads = new Gate(name + " (read)", readLimit, adaptive);
+            writes = new Gate(name + " (write)", writeLimit, adaptive);
+        }
+    }
+
+    protected final int readLimit;
+    protected final int writeLimit;
+    protected final boolean adaptive;
+
+    /**
+     * The devices by their file store (or root directory if the store can't be determined)
+     */
+    protected final Map<Object, Device> devices = new ConcurrentHashMap<Object, Device>();
+
+    /**
+     * The device key of each directory
+     */
+    protected final Map<Path, Object> dirDevices = new ConcurrentHashMap<Path, Object>();
+
+    /**
+     * Constructor
+     *
+     * @param _readLimit the maximum number of concurrent reads per device; 0 for no limit
+     * @param _writeLimit the maximum number of concurrent writes per device; 0 for no limit
+     * @param _adaptive true to tune the limits from the measured throughput, up to the given maximums
+     */
+    public IoScheduler(int _readLimit, int _writeLimit, boolean _adaptive)
+    {
+        if ((_readLimit < 0) || (_writeLimit < 0)) throw new IllegalArgumentException("Invalid I/O limits");
+
+        readLimit = _readLimit;
+        writeLimit = _writeLimit;
+        adaptive = _adaptive;
+    }
+
+    /**
+     * Parses the I/O limits
+     *
+     * @param s "n" (n reads and n writes per device), "r/w" or "auto" (adaptive, up to maxAuto accesses each)
+     * @param maxAuto the upper bound of the adaptive limits, e.g. the number of worker threads
+     *
+     * @return the scheduler or null if s is invalid
+     */
+    public static IoScheduler parse(String s, int maxAuto)
+    {
+        if (s.trim().equalsIgnoreCase("auto")) return new IoScheduler(maxAuto, maxAuto, true);
+
+        try
+        {
+            int slash = s.indexOf('/');
+            int r = Integer.parseInt(((slash < 0) ? s : s.substring(0, slash)).trim());
+            int w = (slash < 0) ? r : Integer.parseInt(s.substring(slash + 1).trim());
+            if ((r < 1) || (w < 1)) return null;
+
+            return new IoScheduler(r, w, false);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @param f a file
+     *
+     * @return a key that is equal for all files on the same storage device
+     */
+    public static Object getDeviceKey(File f)
+    {
+        Path p = f.getAbsoluteFile().toPath();
+        try
+        {
+            return Files.getFileStore(Files.exists(p) ? p : p.getParent());
+        }
+        catch (IOException e)
+        {
+            // the root directory is the best guess
+            return p.getRoot();
+        }
+    }
+
+    /**
+     * Sorts the files of a batch for sequential accesses: grouped by device
+     * and sorted by directory and name within each device; the devices are
+     * interleaved in the order of their first file
+     *
+     * @param files the files of the batch
+     *
+     * @return the files in the order of processing
+     */
+    public static List<File> order(List<File> files)
+    {
+        LinkedHashMap<Object, List<File>> byDevice = new LinkedHashMap<Object, List<File>>();
+        HashMap<File, Object> dirKeys = new HashMap<File, Object>();
+        for (File f : files)
+        {
+            File dir = f.getAbsoluteFile().getParentFile();
+            Object key = dirKeys.get(dir);
+            if (key == null)
+            {
+                key = getDeviceKey(f);
+                dirKeys.put(dir, key);
+            }
+
+            List<File> l = byDevice.get(key);
+            if (l == null)
+            {
+                l = new ArrayList<File>();
+                byDevice.put(key, l);
+            }
+            l.add(f);
+        }
+
+        Comparator<File> byPath = new Comparator<File>() {
+            public int compare(File a, File b)
+            {
+                File da = a.getAbsoluteFile().getParentFile();
+                File db = b.getAbsoluteFile().getParentFile();
+                int c = String.valueOf(da).compareTo(String.valueOf(db));
+                if (c != 0) return c;
+
+                return a.getName().compareTo(b.getName());
+            }
+        };
+
+        ArrayList<List<File>> queues = new ArrayList<List<File>>(byDevice.values());
+        for (List<File> l : queues) Collections.sort(l, byPath);
+
+        // round robin over the devices
+        ArrayList<File> result = new ArrayList<File>();
+        for (int i = 0; result.size() < files.size(); i++)
+        {
+            for (List<File> l : queues)
+            {
+                if (i < l.size()) result.add(l.get(i));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param f a file
+     *
+     * @return the gates of the file's device
+     */
+    protected Device getDevice(File f)
+    {
+        Path dir = f.getAbsoluteFile().toPath().getParent();
+        Object key = (dir != null) ? dirDevices.get(dir) : null;
+        if (key == null)
+        {
+            key = getDeviceKey(f);
+            if (dir != null) dirDevices.put(dir, key);
+        }
+
+        Device d = devices.get(key);
+        if (d != null) return d;
+
+        synchronized (devices)
+        {
+            d = devices.get(key);
+            if (d == null)
+            {
+                d = new Device(String.valueOf(key), readLimit, writeLimit, adaptive);
+                devices.put(key, d);
+            }
+        }
+
+        return d;
+    }
+
+    /**
+     * Waits until a read from a file is allowed
+     *
+     * @param f the file to read from
+     *
+     * @return the permit; must be released after the read
+     */
+    public Permit acquireRead(File f)
+    {
+        if (readLimit == 0) return new Permit(null);
+
+        return getDevice(f).reads.acquire();
+    }
+
+    /**
+     * Waits until a write to a file is allowed
+     *
+     * @param f the file to write to
+     *
+     * @return the permit; must be released after the write
+     */
+    public Permit acquireWrite(File f)
+    {
+        if (writeLimit == 0) return new Permit(null);
+
+        return getDevice(f).writes.acquire();
+    }
+
+    /**
+     * @param f a file
+     *
+     * @return the current read limit of the file's device; 0 for no limit
+     */
+    public int getReadLimit(File f)
+    {
+        return (readLimit == 0) ? 0 : getDevice(f).reads.getLimit();
+    }
+
+    /**
+     * @param f a file
+     *
+     * @return the current write limit of the file's device; 0 for no limit
+     */
+    public int getWriteLimit(File f)
+    {
+        return (writeLimit == 0) ? 0 : getDevice(f).writes.getLimit();
+    }
+
+    @Override
+    public String toString()
+    {
+        if ((readLimit == 0) && (writeLimit == 0)) return "no I/O limits";
+        if (adaptive) return "adaptive I/O limits (up to " + readLimit + " reads / " + writeLimit + " writes per device)";
+
+        return readLimit + " reads / " + writeLimit + " writes per device";
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder implementation of the conversion events.
+ *
+ * This class is only loaded by ConversionEvents.create() after checking that
+ * the JVM supports JFR. All events belong to the category "PinkDotRemover"
+ * and are enabled by default, e.g. with
+ *
+ *   java -XX:StartFlightRecording=filename=conversion.jfr -jar dist/PinkDotRemoverEngine.jar ...
+ */
+public class JfrConversionEvents extends ConversionEvents {
+
+    protected static final String CATEGORY = "PinkDotRemover";
+
+    @Name("org.nodomain.volkerk.PinkDotRemover.FileOpen")
+    @Label("File Open")
+    @Category(CATEGORY)
+    @Description("Opening and parsing an input file")
+    static class FileOpenEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Format")
+        String format;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Frames")
+        int frameCount;
+
+        @Label("File Size")
+        @DataAmount
+        long fileSize;
+    }
+
+    @Name("org.nodomain.volkerk.PinkDotRemover.DotSetLookup")
+    @Label("Dot Set Lookup")
+    @Category(CATEGORY)
+    @Description("Determining the dot set for a camera and resolution")
+    static class DotSetLookupEvent extends Event
+    {
+        @Label("Camera Model")
+        String model;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Found")
+        boolean found;
+
+        @Label("Generic Fallback")
+        @Description("The dots are scaled from the camera's generic dot set")
+        boolean generic;
+
+        @Label("Database Reloaded")
+        @Description("The compiled database was damaged and the dot data files were read again")
+        boolean reloaded;
+    }
+
+    @Name("org.nodomain.volkerk.PinkDotRemover.Kernel")
+    @Label("Dot Removal Kernel")
+    @Category(CATEGORY)
+    @Description("Fixing the dots of a frame in memory")
+    static class KernelEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Frame")
+        int frame;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Dots")
+        int dotCount;
+
+        @Label("Mode")
+        String mode;
+
+        @Label("Parallel")
+        boolean parallel;
+    }
+
+    @Name("org.nodomain.volkerk.PinkDotRemover.FrameRead")
+    @Label("Frame Read")
+    @Category(CATEGORY)
+    @Description("Reading a frame or the band of a frame that contains dots")
+    static class FrameReadEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Frame")
+        int frame;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.nodomain.volkerk.PinkDotRemover.FrameWrite")
+    @Label("Frame Write")
+    @Category(CATEGORY)
+    @Description("Writing a frame back to its source file")
+    static class FrameWriteEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Frame")
+        int frame;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.nodomain.volkerk.PinkDotRemover.OutputSave")
+    @Label("Output Save")
+    @Category(CATEGORY)
+    @Description("Saving a converted file")
+    static class OutputSaveEvent extends Event
+    {
+        @Label("Source File")
+        String srcFile;
+
+        @Label("Output File")
+        String dstFile;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Starts the timing of an event
+     *
+     * @param e a new event
+     *
+     * @return the event or null if it's disabled
+     */
+    protected static Object begin(Event e)
+    {
+        if (!(e.isEnabled())) return null;
+
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public boolean isSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public Object beginOpen()
+    {
+        return begin(new FileOpenEvent());
+    }
+
+    @Override
+    public void endOpen(Object handle, String file, String format, int width, int height, int frameCount, long fileSize)
+    {
+        if (!(handle instanceof FileOpenEvent)) return;
+
+        FileOpenEvent e = (FileOpenEvent) handle;
+        e.end();
+        if (!(e.shouldCommit())) return;
+
+        e.file = file;
+        e.format = format;
+        e.width = width;
+        e.height = height;
+        e.frameCount = frameCount;
+        e.fileSize = fileSize;
+        e.commit();
+    }
+
+    @Override
+    public Object beginLookup()
+    {
+        return begin(new DotSetLookupEvent());
+    }
+
+    @Override
+    public void endLookup(Object handle, String model, int width, int height, boolean found, boolean generic, boolean reloaded)
+    {
+        if (!(handle instanceof DotSetLookupEvent)) return;
+
+        DotSetLookupEvent e = (DotSetLookupEvent) handle;
+        e.end();
+        if (!(e.shouldCommit())) return;
+
+        e.model = model;
+        e.width = width;
+        e.height = height;
+        e.found = found;
+        e.generic = generic;
+        e.reloaded = reloaded;
+        e.commit();
+    }
+
+    @Override
+    public Object beginKernel()
+    {
+        return begin(new KernelEvent());
+    }
+
+    @Override
+    public void endKernel(Object handle, String file, int frame, int width, int height, int dotCount, String mode, boolean parallel)
+    {
+        if (!(handle instanceof KernelEvent)) return;
+
+        KernelEvent e = (KernelEvent) handle;
+        e.end();
+        if (!(e.shouldCommit())) return;
+
+        e.file = file;
+        e.frame = frame;
+        e.width = width;
+        e.height = height;
+        e.dotCount = dotCount;
+        e.mode = mode;
+        e.parallel = parallel;
+        e.commit();
+    }
+
+    @Override
+    public Object beginFrameRead()
+    {
+        return begin(new FrameReadEvent());
+    }
+
+    @Override
+    public void endFrameRead(Object handle, String file, int frame, int width, int height, long bytes)
+    {
+        if (!(handle instanceof FrameReadEvent)) return;
+
+        FrameReadEvent e = (FrameReadEvent) handle;
+        e.end();
+        if (!(e.shouldCommit())) return;
+
+        e.file = file;
+        e.frame = frame;
+        e.width = width;
+        e.height = height;
+        e.bytes = bytes;
+        e.commit();
+    }
+
+    @Override
+    public Object beginFrameWrite()
+    {
+        return begin(new FrameWriteEvent());
+    }
+
+    @Override
+    public void endFrameWrite(Object handle, String file, int frame, int width, int height, long bytes)
+    {
+        if (!(handle instanceof FrameWriteEvent)) return;
+
+        FrameWriteEvent e = (FrameWriteEvent) handle;
+        e.end();
+        if (!(e.shouldCommit())) return;
+
+        e.file = file;
+        e.frame = frame;
+        e.width = width;
+        e.height = height;
+        e.bytes = bytes;
+        e.commit();
+    }
+
+    @Override
+    public Object beginSave()
+    {
+        return begin(new OutputSaveEvent());
+    }
+
+    @Override
+    public void endSave(Object handle, String srcFile, String dstFile, long bytes)
+    {
+        if (!(handle instanceof OutputSaveEvent)) return;
+
+        OutputSaveEvent e = (OutputSaveEvent) handle;
+        e.end();
+        if (!(e.shouldCommit())) return;
+
+        e.srcFile = srcFile;
+        e.dstFile = dstFile;
+        e.bytes = bytes;
+        e.commit();
+    }
+}
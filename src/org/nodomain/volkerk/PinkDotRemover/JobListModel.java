@@ -0,0 +1,248 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import javax.swing.AbstractListModel;
+
+/**
+ * The list model for the files in the main window.
+ *
+ * Jobs are stored in an array list plus a hash index, so that lookups,
+ * duplicate checks and status changes take constant time and only the
+ * affected rows are repainted. Removals are collected and done in a single
+ * compaction pass.
+ *
+ * Must only be used on the event dispatch thread.
+ */
+public class JobListModel extends AbstractListModel<ConversionJob> {
+
+    /**
+     * The jobs in the order of their appearance in the list
+     */
+    protected final ArrayList<ConversionJob> jobs = new ArrayList<ConversionJob>();
+
+    /**
+     * File --> job, for all jobs in the list
+     */
+    protected final HashMap<File, ConversionJob> index = new HashMap<File, ConversionJob>();
+
+    /**
+     * The number of RAW files in the list
+     */
+    protected int rawCount = 0;
+
+    /**
+     * The job with the longest text in the list; used for the list's cell width
+     */
+    protected ConversionJob longestJob = null;
+
+    /**
+     * @return the number of jobs in the list
+     */
+    public int getSize()
+    {
+        return jobs.size();
+    }
+
+    /**
+     * @param i the position in the list
+     *
+     * @return the job at that position
+     */
+    public ConversionJob getElementAt(int i)
+    {
+        return jobs.get(i);
+    }
+
+    /**
+     * @param f a file
+     *
+     * @return the job for the file or null if the file is not in the list
+     */
+    public ConversionJob getJob(File f)
+    {
+        return index.get(f);
+    }
+
+    /**
+     * @param f a file
+     *
+     * @return true if the file is already in the list
+     */
+    public boolean contains(File f)
+    {
+        return index.containsKey(f);
+    }
+
+    /**
+     * @return true if there's at least one RAW file in the list
+     */
+    public boolean hasRAW()
+    {
+        return rawCount != 0;
+    }
+
+    /**
+     * @return the job with the longest text in the list or null if the list is empty
+     */
+    public ConversionJob getLongestJob()
+    {
+        return longestJob;
+    }
+
+    /**
+     * Appends files to the list. Files that are already in the list are ignored.
+     *
+     * @param files the files to append
+     *
+     * @return the number of files that have actually been added
+     */
+    public int addAll(Collection<File> files)
+    {
+        int first = jobs.size();
+        for (File f : files)
+        {
+            if (index.containsKey(f)) continue;
+            append(new ConversionJob(f));
+        }
+
+        int added = jobs.size() - first;
+        if (added != 0) fireIntervalAdded(this, first, jobs.size() - 1);
+
+        return added;
+    }
+
+    /**
+     * Appends a job without notifying the listeners
+     *
+     * @param job the job to append
+     */
+    protected void append(ConversionJob job)
+    {
+        job.index = jobs.size();
+        jobs.add(job);
+        index.put(job.getFile(), job);
+        if (job.isRAW()) rawCount++;
+
+        if ((longestJob == null) || (job.getFile().toString().length() > longestJob.getFile().toString().length()))
+        {
+            longestJob = job;
+        }
+    }
+
+    /**
+     * Removes all jobs from the list
+     */
+    public void clear()
+    {
+        int oldSize = jobs.size();
+        jobs.clear();
+        index.clear();
+        rawCount = 0;
+        longestJob = null;
+
+        if (oldSize != 0) fireIntervalRemoved(this, 0, oldSize - 1);
+    }
+
+    /**
+     * Removes the jobs at the given positions in a single pass
+     *
+     * @param positions the positions of the jobs to remove, in any order
+     */
+    public void removeAll(int[] positions)
+    {
+        boolean[] drop = new boolean[jobs.size()];
+        for (int i : positions)
+        {
+            if ((i >= 0) && (i < drop.length)) drop[i] = true;
+        }
+
+        compact(drop);
+    }
+
+    /**
+     * Removes all jobs with a given status in a single pass
+     *
+     * @param s the status of the jobs to remove
+     */
+    public void removeAll(ConversionJob.Status s)
+    {
+        boolean[] drop = new boolean[jobs.size()];
+        for (int i=0; i < drop.length; i++) drop[i] = (jobs.get(i).getStatus() == s);
+
+        compact(drop);
+    }
+
+    /**
+     * Drops jobs from the list and re-numbers the remaining jobs
+     *
+     * @param drop one flag per job; true for jobs that shall be removed
+     */
+    protected void compact(boolean[] drop)
+    {
+        int oldSize = jobs.size();
+        ArrayList<ConversionJob> kept = new ArrayList<ConversionJob>(oldSize);
+        for (int i=0; i < oldSize; i++)
+        {
+            if (!(drop[i])) kept.add(jobs.get(i));
+        }
+        if (kept.size() == oldSize) return;
+
+        jobs.clear();
+        index.clear();
+        rawCount = 0;
+        longestJob = null;
+        for (ConversionJob job : kept) append(job);
+
+        // the remaining rows have moved, so the whole list needs a repaint
+        fireIntervalRemoved(this, kept.size(), oldSize - 1);
+        if (kept.size() != 0) fireContentsChanged(this, 0, kept.size() - 1);
+    }
+
+    /**
+     * Notifies the listeners that the status of a job has changed;
+     * only the job's row is repainted
+     *
+     * @param job the job with the changed status
+     */
+    public void jobChanged(ConversionJob job)
+    {
+        int i = job.index;
+        if ((i < 0) || (i >= jobs.size()) || (jobs.get(i) != job)) return;
+
+        fireContentsChanged(this, i, i);
+    }
+
+    /**
+     * Resets all jobs that are not done to "queued"
+     *
+     * @return all files that are not done, in list order
+     */
+    public ArrayList<ConversionJob> prepareForConversion()
+    {
+        ArrayList<ConversionJob> result = new ArrayList<ConversionJob>();
+        for (ConversionJob job : jobs)
+        {
+            if (job.getStatus() == ConversionJob.Status.DONE) continue;
+            job.setStatus(ConversionJob.Status.QUEUED);
+            result.add(job);
+        }
+        if (jobs.size() != 0) fireContentsChanged(this, 0, jobs.size() - 1);
+
+        return result;
+    }
+}
@@ -0,0 +1,690 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A lossless JPEG image (ITU T.81 process 14, "LJ92") as used for the
+ * compressed tiles and strips of DNG files.
+ *
+ * Only the subset that DNG writers use is supported: one frame (SOF3) with a
+ * single interleaved scan, all components sampled 1x1, optionally with
+ * restart intervals of whole lines. The samples are kept in scan order, i.e.
+ * line by line with the components of each column interleaved; DNG maps this
+ * sequence linearly onto the pixels of a tile.
+ *
+ * Images are re-encoded with the frame parameters and the predictor of the
+ * decoded image and a single Huffman table that is optimized for the data.
+ */
+public class LosslessJpeg {
+
+    protected static final int M_SOI = 0xd8;
+    protected static final int M_EOI = 0xd9;
+    protected static final int M_SOF3 = 0xc3;
+    protected static final int M_DHT = 0xc4;
+    protected static final int M_SOS = 0xda;
+    protected static final int M_DRI = 0xdd;
+    protected static final int M_RST0 = 0xd0;
+
+    /**
+     * The number of columns per line, the number of lines and the number of components
+     */
+    protected final int cols;
+    protected final int rows;
+    protected final int components;
+
+    /**
+     * The sample precision in bits (2...16)
+     */
+    protected final int precision;
+
+    /**
+     * The predictor (1...7)
+     */
+    protected final int predictor;
+
+    /**
+     * The point transform; samples are stored shifted right by this number of bits
+     */
+    protected final int pointTransform;
+
+    /**
+     * All samples in scan order: [(row * cols + col) * components + component]
+     */
+    protected final int[] samples;
+
+    /**
+     * Constructor
+     *
+     * @param _cols the number of columns per line
+     * @param _rows the number of lines
+     * @param _components the number of interleaved components (1...4)
+     * @param _precision the sample precision in bits (2...16)
+     * @param _predictor the predictor (1...7)
+     * @param _pointTransform the point transform (0 for no transform)
+     * @param _samples all samples in scan order
+     */
+    public LosslessJpeg(int _cols, int _rows, int _components, int _precision, int _predictor, int _pointTransform, int[] _samples)
+    {
+        if ((_cols < 1) || (_cols > 0xffff) || (_rows < 1) || (_rows > 0xffff)) throw new IllegalArgumentException("Invalid size " + _cols + "x" + _rows);
+        if ((_components < 1) || (_components > 4)) throw new IllegalArgumentException("Invalid number of components " + _components);
+        if ((_precision < 2) || (_precision > 16)) throw new IllegalArgumentException("Invalid precision " + _precision);
+        if ((_predictor < 1) || (_predictor > 7)) throw new IllegalArgumentException("Invalid predictor " + _predictor);
+        if ((_pointTransform < 0) || (_pointTransform >= _precision)) throw new IllegalArgumentException("Invalid point transform " + _pointTransform);
+        if (_samples.length != _cols * _rows * _components) throw new IllegalArgumentException("Wrong number of samples");
+
+        cols = _cols;
+        rows = _rows;
+        components = _components;
+        precision = _precision;
+        predictor = _predictor;
+        pointTransform = _pointTransform;
+        samples = _samples;
+    }
+
+    /**
+     * @return the number of columns per line
+     */
+    public int getCols()
+    {
+        return cols;
+    }
+
+    /**
+     * @return the number of lines
+     */
+    public int getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * @return the number of interleaved components
+     */
+    public int getComponents()
+    {
+        return components;
+    }
+
+    /**
+     * @return the sample precision in bits
+     */
+    public int getPrecision()
+    {
+        return precision;
+    }
+
+    /**
+     * @return the predictor
+     */
+    public int getPredictor()
+    {
+        return predictor;
+    }
+
+    /**
+     * @return the point transform
+     */
+    public int getPointTransform()
+    {
+        return pointTransform;
+    }
+
+    /**
+     * @return all samples in scan order; the array is not copied
+     */
+    public int[] getSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * Creates an image with the same frame parameters and predictor, but different samples
+     *
+     * @param newSamples the samples in scan order
+     *
+     * @return the new image
+     */
+    public LosslessJpeg withSamples(int[] newSamples)
+    {
+        return new LosslessJpeg(cols, rows, components, precision, predictor, pointTransform, newSamples);
+    }
+
+    /**
+     * Calculates the prediction for a sample
+     *
+     * @param s the samples decoded so far, shifted by the point transform
+     * @param row the line of the sample
+     * @param col the column of the sample
+     * @param c the component of the sample
+     * @param firstRow true if row is the first line of the scan or of a restart interval
+     *
+     * @return the prediction
+     */
+    protected int predict(int[] s, int row, int col, int c, boolean firstRow)
+    {
+        int stride = cols * components;
+        int i = (row * cols + col) * components + c;
+
+        if (firstRow)
+        {
+            if (col == 0) return 1 << (precision - pointTransform - 1);
+            return s[i - components];
+        }
+        if (col == 0) return s[i - stride];
+
+        int ra = s[i - components];
+        int rb = s[i - stride];
+        int rc = s[i - stride - components];
+        switch (predictor)
+        {
+            case 1: return ra;
+            case 2: return rb;
+            case 3: return rc;
+            case 4: return ra + rb - rc;
+            case 5: return ra + ((rb - rc) >> 1);
+            case 6: return rb + ((ra - rc) >> 1);
+            default: return (ra + rb) >> 1;
+        }
+    }
+
+    /**
+     * Decodes a lossless JPEG image
+     *
+     * @param buf the buffer with the compressed data
+     * @param off the start of the image in buf
+     * @param len the length of the image data
+     *
+     * @return the decoded image
+     *
+     * @throws IOException if the data is corrupt or uses unsupported features
+     */
+    public static LosslessJpeg decode(byte[] buf, int off, int len) throws IOException
+    {
+        int end = off + len;
+        if ((len < 4) || ((buf[off] & 0xff) != 0xff) || ((buf[off + 1] & 0xff) != M_SOI)) throw new IOException("Not a JPEG image");
+
+        int[][] tables = new int[4][];
+        int precision = 0;
+        int cols = 0;
+        int rows = 0;
+        int[] componentIds = null;
+        int restartInterval = 0;
+
+        int pos = off + 2;
+        while (true)
+        {
+            // markers may be preceded by any number of fill bytes
+            if ((pos >= end) || ((buf[pos] & 0xff) != 0xff)) throw new IOException("Missing JPEG marker");
+            while ((pos < end) && ((buf[pos] & 0xff) == 0xff)) pos++;
+            if (pos + 2 >= end) throw new IOException("Truncated JPEG image");
+
+            int marker = buf[pos++] & 0xff;
+            if (marker == M_EOI) throw new IOException("JPEG image without scan");
+            int segLen = ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+            int seg = pos + 2;
+            int segEnd = pos + segLen;
+            if ((segLen < 2) || (segEnd > end)) throw new IOException("Invalid JPEG segment length");
+
+            if (marker == M_DHT)
+            {
+                while (seg < segEnd)
+                {
+                    int th = buf[seg] & 0x0f;
+                    int[] counts = new int[17];
+                    int total = 0;
+                    for (int l=1; l <= 16; l++)
+                    {
+                        counts[l] = buf[seg + l] & 0xff;
+                        total += counts[l];
+                    }
+                    if ((th > 3) || (seg + 17 + total > segEnd)) throw new IOException("Invalid Huffman table");
+
+                    int[] symbols = new int[total];
+                    for (int k=0; k < total; k++) symbols[k] = buf[seg + 17 + k] & 0xff;
+                    tables[th] = buildLookup(counts, symbols);
+                    seg += 17 + total;
+                }
+            }
+            else if (marker == M_SOF3)
+            {
+                precision = buf[seg] & 0xff;
+                rows = ((buf[seg + 1] & 0xff) << 8) | (buf[seg + 2] & 0xff);
+                cols = ((buf[seg + 3] & 0xff) << 8) | (buf[seg + 4] & 0xff);
+                int n = buf[seg + 5] & 0xff;
+                if ((n < 1) || (n > 4) || (segLen < 8 + 3 * n)) throw new IOException("Invalid frame header");
+                componentIds = new int[n];
+                for (int c=0; c < n; c++)
+                {
+                    componentIds[c] = buf[seg + 6 + 3 * c] & 0xff;
+                    if ((buf[seg + 7 + 3 * c] & 0xff) != 0x11) throw new IOException("Subsampled JPEG components are not supported");
+                }
+            }
+            else if (marker == M_DRI)
+            {
+                restartInterval = ((buf[seg] & 0xff) << 8) | (buf[seg + 1] & 0xff);
+            }
+            else if (marker == M_SOS)
+            {
+                if (componentIds == null) throw new IOException("JPEG scan without frame header");
+                int n = buf[seg] & 0xff;
+                if ((n != componentIds.length) || (segLen < 6 + 2 * n)) throw new IOException("Only single interleaved scans are supported");
+
+                int[][] compTables = new int[n][];
+                for (int c=0; c < n; c++)
+                {
+                    if ((buf[seg + 1 + 2 * c] & 0xff) != componentIds[c]) throw new IOException("Unexpected component order in JPEG scan");
+                    compTables[c] = tables[(buf[seg + 2 + 2 * c] >> 4) & 0x03];
+                    if (compTables[c] == null) throw new IOException("Undefined Huffman table");
+                }
+                int pred = buf[seg + 1 + 2 * n] & 0xff;
+                int pt = buf[seg + 3 + 2 * n] & 0x0f;
+                if ((rows == 0) || (cols == 0)) throw new IOException("JPEG images without height are not supported");
+                if ((restartInterval != 0) && (restartInterval % cols != 0)) throw new IOException("Restart intervals must consist of whole lines");
+
+                LosslessJpeg img;
+                try
+                {
+                    img = new LosslessJpeg(cols, rows, n, precision, pred, pt, new int[cols * rows * n]);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new IOException("Unsupported lossless JPEG: " + e.getMessage());
+                }
+                img.decodeScan(buf, segEnd, end, compTables, restartInterval / cols);
+
+                return img;
+            }
+            else if ((marker >= 0xc0) && (marker <= 0xcf) && (marker != 0xc4) && (marker != 0xc8) && (marker != 0xcc))
+            {
+                throw new IOException("Not a lossless JPEG image");
+            }
+
+            // APPn, COM and other segments are skipped
+            pos = segEnd;
+        }
+    }
+
+    /**
+     * Builds a lookup table that maps the next 16 bits of the bit stream to code length and symbol
+     *
+     * @param counts the number of codes per length (index 1...16)
+     * @param symbols the symbols ordered by code length
+     *
+     * @return the table with (length << 8) | symbol per entry; 0 for invalid codes
+     *
+     * @throws IOException if the table is invalid
+     */
+    protected static int[] buildLookup(int[] counts, int[] symbols) throws IOException
+    {
+        int[] lookup = new int[1 << 16];
+        int code = 0;
+        int k = 0;
+        for (int l=1; l <= 16; l++)
+        {
+            for (int i=0; i < counts[l]; i++)
+            {
+                if (code >= (1 << l)) throw new IOException("Invalid Huffman table");
+                if (symbols[k] > 16) throw new IOException("Invalid symbol in lossless Huffman table");
+
+                int first = code << (16 - l);
+                int last = (code + 1) << (16 - l);
+                int val = (l << 8) | symbols[k++];
+                for (int j = first; j < last; j++) lookup[j] = val;
+                code++;
+            }
+            code <<= 1;
+        }
+
+        return lookup;
+    }
+
+    /**
+     * Decodes the entropy coded data of the scan into samples[]
+     *
+     * @param buf the compressed data
+     * @param pos the start of the entropy coded data
+     * @param end the end of the image data
+     * @param compTables the Huffman lookup table per component
+     * @param restartRows the number of lines per restart interval or 0
+     *
+     * @throws IOException if the data is corrupt
+     */
+    protected void decodeScan(byte[] buf, int pos, int end, int[][] compTables, int restartRows) throws IOException
+    {
+        int mask = (1 << (precision - pointTransform)) - 1;
+        long bits = 0;
+        int bitCount = 0;
+        boolean atMarker = false;
+        int firstRow = 0;
+
+        for (int row=0; row < rows; row++)
+        {
+            if ((restartRows != 0) && (row != 0) && (row % restartRows == 0))
+            {
+                // skip the rest of the current byte and the RSTn marker
+                bits = 0;
+                bitCount = 0;
+                atMarker = false;
+                while ((pos + 1 < end) && !(((buf[pos] & 0xff) == 0xff) && ((buf[pos + 1] & 0xf8) == M_RST0))) pos++;
+                if (pos + 1 >= end) throw new IOException("Missing JPEG restart marker");
+                pos += 2;
+                firstRow = row;
+            }
+
+            for (int col=0; col < cols; col++)
+            {
+                for (int c=0; c < components; c++)
+                {
+                    // refill the bit buffer; after a marker only zero bits follow
+                    while (bitCount <= 48)
+                    {
+                        int b = 0;
+                        if ((!(atMarker)) && (pos < end))
+                        {
+                            b = buf[pos] & 0xff;
+                            if (b == 0xff)
+                            {
+                                int next = (pos + 1 < end) ? buf[pos + 1] & 0xff : M_EOI;
+                                if (next == 0) pos += 2;
+                                else
+                                {
+                                    atMarker = true;
+                                    b = 0;
+                                }
+                            }
+                            else pos++;
+                        }
+                        bits = (bits << 8) | b;
+                        bitCount += 8;
+                    }
+
+                    int entry = compTables[c][(int) (bits >>> (bitCount - 16)) & 0xffff];
+                    int len = entry >> 8;
+                    if (len == 0) throw new IOException("Invalid Huffman code in line " + row);
+                    bitCount -= len;
+
+                    int ssss = entry & 0xff;
+                    int diff;
+                    if (ssss == 0) diff = 0;
+                    else if (ssss == 16) diff = 32768;
+                    else
+                    {
+                        bitCount -= ssss;
+                        diff = (int) (bits >>> bitCount) & ((1 << ssss) - 1);
+                        if (diff < (1 << (ssss - 1))) diff -= (1 << ssss) - 1;
+                    }
+
+                    int i = (row * cols + col) * components + c;
+                    samples[i] = (predict(samples, row, col, c, row == firstRow) + diff) & mask;
+                }
+            }
+        }
+
+        if (pointTransform != 0)
+        {
+            for (int i=0; i < samples.length; i++) samples[i] <<= pointTransform;
+        }
+    }
+
+    /**
+     * Encodes the image
+     *
+     * @return the complete JPEG data stream
+     */
+    public byte[] encode()
+    {
+        int mask = (1 << (precision - pointTransform)) - 1;
+        int[] s = new int[samples.length];
+        for (int i=0; i < s.length; i++) s[i] = (samples[i] >> pointTransform) & mask;
+
+        // first pass: the differences and the frequency of each category
+        int[] diffs = new int[s.length];
+        int[] freq = new int[257];
+        for (int row=0; row < rows; row++)
+        {
+            for (int col=0; col < cols; col++)
+            {
+                for (int c=0; c < components; c++)
+                {
+                    int i = (row * cols + col) * components + c;
+                    int d = (s[i] - predict(s, row, col, c, row == 0)) & 0xffff;
+                    if (d >= 32768) d -= 65536;
+                    diffs[i] = d;
+                    freq[category(d)]++;
+                }
+            }
+        }
+
+        int[] codeLengths = new int[17];
+        int[] symbols = optimalTable(freq, codeLengths);
+
+        // canonical codes per category
+        int[] codes = new int[17];
+        int[] lengths = new int[17];
+        int code = 0;
+        int k = 0;
+        for (int l=1; l <= 16; l++)
+        {
+            for (int i=0; i < codeLengths[l]; i++)
+            {
+                codes[symbols[k]] = code++;
+                lengths[symbols[k++]] = l;
+            }
+            code <<= 1;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(s.length * 2 + 256);
+        out.write(0xff);
+        out.write(M_SOI);
+
+        // a single Huffman table for all components
+        out.write(0xff);
+        out.write(M_DHT);
+        writeShort(out, 2 + 17 + symbols.length);
+        out.write(0x00);
+        for (int l=1; l <= 16; l++) out.write(codeLengths[l]);
+        for (int sym : symbols) out.write(sym);
+
+        out.write(0xff);
+        out.write(M_SOF3);
+        writeShort(out, 8 + 3 * components);
+        out.write(precision);
+        writeShort(out, rows);
+        writeShort(out, cols);
+        out.write(components);
+        for (int c=0; c < components; c++)
+        {
+            out.write(c);
+            out.write(0x11);
+            out.write(0);
+        }
+
+        out.write(0xff);
+        out.write(M_SOS);
+        writeShort(out, 6 + 2 * components);
+        out.write(components);
+        for (int c=0; c < components; c++)
+        {
+            out.write(c);
+            out.write(0x00);
+        }
+        out.write(predictor);
+        out.write(0);
+        out.write(pointTransform);
+
+        // second pass: the entropy coded data with byte stuffing
+        long acc = 0;
+        int accBits = 0;
+        for (int d : diffs)
+        {
+            int ssss = category(d);
+            acc = (acc << lengths[ssss]) | codes[ssss];
+            accBits += lengths[ssss];
+            if ((ssss != 0) && (ssss != 16))
+            {
+                int v = (d < 0) ? d - 1 : d;
+                acc = (acc << ssss) | (v & ((1 << ssss) - 1));
+                accBits += ssss;
+            }
+            while (accBits >= 8)
+            {
+                accBits -= 8;
+                int b = (int) (acc >> accBits) & 0xff;
+                out.write(b);
+                if (b == 0xff) out.write(0);
+            }
+        }
+        if (accBits > 0)
+        {
+            // pad the last byte with one bits
+            int b = (int) ((acc << (8 - accBits)) | ((1 << (8 - accBits)) - 1)) & 0xff;
+            out.write(b);
+            if (b == 0xff) out.write(0);
+        }
+
+        out.write(0xff);
+        out.write(M_EOI);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @param d a difference (-32768...32767)
+     *
+     * @return the number of additional bits for d, i.e. the Huffman symbol
+     */
+    protected static int category(int d)
+    {
+        if (d == -32768) return 16;
+
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(d));
+    }
+
+    /**
+     * Creates an optimal Huffman table with a maximum code length of 16 bits
+     * (see ITU T.81, K.2)
+     *
+     * @param frequencies the number of occurrences per symbol (index 0...255); index 256 must be free
+     * @param codeLengths receives the number of codes per length (index 1...16)
+     *
+     * @return the symbols ordered by code length
+     */
+    protected static int[] optimalTable(int[] frequencies, int[] codeLengths)
+    {
+        long[] freq = new long[257];
+        for (int i=0; i < 256; i++) freq[i] = frequencies[i];
+        freq[256] = 1;   // reserves the code of all ones
+
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        for (int i=0; i < 257; i++) others[i] = -1;
+
+        while (true)
+        {
+            // the two least frequent subtrees; ties are resolved towards higher symbols
+            int c1 = -1;
+            long v = Long.MAX_VALUE;
+            for (int i=0; i < 257; i++)
+            {
+                if ((freq[i] != 0) && (freq[i] <= v))
+                {
+                    v = freq[i];
+                    c1 = i;
+                }
+            }
+            int c2 = -1;
+            v = Long.MAX_VALUE;
+            for (int i=0; i < 257; i++)
+            {
+                if ((freq[i] != 0) && (freq[i] <= v) && (i != c1))
+                {
+                    v = freq[i];
+                    c2 = i;
+                }
+            }
+            if (c2 < 0) break;
+
+            freq[c1] += freq[c2];
+            freq[c2] = 0;
+            codeSize[c1]++;
+            while (others[c1] >= 0)
+            {
+                c1 = others[c1];
+                codeSize[c1]++;
+            }
+            others[c1] = c2;
+            codeSize[c2]++;
+            while (others[c2] >= 0)
+            {
+                c2 = others[c2];
+                codeSize[c2]++;
+            }
+        }
+
+        int[] bits = new int[33];
+        for (int i=0; i < 257; i++)
+        {
+            if (codeSize[i] != 0) bits[codeSize[i]]++;
+        }
+
+        // limit the code lengths to 16 bits
+        for (int i=32; i > 16; i--)
+        {
+            while (bits[i] > 0)
+            {
+                int j = i - 2;
+                while (bits[j] == 0) j--;
+                bits[i] -= 2;
+                bits[i - 1]++;
+                bits[j + 1] += 2;
+                bits[j]--;
+            }
+        }
+
+        // remove the reserved code from the longest length
+        int longest = 16;
+        while (bits[longest] == 0) longest--;
+        bits[longest]--;
+
+        int n = 0;
+        for (int l=1; l <= 16; l++)
+        {
+            codeLengths[l] = bits[l];
+            n += bits[l];
+        }
+
+        int[] result = new int[n];
+        int k = 0;
+        for (int l=1; l <= 32; l++)
+        {
+            for (int i=0; i < 256; i++)
+            {
+                if (codeSize[i] == l) result[k++] = i;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes a big endian 16 bit value
+     */
+    protected static void writeShort(ByteArrayOutputStream out, int v)
+    {
+        out.write(v >> 8);
+        out.write(v);
+    }
+}
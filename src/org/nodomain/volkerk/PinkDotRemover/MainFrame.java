@@ -20,12 +20,12 @@ import java.awt.dnd.DropTargetDropEvent;
 import java.io.File;
 import java.io.IOException;
 import java.net.URLDecoder;
-import java.nio.file.Paths;
 import javax.swing.JFileChooser;
 import java.util.*;
+import java.util.List;
 import java.util.prefs.Preferences;
-import javax.swing.DefaultListModel;
 import javax.swing.JOptionPane;
+import javax.swing.Timer;
 
 /**
  *
@@ -34,16 +34,39 @@ import javax.swing.JOptionPane;
 public class MainFrame extends javax.swing.JFrame {
 
     protected final JFileChooser fChooser = new JFileChooser();
-    ArrayList<File> fList;
+    
+    /**
+     * All files in the list together with their conversion status
+     */
+    protected JobListModel jobs;
     protected RemoverWorker remWorker;
     protected LocationDatabaseInitWorker initWorker;
     
+    /**
+     * Polls the conversion progress on the event dispatch thread
+     */
+    protected Timer progressTimer;
+    
+    /**
+     * All directory scans that are currently running
+     */
+    protected ArrayList<FileScanWorker> scanners;
+    
     protected DotLocationDB db;
     protected Preferences prefs;
     
-    protected static final String DEFAULT_DOT_DATA_DIR = "dotData";
-    protected static final String DEFAULT_CAM_TYPE = "650D";
+    /**
+     * The removal strategies in the order of the method combo box
+     */
+    protected List<RemovalStrategy> methods;
+    
     protected static final String PREF_CAM_TYPE = "cam_type";
+    protected static final String PREF_METHOD = "method";
+    protected static final String PREF_THREADS = "threads";
+    protected static final String PREF_RECURSE = "recurse";
+    protected static final int MAX_THREADS = 64;
+    protected static final int PROGRESS_TICK_MS = 250;
+    protected static final int PROGRESS_STEPS = 1000;
     protected static final String PREF_NODE_NAME = "org.nodomain.volkerk.PinkDotRemover";
     
     /**
@@ -51,13 +74,40 @@ public class MainFrame extends javax.swing.JFrame {
      */
     public MainFrame() {
         initComponents();
-        fList = new ArrayList<File>();
+        jobs = new JobListModel();
+        scanners = new ArrayList<FileScanWorker>();
         remWorker = null;
         initWorker = null;
         db = null;
         
         prefs = Preferences.userRoot().node(PREF_NODE_NAME);
         
+        // restore the number of parallel conversions, limited to the spinner's range
+        int threads = prefs.getInt(PREF_THREADS, BatchConverter.defaultThreadCount());
+        threads = Math.max(1, Math.min(threads, MAX_THREADS));
+        spThreads.setModel(new javax.swing.SpinnerNumberModel(threads, 1, MAX_THREADS, 1));
+        
+        cbRecurse.setSelected(prefs.getBoolean(PREF_RECURSE, false));
+        
+        // offer all registered removal strategies, cheapest first, and restore the last choice
+        List<RemovalStrategy> all = RemovalStrategies.getAll();
+        for (RemovalStrategy s : all) cbMethod.addItem(s.getDescription());
+        methods = all;
+        RemovalStrategy method = RemovalStrategies.get(prefs.get(PREF_METHOD, RemovalStrategies.INTERPOLATE.getName()));
+        cbMethod.setSelectedIndex(methods.indexOf((method != null) ? method : RemovalStrategies.INTERPOLATE));
+        
+        // coalesce all progress updates of the conversion threads on a fixed tick
+        progressTimer = new Timer(PROGRESS_TICK_MS, new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                updateProgress();
+            }
+        });
+        
+        // fixed cell sizes, so that the list never has to measure all of its entries
+        FileList.setModel(jobs);
+        FileList.setFixedCellHeight(FileList.getFontMetrics(FileList.getFont()).getHeight() + 2);
+        updateCellWidth();
+        
         FileList.setDropTarget(new DropTarget() {
             public synchronized void drop(DropTargetDropEvent evt) {
                 try {
@@ -66,20 +116,13 @@ public class MainFrame extends javax.swing.JFrame {
                             .getTransferable().getTransferData(
                                     DataFlavor.javaFileListFlavor);
                     
-                    for (File file : droppedFiles) {
-                        if (fList.contains(file)) continue;
-                        if (!(isValidInputFile(file))) continue;
-                        fList.add(file);
-                    }
-                    updateList();
-                    updateButtons();
+                    startScan(droppedFiles);
                 } catch (UnsupportedFlavorException ex) {
                 } catch (IOException ex) {
                 }
             }
         });
         
-        updateList();
         updateButtons();
         
         doDatabaseInit();
@@ -95,20 +138,22 @@ public class MainFrame extends javax.swing.JFrame {
     private void initComponents() {
         java.awt.GridBagConstraints gridBagConstraints;
 
-        radioGrpMethod = new javax.swing.ButtonGroup();
         btnClear = new javax.swing.JButton();
         btnConvert = new javax.swing.JButton();
         btnQuit = new javax.swing.JButton();
         progBar = new javax.swing.JProgressBar();
         btnAddFile = new javax.swing.JButton();
         btnAddDir = new javax.swing.JButton();
+        cbRecurse = new javax.swing.JCheckBox();
         filler1 = new javax.swing.Box.Filler(new java.awt.Dimension(0, 0), new java.awt.Dimension(0, 0), new java.awt.Dimension(0, 32767));
         filler2 = new javax.swing.Box.Filler(new java.awt.Dimension(0, 0), new java.awt.Dimension(0, 0), new java.awt.Dimension(0, 32767));
-        radioBadPix = new javax.swing.JRadioButton();
-        radioInterpolate = new javax.swing.JRadioButton();
+        cbMethod = new javax.swing.JComboBox();
         jScrollPane2 = new javax.swing.JScrollPane();
         FileList = new javax.swing.JList();
         cbCam = new javax.swing.JComboBox();
+        lblThreads = new javax.swing.JLabel();
+        spThreads = new javax.swing.JSpinner();
+        btnCancel = new javax.swing.JButton();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setMinimumSize(new java.awt.Dimension(602, 400));
@@ -122,7 +167,7 @@ public class MainFrame extends javax.swing.JFrame {
         });
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 4;
-        gridBagConstraints.gridy = 3;
+        gridBagConstraints.gridy = 4;
         gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
         gridBagConstraints.insets = new java.awt.Insets(0, 5, 60, 5);
         getContentPane().add(btnClear, gridBagConstraints);
@@ -135,7 +180,7 @@ public class MainFrame extends javax.swing.JFrame {
         });
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 4;
-        gridBagConstraints.gridy = 7;
+        gridBagConstraints.gridy = 10;
         gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
         gridBagConstraints.insets = new java.awt.Insets(5, 5, 0, 5);
         getContentPane().add(btnConvert, gridBagConstraints);
@@ -148,7 +193,7 @@ public class MainFrame extends javax.swing.JFrame {
         });
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 4;
-        gridBagConstraints.gridy = 9;
+        gridBagConstraints.gridy = 13;
         gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
         gridBagConstraints.insets = new java.awt.Insets(0, 5, 0, 5);
         getContentPane().add(btnQuit, gridBagConstraints);
@@ -158,7 +203,7 @@ public class MainFrame extends javax.swing.JFrame {
         progBar.setStringPainted(true);
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 0;
-        gridBagConstraints.gridy = 12;
+        gridBagConstraints.gridy = 14;
         gridBagConstraints.gridwidth = 5;
         gridBagConstraints.fill = java.awt.GridBagConstraints.BOTH;
         gridBagConstraints.weighty = 0.2;
@@ -190,6 +235,20 @@ public class MainFrame extends javax.swing.JFrame {
         gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
         gridBagConstraints.insets = new java.awt.Insets(8, 5, 8, 5);
         getContentPane().add(btnAddDir, gridBagConstraints);
+
+        cbRecurse.setText("Include Subdirectories");
+        cbRecurse.setToolTipText("Also add the files in all subdirectories of dropped or selected directories");
+        cbRecurse.addItemListener(new java.awt.event.ItemListener() {
+            public void itemStateChanged(java.awt.event.ItemEvent evt) {
+                cbRecurseItemStateChanged(evt);
+            }
+        });
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 4;
+        gridBagConstraints.gridy = 3;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
+        gridBagConstraints.insets = new java.awt.Insets(0, 5, 8, 5);
+        getContentPane().add(cbRecurse, gridBagConstraints);
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 4;
         gridBagConstraints.gridy = 0;
@@ -198,27 +257,23 @@ public class MainFrame extends javax.swing.JFrame {
         getContentPane().add(filler1, gridBagConstraints);
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 4;
-        gridBagConstraints.gridy = 8;
+        gridBagConstraints.gridy = 12;
         gridBagConstraints.fill = java.awt.GridBagConstraints.VERTICAL;
         gridBagConstraints.weighty = 0.1;
         getContentPane().add(filler2, gridBagConstraints);
 
-        radioGrpMethod.add(radioBadPix);
-        radioBadPix.setText("Set Dead Pixel");
+        cbMethod.setToolTipText("How the dot pixels are replaced");
+        cbMethod.addItemListener(new java.awt.event.ItemListener() {
+            public void itemStateChanged(java.awt.event.ItemEvent evt) {
+                cbMethodItemStateChanged(evt);
+            }
+        });
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 4;
         gridBagConstraints.gridy = 6;
-        gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
-        getContentPane().add(radioBadPix, gridBagConstraints);
-
-        radioGrpMethod.add(radioInterpolate);
-        radioInterpolate.setSelected(true);
-        radioInterpolate.setText("Interpolate");
-        gridBagConstraints = new java.awt.GridBagConstraints();
-        gridBagConstraints.gridx = 4;
-        gridBagConstraints.gridy = 5;
-        gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
-        getContentPane().add(radioInterpolate, gridBagConstraints);
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.insets = new java.awt.Insets(0, 5, 5, 5);
+        getContentPane().add(cbMethod, gridBagConstraints);
 
         FileList.addKeyListener(new java.awt.event.KeyAdapter() {
             public void keyPressed(java.awt.event.KeyEvent evt) {
@@ -231,7 +286,7 @@ public class MainFrame extends javax.swing.JFrame {
         gridBagConstraints.gridx = 0;
         gridBagConstraints.gridy = 0;
         gridBagConstraints.gridwidth = 4;
-        gridBagConstraints.gridheight = 10;
+        gridBagConstraints.gridheight = 14;
         gridBagConstraints.fill = java.awt.GridBagConstraints.BOTH;
         gridBagConstraints.weightx = 0.1;
         gridBagConstraints.weighty = 0.6;
@@ -245,11 +300,42 @@ public class MainFrame extends javax.swing.JFrame {
         });
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 4;
-        gridBagConstraints.gridy = 4;
+        gridBagConstraints.gridy = 5;
         gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
         gridBagConstraints.insets = new java.awt.Insets(0, 5, 5, 5);
         getContentPane().add(cbCam, gridBagConstraints);
 
+        lblThreads.setText("Parallel Files:");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 4;
+        gridBagConstraints.gridy = 8;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
+        gridBagConstraints.insets = new java.awt.Insets(5, 5, 0, 5);
+        getContentPane().add(lblThreads, gridBagConstraints);
+
+        spThreads.setModel(new javax.swing.SpinnerNumberModel(1, 1, 64, 1));
+        spThreads.setToolTipText("Number of files that are converted in parallel");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 4;
+        gridBagConstraints.gridy = 9;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.insets = new java.awt.Insets(0, 5, 5, 5);
+        getContentPane().add(spThreads, gridBagConstraints);
+
+        btnCancel.setText("Cancel");
+        btnCancel.setEnabled(false);
+        btnCancel.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                btnCancelActionPerformed(evt);
+            }
+        });
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 4;
+        gridBagConstraints.gridy = 11;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.insets = new java.awt.Insets(5, 5, 0, 5);
+        getContentPane().add(btnCancel, gridBagConstraints);
+
         pack();
     }// </editor-fold>//GEN-END:initComponents
 
@@ -275,14 +361,11 @@ public class MainFrame extends javax.swing.JFrame {
 
     private void FileListKeyPressed(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_FileListKeyPressed
         if(evt.getKeyCode() == 127) {
-            List selectedValues = FileList.getSelectedValuesList();
-            if(!selectedValues.isEmpty()) {
-                for (int i = fList.size()-1; i >= 0; i--) {
-                    if(selectedValues.contains(fList.get(i).toString())) {
-                        fList.remove(i);
-                    }
-                }
-                updateList();
+            int[] selected = FileList.getSelectedIndices();
+            if(selected.length != 0) {
+                FileList.clearSelection();
+                jobs.removeAll(selected);
+                updateCellWidth();
                 updateButtons();
             }
         }
@@ -297,10 +380,26 @@ public class MainFrame extends javax.swing.JFrame {
         }        
     }//GEN-LAST:event_cbCamItemStateChanged
 
+    private void cbMethodItemStateChanged(java.awt.event.ItemEvent evt) {//GEN-FIRST:event_cbMethodItemStateChanged
+        if((methods != null) && (cbMethod.getSelectedIndex() >= 0)) {
+            prefs.put(PREF_METHOD, methods.get(cbMethod.getSelectedIndex()).getName());
+        }
+    }//GEN-LAST:event_cbMethodItemStateChanged
+
+    private void btnCancelActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnCancelActionPerformed
+        doCancel();
+    }//GEN-LAST:event_btnCancelActionPerformed
+
+    private void cbRecurseItemStateChanged(java.awt.event.ItemEvent evt) {//GEN-FIRST:event_cbRecurseItemStateChanged
+        prefs.putBoolean(PREF_RECURSE, cbRecurse.isSelected());
+    }//GEN-LAST:event_cbRecurseItemStateChanged
+
     protected void doClearList()
     {
-        fList.clear();
-        updateList();
+        cancelScans();
+        progBar.setString("");
+        jobs.clear();
+        updateCellWidth();
         updateButtons();
     }
     
@@ -312,15 +411,7 @@ public class MainFrame extends javax.swing.JFrame {
         
         if (result != JFileChooser.APPROVE_OPTION) return;
         
-        for (File f : fChooser.getSelectedFiles())
-        {
-            if (fList.contains(f)) continue;
-            if (!(isValidInputFile(f))) continue;
-            fList.add(f);
-        }
-        
-        updateList();
-        updateButtons();
+        addFiles(Arrays.asList(fChooser.getSelectedFiles()));
     }
     
     protected void doAddDirViaDlg()
@@ -333,38 +424,99 @@ public class MainFrame extends javax.swing.JFrame {
         
         File selDir = fChooser.getSelectedFile();
         
-        for (File f : selDir.listFiles())
-        {
-            if (fList.contains(f)) continue;
-            if (!(f.isFile())) continue;
-            if (!(isValidInputFile(f))) continue;
-            fList.add(f);
-        }
+        startScan(Collections.singletonList(selDir));
+    }
+    
+    /**
+     * Collects all valid input files from a list of files and directories
+     * in the background; the files are added to the list while scanning
+     * 
+     * @param roots the dropped or selected files and directories
+     */
+    protected void startScan(List<File> roots)
+    {
+        FileScanWorker w = new FileScanWorker(this, roots, cbRecurse.isSelected());
+        scanners.add(w);
+        w.execute();
+        
+        if (!(isConverting())) progBar.setString("Scanning for files...");
+    }
+    
+    /**
+     * Called by a file scanner on the event dispatch thread after it has finished
+     * 
+     * @param w the scanner
+     */
+    public void scanFinished(FileScanWorker w)
+    {
+        scanners.remove(w);
+        if (!(scanners.isEmpty())) return;
+        
+        // all scans are done, so the running conversion won't get any further files
+        if (isConverting()) remWorker.closeInput();
+        else progBar.setString("");
         
-        updateList();
         updateButtons();
     }
     
-    protected boolean isValidInputFile(File f)
+    /**
+     * Stops all running directory scans
+     */
+    protected void cancelScans()
+    {
+        for (FileScanWorker w : new ArrayList<FileScanWorker>(scanners)) w.cancel(true);
+        scanners.clear();
+        if (isConverting()) remWorker.closeInput();
+    }
+    
+    /**
+     * @return true if a conversion is running
+     */
+    protected boolean isConverting()
+    {
+        return ((remWorker != null) && (!(remWorker.isDone())));
+    }
+    
+    /**
+     * Appends all valid input files to the list; files that are
+     * already in the list are ignored
+     * 
+     * @param files the files to add
+     */
+    public void addFiles(Collection<File> files)
     {
-        String[] validExtensions = new String[] {
-            "dng",
-            "raw"
-        };
+        ArrayList<File> valid = new ArrayList<File>();
+        for (File f : files)
+        {
+            if (isValidInputFile(f)) valid.add(f);
+        }
         
-        String fName = f.toString().toLowerCase();
-        for (String ext : validExtensions)
+        int added = jobs.addAll(valid);
+        if (added == 0) return;
+        
+        // let a running conversion pick up the new files right away
+        if (isConverting())
+        {
+            for (int i = jobs.getSize() - added; i < jobs.getSize(); i++) remWorker.submit(jobs.getElementAt(i));
+        }
+        else if (!(scanners.isEmpty()))
         {
-            if (fName.endsWith(ext)) return true;
+            progBar.setString("Scanning for files... " + jobs.getSize() + " files in the list");
         }
         
-        return false;
+        updateCellWidth();
+        updateButtons();
+    }
+    
+    protected boolean isValidInputFile(File f)
+    {
+        return PinkDotRemover.isSupportedFile(f);
     }
     
     protected void doConversion()
     {
         // spit out a warning if we have RAW files in the list
-        if (isRAWinFileList())
+        if (jobs.hasRAW())
         {
             String s = "WARNING:" + System.lineSeparator();
             s += "You have at least one RAW file in the list." + System.lineSeparator();
@@ -372,6 +524,8 @@ public class MainFrame extends javax.swing.JFrame {
             s += "      !! RAW FILES WILL BE OVERWRITTEN IN PLACE !!" + System.lineSeparator();
             s +=  System.lineSeparator();
             s += "Make sure you have a backup of your files." + System.lineSeparator();
+            s += "The original dot pixels are kept in <file>.undo and can be" + System.lineSeparator();
+            s += "restored with the --undo command line option." + System.lineSeparator();
             s +=  System.lineSeparator();
             s += "Proceed?";
             int result = JOptionPane.showConfirmDialog(this, s, "Overwriting RAW files", JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE);
@@ -379,53 +533,72 @@ public class MainFrame extends javax.swing.JFrame {
         }
         
         // prepare the progress bar
-        progBar.setMaximum(fList.size());
+        progBar.setMaximum(PROGRESS_STEPS);
+        progBar.setValue(0);
+        progBar.setString("Starting conversion...");
         
         // determine the selected camera model
         String cam = (String) cbCam.getSelectedItem();
-        if (cam == null) cam = DEFAULT_CAM_TYPE;
+        if (cam == null) cam = PinkDotRemover.DEFAULT_CAM_TYPE;
+        
+        // determine the selected removal method
+        RemovalStrategy method = methods.get(Math.max(0, cbMethod.getSelectedIndex()));
+        
+        // determine the number of parallel conversions
+        int threads = (Integer) spThreads.getValue();
+        prefs.putInt(PREF_THREADS, threads);
         
         // prepare and start the conversion
-        remWorker = new RemoverWorker(this, db, cam, fList, radioInterpolate.isSelected());
+        ArrayList<ConversionJob> todo = jobs.prepareForConversion();
+        remWorker = new RemoverWorker(this, db, cam, todo, method, threads);
         remWorker.execute();
+        if (scanners.isEmpty()) remWorker.closeInput();
+        progressTimer.start();
+        updateButtons();
     }
     
-    protected boolean isRAWinFileList()
+    protected void doCancel()
     {
-        for (File f : fList)
-        {
-            if (f.toString().toLowerCase().endsWith("raw")) return true;
-        }
+        if ((remWorker == null) || (remWorker.isDone())) return;
         
-        return false;
+        remWorker.cancelConversion();
+        btnCancel.setEnabled(false);
+        progBar.setString("Cancelling after the current frame...");
     }
     
-    protected void updateList()
+    /**
+     * Sets the width of all list cells to the width of the longest entry
+     */
+    protected void updateCellWidth()
     {
-        FileList.removeAll();
-        DefaultListModel listModel = new DefaultListModel();
-        for (File f : fList) {
-            listModel.addElement(f.toString());
+        ConversionJob longest = jobs.getLongestJob();
+        if (longest == null)
+        {
+            FileList.setFixedCellWidth(-1);
+            return;
         }
-        FileList.setModel(listModel);
+        
+        // reserve space for the longest status label
+        String s = longest.getFile().toString() + "   [" + ConversionJob.Status.RUNNING.getLabel() + "]";
+        FileList.setFixedCellWidth(FileList.getFontMetrics(FileList.getFont()).stringWidth(s) + 10);
     }
     
     protected void updateButtons()
     {
         // set a basic state (everything disabled) as long as the conversion is running
-        boolean basicState = true;
-        if ((remWorker != null) && (!(remWorker.isDone()))) basicState = false;
+        boolean basicState = !(isConverting());
         btnConvert.setEnabled(basicState);
         btnAddDir.setEnabled(basicState);
         btnAddFile.setEnabled(basicState);
         btnClear.setEnabled(basicState);
-        radioBadPix.setEnabled(basicState);
-        radioInterpolate.setEnabled(basicState);
+        cbMethod.setEnabled(basicState);
         cbCam.setEnabled(basicState);
+        spThreads.setEnabled(basicState);
+        btnCancel.setEnabled((!basicState) && (!(remWorker.isConversionCancelled())));
         if (!basicState) return;
         
         // individual per-button decisions
-        if (fList.size() == 0)
+        if (jobs.getSize() == 0)
         {
             btnConvert.setEnabled(false);
             btnClear.setEnabled(false);
@@ -448,44 +621,70 @@ public class MainFrame extends javax.swing.JFrame {
         
     }
     
-    public void globalUpdateHook(ArrayList<File> newList, int filesProcessed)
+    /**
+     * Called by the remover worker on the event dispatch thread after the conversion
+     */
+    public void conversionFinished()
     {
-        fList = newList;
+        progressTimer.stop();
+        updateJobs();
+        
+        // drop all converted files in one go
+        FileList.clearSelection();
+        jobs.removeAll(ConversionJob.Status.DONE);
+        updateCellWidth();
+        
         updateButtons();
-        updateList();
+        progBar.setValue(0);
+        progBar.setString("");
+    }
+    
+    /**
+     * Repaints the rows of all jobs whose status has changed since the last call
+     */
+    protected void updateJobs()
+    {
+        ConversionJob job;
+        while ((job = remWorker.pollChangedJob()) != null) jobs.jobChanged(job);
+    }
+    
+    /**
+     * Samples the progress counters of the running conversion and updates
+     * the progress bar and the file list; called by the progress timer
+     */
+    protected void updateProgress()
+    {
+        if ((remWorker == null) || (remWorker.isDone())) return;
         
-        if (filesProcessed >= 0)
-        {
-            progBar.setValue(filesProcessed);
-            progBar.setString(filesProcessed + " of " + progBar.getMaximum() + " files processed");
-        }
-        else
+        updateJobs();
+        int processed = remWorker.getProcessedFiles();
+        
+        ConversionProgress p = remWorker.getConversionProgress();
+        progBar.setValue((int) (p.getFraction() * PROGRESS_STEPS));
+        
+        if (remWorker.isConversionCancelled())
         {
-            progBar.setValue(0);
-            progBar.setString("");
+            progBar.setString("Cancelling after the current frame...");
+            return;
         }
+        
+        String s = processed + " of " + remWorker.getFileCount() + " files, ";
+        s += p.getFramesDone() + " of " + p.getFramesTotal() + " frames, ";
+        s += String.format("%.1f fps, %.1f MB/s", p.getFramesPerSecond(), p.getBytesPerSecond() / (1024 * 1024));
+        long eta = p.getEstimatedSecondsLeft();
+        if (eta >= 0) s += String.format(", ETA %d:%02d:%02d", eta / 3600, (eta / 60) % 60, eta % 60);
+        progBar.setString(s);
     }
     
     public void doDatabaseInit()
     {
-        // Determine the JAR's path
-        String jarPath = null;
-        try
-        {
-            jarPath = (new File(PinkDotRemoverMain.class.getProtectionDomain().getCodeSource().getLocation().toURI())).toString();
-        }
-        catch (Exception e)
-        {
-            JOptionPane.showMessageDialog(this, "WTF!? URI error while trying to determine dot database path...", "Error", JOptionPane.ERROR_MESSAGE);
-        }
-        if (jarPath == null)
+        // the dir with the dot data
+        String dotDataDir = DotLocationDB.defaultDotDataDir();
+        if (dotDataDir == null)
         {
             JOptionPane.showMessageDialog(this, "Could not determine the path of the dot database!", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
-        if (jarPath.endsWith(".jar")) jarPath = new File(jarPath).getParent();
-        
-        // the dir with the dot data
-        String dotDataDir = Paths.get(jarPath, DEFAULT_DOT_DATA_DIR).toString();
         
         // switch the progress bar to indetermined mode
         progBar.setIndeterminate(true);
@@ -526,23 +725,25 @@ public class MainFrame extends javax.swing.JFrame {
         cbCam.setEnabled(true); 
         
         // select the default, if possible. else keep the first item which was set by setEnabled.
-        cbCam.setSelectedItem(prefs.get(PREF_CAM_TYPE, DEFAULT_CAM_TYPE));                 
+        cbCam.setSelectedItem(prefs.get(PREF_CAM_TYPE, PinkDotRemover.DEFAULT_CAM_TYPE));                 
     }
     
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JList FileList;
     private javax.swing.JButton btnAddDir;
     private javax.swing.JButton btnAddFile;
+    private javax.swing.JButton btnCancel;
     private javax.swing.JButton btnClear;
     private javax.swing.JButton btnConvert;
     private javax.swing.JButton btnQuit;
     private javax.swing.JComboBox cbCam;
+    private javax.swing.JComboBox cbMethod;
+    private javax.swing.JCheckBox cbRecurse;
     private javax.swing.Box.Filler filler1;
     private javax.swing.Box.Filler filler2;
     private javax.swing.JScrollPane jScrollPane2;
+    private javax.swing.JLabel lblThreads;
     private javax.swing.JProgressBar progBar;
-    private javax.swing.JRadioButton radioBadPix;
-    private javax.swing.ButtonGroup radioGrpMethod;
-    private javax.swing.JRadioButton radioInterpolate;
+    private javax.swing.JSpinner spThreads;
     // End of variables declaration//GEN-END:variables
 }
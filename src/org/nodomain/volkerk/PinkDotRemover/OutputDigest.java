@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The content digest of a converted file and its sidecar file.
+ *
+ * The sidecar is named "<file>.sha256" and has the format of sha256sum, so
+ * it can be checked with "sha256sum -c".
+ *
+ * The digest covers the whole file, but a conversion only writes a small
+ * part of it. Calculating the digest is therefore an extra read pass over
+ * the unmodified bytes and is off by default:
+ *
+ * - DNG files with row based access are digested while DngFile.writePatched()
+ *   copies them, so there is no extra read
+ * - RAW files are converted in place; RawFile.updateDigest() reads all rows
+ *   of each frame outside the dot band again, i.e. almost the whole file
+ * - DNG files written by SimpleTIFFlib are read again by ofFile()
+ */
+public class OutputDigest {
+
+    /**
+     * The digest algorithm
+     */
+    public static final String ALGORITHM = "SHA-256";
+
+    /**
+     * The suffix of the sidecar file
+     */
+    public static final String SUFFIX = ".sha256";
+
+    /**
+     * @return a new digest
+     */
+    public static MessageDigest create()
+    {
+        try
+        {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every JVM has to support SHA-256
+            throw new IllegalStateException(ALGORITHM + " is not supported: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param digest the digest bytes
+     *
+     * @return the digest as lower case hex string
+     */
+    public static String toHex(byte[] digest)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) sb.append(String.format("%02x", b & 0xff));
+
+        return sb.toString();
+    }
+
+    /**
+     * Calculates the digest by reading a file; only used for outputs that
+     * are written by SimpleTIFFlib, whose writes can't be observed
+     *
+     * @param f the file
+     *
+     * @return the digest as hex string
+     *
+     * @throws IOException in case of read errors
+     */
+    public static String ofFile(Path f) throws IOException
+    {
+        MessageDigest md = create();
+        byte[] buf = new byte[1 << 16];
+        InputStream in = Files.newInputStream(f);
+        try
+        {
+            int n;
+            while ((n = in.read(buf)) > 0) md.update(buf, 0, n);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * @param f a converted file
+     *
+     * @return the sidecar file for the converted file
+     */
+    public static Path getSidecar(Path f)
+    {
+        return f.resolveSibling(f.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Writes the sidecar file for a converted file; an existing sidecar is overwritten
+     *
+     * @param f the converted file
+     * @param hex the digest of the converted file as hex string
+     *
+     * @throws IOException in case of write errors
+     */
+    public static void writeSidecar(Path f, String hex) throws IOException
+    {
+        String line = hex + "  " + f.getFileName() + "\n";
+        Files.write(getSidecar(f), line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the digest from the sidecar file of a converted file
+     *
+     * @param f the converted file
+     *
+     * @return the digest as hex string or null if there's no valid sidecar
+     *
+     * @throws IOException in case of read errors
+     */
+    public static String readSidecar(Path f) throws IOException
+    {
+        Path sidecar = getSidecar(f);
+        if (!(Files.isRegularFile(sidecar))) return null;
+
+        String line = new String(Files.readAllBytes(sidecar), StandardCharsets.UTF_8).trim();
+        int sep = line.indexOf(' ');
+        if (sep != 64) return null;
+
+        return line.substring(0, sep);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import org.nodomain.volkerk.SimpleTIFFlib.Generic_CFA_PixBuf;
+
+/**
+ * A band of consecutive rows of a CFA image whose pixels are kept packed, one
+ * byte array per row and strip or tile.
+ *
+ * Coordinates are always full image coordinates; accessing pixels outside the
+ * band is an error. Modifications are tracked per row segment. How modified
+ * segments get back into a file depends on the storage of the image, see
+ * CfaBand for uncompressed and TileBand for compressed images.
+ *
+ * The pixels are accessed through a PackedRowCodec that is chosen once for
+ * the bit depth and layout of the file.
+ */
+public abstract class PackedBand implements Generic_CFA_PixBuf {
+
+    /**
+     * The dimensions of the whole image
+     */
+    protected final int width;
+    protected final int height;
+
+    /**
+     * The first row of the band and the row after the last row of the band
+     */
+    protected final int y0;
+    protected final int y1;
+
+    /**
+     * The number of bits per pixel
+     */
+    protected final int bitsPerSample;
+
+    /**
+     * The byte order for 16 bit samples; smaller bit depths are always packed MSB first
+     */
+    protected final boolean littleEndian;
+
+    /**
+     * True if the bit stream of smaller bit depths is stored in 16 bit little endian words (RAW files)
+     */
+    protected final boolean wordSwapped;
+
+    /**
+     * Reads and writes the packed pixels
+     */
+    protected final PackedRowCodec codec;
+
+    /**
+     * The number of pixels per row segment: the image width for strips, the tile width for tiles
+     */
+    protected final int segWidth;
+
+    /**
+     * The number of segments per row
+     */
+    protected final int segCount;
+
+    /**
+     * The packed pixel data per [(y - y0) * segCount + segment]
+     */
+    protected final byte[][] data;
+
+    /**
+     * The file offset of each segment
+     */
+    protected final long[] fileOffsets;
+
+    /**
+     * Set for each segment that has been modified
+     */
+    protected final boolean[] dirty;
+
+    /**
+     * Constructor for an empty band; the data is filled in by the subclass or the creator
+     *
+     * @param _width the width of the whole image
+     * @param _height the height of the whole image
+     * @param _y0 the first row of the band
+     * @param _y1 the row after the last row of the band
+     * @param _bitsPerSample the number of bits per pixel (1...16)
+     * @param _littleEndian the byte order for 16 bit samples
+     * @param _wordSwapped true if smaller bit depths are stored in 16 bit little endian words
+     * @param _segWidth the number of pixels per row segment
+     * @param _segCount the number of segments per row
+     */
+    protected PackedBand(int _width, int _height, int _y0, int _y1, int _bitsPerSample, boolean _littleEndian, boolean _wordSwapped,
+            int _segWidth, int _segCount)
+    {
+        if ((_y0 < 0) || (_y1 > _height) || (_y0 > _y1)) throw new IllegalArgumentException("Invalid band " + _y0 + "..." + _y1);
+        if ((_bitsPerSample < 1) || (_bitsPerSample > 16)) throw new IllegalArgumentException("Unsupported bit depth " + _bitsPerSample);
+
+        width = _width;
+        height = _height;
+        y0 = _y0;
+        y1 = _y1;
+        bitsPerSample = _bitsPerSample;
+        littleEndian = _littleEndian;
+        wordSwapped = _wordSwapped;
+        codec = PackedRowCodec.create(bitsPerSample, littleEndian, wordSwapped);
+        segWidth = _segWidth;
+        segCount = _segCount;
+
+        int n = (y1 - y0) * segCount;
+        data = new byte[n][];
+        fileOffsets = new long[n];
+        dirty = new boolean[n];
+    }
+
+    public long imgWidth()
+    {
+        return width;
+    }
+
+    public long imgHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return the first row of the band
+     */
+    public int getFirstRow()
+    {
+        return y0;
+    }
+
+    /**
+     * @return the row after the last row of the band
+     */
+    public int getEndRow()
+    {
+        return y1;
+    }
+
+    /**
+     * @return the number of bytes of pixel data held by this band
+     */
+    public long getByteCount()
+    {
+        long result = 0;
+        for (byte[] b : data)
+        {
+            if (b != null) result += b.length;
+        }
+
+        return result;
+    }
+
+    /**
+     * Determines the segment index for a pixel
+     *
+     * @param x the x-coordinate
+     * @param y the y-coordinate
+     *
+     * @return the index in data[]
+     */
+    protected int segIndex(int x, int y)
+    {
+        if ((x < 0) || (x >= width) || (y < y0) || (y >= y1))
+        {
+            throw new IllegalArgumentException("Pixel " + x + "," + y + " is outside of the band " + y0 + "..." + (y1 - 1));
+        }
+
+        return (y - y0) * segCount + x / segWidth;
+    }
+
+    public int CFA_getPixel(int x, int y)
+    {
+        return codec.get(data[segIndex(x, y)], x % segWidth);
+    }
+
+    public void CFA_setPixel(int x, int y, int val)
+    {
+        int idx = segIndex(x, y);
+        dirty[idx] = true;
+
+        int mask = (1 << bitsPerSample) - 1;
+        codec.set(data[idx], x % segWidth, Math.max(0, Math.min(mask, val)));
+    }
+
+    /**
+     * @param y the row
+     * @param seg the segment in the row
+     *
+     * @return the packed data of the row segment; not a copy
+     */
+    byte[] getSegment(int y, int seg)
+    {
+        return data[(y - y0) * segCount + seg];
+    }
+
+    /**
+     * Reads a pixel from the packed data of a row segment
+     *
+     * @param b the packed row segment
+     * @param xs the pixel's index in the segment
+     *
+     * @return the pixel value
+     */
+    protected int unpack(byte[] b, int xs)
+    {
+        return codec.get(b, xs);
+    }
+
+    /**
+     * Stores a pixel in the packed data of a row segment
+     *
+     * @param b the packed row segment
+     * @param xs the pixel's index in the segment
+     * @param val the pixel value; must fit into bitsPerSample bits
+     */
+    protected void pack(byte[] b, int xs, int val)
+    {
+        codec.set(b, xs, val);
+    }
+
+
+    /**
+     * Creates a deep copy of the band; the copy has no modified segments
+     *
+     * @return the copy
+     */
+    public abstract PackedBand getCopy();
+
+    /**
+     * Passes all modified pixels with their positions to a patched copy of a DNG file
+     *
+     * @param src the DNG file the band has been read from
+     * @param dst the copy
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException in case of write errors
+     */
+    abstract long writePatches(DngFile src, DngFile.PatchTarget dst) throws IOException;
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+/**
+ * Reads and writes single pixels of a packed row of CFA data.
+ *
+ * Samples with less than 16 bits are packed as MSB first bit stream. DNG files
+ * store this stream byte by byte; Magic Lantern's RAW files store it in 16 bit
+ * little endian words, i.e. with the bytes of each pair swapped. 16 bit samples
+ * are stored in the byte order of the file.
+ *
+ * The codec is chosen once per file with create(). The common bit depths
+ * 8, 10, 12, 14 and 16 have dedicated implementations that address the bytes
+ * of a pixel directly; all other depths use a generic bit window.
+ */
+public abstract class PackedRowCodec {
+
+    /**
+     * The number of bits per pixel
+     */
+    protected final int bitsPerSample;
+
+    /**
+     * 1 if the bytes of each 16 bit word are swapped, 0 otherwise; XOR-ed to byte indices
+     */
+    protected final int swap;
+
+    /**
+     * Constructor
+     *
+     * @param _bitsPerSample the number of bits per pixel
+     * @param _swap 1 if the bytes of each 16 bit word are swapped, 0 otherwise
+     */
+    protected PackedRowCodec(int _bitsPerSample, int _swap)
+    {
+        bitsPerSample = _bitsPerSample;
+        swap = _swap;
+    }
+
+    /**
+     * Creates the codec for a data layout
+     *
+     * @param bitsPerSample the number of bits per pixel (1...16)
+     * @param littleEndian the byte order of 16 bit samples
+     * @param wordSwapped true if bit streams of smaller samples are stored in 16 bit little endian words (RAW files)
+     *
+     * @return the codec
+     */
+    public static PackedRowCodec create(int bitsPerSample, boolean littleEndian, boolean wordSwapped)
+    {
+        int swap = wordSwapped ? 1 : 0;
+        switch (bitsPerSample)
+        {
+            case 8: return new Bits8(swap);
+            case 10: return new Bits10(swap);
+            case 12: return new Bits12(swap);
+            case 14: return new Bits14(swap);
+            case 16: return new Bits16(littleEndian);
+            default:
+                if ((bitsPerSample < 1) || (bitsPerSample > 16)) throw new IllegalArgumentException("Unsupported bit depth " + bitsPerSample);
+                return new Generic(bitsPerSample, swap);
+        }
+    }
+
+    /**
+     * @return the number of bits per pixel
+     */
+    public int getBitsPerSample()
+    {
+        return bitsPerSample;
+    }
+
+    /**
+     * @param pixels the number of pixels of a row
+     *
+     * @return the number of bytes of a row
+     */
+    public int getRowBytes(int pixels)
+    {
+        return (int) (((long) pixels * bitsPerSample + 7) / 8);
+    }
+
+    /**
+     * Reads a pixel
+     *
+     * @param b the packed row
+     * @param xs the pixel's index in the row
+     *
+     * @return the pixel value
+     */
+    public abstract int get(byte[] b, int xs);
+
+    /**
+     * Stores a pixel
+     *
+     * @param b the packed row
+     * @param xs the pixel's index in the row
+     * @param val the pixel value; must fit into bitsPerSample bits
+     */
+    public abstract void set(byte[] b, int xs, int val);
+
+    /**
+     * Any bit depth; a sample spans at most three bytes
+     */
+    static class Generic extends PackedRowCodec
+    {
+        Generic(int _bitsPerSample, int _swap)
+        {
+            super(_bitsPerSample, _swap);
+        }
+
+        public int get(byte[] b, int xs)
+        {
+            long bitPos = (long) xs * bitsPerSample;
+            int byteIdx = (int) (bitPos >> 3);
+            int v = 0;
+            for (int i=0; i < 3; i++)
+            {
+                v <<= 8;
+                if (byteIdx + i < b.length) v |= b[(byteIdx + i) ^ swap] & 0xff;
+            }
+            int shift = 24 - (int) (bitPos & 7) - bitsPerSample;
+
+            return (v >> shift) & ((1 << bitsPerSample) - 1);
+        }
+
+        public void set(byte[] b, int xs, int val)
+        {
+            int mask = (1 << bitsPerSample) - 1;
+            long bitPos = (long) xs * bitsPerSample;
+            int byteIdx = (int) (bitPos >> 3);
+            int shift = 24 - (int) (bitPos & 7) - bitsPerSample;
+            int v = 0;
+            for (int i=0; i < 3; i++)
+            {
+                v <<= 8;
+                if (byteIdx + i < b.length) v |= b[(byteIdx + i) ^ swap] & 0xff;
+            }
+            v = (v & ~(mask << shift)) | (val << shift);
+            for (int i=0; i < 3; i++)
+            {
+                if (byteIdx + i < b.length) b[(byteIdx + i) ^ swap] = (byte) (v >> (16 - 8*i));
+            }
+        }
+    }
+
+    /**
+     * One byte per pixel
+     */
+    static class Bits8 extends PackedRowCodec
+    {
+        Bits8(int _swap)
+        {
+            super(8, _swap);
+        }
+
+        public int get(byte[] b, int xs)
+        {
+            return b[xs ^ swap] & 0xff;
+        }
+
+        public void set(byte[] b, int xs, int val)
+        {
+            b[xs ^ swap] = (byte) val;
+        }
+    }
+
+    /**
+     * Four pixels in five bytes
+     */
+    static class Bits10 extends PackedRowCodec
+    {
+        Bits10(int _swap)
+        {
+            super(10, _swap);
+        }
+
+        public int get(byte[] b, int xs)
+        {
+            int p = (xs >> 2) * 5 + ((xs & 3) * 10 >> 3);
+            int v = ((b[p ^ swap] & 0xff) << 8) | (b[(p + 1) ^ swap] & 0xff);
+
+            // the pixel starts at bit 0, 2, 4 or 6 of the first byte
+            return (v >> (6 - 2 * (xs & 3))) & 0x3ff;
+        }
+
+        public void set(byte[] b, int xs, int val)
+        {
+            int p = (xs >> 2) * 5 + ((xs & 3) * 10 >> 3);
+            int shift = 6 - 2 * (xs & 3);
+            int v = ((b[p ^ swap] & 0xff) << 8) | (b[(p + 1) ^ swap] & 0xff);
+            v = (v & ~(0x3ff << shift)) | (val << shift);
+            b[p ^ swap] = (byte) (v >> 8);
+            b[(p + 1) ^ swap] = (byte) v;
+        }
+    }
+
+    /**
+     * Two pixels in three bytes
+     */
+    static class Bits12 extends PackedRowCodec
+    {
+        Bits12(int _swap)
+        {
+            super(12, _swap);
+        }
+
+        public int get(byte[] b, int xs)
+        {
+            int p = (xs >> 1) * 3;
+            if ((xs & 1) == 0) return ((b[p ^ swap] & 0xff) << 4) | ((b[(p + 1) ^ swap] & 0xff) >> 4);
+
+            return ((b[(p + 1) ^ swap] & 0x0f) << 8) | (b[(p + 2) ^ swap] & 0xff);
+        }
+
+        public void set(byte[] b, int xs, int val)
+        {
+            int p = (xs >> 1) * 3;
+            if ((xs & 1) == 0)
+            {
+                b[p ^ swap] = (byte) (val >> 4);
+                b[(p + 1) ^ swap] = (byte) ((b[(p + 1) ^ swap] & 0x0f) | ((val & 0x0f) << 4));
+                return;
+            }
+
+            b[(p + 1) ^ swap] = (byte) ((b[(p + 1) ^ swap] & 0xf0) | (val >> 8));
+            b[(p + 2) ^ swap] = (byte) val;
+        }
+    }
+
+    /**
+     * Four pixels in seven bytes
+     */
+    static class Bits14 extends PackedRowCodec
+    {
+        Bits14(int _swap)
+        {
+            super(14, _swap);
+        }
+
+        public int get(byte[] b, int xs)
+        {
+            int p = (xs >> 2) * 7 + ((xs & 3) * 14 >> 3);
+            int v = ((b[p ^ swap] & 0xff) << 16) | ((b[(p + 1) ^ swap] & 0xff) << 8);
+
+            // the pixel starts at bit 0, 6, 4 or 2 of the first byte and spans two or three bytes
+            int shift = 10 - ((xs & 3) * 14 & 7);
+            if (shift < 8) v |= b[(p + 2) ^ swap] & 0xff;
+
+            return (v >> shift) & 0x3fff;
+        }
+
+        public void set(byte[] b, int xs, int val)
+        {
+            int p = (xs >> 2) * 7 + ((xs & 3) * 14 >> 3);
+            int shift = 10 - ((xs & 3) * 14 & 7);
+            int v = ((b[p ^ swap] & 0xff) << 16) | ((b[(p + 1) ^ swap] & 0xff) << 8);
+            if (shift < 8) v |= b[(p + 2) ^ swap] & 0xff;
+            v = (v & ~(0x3fff << shift)) | (val << shift);
+            b[p ^ swap] = (byte) (v >> 16);
+            b[(p + 1) ^ swap] = (byte) (v >> 8);
+            if (shift < 8) b[(p + 2) ^ swap] = (byte) v;
+        }
+    }
+
+    /**
+     * Two bytes per pixel in the file's byte order
+     */
+    static class Bits16 extends PackedRowCodec
+    {
+        /**
+         * The index of the low byte within a pixel
+         */
+        protected final int lo;
+
+        Bits16(boolean littleEndian)
+        {
+            super(16, 0);
+            lo = littleEndian ? 0 : 1;
+        }
+
+        public int get(byte[] b, int xs)
+        {
+            return ((b[2*xs + (lo ^ 1)] & 0xff) << 8) | (b[2*xs + lo] & 0xff);
+        }
+
+        public void set(byte[] b, int xs, int val)
+        {
+            b[2*xs + lo] = (byte) val;
+            b[2*xs + (lo ^ 1)] = (byte) (val >> 8);
+        }
+    }
+}
@@ -13,8 +13,12 @@
 package org.nodomain.volkerk.PinkDotRemover;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
 import org.nodomain.volkerk.LoggingLib.LoggingClass;
 import org.nodomain.volkerk.SimpleTIFFlib.Generic_CFA_PixBuf;
 import org.nodomain.volkerk.SimpleTIFFlib.ImageFileDirectory;
@@ -53,271 +57,1371 @@ public class PinkDotRemover extends LoggingClass {
     protected TIFFhandler dstDng;
     
     /**
-     * A handler for a RAW file with image sequences
+     * Row based access to uncompressed DNG files; if set, the TIFF handlers are not used
+     */
+    protected DngFile srcBandDng;
+    
+    /**
+     * The corrected rows of the DNG image if srcBandDng is used
+     */
+    protected PackedBand dstBand;
+    
+    /**
+     * A handler for a RAW file with image sequences, if srcBandRaw can't be used
      */
     protected RawImageSequenceHandler srcRaw;
     
-    protected static final String DEFAULT_CAM_TYPE = "650D";
+    /**
+     * Row based access to a RAW file
+     */
+    protected RawFile srcBandRaw;
+    
+    public static final String DEFAULT_CAM_TYPE = "650D";
+    
+    /**
+     * The file name reported to ConversionEvents for images in memory
+     */
+    protected static final String MEMORY_SOURCE = "(memory)";
+    
+    /**
+     * Set by cancel() to stop the conversion after the current frame
+     */
+    protected volatile boolean cancelRequested = false;
+    
+    /**
+     * Set if the last call of doRemoval() stopped because of cancel()
+     */
+    protected volatile boolean cancelled = false;
+    
+    /**
+     * Receives the frame progress; may be null
+     */
+    protected ConversionProgress progress = null;
+    
+    /**
+     * If true, the file is only analyzed and never written
+     */
+    protected boolean readOnly;
+    
+    /**
+     * The maximum number of frames of a RAW file that are read for analyze()
+     */
+    protected static final int MAX_SAMPLE_FRAMES = 3;
+    
+    /**
+     * The number of frames that the last doRemoval() call expected to convert
+     */
+    protected long framesExpected = 0;
+    
+    /**
+     * The number of frames that the last doRemoval() call has written back to disk
+     */
+    protected long framesReported = 0;
+    
+    /**
+     * The number of bytes covered by the frames that the last doRemoval() call has written back to disk
+     */
+    protected long bytesReported = 0;
+    
+    /**
+     * The number of dots per frame of the last doRemoval() call
+     */
+    protected int dotsPerFrame = 0;
+    
+    /**
+     * The number of dots per frame of the last doRemoval() call that the strategy could fix
+     */
+    protected int fixedDotsPerFrame = 0;
+    
+    /**
+     * The frames of a RAW file to convert; null for all frames
+     */
+    protected FrameRange frameRange = null;
+    
+    /**
+     * The precompiled dot plan for files of presetWidth x presetHeight pixels; null to look up the dots for each file
+     */
+    protected DotPlan presetPlan = null;
+    protected int presetWidth = 0;
+    protected int presetHeight = 0;
+    
+    /**
+     * If true, the digest of each written file is calculated while writing and stored in a sidecar file
+     */
+    protected boolean digestEnabled = false;
+    
+    /**
+     * The digest of the file written by the last doRemoval() call as hex string; null if none has been calculated
+     */
+    protected String outputDigest = null;
+    
+    /**
+     * If true, the original dot values of RAW files are recorded in an undo sidecar, see UndoLog
+     */
+    protected boolean undoEnabled = true;
+    
+    /**
+     * Limits the concurrent disk accesses per device
+     */
+    protected IoScheduler ioScheduler = IoScheduler.NONE;
+    
+    /**
+     * The file name extensions (lower case) of all supported input files
+     */
+    protected static final String[] VALID_EXTENSIONS = new String[] {
+        "dng",
+        "raw"
+    };
+    
+    /**
+     * Constructor. Checks for a valid file name and tries to open the file
+     * 
+     * @param fName the name / path of the DNG or RAW file
+     * @param db is the database with dot locations for all cams and resolutions
+     * @param camType is the name of the camera type
+     */
+    public PinkDotRemover(String fName, DotLocationDB _db, String _camType)
+    {
+        this(fName, _db, _camType, false);
+    }
+    
+    /**
+     * Constructor. Checks for a valid file name and tries to open the file
+     * 
+     * @param fName the name / path of the DNG or RAW file
+     * @param db is the database with dot locations for all cams and resolutions
+     * @param camType is the name of the camera type
+     * @param _readOnly if true, the file can only be analyzed but not converted
+     */
+    public PinkDotRemover(String fName, DotLocationDB _db, String _camType, boolean _readOnly)
+    {
+        readOnly = _readOnly;
+        
+        preLog(LVL_DEBUG, "Trying to instanciate File for ", fName);
+        File src = new File(fName);
+        
+        if (!(src.exists()))
+        {
+            resultLog(LOG_FAIL + ": got null pointer");
+            throw new IllegalArgumentException("File " + fName + " does not exist!");
+        }
+        resultLog(LOG_OK);
+        
+        srcFileName = fName;
+        
+        db = _db;
+        
+        camType = DEFAULT_CAM_TYPE;
+        if ((_camType != null) && (_camType.length() != 0)) camType = _camType;
+
+        // instanciate the right file handler, depending on the file name;
+        // the removers of a batch run on parallel worker threads, so their log
+        // lines are flat: nested levels of different files would interleave
+        // on the shared log
+        Object openEvent = ConversionEvents.get().beginOpen();
+        if (srcFileName.toLowerCase().endsWith("dng"))
+        {
+            dbg("Instanciating TIFF handlers for ", fName);
+            initFromDNG();
+        }
+        else if (srcFileName.toLowerCase().endsWith("raw"))
+        {
+            dbg("Instanciating RAW handler for ", fName);
+            initFromRAW();
+        }
+        else
+        {
+            resultLog(LOG_FAIL + ": not a valid RAW or DNG file");
+            throw new IllegalArgumentException("File " + fName + " seems not to be a valid RAW or DNG file!");
+        }
+        if (openEvent != null) endOpenEvent(openEvent, src.length());
+        
+    }
+    
+    /**
+     * Constructor for converting images in memory with removeFrameDots() and
+     * removeDngDots(). No file is opened, so doRemoval() and analyze() can't
+     * be used. The in-memory functions don't modify the remover and may be
+     * called concurrently for different images.
+     * 
+     * @param _db is the database with dot locations for all cams and resolutions
+     * @param _camType is the name of the camera type
+     */
+    public PinkDotRemover(DotLocationDB _db, String _camType)
+    {
+        readOnly = true;
+        srcFileName = null;
+        
+        db = _db;
+        
+        camType = DEFAULT_CAM_TYPE;
+        if ((_camType != null) && (_camType.length() != 0)) camType = _camType;
+    }
+    
+    /**
+     * Commits the event for opening the source file
+     * 
+     * @param openEvent the handle returned by beginOpen()
+     * @param fileSize the size of the source file
+     */
+    protected void endOpenEvent(Object openEvent, long fileSize)
+    {
+        ConversionEvents events = ConversionEvents.get();
+        if (isRaw())
+        {
+            events.endOpen(openEvent, srcFileName, (srcBandRaw != null) ? "RAW (row based)" : "RAW",
+                    getRawWidth(), getRawHeight(), getRawFrameCount(), fileSize);
+        }
+        else if (srcBandDng != null)
+        {
+            events.endOpen(openEvent, srcFileName, srcBandDng.isCompressed() ? "DNG (lossless JPEG tiles)" : "DNG (row based)",
+                    srcBandDng.getWidth(), srcBandDng.getHeight(), 1, fileSize);
+        }
+        else
+        {
+            events.endOpen(openEvent, srcFileName, "DNG (TIFF handler)", 0, 0, 1, fileSize);
+        }
+    }
+    
+    /**
+     * Checks whether a file has the name extension of a supported input file.
+     * The file itself is not accessed.
+     * 
+     * @param f the file to check
+     * 
+     * @return true if the file name ends with "dng" or "raw" (case insensitive)
+     */
+    public static boolean isSupportedFile(File f)
+    {
+        String fName = f.getName().toLowerCase();
+        for (String ext : VALID_EXTENSIONS)
+        {
+            if (fName.endsWith(ext)) return true;
+        }
+        
+        return false;
+    }
+    
+    protected void initFromDNG()
+    {
+        srcRaw = null;
+        srcBandRaw = null;
+        srcDng = null;
+        dstDng = null;
+        dstBand = null;
+        
+        // uncompressed DNGs are accessed row by row and lossless JPEG
+        // compressed DNGs tile by tile, so that only the rows or tiles
+        // with dots have to be read later on
+        dbg("Trying row based access to ", srcFileName);
+        try
+        {
+            srcBandDng = DngFile.open(srcFileName);
+        }
+        catch (IOException e)
+        {
+            srcBandDng = null;
+        }
+        if (srcBandDng != null)
+        {
+            srcBandDng.dumpInfo();
+            return;
+        }
+        dbg("Row based access to ", srcFileName, " not possible, using TIFF handlers");
+        
+        try
+        {
+            
+            dbg("Instanciating source TIFF handler for ", srcFileName);
+            srcDng = new TIFFhandler(srcFileName);
+            
+            // a dry run doesn't need a second copy of the image
+            dstDng = null;
+            if (!readOnly)
+            {
+                dbg("Instanciating destination TIFF handler for ", srcFileName);
+                dstDng = new TIFFhandler(srcFileName);
+            }
+        }
+        catch (Exception e)
+        {
+            failed(e.getMessage());
+            throw new IllegalArgumentException("Baaaaad file: " + e.getMessage());
+        }
+        
+    }
+    
+    protected void initFromRAW()
+    {
+        srcDng = null;
+        dstDng = null;
+        srcBandDng = null;
+        dstBand = null;
+        
+        // RAW files are accessed row by row, so that only the rows with
+        // dots have to be read and written later on
+        dbg("Trying row based access to ", srcFileName);
+        try
+        {
+            srcBandRaw = RawFile.open(srcFileName);
+        }
+        catch (IOException e)
+        {
+            srcBandRaw = null;
+        }
+        if (srcBandRaw != null)
+        {
+            srcBandRaw.dumpInfo();
+            srcRaw = null;
+            return;
+        }
+        dbg("Row based access to ", srcFileName, " not possible, using the RAW file handler");
+        
+        dbg("Instanciating RAW file handler for ", srcFileName);
+        srcRaw = new RawImageSequenceHandler(srcFileName);
+        srcRaw.dumpInfo();
+    }
+    
+    /**
+     * @return true if the source file is a RAW file
+     */
+    protected boolean isRaw()
+    {
+        return ((srcBandRaw != null) || (srcRaw != null));
+    }
+    
+    /**
+     * @return the frame width of the RAW file
+     */
+    protected int getRawWidth()
+    {
+        return (srcBandRaw != null) ? srcBandRaw.getWidth() : srcRaw.getWidth();
+    }
+    
+    /**
+     * @return the frame height of the RAW file
+     */
+    protected int getRawHeight()
+    {
+        return (srcBandRaw != null) ? srcBandRaw.getHeight() : srcRaw.getHeight();
+    }
+    
+    /**
+     * @return the number of frames of the RAW file
+     */
+    protected int getRawFrameCount()
+    {
+        return (srcBandRaw != null) ? srcBandRaw.getFrameCount() : srcRaw.getFrameCount();
+    }
+    
+    /**
+     * Reads a frame of the RAW file; with row based access, only the rows
+     * with dots and their neighbors are read
+     * 
+     * @param n the frame number
+     * @param plan the dot locations
+     * @param reuse the result for the previous frame or null; with row based access, its
+     * rows are refilled instead of allocating new ones
+     * 
+     * @return the frame or the band of the frame with the dots
+     * 
+     * @throws IOException in case of read errors
+     */
+    protected Generic_CFA_PixBuf readRawFrame(int n, DotPlan plan, Generic_CFA_PixBuf reuse) throws IOException
+    {
+        if (srcBandRaw != null) return srcBandRaw.readDotBand(n, plan, (reuse instanceof CfaBand) ? (CfaBand) reuse : null);
+        
+        RawFileFrame fr = srcRaw.getFrame(n);
+        fr.dumpInfo();
+        return fr;
+    }
+    
+    /**
+     * Writes the modified pixels of a frame back to the RAW file
+     * 
+     * @param fr the frame as returned by readRawFrame()
+     * @param n the frame number
+     * 
+     * @throws IOException in case of write errors
+     */
+    protected void writeRawFrame(Generic_CFA_PixBuf fr, int n) throws IOException
+    {
+        if (srcBandRaw != null) srcBandRaw.writeBand((CfaBand) fr);
+        else srcRaw.writeFrameToFile((RawFileFrame) fr, n);
+    }
+    
+    /**
+     * Requests to stop a running (or the next) doRemoval() call. RAW files are
+     * processed frame by frame and stop after the current frame; frames that
+     * have already been written back remain converted.
+     * 
+     * May be called from any thread.
+     */
+    public void cancel()
+    {
+        cancelRequested = true;
+    }
+    
+    /**
+     * @return true if the last doRemoval() call stopped because of cancel()
+     */
+    public boolean wasCancelled()
+    {
+        return cancelled;
+    }
+    
+    /**
+     * Sets the receiver of the frame progress for subsequent doRemoval() calls
+     * 
+     * @param _progress the progress counters to update; may be null
+     */
+    public void setProgress(ConversionProgress _progress)
+    {
+        progress = _progress;
+    }
+    
+    /**
+     * @return the number of frames that the last doRemoval() call expected to convert
+     */
+    public long getFramesExpected()
+    {
+        return framesExpected;
+    }
+    
+    /**
+     * @return the number of frames that the last doRemoval() call has written back to disk
+     */
+    public long getFramesReported()
+    {
+        return framesReported;
+    }
+    
+    /**
+     * @return the number of file bytes covered by the frames that the last doRemoval() call has written back to disk
+     */
+    public long getBytesReported()
+    {
+        return bytesReported;
+    }
+    
+    /**
+     * Restricts subsequent doRemoval() calls to a range of frames of a RAW
+     * file. Several processes may convert disjoint ranges of the same file
+     * at the same time; each one writes a ShardMarker when its range is done.
+     * 
+     * @param _frameRange the frames to convert or null for all frames
+     */
+    public void setFrameRange(FrameRange _frameRange)
+    {
+        frameRange = _frameRange;
+    }
+    
+    /**
+     * Sets a precompiled dot plan, e.g. from BatchPlanner, so that doRemoval()
+     * doesn't calculate the dot locations again. The plan is only used if the
+     * file has the given resolution.
+     * 
+     * @param w the image width the plan is valid for
+     * @param h the image height the plan is valid for
+     * @param plan the dot plan or null to look up the dots
+     */
+    public void setDotPlan(int w, int h, DotPlan plan)
+    {
+        presetWidth = w;
+        presetHeight = h;
+        presetPlan = plan;
+    }
+    
+    /**
+     * Enables the calculation of the output digest for subsequent doRemoval() calls (disabled
+     * by default). The digest is stored in a sidecar file; for RAW files and DNG files without
+     * row based access, it requires reading the unmodified parts of the file again, see
+     * OutputDigest. RAW files are only digested if all frames are converted.
+     * 
+     * @param enabled true to calculate the digest
+     */
+    public void setOutputDigest(boolean enabled)
+    {
+        digestEnabled = enabled;
+    }
+    
+    /**
+     * Enables the undo sidecar for subsequent doRemoval() calls (enabled by default). The
+     * original values of the dot pixels of RAW files are recorded before the frames are
+     * overwritten, so that UndoLog.restore() can undo the conversion. Only RAW files with
+     * row based access are recorded.
+     * 
+     * @param enabled true to record the original values
+     */
+    public void setUndoLog(boolean enabled)
+    {
+        undoEnabled = enabled;
+    }
+    
+    /**
+     * Sets the scheduler that limits the concurrent frame reads and writes per storage device;
+     * usually shared by all removers of a batch
+     * 
+     * @param _ioScheduler the scheduler or IoScheduler.NONE for no limits
+     */
+    public void setIoScheduler(IoScheduler _ioScheduler)
+    {
+        ioScheduler = _ioScheduler;
+    }
+    
+    /**
+     * @return the digest of the file written by the last doRemoval() call as hex string or null if none has been calculated
+     */
+    public String getOutputDigest()
+    {
+        return outputDigest;
+    }
+    
+    /**
+     * @return the number of dots per frame of the last doRemoval() call
+     */
+    public int getDotsPerFrame()
+    {
+        return dotsPerFrame;
+    }
+    
+    /**
+     * @return the number of pixels that the last doRemoval() call has written in all frames
+     */
+    public long getPixelsPatched()
+    {
+        return framesReported * fixedDotsPerFrame;
+    }
+    
+    /**
+     * Reports a frame that has been written back to disk
+     * 
+     * @param bytes the part of the file size that is covered by the frame
+     */
+    protected void reportFrameDone(long bytes)
+    {
+        framesReported++;
+        bytesReported += bytes;
+        if (progress != null) progress.frameDone(bytes);
+    }
+    
+    /**
+     * Removes the pink dots from the target file
+     * 
+     * @param doInterpolation if true, the interpolation algorithm is used; otherwise, the pixel is simply marked as "bad pixel"
+     * @return true if the dots could be removed, false in case of errors or if the conversion has been cancelled
+     */
+    public boolean doRemoval(boolean doInterpolation)
+    {
+        return doRemoval(doInterpolation ? RemovalStrategies.INTERPOLATE : RemovalStrategies.MARK);
+    }
+    
+    /**
+     * Removes the pink dots from the target file
+     * 
+     * @param strategy calculates the new values of the dot pixels, see RemovalStrategies
+     * @return true if the dots could be removed, false in case of errors or if the conversion has been cancelled
+     */
+    public boolean doRemoval(RemovalStrategy strategy)
+    {
+        int w;
+        int h;
+
+        if (srcFileName == null)
+        {
+            failed("No file has been opened; images in memory are converted with removeFrameDots() or removeDngDots()");
+            return false;
+        }
+        if (readOnly)
+        {
+            failed("File ", srcFileName, " has been opened for analysis only");
+            return false;
+        }
+        
+        cancelled = false;
+        framesExpected = 0;
+        framesReported = 0;
+        dotsPerFrame = 0;
+        fixedDotsPerFrame = 0;
+        bytesReported = 0;
+        outputDigest = null;
+        
+        // prepare access to the image data
+        ImageFileDirectory ifdSrc = null;
+        ImageFileDirectory ifdDst = null;
+        
+        if (isRaw())
+        {
+            // okay, we're reading from a RAW file
+            
+            w = getRawWidth();
+            h = getRawHeight();
+            dbg("CFA image dimensions of ", srcFileName, ": ", w, "x", h);
+        }
+        else if (srcBandDng != null)
+        {
+            // we're reading from an uncompressed DNG file row by row or from a compressed one tile by tile
+            w = srcBandDng.getWidth();
+            h = srcBandDng.getHeight();
+        }
+        else
+        {
+            // we're reading from a DNG file
+            
+            // we assume that the TIFF file contains exactly one RAW image...
+            dbg("Retrieving CFA IFDs and image dimensions from ", srcFileName);
+
+            ifdSrc = srcDng.getFirstIFDwithCFA();
+            if (ifdSrc == null) dbg("Got null for srcDng");
+
+            ifdDst = dstDng.getFirstIFDwithCFA();
+            if (ifdDst == null) dbg("Got null for dstDng");
+
+            w = (int) ifdSrc.imgWidth();
+            h = (int) ifdSrc.imgHeight();
+            
+            ifdSrc.dumpInfo();
+        }
+        
+        // Let's see if we have the dot pattern for this type of image
+        DotPlan plan;
+        if ((presetPlan != null) && (presetWidth == w) && (presetHeight == h)) plan = presetPlan.withNeighborhood(strategy.getNeighborhood());
+        else
+        {
+            int[][] dotList = db.getAllDots(camType, w, h);
+            if (dotList == null)
+            {
+                failed("No dot pattern for image size " + w + "x" + h + " and cam type ", camType, " available!");
+                return false;
+            }
+            plan = new DotPlan(dotList, strategy.getNeighborhood());
+        }
+        dbg("Retrieved dot list for image!");
+        dotsPerFrame = plan.getDots().length;
+        
+        // dots too close to the image borders remain unmodified
+        for (int[] dot : plan.getDots())
+        {
+            if (strategy.canFix(dot[0], dot[1], w, h)) fixedDotsPerFrame++;
+        }
+        
+        // the file size is distributed evenly over all frames for the progress report
+        long fileSize = new File(srcFileName).length();
+        int firstFrame = 0;
+        int lastFrame = 0;
+        if (isRaw())
+        {
+            firstFrame = (frameRange != null) ? frameRange.getFirst(getRawFrameCount()) : 0;
+            lastFrame = (frameRange != null) ? frameRange.getLast(getRawFrameCount()) : getRawFrameCount() - 1;
+        }
+        framesExpected = isRaw() ? Math.max(0, lastFrame - firstFrame + 1) : 1;
+        if (progress != null) progress.addExpectedFrames(framesExpected);
+        
+        if (isRaw())
+        {
+            try
+            {
+                if (!(removeRawDots(strategy, plan, firstFrame, lastFrame, fileSize))) return false;
+            }
+            finally
+            {
+                if (srcBandRaw != null) srcBandRaw.close();
+            }
+        }
+        else
+        {
+            if (cancelRequested)
+            {
+                cancelled = true;
+                return false;
+            }
+            
+            // with row based access, only the rows with dots are read and modified
+            Generic_CFA_PixBuf srcBuf = ifdSrc;
+            Generic_CFA_PixBuf dstBuf = ifdDst;
+            if (srcBandDng != null)
+            {
+                PackedBand srcBand = readDotBand(plan, h);
+                if (srcBand == null) return false;
+                dstBand = srcBand.getCopy();
+                srcBuf = srcBand;
+                dstBuf = dstBand;
+            }
+            
+            dbg("Starting dot removal in ", srcFileName, " with strategy ", strategy.getName());
+            Object ev = ConversionEvents.get().beginKernel();
+            fixPixels(strategy, srcBuf, dstBuf, plan);
+            ConversionEvents.get().endKernel(ev, srcFileName, 0, w, h, dotsPerFrame, strategy.getName(),
+                    RowBandKernel.isWorthwhile(dstBuf, dotsPerFrame, strategy));
+            
+            // write the frame back to disk
+            dbg("Writing the image of ", srcFileName, " back to disk");
+            writeResultsToTargetDNG();
+            
+            reportFrameDone(fileSize);
+        }
+        
+        dbg("Conversion in memory completed!");
+        
+        return true;
+    }
+    
+    
+    /**
+     * Removes the dots in a range of frames of a RAW file; the frames are
+     * modified in place
+     * 
+     * @param strategy calculates the new values of the dot pixels
+     * @param plan the dot locations with the strategy's neighborhood
+     * @param firstFrame the first frame to convert
+     * @param lastFrame the last frame to convert (inclusive)
+     * @param fileSize the size of the RAW file
+     * 
+     * @return true if all frames have been converted, false in case of errors or if the conversion has been cancelled
+     */
+    protected boolean removeRawDots(RemovalStrategy strategy, DotPlan plan, int firstFrame, int lastFrame, long fileSize)
+    {
+        int w = getRawWidth();
+        int h = getRawHeight();
+        int frameCount = getRawFrameCount();
+        int[][] dotList = plan.getDots();
+        
+        // the checksum for the shard marker
+        CRC32 crc = new CRC32();
+        
+        // the digest of the whole file is calculated along with the frames, so all of them must be converted
+        MessageDigest md = null;
+        if (digestEnabled)
+        {
+            if ((srcBandRaw != null) && (firstFrame == 0) && (lastFrame == frameCount - 1)) md = OutputDigest.create();
+            else dbg("No output digest for ", srcFileName, ": only complete conversions with row based access are digested");
+        }
+        
+        // the original values are recorded before a frame is overwritten
+        UndoLog undo = null;
+        if (undoEnabled)
+        {
+            if (srcBandRaw == null) dbg("No undo sidecar for ", srcFileName, ": only RAW files with row based access are recorded");
+            else
+            {
+                File rawFile = new File(srcFileName);
+                File undoFile = UndoLog.getUndoFile(rawFile, frameRange, firstFrame, lastFrame);
+                try
+                {
+                    undo = UndoLog.create(rawFile, undoFile, w, h, srcBandRaw.getBitsPerSample(), frameCount, dotList);
+                }
+                catch (IOException e)
+                {
+                    failed("Could not create the undo sidecar ", undoFile, ": ", e.getMessage());
+                    return false;
+                }
+            }
+        }
+        
+        try
+        {
+            if (!(removeRawFrames(strategy, plan, firstFrame, lastFrame, fileSize, crc, md, undo))) return false;
+        }
+        finally
+        {
+            if (undo != null)
+            {
+                try
+                {
+                    undo.close();
+                }
+                catch (IOException e)
+                {
+                    failed("Could not close the undo sidecar of ", srcFileName, ": ", e.getMessage());
+                }
+            }
+        }
+        
+        if (md != null)
+        {
+            try
+            {
+                long trailerBytes = 0;
+                IoScheduler.Permit permit = ioScheduler.acquireRead(new File(srcFileName));
+                try
+                {
+                    trailerBytes = srcBandRaw.updateDigestTrailer(md);
+                }
+                finally
+                {
+                    permit.release(trailerBytes);
+                }
+                outputDigest = OutputDigest.toHex(md.digest());
+                OutputDigest.writeSidecar(Paths.get(srcFileName), outputDigest);
+                dbg("Output digest of ", srcFileName, ": ", outputDigest);
+            }
+            catch (IOException e)
+            {
+                failed("Could not write the digest of ", srcFileName, ": ", e.getMessage());
+                return false;
+            }
+        }
+        
+        // record the completed range for the other processes
+        if ((frameRange != null) && (framesExpected > 0))
+        {
+            ShardMarker marker = new ShardMarker(firstFrame, lastFrame, frameCount, fileSize,
+                    dotList.length, crc.getValue(), camType, strategy.getName());
+            try
+            {
+                marker.write(new File(srcFileName));
+            }
+            catch (IOException e)
+            {
+                failed("Could not write the marker for ", frameRange, " of ", srcFileName, ": ", e.getMessage());
+                return false;
+            }
+        }
+        
+        return true;
+    }
     
     /**
-     * Constructor. Checks for a valid file name and tries to open the file
+     * Reads, fixes and writes back the frames of a RAW file; the frame loop of removeRawDots()
      * 
-     * @param fName the name / path of the DNG or RAW file
-     * @param db is the database with dot locations for all cams and resolutions
-     * @param camType is the name of the camera type
+     * @param strategy calculates the new values of the dot pixels
+     * @param plan the dot locations with the strategy's neighborhood
+     * @param firstFrame the first frame to convert
+     * @param lastFrame the last frame to convert (inclusive)
+     * @param fileSize the size of the RAW file
+     * @param crc receives the dot pixels of all converted frames for the shard marker
+     * @param md receives the converted frames for the output digest; may be null
+     * @param undo receives the original dot values of all frames; may be null
+     * 
+     * @return true if all frames have been converted, false in case of errors or if the conversion has been cancelled
      */
-    public PinkDotRemover(String fName, DotLocationDB _db, String _camType)
+    protected boolean removeRawFrames(RemovalStrategy strategy, DotPlan plan, int firstFrame, int lastFrame, long fileSize,
+            CRC32 crc, MessageDigest md, UndoLog undo)
     {
-        preLog(LVL_DEBUG, "Trying to instanciate File for ", fName);
-        File src = new File(fName);
+        int w = getRawWidth();
+        int h = getRawHeight();
+        int frameCount = getRawFrameCount();
+        long frameSize = fileSize / Math.max(1, frameCount);
+        int[][] dotList = plan.getDots();
         
-        if (!(src.exists()))
+        // the frames are modified in place; the buffer for the new values and,
+        // with row based access, the rows of the band are reused for all frames
+        int[] newValues = new int[dotList.length];
+        Generic_CFA_PixBuf fr = null;
+        ConversionEvents events = ConversionEvents.get();
+        File srcFile = new File(srcFileName);
+        
+        dbg("Starting dot removal in frames ", firstFrame, " to ", lastFrame, " of ", srcFileName, " with strategy ", strategy.getName());
+        for (int n = firstFrame; n <= lastFrame; n++)
         {
-            resultLog(LOG_FAIL + ": got null pointer");
-            throw new IllegalArgumentException("File " + fName + " does not exist!");
+            // stop cleanly between frames
+            if (cancelRequested)
+            {
+                failed("Conversion of ", srcFileName, " cancelled after ", n - firstFrame, " of ", framesExpected, " frames");
+                cancelled = true;
+                return false;
+            }
+            
+            try
+            {
+                // get the n-th frame and remove the dots
+                dbg("Retrieving frame ", n, " of ", frameCount - 1, " from ", srcFileName);
+                Object ev = events.beginFrameRead();
+                long frameBytes = 0;
+                IoScheduler.Permit permit = ioScheduler.acquireRead(srcFile);
+                try
+                {
+                    fr = readRawFrame(n, plan, fr);
+                    frameBytes = (fr instanceof PackedBand) ? ((PackedBand) fr).getByteCount() : frameSize;
+                }
+                finally
+                {
+                    permit.release(frameBytes);
+                }
+                events.endFrameRead(ev, srcFileName, n, w, h, frameBytes);
+                
+                if (undo != null) undo.record(n, fr);
+                
+                ev = events.beginKernel();
+                fixPixelsInPlace(strategy, fr, plan, newValues);
+                events.endKernel(ev, srcFileName, n, w, h, dotList.length, strategy.getName() + ConversionEvents.MODE_IN_PLACE, false);
+                
+                // write the n-th frame back to disk
+                dbg("Writing frame ", n, " of ", srcFileName, " back to disk");
+                ev = events.beginFrameWrite();
+                permit = ioScheduler.acquireWrite(srcFile);
+                try
+                {
+                    writeRawFrame(fr, n);
+                }
+                finally
+                {
+                    permit.release(frameBytes);
+                }
+                events.endFrameWrite(ev, srcFileName, n, w, h, frameBytes);
+                
+                if (frameRange != null) ShardMarker.updateChecksum(crc, fr, dotList);
+                if (md != null)
+                {
+                    dbg("Reading frame ", n, " of ", srcFileName, " for the output digest");
+                    long digestBytes = 0;
+                    permit = ioScheduler.acquireRead(srcFile);
+                    try
+                    {
+                        digestBytes = srcBandRaw.updateDigest(md, n, (CfaBand) fr);
+                    }
+                    finally
+                    {
+                        permit.release(digestBytes);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                failed("Could not convert frame ", n, " of ", srcFileName, ": ", e.getMessage());
+                return false;
+            }
+            
+            // the last frame also covers the file's remainder
+            reportFrameDone((n == frameCount - 1) ? fileSize - frameSize * n : frameSize);
         }
-        resultLog(LOG_OK);
         
-        srcFileName = fName;
+        return true;
+    }
+    
+    /**
+     * Analyzes the file without modifying anything: determines the dot set,
+     * reads the pixels at the dot locations and their neighbors and compares
+     * them with the values the interpolation would produce.
+     * 
+     * Only up to MAX_SAMPLE_FRAMES frames (first, middle, last) of a RAW file
+     * are read.
+     * 
+     * @return the statistics for this file
+     */
+    public DotAnalysis analyze()
+    {
+        int w;
+        int h;
+        int frameCount;
+        ImageFileDirectory ifdSrc = null;
         
-        db = _db;
+        if (srcFileName == null)
+        {
+            failed("No file has been opened");
+            return DotAnalysis.error(null, camType);
+        }
         
-        camType = DEFAULT_CAM_TYPE;
-        if ((_camType != null) && (_camType.length() != 0)) camType = _camType;
-
-        // instanciate the right file handler, depending on the file name
-        if (srcFileName.toLowerCase().endsWith("dng"))
+        if (isRaw())
         {
-            logPush("Instanciating TIFF handlers for ", fName);
-            initFromDNG();
-            logPop("Done");
+            w = getRawWidth();
+            h = getRawHeight();
+            frameCount = getRawFrameCount();
         }
-        else if (srcFileName.toLowerCase().endsWith("raw"))
+        else if (srcBandDng != null)
         {
-            logPush("Instanciating RAW handler for ", fName);
-            initFromRAW();
-            logPop("Done");            
+            w = srcBandDng.getWidth();
+            h = srcBandDng.getHeight();
+            frameCount = 1;
         }
         else
         {
-            resultLog(LOG_FAIL + ": not a valid RAW or DNG file");
-            throw new IllegalArgumentException("File " + fName + " seems not to be a valid RAW or DNG file!");
+            ifdSrc = srcDng.getFirstIFDwithCFA();
+            if (ifdSrc == null)
+            {
+                failed("No CFA image in ", srcFileName);
+                return DotAnalysis.error(srcFileName, camType);
+            }
+            w = (int) ifdSrc.imgWidth();
+            h = (int) ifdSrc.imgHeight();
+            frameCount = 1;
         }
         
-    }
-    
-    protected void initFromDNG()
-    {
-        srcRaw = null;
+        long fileSize = new File(srcFileName).length();
+        
+        DotSet ds = db.findDotSet(camType, w, h);
+        if (ds == null)
+        {
+            return new DotAnalysis(srcFileName, camType, DotAnalysis.Verdict.UNSUPPORTED, w, h,
+                    frameCount, 0, 0, 0, 0, 0, 0, 0);
+        }
+        DotAnalysis.Verdict verdict = ds.isGeneric() ? DotAnalysis.Verdict.GENERIC : DotAnalysis.Verdict.SPECIFIC;
+        
+        // only the dots that the interpolation would touch
+        int[][] dotList = ds.getAllCoordinates(w, h);
+        int fixable = 0;
+        for (int[] dot : dotList)
+        {
+            if (canInterpolate(dot[0], dot[1], w, h)) fixable++;
+        }
         
+        // compare the dot pixels with their interpolated values
+        DotPlan plan = new DotPlan(dotList);
+        DotMask mask = plan.getMask(w, h);
+        long devSum = 0;
+        int devMax = 0;
+        long devCount = 0;
+        int sampled = 0;
+        int lastFrame = -1;
+        Generic_CFA_PixBuf buf = null;
         try
         {
-            
-            logPush("Instanciating source TIFF handler with string arg");
-            srcDng = new TIFFhandler(srcFileName);
-            logPop("Done");
-            
-            logPush("Instanciating destination TIFF handler with string arg");
-            dstDng = new TIFFhandler(srcFileName);
-            logPop("Done");
+            for (int i=0; i < Math.min(MAX_SAMPLE_FRAMES, frameCount); i++)
+            {
+                int n = (MAX_SAMPLE_FRAMES > 1) ? (int) ((long) i * (frameCount - 1) / (MAX_SAMPLE_FRAMES - 1)) : 0;
+                if (n == lastFrame) continue;
+                lastFrame = n;
+                
+                if (isRaw())
+                {
+                    try
+                    {
+                        buf = readRawFrame(n, plan, buf);
+                    }
+                    catch (IOException e)
+                    {
+                        failed("Could not read frame ", n, " of ", srcFileName, ": ", e.getMessage());
+                        buf = null;
+                    }
+                }
+                else if (srcBandDng != null) buf = readDotBand(plan, h);
+                else buf = ifdSrc;
+                if (buf == null) return DotAnalysis.error(srcFileName, camType);
+                for (int[] dot : dotList)
+                {
+                    if (!(canInterpolate(dot[0], dot[1], w, h))) continue;
+                
+                    int dev = Math.abs(buf.CFA_getPixel(dot[0], dot[1]) - interpolValue(buf, dot[0], dot[1], mask));
+                    devSum += dev;
+                    devMax = Math.max(devMax, dev);
+                    devCount++;
+                }
+                sampled++;
+            }
         }
-        catch (Exception e)
+        finally
         {
-            failed(e.getMessage());
-            throw new IllegalArgumentException("Baaaaad file: " + e.getMessage());
+            if (srcBandRaw != null) srcBandRaw.close();
         }
         
+        // RAW files are rewritten in place, DNGs are copied completely
+        return new DotAnalysis(srcFileName, camType, verdict, w, h, frameCount, sampled,
+                dotList.length, fixable, devSum, devMax, devCount, fileSize);
     }
     
-    protected void initFromRAW()
+    /**
+     * Calculates the checksum of all dot pixels of a range of frames of a RAW
+     * file, as recorded by ShardMarker
+     * 
+     * @param first the first frame
+     * @param last the last frame (inclusive)
+     * 
+     * @return the CRC32 value or -1 if the file is not a RAW file or there's no dot set
+     * 
+     * @throws IOException in case of read errors
+     */
+    public long dotChecksum(int first, int last) throws IOException
     {
-        srcDng = null;
-        dstDng = null;
+        if (!(isRaw())) return -1;
         
-        logPush("Instanciating RAW file handler with string arg");
-        srcRaw = new RawImageSequenceHandler(srcFileName);
-        srcRaw.dumpInfo();
-        logPop("Done");
+        int[][] dotList = db.getAllDots(camType, getRawWidth(), getRawHeight());
+        if (dotList == null) return -1;
+        
+        DotPlan plan = new DotPlan(dotList);
+        CRC32 crc = new CRC32();
+        Generic_CFA_PixBuf fr = null;
+        try
+        {
+            for (int n = first; (n <= last) && (n < getRawFrameCount()); n++)
+            {
+                fr = readRawFrame(n, plan, fr);
+                ShardMarker.updateChecksum(crc, fr, plan.getDots());
+            }
+        }
+        finally
+        {
+            if (srcBandRaw != null) srcBandRaw.close();
+        }
+        
+        return crc.getValue();
     }
     
     /**
-     * Removes the pink dots from the target file
+     * Removes the dots in a single frame in memory that is packed like the
+     * frames of a RAW file: MSB first bit stream in 16 bit little endian words.
+     * Only the rows with dots are copied out of the buffer and written back.
      * 
-     * @param doInterpolation if true, the interpolation algorithm is used; otherwise, the pixel is simply marked as "bad pixel"
-     * @return true if the dots could be removed, false in case of errors
+     * @param src the frame from the buffer's position, on the heap or direct; its position is not changed
+     * @param dst the buffer that receives the corrected frame at its position; null or src to correct the frame in place
+     * @param width the frame width
+     * @param height the frame height
+     * @param bitsPerSample the number of bits per pixel (8...16); each row must consist of complete 16 bit words
+     * @param strategy calculates the new values of the dot pixels, see RemovalStrategies
+     * 
+     * @return true if the dots have been removed, false if there's no dot pattern for the camera and frame size
+     * 
+     * @throws IllegalArgumentException if the layout is not supported or a buffer is smaller than a frame
      */
-    public boolean doRemoval(boolean doInterpolation)
+    public boolean removeFrameDots(ByteBuffer src, ByteBuffer dst, int width, int height, int bitsPerSample, RemovalStrategy strategy)
     {
-        int w;
-        int h;
-        
-        // prepare access to the image data
-        ImageFileDirectory ifdSrc = null;
-        ImageFileDirectory ifdDst = null;
+        int frameSize = RawFile.getFrameSize(width, height, bitsPerSample);
+        if ((src.remaining() < frameSize) || ((dst != null) && (dst.remaining() < frameSize)))
+        {
+            throw new IllegalArgumentException("The buffer is smaller than a frame of " + frameSize + " bytes");
+        }
         
-        if (srcRaw != null)
+        int[][] dotList = db.getAllDots(camType, width, height);
+        if (dotList == null)
         {
-            // okay, we're reading from a RAW file
-            
-            logPush("Retrieving CFA image dimensions from RAW file");
-            w = srcRaw.getWidth();
-            h = srcRaw.getHeight();
-            logPop("Done");
+            failed("No dot pattern for image size " + width + "x" + height + " and cam type ", camType, " available!");
+            return false;
         }
-        else
+        
+        DotPlan plan = new DotPlan(dotList, strategy.getNeighborhood());
+        CfaBand band = RawFile.readBand(src, width, height, bitsPerSample, plan.getBandStart(height), plan.getBandEnd(height));
+        
+        Object ev = ConversionEvents.get().beginKernel();
+        fixPixelsInPlace(strategy, band, plan, new int[dotList.length]);
+        ConversionEvents.get().endKernel(ev, MEMORY_SOURCE, 0, width, height, dotList.length,
+                strategy.getName() + ConversionEvents.MODE_IN_PLACE, false);
+        
+        // copy the frame and patch the modified rows
+        ByteBuffer out = src;
+        if ((dst != null) && (dst != src))
         {
-            // we're reading from a DNG file
-            
-            // we assume that the TIFF file contains exactly one RAW image...
-            logPush("Retrieving CFA IFDs and image dimensions from DNG file");
-
-            ifdSrc = srcDng.getFirstIFDwithCFA();
-            if (ifdSrc == null) dbg("Got null for srcDng");
-
-            ifdDst = dstDng.getFirstIFDwithCFA();
-            if (ifdDst == null) dbg("Got null for dstDng");
-
-            w = (int) ifdSrc.imgWidth();
-            h = (int) ifdSrc.imgHeight();
-            
-            ifdSrc.dumpInfo();
-
-            logPop("Done");
+            ByteBuffer frame = src.duplicate();
+            frame.limit(frame.position() + frameSize);
+            dst.duplicate().put(frame);
+            out = dst;
         }
+        band.writeModified(out);
         
-        // Let's see if we have the dot pattern for this type of image
+        return true;
+    }
+    
+    /**
+     * Removes the dots in a single frame in memory in place, see removeFrameDots(ByteBuffer, ...)
+     * 
+     * @param frame the packed frame, starting at index 0
+     * @param width the frame width
+     * @param height the frame height
+     * @param bitsPerSample the number of bits per pixel
+     * @param strategy calculates the new values of the dot pixels, see RemovalStrategies
+     * 
+     * @return true if the dots have been removed, false if there's no dot pattern for the camera and frame size
+     */
+    public boolean removeFrameDots(byte[] frame, int width, int height, int bitsPerSample, RemovalStrategy strategy)
+    {
+        return removeFrameDots(ByteBuffer.wrap(frame), null, width, height, bitsPerSample, strategy);
+    }
+    
+    /**
+     * Removes the dots in a DNG image in memory; uncompressed and lossless
+     * JPEG compressed images are supported. Everything but the modified rows
+     * or tiles remains byte-identical.
+     * 
+     * @param src the DNG image from the buffer's position to its limit, on the heap or direct; its position is not changed
+     * @param dst the buffer that receives the corrected image at its position; null or src to correct the image in place
+     * @param strategy calculates the new values of the dot pixels, see RemovalStrategies
+     * 
+     * @return the size of the corrected image or -1 if there's no dot pattern for the camera and image size.
+     * The size only changes if re-encoded tiles don't fit into the space of the old ones and are
+     * appended to the image, which requires room in dst behind the image.
+     * 
+     * @throws IOException if the image is not supported, can't be decoded or doesn't fit into dst
+     */
+    public int removeDngDots(ByteBuffer src, ByteBuffer dst, RemovalStrategy strategy) throws IOException
+    {
+        DngFile dng = DngFile.open(src);
+        if (dng == null) throw new IOException("Unsupported CFA image");
+        
+        int w = dng.getWidth();
+        int h = dng.getHeight();
         int[][] dotList = db.getAllDots(camType, w, h);
         if (dotList == null)
         {
             failed("No dot pattern for image size " + w + "x" + h + " and cam type ", camType, " available!");
-            return false;
+            return -1;
         }
-        dbg("Retrieved dot list for image!");
         
-        if (srcRaw != null)
+        DotPlan plan = new DotPlan(dotList, strategy.getNeighborhood());
+        PackedBand srcBand = dng.readDotBand(plan);
+        PackedBand band = srcBand.getCopy();
+        
+        Object ev = ConversionEvents.get().beginKernel();
+        fixPixels(strategy, srcBand, band, plan);
+        ConversionEvents.get().endKernel(ev, MEMORY_SOURCE, 0, w, h, dotList.length, strategy.getName(),
+                RowBandKernel.isWorthwhile(band, dotList.length, strategy));
+        
+        return dng.writePatched(band, (dst != null) ? dst : src);
+    }
+    
+    /**
+     * Removes the dots in a DNG image in memory in place, see removeDngDots(ByteBuffer, ...)
+     * 
+     * @param dng the DNG image
+     * @param strategy calculates the new values of the dot pixels, see RemovalStrategies
+     * 
+     * @return the size of the corrected image or -1 if there's no dot pattern for the camera and image size
+     * 
+     * @throws IOException if the image is not supported, can't be decoded or re-encoded tiles don't fit into the array
+     */
+    public int removeDngDots(byte[] dng, RemovalStrategy strategy) throws IOException
+    {
+        return removeDngDots(ByteBuffer.wrap(dng), null, strategy);
+    }
+    
+    /**
+     * Reads the rows of the DNG image that contain dots plus the rows that
+     * the interpolation needs as neighbors
+     * 
+     * @param plan the dot locations and their neighborhood
+     * @param h the image height
+     * 
+     * @return the band with the rows or null if compressed tiles couldn't be decoded
+     */
+    protected PackedBand readDotBand(DotPlan plan, int h)
+    {
+        dbg("Reading rows ", plan.getBandStart(h), " to ", plan.getBandEnd(h) - 1, " of ", h, " from ", srcFileName);
+        Object ev = ConversionEvents.get().beginFrameRead();
+        PackedBand band = null;
+        IoScheduler.Permit permit = ioScheduler.acquireRead(new File(srcFileName));
+        try
         {
-            logPush("Starting dot removal in RAW file");
-            for (int n=0; n < srcRaw.getFrameCount(); n++)
-            {
-                // get the n-th frame and remove the dots
-                logPush("Retrieving frame ", n, " of ", srcRaw.getFrameCount() - 1, " from RAW file");
-                RawFileFrame srcFr = srcRaw.getFrame(n);
-                RawFileFrame dstFr = srcFr.getCopy();
-                srcFr.dumpInfo();
-                logPop("Done");
-                logPush("Removing dots in frame");
-                if (doInterpolation) interpolPixel(srcFr, dstFr, dotList);
-                else markBadPixels(srcFr, dstFr, dotList);
-                logPop("Done");
-                                
-                // write the n-th frame back to disk
-                logPush("Writing frame ", n, " back to disk");
-                srcRaw.writeFrameToFile(dstFr, n);
-                logPop("Done");
-            }
-            logPop("Done");
+            band = srcBandDng.readDotBand(plan);
         }
-        else
+        catch (IOException e)
         {
-            logPush("Starting dot removal in DNG file");
-            if (doInterpolation) interpolPixel(ifdSrc, ifdDst, dotList);
-            else markBadPixels(ifdSrc, ifdDst, dotList);
-            logPop("Done");
-            
-            // write the frame back to disk
-            logPush("Writing image back to disk");
-            writeResultsToTargetDNG();
-            logPop("Done");
+            failed("Could not decode ", srcFileName, ": ", e.getMessage());
+            return null;
         }
+        finally
+        {
+            permit.release((band != null) ? band.getByteCount() : 0);
+        }
+        ConversionEvents.get().endFrameRead(ev, srcFileName, 0, srcBandDng.getWidth(), h, band.getByteCount());
+        dbg("Read ", band.getByteCount(), " bytes from ", srcFileName);
         
-        dbg("Conversion in memory completed!");
-        
-        return true;
+        return band;
+    }
+    
+    /**
+     * Checks whether a pixel is far enough from the image borders for interpolation
+     * 
+     * @param x the pixel's x-coordinate
+     * @param y the pixel's y-coordinate
+     * @param w the image width
+     * @param h the image height
+     * 
+     * @return true if all neighbors used by the interpolation are inside the image
+     */
+    protected static boolean canInterpolate(int x, int y, int w, int h)
+    {
+        return RemovalStrategies.INTERPOLATE.canFix(x, y, w, h);
     }
     
+    /**
+     * Calculates the interpolated intensity for a pixel from the "X"-like neighboring pixels,
+     * using the pair of neighbors with the smallest intensity gradient
+     * 
+     * @param srcBuf the source image data
+     * @param x the pixel's x-coordinate; must be at least 2 pixels away from the image border
+     * @param y the pixel's y-coordinate; must be at least 2 pixels away from the image border
+     * @param dots the mask of all dots; neighbors that are dots are avoided. May be null.
+     * 
+     * @return the interpolated intensity
+     */
+    protected int interpolValue(Generic_CFA_PixBuf srcBuf, int x, int y, DotMask dots)
+    {
+        return RemovalStrategies.INTERPOLATE.getValue(srcBuf, x, y, dots);
+    }
     
     /**
-     * Replaces a pixel intensity with an interpolation of the "X"-like neighboring pixels
-     * Pixels closer than 2 pixel to the image border can't be interpolated and remain unmodified.
+     * Replaces the dot pixels with the values calculated by a removal strategy.
+     * Pixels that the strategy can't fix remain unmodified. Neighbors that are
+     * dots themselves are avoided, using the plan's mask.
+     * 
+     * Large images are processed in row bands on several threads, see RowBandKernel.
      * 
+     * @param strategy calculates the new pixel values
      * @param srcBuf ImageFileHandler for the distorted source image data (read)
      * @param dstBuf ImageFileHandler for the improved image data (write)
-     * @param dotList a list of x,y-coordinates of the dots to fix
+     * @param plan the dots to fix
+     */
+    protected void fixPixels(RemovalStrategy strategy, Generic_CFA_PixBuf srcBuf, Generic_CFA_PixBuf dstBuf, DotPlan plan)
+    {
+        int[][] dots = plan.getDots();
+        if (RowBandKernel.isWorthwhile(dstBuf, dots.length, strategy))
+        {
+            RowBandKernel.run(this, srcBuf, dstBuf, plan, strategy);
+            return;
+        }
+        
+        fixDots(strategy, srcBuf, dstBuf, dots, 0, dots.length, plan.getMask((int) srcBuf.imgWidth(), (int) srcBuf.imgHeight()));
+    }
+    
+    /**
+     * Fixes a range of dots; srcBuf is only read, so this function may
+     * be called concurrently for different dots
+     * 
+     * @param strategy calculates the new pixel values
+     * @param srcBuf the distorted source image data (read)
+     * @param dstBuf the improved image data (write)
+     * @param dots a list of x,y-coordinates of dots
+     * @param from the first dot to fix
+     * @param to the dot after the last dot to fix
+     * @param mask the mask of all dots of the image
      */
-    protected void interpolPixel(Generic_CFA_PixBuf srcBuf, Generic_CFA_PixBuf dstBuf, int[][] dotList)
+    protected void fixDots(RemovalStrategy strategy, Generic_CFA_PixBuf srcBuf, Generic_CFA_PixBuf dstBuf, int[][] dots, int from, int to, DotMask mask)
     {
         int w = (int) srcBuf.imgWidth();
         int h = (int) srcBuf.imgHeight();
         
-        for (int[] dot : dotList)
+        for (int i = from; i < to; i++)
         {
-            int x = dot[0];
-            int y = dot[1];
-            
-            // don't fix pixel on image borders
-            if ((x < 2) || (x > (w - 3)) || (y < 2) || (y > (h - 4))) continue;
-            
-            // determine intensity gradients in all four directions
-            int g1 = srcBuf.CFA_getPixel(x, y - 2) - srcBuf.CFA_getPixel(x, y + 2); // top-down
-            int g2 = srcBuf.CFA_getPixel(x - 2, y) - srcBuf.CFA_getPixel(x + 2, y); // left-right
-            int g3 = srcBuf.CFA_getPixel(x - 2, y - 2) - srcBuf.CFA_getPixel(x + 2, y + 2); // top-left, down-right
-            int g4 = srcBuf.CFA_getPixel(x + 2, y - 2) - srcBuf.CFA_getPixel(x - 2, y + 2); // top-right, down-left
+            int x = dots[i][0];
+            int y = dots[i][1];
             
-            // find the minimum gradient
-            g1 = Math.abs(g1);
-            g2 = Math.abs(g2);
-            g3 = Math.abs(g3);
-            g4 = Math.abs(g4);
+            // e.g. don't interpolate pixels on image borders
+            if (!(strategy.canFix(x, y, w, h))) continue;
             
-            int minG = Math.min(g1, g2);
-            minG = Math.min(minG, g3);
-            minG = Math.min(minG, g4);
-            
-            // use the minimum gradient for interpolation
-            double newVal;
-            if (minG == g1)
-            {
-                newVal = (srcBuf.CFA_getPixel(x, y - 2) + srcBuf.CFA_getPixel(x, y + 2)) * 0.5;
-            }
-            else if (minG == g2)
-            {
-                newVal = (srcBuf.CFA_getPixel(x-2, y) + srcBuf.CFA_getPixel(x+2, y)) * 0.5;
-            }
-            else if (minG == g3)
-            {
-                newVal = (srcBuf.CFA_getPixel(x-2, y-2) + srcBuf.CFA_getPixel(x+2, y+2)) * 0.5;
-            }
-            else
-            {
-                newVal = (srcBuf.CFA_getPixel(x+2, y-2) + srcBuf.CFA_getPixel(x-2, y+2)) * 0.5;
-            }
-
-
-            dstBuf.CFA_setPixel(x, y, (int) newVal);
+            dstBuf.CFA_setPixel(x, y, strategy.getValue(srcBuf, x, y, mask));
         }
         
     }
     
     /**
-     * Replaces a pixel intensity with a 0 to indicate a bad pixel
-     * Leaves the actual interpolation to the RAW processor later on
+     * Same as fixPixels(), but reads and writes the same image. All new
+     * intensities are calculated from the unmodified image first and written
+     * afterwards, so that a dot next to another dot still sees the original
+     * neighbors and the result is identical to fixPixels().
      * 
-     * @param srcBuf ImageFileHandler for the distorted source image data (read)
-     * @param dstBuf ImageFileHandler for the improved image data (write)
-     * @param dotList a list of x,y-coordinates of the dots to fix
+     * @param strategy calculates the new pixel values
+     * @param buf the image data (read and write)
+     * @param plan the dots to fix
+     * @param newValues a buffer with at least one entry per dot for the new intensities
      */
-    protected void markBadPixels(Generic_CFA_PixBuf srcBuf, Generic_CFA_PixBuf dstBuf, int[][] dotList)
+    protected void fixPixelsInPlace(RemovalStrategy strategy, Generic_CFA_PixBuf buf, DotPlan plan, int[] newValues)
     {
-        int w = (int) srcBuf.imgWidth();
-        int h = (int) srcBuf.imgHeight();
+        int w = (int) buf.imgWidth();
+        int h = (int) buf.imgHeight();
+        int[][] dotList = plan.getDots();
+        DotMask mask = plan.getMask(w, h);
         
-        for (int[] dot : dotList)
+        for (int i=0; i < dotList.length; i++)
         {
-            //just set pixels to 0 that are in the image
-            if ((dot[0] < 0) || (dot[0] >= w) || (dot[1] < 0) || (dot[1] >= h)) continue;
-            dstBuf.CFA_setPixel(dot[0], dot[1], 0);
+            int x = dotList[i][0];
+            int y = dotList[i][1];
+            
+            // -1 marks pixels that remain unmodified
+            newValues[i] = strategy.canFix(x, y, w, h) ? strategy.getValue(buf, x, y, mask) : -1;
+        }
+        
+        for (int i=0; i < dotList.length; i++)
+        {
+            if (newValues[i] < 0) continue;
+            buf.CFA_setPixel(dotList[i][0], dotList[i][1], newValues[i]);
         }
-    
     }
     
     /**
@@ -345,9 +1449,8 @@ public class PinkDotRemover extends LoggingClass {
         if (dstPath == null) resultLog((LOG_FAIL));
         else resultLog(LOG_OK);
                 
-        logPush("Calling dstDng.saveAs() with Path parameter ", dstPath);
+        dbg("Calling dstDng.saveAs() with Path parameter ", dstPath);
         writeResultToFile(dstPath);
-        logPop("Done");
         
         dbg("File saved successfully");
         
@@ -363,7 +1466,7 @@ public class PinkDotRemover extends LoggingClass {
      */
     protected void writeResultToFile(String dstFileName)
     {
-        dstDng.saveAs(dstFileName);
+        writeResultToFile(Paths.get(dstFileName));
     }
     
     /**
@@ -374,6 +1477,42 @@ public class PinkDotRemover extends LoggingClass {
      */
     protected void writeResultToFile(Path dstFilePath)
     {
-        dstDng.saveAs(dstFilePath);
+        Object ev = ConversionEvents.get().beginSave();
+        
+        MessageDigest md = digestEnabled ? OutputDigest.create() : null;
+        IoScheduler.Permit permit = ioScheduler.acquireWrite(dstFilePath.toFile());
+        try
+        {
+            if (srcBandDng == null)
+            {
+                dstDng.saveAs(dstFilePath);
+                
+                // SimpleTIFFlib writes the file on its own, so it has to be read again
+                if (md != null) outputDigest = OutputDigest.ofFile(dstFilePath);
+            }
+            else
+            {
+                // copy the source file and patch the modified rows
+                srcBandDng.writePatched(dstBand, dstFilePath, md);
+                if (md != null) outputDigest = OutputDigest.toHex(md.digest());
+            }
+            
+            if (md != null)
+            {
+                OutputDigest.writeSidecar(dstFilePath, outputDigest);
+                dbg("Output digest of ", dstFilePath, ": ", outputDigest);
+            }
+        }
+        catch (IOException e)
+        {
+            failed("Could not write ", dstFilePath, ": ", e.getMessage());
+            throw new IllegalStateException("Could not write " + dstFilePath + ": " + e.getMessage());
+        }
+        finally
+        {
+            permit.release(dstFilePath.toFile().length());
+        }
+        
+        if (ev != null) ConversionEvents.get().endSave(ev, srcFileName, dstFilePath.toString(), dstFilePath.toFile().length());
     }
 }
@@ -0,0 +1,664 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * The headless command line entry point. Parses the command line, instanciates
+ * the remover class and triggers the removal.
+ *
+ * This class and everything it uses must never touch Swing / AWT so that it
+ * can be executed on machines without a display and without paying for
+ * loading the GUI classes.
+ */
+public class PinkDotRemoverCLI extends LoggingClass {
+
+    /**
+     * Options that take a value (--name value); all other options are flags (--name)
+     */
+    protected static final String[] VALUED_OPTIONS = new String[] {
+        "threads",
+        "serve",
+        "queue",
+        "frames",
+        "shard",
+        "file-shard",
+        "io",
+        "method"
+    };
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        // make sure that nothing accidentally tries to open a display
+        System.setProperty("java.awt.headless", "true");
+
+        if (!(isServerMode(args)) && !(hasInputFiles(args)))
+        {
+            printHelp();
+            System.exit(2);
+        }
+
+        System.exit(run(args) ? 0 : 1);
+    }
+
+    /**
+     * Checks whether the command line contains at least one file to convert
+     *
+     * @param args the command line arguments
+     *
+     * @return true if the options are valid and there's at least one DNG or RAW file
+     */
+    public static boolean hasInputFiles(String[] args)
+    {
+        String[] inputs = parseOptions(args, new HashMap<String, String>());
+        if (inputs == null) return false;
+
+        return (collectFiles(inputs).size() != 0);
+    }
+
+    /**
+     * Checks whether the command line requests the HTTP conversion service
+     *
+     * @param args the command line arguments
+     *
+     * @return true if the options are valid and contain --serve
+     */
+    public static boolean isServerMode(String[] args)
+    {
+        HashMap<String, String> opts = new HashMap<String, String>();
+        if (parseOptions(args, opts) == null) return false;
+
+        return opts.containsKey("serve");
+    }
+
+    /**
+     * Converts all files denoted by the command line arguments
+     *
+     * @param args the command line arguments: options, an optional camera type and files and / or directories
+     *
+     * @return true if all files have been converted successfully
+     */
+    public static boolean run(String[] args)
+    {
+        // set the log level
+        logLvl = LVL_DEBUG;  // bad hack
+
+        dbg("Command line args: " + strCat(args));
+
+        // separate the options from the input files
+        HashMap<String, String> opts = new HashMap<String, String>();
+        String[] inputs = parseOptions(args, opts);
+        if (inputs == null)
+        {
+            printHelp();
+            return false;
+        }
+
+        int threadCount = BatchConverter.defaultThreadCount();
+        if (opts.containsKey("threads"))
+        {
+            try
+            {
+                threadCount = Integer.parseInt(opts.get("threads"));
+            }
+            catch (NumberFormatException e)
+            {
+                threadCount = 0;
+            }
+            if (threadCount < 1)
+            {
+                failed("Invalid number of threads: ", opts.get("threads"));
+                return false;
+            }
+        }
+
+        RemovalStrategy strategy = RemovalStrategies.INTERPOLATE;
+        if (opts.containsKey("method"))
+        {
+            strategy = RemovalStrategies.find(opts.get("method"));
+            if (strategy == null)
+            {
+                failed("Unknown removal method ", opts.get("method"), "; valid methods are ", RemovalStrategies.getChoices());
+                return false;
+            }
+        }
+
+        // read the dot database to get a list of all known camera types
+        logPush("Trying to init dot location database");
+        String dotDataDir = DotLocationDB.defaultDotDataDir();
+        if (dotDataDir == null)
+        {
+            failed("Could not determine the path of the dot database!");
+            return false;
+        }
+        DotLocationDB db = new DotLocationDB(dotDataDir);
+        logPop("Done");
+        db.dumpInfo();
+
+        if (opts.containsKey("serve")) return serve(db, opts.get("serve"), opts.get("queue"), threadCount);
+
+        // see if the first command line parameter contains a camera type
+        logPush("Check if the first command line argument contains a camera type");
+        String camType = PinkDotRemover.DEFAULT_CAM_TYPE;
+        if (inputs.length != 0) {
+            for (String knownCam : db.getAllModels()) {
+                if (knownCam.toLowerCase().equals(inputs[0].toLowerCase())) {
+                    camType = knownCam;
+                    dbg("Match! Set camera type to ", knownCam);
+                }
+            }
+
+        }
+        logPop("Done");
+
+        logPush("Trying to resolve dirs and valid files");
+
+        // retrieve all files denoted by command line arguments
+        ArrayList<File> fList = collectFiles(inputs);
+        logPop("Done");
+
+        // we need at least one file
+        if (fList.size() == 0)
+        {
+            failed("No valid files found!");
+            return false;
+        }
+
+        dbg("At least one valid file found for conversion.");
+
+        // several machines can split a batch without coordination
+        if (opts.containsKey("file-shard"))
+        {
+            FileShard fileShard = FileShard.parse(opts.get("file-shard"));
+            if (fileShard == null)
+            {
+                failed("Invalid file shard: ", opts.get("file-shard"));
+                return false;
+            }
+            fList = new ArrayList<File>(fileShard.select(fList));
+            dbg(fList.size(), " files belong to ", fileShard);
+            if (fList.size() == 0)
+            {
+                System.err.println("No files in " + fileShard + ", nothing to do");
+                return true;
+            }
+        }
+
+        // one device after the other, each directory in the order of the file names
+        fList = new ArrayList<File>(IoScheduler.order(fList));
+
+        IoScheduler ioScheduler = IoScheduler.NONE;
+        if (opts.containsKey("io"))
+        {
+            ioScheduler = IoScheduler.parse(opts.get("io"), threadCount);
+            if (ioScheduler == null)
+            {
+                failed("Invalid I/O limits: ", opts.get("io"));
+                return false;
+            }
+        }
+
+        // frame ranges only make sense for RAW files
+        FrameRange frameRange = null;
+        if (opts.containsKey("frames") && opts.containsKey("shard"))
+        {
+            failed("--frames and --shard can't be combined");
+            return false;
+        }
+        if (opts.containsKey("frames"))
+        {
+            frameRange = FrameRange.parseFrames(opts.get("frames"));
+            if (frameRange == null)
+            {
+                failed("Invalid frame range: ", opts.get("frames"));
+                return false;
+            }
+        }
+        if (opts.containsKey("shard"))
+        {
+            frameRange = FrameRange.parseShard(opts.get("shard"));
+            if (frameRange == null)
+            {
+                failed("Invalid shard: ", opts.get("shard"));
+                return false;
+            }
+        }
+        if ((frameRange != null) || opts.containsKey("verify-shards") || opts.containsKey("undo"))
+        {
+            for (File f : fList)
+            {
+                if (!(f.getName().toLowerCase().endsWith("raw")))
+                {
+                    failed("Frame ranges, shards and undo are only supported for RAW files: ", f);
+                    return false;
+                }
+            }
+        }
+
+        if (opts.containsKey("verify-shards"))
+        {
+            boolean allComplete = true;
+            for (File f : fList)
+            {
+                if (!(ShardMarker.verify(f, db))) allComplete = false;
+            }
+            return allComplete;
+        }
+
+        if (opts.containsKey("dry-run")) return analyzeFiles(db, camType, fList, threadCount);
+
+        if (opts.containsKey("undo")) return undoFiles(fList);
+
+        // check the headers of all files before any pixel data is touched
+        BatchPlanner plan;
+        try
+        {
+            plan = BatchPlanner.plan(db, camType, fList, threadCount);
+        }
+        catch (InterruptedException e)
+        {
+            failed("Interrupted during the preflight check");
+            return false;
+        }
+        if (opts.containsKey("preflight"))
+        {
+            plan.printReport(System.out);
+            return plan.getUnsupported().isEmpty();
+        }
+        List<File> unsupported = plan.getUnsupported();
+        if (!(unsupported.isEmpty()))
+        {
+            for (File f : unsupported) failed("Can't convert ", f, ": ", plan.getProblem(f));
+            failed(unsupported.size(), " of ", fList.size(), " files can't be converted, no file has been modified");
+            return false;
+        }
+
+        // convert all files on a pool of worker threads;
+        // the first failure stops the whole batch
+        logPush("Converting ", fList.size(), " files with ", threadCount, " thread(s), method ", strategy.getName(), " and ", ioScheduler);
+        StopOnErrorListener listener = new StopOnErrorListener();
+        BatchConverter batch = new BatchConverter(db, camType, strategy, threadCount, listener);
+        batch.setFrameRange(frameRange);
+        batch.setPlan(plan);
+        batch.setOutputDigest(opts.containsKey("digest"));
+        batch.setUndoLog(!(opts.containsKey("no-undo")));
+        batch.setIoScheduler(ioScheduler);
+        listener.batch = batch;
+        for (File f : fList) batch.submit(f);
+        try
+        {
+            batch.awaitCompletion();
+        }
+        catch (InterruptedException e)
+        {
+            batch.cancel();
+            failed("Interrupted while waiting for the conversion");
+            logPop("Aborted");
+            return false;
+        }
+
+        if (batch.isCancelled())
+        {
+            failed("Pink dot removal failed, program stopped");
+            logPop("Aborted");
+            return false;
+        }
+        logPop("Done");
+        dbg("run() end.");
+
+        return true;
+    }
+
+    /**
+     * Runs the HTTP conversion service on the loopback interface until the JVM is terminated;
+     * the dot data is reloaded while the server runs when its files change
+     *
+     * @param db the database with the dot locations
+     * @param portArg the value of --serve
+     * @param queueArg the value of --queue or null
+     * @param threadCount the number of files to convert in parallel
+     *
+     * @return false if the server could not be started
+     */
+    protected static boolean serve(final DotLocationDB db, String portArg, String queueArg, int threadCount)
+    {
+        int port;
+        int queueSize = ConversionServer.DEFAULT_QUEUE_SIZE;
+        try
+        {
+            port = Integer.parseInt(portArg);
+            if (queueArg != null) queueSize = Integer.parseInt(queueArg);
+        }
+        catch (NumberFormatException e)
+        {
+            port = -1;
+        }
+        if ((port < 0) || (port > 65535) || (queueSize < 0))
+        {
+            failed("Invalid port or queue size: ", portArg, ", ", queueArg);
+            return false;
+        }
+
+        final ConversionServer server;
+        try
+        {
+            server = new ConversionServer(db, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threadCount, queueSize);
+        }
+        catch (IOException e)
+        {
+            failed("Could not start the server on port ", port, ": ", e.getMessage());
+            return false;
+        }
+
+        // allow running conversions to finish when the JVM is terminated
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run()
+            {
+                server.stop(5);
+                db.stopWatching();
+            }
+        });
+        db.startWatching();
+        server.start();
+        System.err.println("Listening on http://localhost:" + server.getPort() + "/");
+
+        // the server runs on its own threads
+        try
+        {
+            new CountDownLatch(1).await();
+        }
+        catch (InterruptedException e)
+        {
+            server.stop(0);
+            db.stopWatching();
+        }
+
+        return true;
+    }
+
+    /**
+     * Analyzes files without modifying them and prints one line of statistics
+     * per file to stdout
+     *
+     * @param db the database with the dot locations
+     * @param camType the camera type
+     * @param fList the files to analyze
+     * @param threadCount the number of files to analyze in parallel
+     *
+     * @return true if all files could be converted
+     */
+    protected static boolean analyzeFiles(final DotLocationDB db, final String camType, ArrayList<File> fList, int threadCount)
+    {
+        logPush("Analyzing ", fList.size(), " files with ", threadCount, " thread(s)");
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        ArrayList<Future<DotAnalysis>> results = new ArrayList<Future<DotAnalysis>>();
+        for (final File f : fList)
+        {
+            results.add(pool.submit(new Callable<DotAnalysis>() {
+                public DotAnalysis call()
+                {
+                    try
+                    {
+                        return new PinkDotRemover(f.toString(), db, camType, true).analyze();
+                    }
+                    catch (Exception e)
+                    {
+                        failed("Could not analyze ", f, ": ", e.getMessage());
+                        return DotAnalysis.error(f.toString(), camType);
+                    }
+                }
+            }));
+        }
+        pool.shutdown();
+
+        // print the results in the order of the files
+        boolean allConvertible = true;
+        System.out.println(DotAnalysis.getHeader());
+        for (Future<DotAnalysis> fut : results)
+        {
+            DotAnalysis a;
+            try
+            {
+                a = fut.get();
+            }
+            catch (InterruptedException e)
+            {
+                pool.shutdownNow();
+                failed("Interrupted while analyzing files");
+                logPop("Aborted");
+                return false;
+            }
+            catch (ExecutionException e)
+            {
+                // can't happen, call() catches everything
+                allConvertible = false;
+                continue;
+            }
+
+            System.out.println(a);
+            if (!(a.isConvertible())) allConvertible = false;
+        }
+        logPop("Done");
+
+        return allConvertible;
+    }
+
+    /**
+     * Restores the original dot values of RAW files from their undo sidecars
+     *
+     * @param fList the RAW files to restore
+     *
+     * @return true if all files have been restored
+     */
+    protected static boolean undoFiles(ArrayList<File> fList)
+    {
+        logPush("Restoring ", fList.size(), " files");
+        boolean allRestored = true;
+        for (File f : fList)
+        {
+            boolean ok = UndoLog.restore(f);
+            System.out.println((ok ? "RESTORED" : "FAILED") + "\t" + f);
+            if (!(ok)) allRestored = false;
+        }
+        logPop("Done");
+
+        return allRestored;
+    }
+
+    /**
+     * Separates "--name [value]" options from the other command line arguments
+     *
+     * @param args the command line arguments
+     * @param opts receives the options (name without leading dashes --> value or "true" for flags)
+     *
+     * @return all non-option arguments or null if the options are invalid
+     */
+    protected static String[] parseOptions(String[] args, Map<String, String> opts)
+    {
+        ArrayList<String> inputs = new ArrayList<String>();
+        List<String> valued = Arrays.asList(VALUED_OPTIONS);
+
+        for (int i=0; i < args.length; i++)
+        {
+            if (!(args[i].startsWith("--")))
+            {
+                inputs.add(args[i]);
+                continue;
+            }
+
+            String name = args[i].substring(2);
+            if (!(valued.contains(name)))
+            {
+                opts.put(name, "true");
+                continue;
+            }
+
+            if (i == args.length - 1)
+            {
+                failed("Option --", name, " needs a value");
+                return null;
+            }
+            opts.put(name, args[++i]);
+        }
+
+        return inputs.toArray(new String[inputs.size()]);
+    }
+
+    /**
+     * Logs the file states of a batch and cancels the batch on the first failure
+     */
+    protected static class StopOnErrorListener implements BatchConverter.Listener
+    {
+        /**
+         * The batch to cancel on errors
+         */
+        volatile BatchConverter batch;
+
+        public void fileStarted(File f)
+        {
+            dbg("Processing ", f);
+        }
+
+        public void fileFinished(File f, boolean success)
+        {
+            if (success)
+            {
+                dbg("Finished ", f);
+                return;
+            }
+
+            failed("Pink dot removal failed for ", f);
+            if (batch != null) batch.cancel();
+        }
+
+        public void fileSkipped(File f)
+        {
+            dbg("Skipped ", f);
+        }
+    }
+
+    /**
+     * Takes a list of strings (e. g. command line args) and checks one by one
+     * if they point to existing files or directories. In case of directories,
+     * the file in this directory are considered as well (non-recursively).
+     *
+     * The function will return a list of all existing files with extension "dng" or "raw"
+     *
+     * @param args the of strings to check
+     *
+     * @return a list of File-objects for existing files ending in dng or raw
+     */
+    public static ArrayList<File> collectFiles(String[] args)
+    {
+        ArrayList<File> fileList = new ArrayList<File>();
+
+        logPush("Looping over command line arguments");
+        for (String s : args)
+        {
+            preLog(LVL_DEBUG, "Trying to instanciate File for ", s);
+            File f = new File(s);
+            resultLog(LOG_OK);
+
+            if (!(f.exists())) continue;
+            dbg(s, " exists");
+
+            if (f.isDirectory())
+            {
+                logPush(s, " is a directory, diving into it");
+                for (File subDirFile : f.listFiles())
+                {
+                    dbg("Found file ", subDirFile.toString());
+                    if (subDirFile.isFile()) fileList.add(subDirFile);
+                }
+                logPop("Done");
+            }
+
+            if (f.isFile())
+            {
+                dbg(s, " is a file");
+                fileList.add(f);
+            }
+        }
+        logPop("Done");
+        dbg(fileList.size(), " files found");
+
+        // clean-up: allow only files ending in "dng" or "DNG" or "raw" or "RAW"
+        ArrayList<File> result = new ArrayList<File>();
+        logPush("Checking if found files are valid");
+        for (File f : fileList)
+        {
+            if (PinkDotRemover.isSupportedFile(f))
+            {
+                dbg(f, " is okay");
+                result.add(f);
+            }
+            else dbg(f, " is NOT okay");
+        }
+        logPop("Done");
+
+        return result;
+    }
+
+    /**
+     * Prints a short help message to stderr
+     */
+    protected static void printHelp()
+    {
+        System.err.println();
+        System.err.println("Usage:");
+        System.err.println("java -jar PinkDotRemoverEngine.jar [options] [camera type] <file1.dng or dir1> <file2.raw or dir2> etc.");
+        System.err.println();
+        System.err.println("Options:");
+        System.err.println("  --threads <n>   number of files to convert in parallel (default: number of CPU cores)");
+        System.err.println("  --io <n|r/w|auto> limit the concurrent reads and writes per storage device to n each, or to");
+        System.err.println("                  r reads and w writes; auto tunes the limits from the measured throughput");
+        System.err.println("                  (default: no limits)");
+        System.err.println("  --method <m>    the removal method or quality tier: " + RemovalStrategies.getChoices());
+        System.err.println("                  (default: interpolate)");
+        System.err.println("  --dry-run       don't modify anything, print the dot set and the dot statistics for each file;");
+        System.err.println("                  the exit code is 0 only if all files could be converted");
+        System.err.println("  --preflight     only read the file headers and print the resolution, dot count and problems");
+        System.err.println("                  of each file; the exit code is 0 only if all files are supported");
+        System.err.println("  --frames <a-b>  convert only the frames a to b (inclusive, counting from 0) of RAW files");
+        System.err.println("  --shard <k/n>   convert only the k-th of n equally sized frame ranges of RAW files (1 <= k <= n);");
+        System.err.println("                  completed ranges are recorded in <file>.frames-<a>-<b>.done");
+        System.err.println("  --file-shard <k/n> process only the k-th of n disjoint parts of the files; a file's part depends");
+        System.err.println("                  only on its name, so several machines can split a directory without overlap");
+        System.err.println("  --verify-shards check that the completed ranges of RAW files cover all frames and are intact");
+        System.err.println("  --digest        write the SHA-256 of each converted file to <file>.sha256; RAW files (only");
+        System.err.println("                  without ranges) and DNGs without row access are read again for it");
+        System.err.println("  --no-undo       don't record the original dot values of RAW files in <file>.undo");
+        System.err.println("  --undo          restore the original dot values of RAW files from their undo sidecars instead");
+        System.err.println("                  of converting them; the sidecars are deleted afterwards");
+        System.err.println("  --serve <port>  run an HTTP conversion service on localhost instead of converting files;");
+        System.err.println("                  --threads sets the number of parallel conversions");
+        System.err.println("  --queue <n>     number of requests that may wait for a worker (default: 16)");
+        System.err.println();
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * Row based access to the frames of a Magic Lantern RAW file.
+ *
+ * The file consists of all frames, each packed as MSB first bit stream in
+ * 16 bit little endian words, followed by the lv_rec footer. Only the rows
+ * with dots are read from a frame and only the modified rows are written
+ * back to their original position, so the conversion reads and writes a
+ * small fraction of the file. The bit depth is taken from the footer; 10, 12
+ * and 14 bit frames are handled by dedicated codecs, see PackedRowCodec.
+ *
+ * The file channel is opened on first use and has to be released with close().
+ *
+ * The band of a frame can be passed to readBand() again for the next frame;
+ * its rows and the read buffer are then reused, so that converting a file
+ * doesn't allocate memory per frame.
+ *
+ * The content digest of a converted file is calculated frame by frame with
+ * updateDigest(): the rows of the converted band are taken from memory and
+ * only the remaining rows are read, so the written rows are never read back.
+ */
+public class RawFile extends LoggingClass {
+
+    /**
+     * The size of the lv_rec footer
+     */
+    public static final int FOOTER_SIZE = 192;
+
+    /**
+     * The file offset of raw_info within the footer
+     */
+    protected static final int RAW_INFO_OFFSET = 32;
+
+    /**
+     * The file name
+     */
+    protected final String fileName;
+
+    /**
+     * Image properties from the footer
+     */
+    protected final int width;
+    protected final int height;
+    protected final int frameSize;
+    protected final int frameCount;
+    protected final int bitsPerSample;
+
+    /**
+     * The number of bytes per row
+     */
+    protected final int pitch;
+
+    /**
+     * The channel for reading and writing frames; null if it hasn't been opened yet
+     */
+    protected FileChannel channel = null;
+
+    /**
+     * True if the channel has been opened for writing
+     */
+    protected boolean writable = false;
+
+    /**
+     * The read buffer for the bands; allocated on first use and reused for all frames
+     */
+    protected ByteBuffer bandBuffer = null;
+
+    /**
+     * The read buffer for the output digest; allocated on first use
+     */
+    protected ByteBuffer digestBuffer = null;
+
+    /**
+     * Constructor
+     */
+    protected RawFile(String fName, int _width, int _height, int _frameSize, int _frameCount, int _bitsPerSample)
+    {
+        fileName = fName;
+        width = _width;
+        height = _height;
+        frameSize = _frameSize;
+        frameCount = _frameCount;
+        bitsPerSample = _bitsPerSample;
+        pitch = width * bitsPerSample / 8;
+    }
+
+    /**
+     * Opens a RAW file for row based access
+     *
+     * @param fName the RAW file
+     *
+     * @return the opened file or null if the file's layout is not supported
+     *
+     * @throws IOException if the file can't be read
+     */
+    public static RawFile open(String fName) throws IOException
+    {
+        FileChannel ch = FileChannel.open(Paths.get(fName), StandardOpenOption.READ);
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long fileSize;
+        try
+        {
+            fileSize = ch.size();
+            if (fileSize < FOOTER_SIZE) return null;
+
+            long pos = fileSize - FOOTER_SIZE;
+            while (footer.hasRemaining())
+            {
+                int n = ch.read(footer, pos);
+                if (n < 0) return null;
+                pos += n;
+            }
+        }
+        finally
+        {
+            ch.close();
+        }
+
+        if ((footer.get(0) != 'R') || (footer.get(1) != 'A') || (footer.get(2) != 'W') || (footer.get(3) != 'M')) return null;
+
+        int w = footer.getShort(4) & 0xffff;
+        int h = footer.getShort(6) & 0xffff;
+        int frameSize = footer.getInt(8);
+        int frameCount = footer.getInt(12);
+        int bits = footer.getInt(RAW_INFO_OFFSET + 24);
+
+        // all frames must be inside the file
+        if ((!(isSupportedLayout(w, h, bits))) || (frameCount <= 0) || ((long) w * bits / 8 * h > frameSize)) return null;
+        if ((long) frameSize * frameCount > fileSize - FOOTER_SIZE) return null;
+
+        return new RawFile(fName, w, h, frameSize, frameCount, bits);
+    }
+
+    /**
+     * Checks whether frames of a given layout can be accessed
+     *
+     * @param w the frame width
+     * @param h the frame height
+     * @param bits the number of bits per pixel
+     *
+     * @return true if the bit depth is supported and rows consist of complete 16 bit words
+     */
+    public static boolean isSupportedLayout(int w, int h, int bits)
+    {
+        return (w > 0) && (h > 0) && (bits >= 8) && (bits <= 16) && ((w * bits) % 16 == 0);
+    }
+
+    /**
+     * @param w the frame width
+     * @param h the frame height
+     * @param bits the number of bits per pixel
+     *
+     * @return the size of a packed frame in bytes
+     *
+     * @throws IllegalArgumentException if the layout is not supported
+     */
+    public static int getFrameSize(int w, int h, int bits)
+    {
+        if (!(isSupportedLayout(w, h, bits))) throw new IllegalArgumentException("Unsupported frame layout " + w + "x" + h + ", " + bits + " bits");
+        if ((long) w * bits / 8 * h > Integer.MAX_VALUE) throw new IllegalArgumentException("Frame too large");
+
+        return w * bits / 8 * h;
+    }
+
+    /**
+     * Reads a band of rows of a single frame in memory, packed like the frames of a RAW file
+     *
+     * @param frame the frame from the buffer's position; neither the buffer's contents nor its position are changed
+     * @param w the frame width
+     * @param h the frame height
+     * @param bits the number of bits per pixel
+     * @param y0 the first row to read
+     * @param y1 the row after the last row to read
+     *
+     * @return the band; its row offsets are relative to the start of the frame, see CfaBand.writeModified(ByteBuffer)
+     *
+     * @throws IllegalArgumentException if the layout is not supported or the buffer is smaller than a frame
+     */
+    public static CfaBand readBand(ByteBuffer frame, int w, int h, int bits, int y0, int y1)
+    {
+        if (frame.remaining() < getFrameSize(w, h, bits)) throw new IllegalArgumentException("The buffer is smaller than a frame");
+
+        int rowBytes = w * bits / 8;
+        CfaBand band = new CfaBand(w, h, y0, y1, bits, true, true, w, 1);
+        ByteBuffer src = frame.duplicate();
+        for (int y = y0; y < y1; y++)
+        {
+            byte[] row = new byte[rowBytes];
+            src.position(frame.position() + y * rowBytes);
+            src.get(row);
+            band.setSegment(y, 0, (long) y * rowBytes, row);
+        }
+
+        return band;
+    }
+
+    /**
+     * @return the width of the frames
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return the height of the frames
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return the number of frames
+     */
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * @return the number of bits per pixel
+     */
+    public int getBitsPerSample()
+    {
+        return bitsPerSample;
+    }
+
+    /**
+     * Opens the channel on first use or reopens it for writing
+     *
+     * @param write true if the channel will be used for writing
+     *
+     * @return the channel
+     *
+     * @throws IOException if the file can't be opened
+     */
+    protected FileChannel getChannel(boolean write) throws IOException
+    {
+        if ((channel != null) && (writable || !(write))) return channel;
+
+        close();
+        if (write) channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        else channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        writable = write;
+
+        return channel;
+    }
+
+    /**
+     * Releases the file channel; the file is reopened if it's used again
+     */
+    public void close()
+    {
+        if (channel == null) return;
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            failed("Could not close ", fileName, ": ", e.getMessage());
+        }
+        channel = null;
+    }
+
+    /**
+     * Reads a band of rows of a frame
+     *
+     * @param frame the frame number
+     * @param y0 the first row to read
+     * @param y1 the row after the last row to read
+     *
+     * @return the band with the packed pixel data of the requested rows
+     *
+     * @throws IOException in case of read errors
+     */
+    public CfaBand readBand(int frame, int y0, int y1) throws IOException
+    {
+        return readBand(frame, y0, y1, null);
+    }
+
+    /**
+     * Reads a band of rows of a frame into the band of a previous frame, so
+     * that the rows of a file are allocated only once
+     *
+     * @param frame the frame number
+     * @param y0 the first row to read
+     * @param y1 the row after the last row to read
+     * @param reuse a band returned by an earlier call; it is refilled if it has the same rows, otherwise a new band is returned. May be null.
+     *
+     * @return the band with the packed pixel data of the requested rows; the previous content of reuse is lost
+     *
+     * @throws IOException in case of read errors
+     */
+    public CfaBand readBand(int frame, int y0, int y1, CfaBand reuse) throws IOException
+    {
+        if ((frame < 0) || (frame >= frameCount)) throw new IllegalArgumentException("Invalid frame " + frame);
+
+        CfaBand band = reuse;
+        if ((band == null) || !(band.hasLayout(width, height, y0, y1, bitsPerSample)))
+        {
+            band = new CfaBand(width, height, y0, y1, bitsPerSample, true, true, width, 1);
+        }
+        FileChannel ch = getChannel(false);
+
+        // one read for the whole band, split into rows afterwards
+        int len = (y1 - y0) * pitch;
+        if ((bandBuffer == null) || (bandBuffer.capacity() < len)) bandBuffer = ByteBuffer.allocate(len);
+        ByteBuffer buf = bandBuffer;
+        buf.clear();
+        buf.limit(len);
+        long start = (long) frame * frameSize + (long) y0 * pitch;
+        long pos = start;
+        while (buf.hasRemaining())
+        {
+            int n = ch.read(buf, pos);
+            if (n < 0) throw new IOException("Unexpected end of file in frame " + frame);
+            pos += n;
+        }
+
+        byte[] all = buf.array();
+        for (int y = y0; y < y1; y++)
+        {
+            band.fillSegment(y, 0, start + (long) (y - y0) * pitch, all, (y - y0) * pitch, pitch);
+        }
+
+        return band;
+    }
+
+    /**
+     * Reads the rows of a frame that contain dots plus the rows that the
+     * interpolation needs as neighbors
+     *
+     * @param frame the frame number
+     * @param plan the dot locations
+     *
+     * @return the band
+     *
+     * @throws IOException in case of read errors
+     */
+    public CfaBand readDotBand(int frame, DotPlan plan) throws IOException
+    {
+        return readDotBand(frame, plan, null);
+    }
+
+    /**
+     * Same as readDotBand() above, but refills the band of a previous frame, see readBand(int, int, int, CfaBand)
+     *
+     * @param frame the frame number
+     * @param plan the dot locations
+     * @param reuse a band returned by an earlier call or null
+     *
+     * @return the band
+     *
+     * @throws IOException in case of read errors
+     */
+    public CfaBand readDotBand(int frame, DotPlan plan, CfaBand reuse) throws IOException
+    {
+        return readBand(frame, plan.getBandStart(height), plan.getBandEnd(height), reuse);
+    }
+
+    /**
+     * Writes the modified rows of a band back to the file
+     *
+     * @param band a band read from this file and modified afterwards
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException in case of write errors
+     */
+    public long writeBand(CfaBand band) throws IOException
+    {
+        return band.writeModified(getChannel(true));
+    }
+
+    /**
+     * Feeds a converted frame into the digest of the whole file; must be called for all
+     * frames in ascending order, followed by updateDigestTrailer(). The rows outside the
+     * band are read from the file again, so this is almost a full read of the frame.
+     *
+     * @param md the digest
+     * @param frame the frame number
+     * @param band the converted band of the frame as passed to writeBand(); its rows are not read again
+     *
+     * @return the number of bytes read from the file
+     *
+     * @throws IOException in case of read errors
+     */
+    public long updateDigest(MessageDigest md, int frame, CfaBand band) throws IOException
+    {
+        long start = (long) frame * frameSize;
+        long bytes = digestRange(md, start, start + (long) band.getFirstRow() * pitch);
+        for (int y = band.getFirstRow(); y < band.getEndRow(); y++) md.update(band.getSegment(y, 0));
+        bytes += digestRange(md, start + (long) band.getEndRow() * pitch, start + frameSize);
+
+        return bytes;
+    }
+
+    /**
+     * Feeds everything after the last frame, including the footer, into the digest of the whole file
+     *
+     * @param md the digest
+     *
+     * @return the number of bytes read from the file
+     *
+     * @throws IOException in case of read errors
+     */
+    public long updateDigestTrailer(MessageDigest md) throws IOException
+    {
+        FileChannel ch = getChannel(false);
+        return digestRange(md, (long) frameCount * frameSize, ch.size());
+    }
+
+    /**
+     * Feeds a range of the file into a digest
+     *
+     * @param md the digest
+     * @param from the first byte
+     * @param to the byte after the last byte
+     *
+     * @return the number of bytes read
+     *
+     * @throws IOException in case of read errors
+     */
+    protected long digestRange(MessageDigest md, long from, long to) throws IOException
+    {
+        if (from >= to) return 0;
+
+        FileChannel ch = getChannel(false);
+        if (digestBuffer == null) digestBuffer = ByteBuffer.allocate(1 << 20);
+        ByteBuffer buf = digestBuffer;
+        long pos = from;
+        while (pos < to)
+        {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), to - pos));
+            int n = ch.read(buf, pos);
+            if (n < 0) throw new IOException("Unexpected end of file at " + pos);
+
+            md.update(buf.array(), 0, n);
+            pos += n;
+        }
+
+        return to - from;
+    }
+
+    /**
+     * Prints the image layout to the debug log
+     */
+    public void dumpInfo()
+    {
+        dbg("RAW ", fileName, ": ", frameCount, " frames of ", width, "x", height, ", ", bitsPerSample,
+                " bits per pixel, ", frameSize, " bytes per frame");
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.nodomain.volkerk.SimpleTIFFlib.Generic_CFA_PixBuf;
+
+/**
+ * The registry of all removal strategies.
+ *
+ * The built-in strategies are registered on class initialization; further
+ * strategies can be registered by the application before the conversion starts.
+ * All same-colored neighbors of a pixel in a Bayer CFA image are two pixels away.
+ * The built-in strategies skip neighbors that are dots themselves, unless all
+ * candidates are dots.
+ */
+public class RemovalStrategies {
+
+    /**
+     * The directional interpolation along the smallest gradient of the "X"-like neighbors
+     */
+    public static final RemovalStrategy INTERPOLATE = new Gradient();
+
+    /**
+     * Sets dots to 0 and leaves the interpolation to the RAW processor
+     */
+    public static final RemovalStrategy MARK = new Mark();
+
+    /**
+     * Copies the nearest same-colored pixel in the same row
+     */
+    public static final RemovalStrategy NEAREST = new Nearest();
+
+    /**
+     * The median of all eight same-colored neighbors
+     */
+    public static final RemovalStrategy MEDIAN = new Median();
+
+    /**
+     * All registered strategies in the order of registration
+     */
+    protected static final ArrayList<RemovalStrategy> registry = new ArrayList<RemovalStrategy>();
+
+    static
+    {
+        register(INTERPOLATE);
+        register(MARK);
+        register(NEAREST);
+        register(MEDIAN);
+    }
+
+    /**
+     * Registers a strategy
+     *
+     * @param s the strategy
+     *
+     * @throws IllegalArgumentException if a strategy with the same name has already been registered
+     */
+    public static synchronized void register(RemovalStrategy s)
+    {
+        if (get(s.getName()) != null) throw new IllegalArgumentException("Strategy " + s.getName() + " has already been registered");
+        if (s.getNeighborhood() < 0) throw new IllegalArgumentException("Strategy " + s.getName() + " has a negative neighborhood");
+
+        registry.add(s);
+    }
+
+    /**
+     * @return all registered strategies, sorted by their cost
+     */
+    public static synchronized List<RemovalStrategy> getAll()
+    {
+        ArrayList<RemovalStrategy> result = new ArrayList<RemovalStrategy>(registry);
+        Collections.sort(result, new Comparator<RemovalStrategy>() {
+            public int compare(RemovalStrategy a, RemovalStrategy b)
+            {
+                return (a.getCost() < b.getCost()) ? -1 : ((a.getCost() == b.getCost()) ? 0 : 1);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * @param name the name of a strategy (case insensitive)
+     *
+     * @return the strategy or null if there's no strategy with this name
+     */
+    public static synchronized RemovalStrategy get(String name)
+    {
+        for (RemovalStrategy s : registry)
+        {
+            if (s.getName().equalsIgnoreCase(name)) return s;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param tier the tier
+     *
+     * @return the first registered strategy for the tier
+     */
+    public static synchronized RemovalStrategy forTier(RemovalStrategy.Tier tier)
+    {
+        for (RemovalStrategy s : registry)
+        {
+            if (s.getTier() == tier) return s;
+        }
+
+        return null;
+    }
+
+    /**
+     * Looks up a strategy by its name or by the name of a tier
+     *
+     * @param nameOrTier the name of a strategy or a tier (case insensitive), e.g. "median" or "preview"
+     *
+     * @return the strategy or null if there's no such strategy or tier
+     */
+    public static RemovalStrategy find(String nameOrTier)
+    {
+        RemovalStrategy result = get(nameOrTier);
+        if (result != null) return result;
+
+        for (RemovalStrategy.Tier t : RemovalStrategy.Tier.values())
+        {
+            if (t.name().equalsIgnoreCase(nameOrTier)) return forTier(t);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the names of all strategies and tiers, e.g. for help texts
+     */
+    public static String getChoices()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (RemovalStrategy s : getAll()) sb.append(s.getName()).append(", ");
+        for (RemovalStrategy.Tier t : RemovalStrategy.Tier.values()) sb.append(t.name().toLowerCase()).append(", ");
+
+        return sb.substring(0, sb.length() - 2);
+    }
+
+    /**
+     * Checks whether a neighbor of a dot has to be skipped
+     *
+     * @param dots the mask of all dots; may be null
+     * @param x the neighbor's x-coordinate
+     * @param y the neighbor's y-coordinate
+     *
+     * @return true if the neighbor is a dot itself
+     */
+    protected static boolean isDot(DotMask dots, int x, int y)
+    {
+        return (dots != null) && dots.isDot(x, y);
+    }
+
+    /**
+     * Interpolates between the pair of "X"-like neighbors with the smallest intensity gradient
+     */
+    static class Gradient implements RemovalStrategy
+    {
+        /**
+         * The offsets {dx1, dy1, dx2, dy2} of the pairs of opposite neighbors in the order of
+         * preference for equal gradients: top-down, left-right, top-left / down-right, top-right / down-left
+         */
+        protected static final int[][] PAIRS = new int[][] {
+            {0, -2, 0, 2},
+            {-2, 0, 2, 0},
+            {-2, -2, 2, 2},
+            {2, -2, -2, 2}
+        };
+
+        public String getName()
+        {
+            return "interpolate";
+        }
+
+        public String getDescription()
+        {
+            return "Interpolate";
+        }
+
+        public Tier getTier()
+        {
+            return Tier.STANDARD;
+        }
+
+        public int getNeighborhood()
+        {
+            return 2;
+        }
+
+        public int getCost()
+        {
+            return 100;
+        }
+
+        public boolean canFix(int x, int y, int w, int h)
+        {
+            return !((x < 2) || (x > (w - 3)) || (y < 2) || (y > (h - 4)));
+        }
+
+        public int getValue(Generic_CFA_PixBuf srcBuf, int x, int y, DotMask dots)
+        {
+            // use the pair with the minimum intensity gradient, preferably
+            // among the pairs without dots and among all pairs otherwise
+            for (int pass = 0; pass < 2; pass++)
+            {
+                int minG = Integer.MAX_VALUE;
+                double newVal = 0;
+                for (int[] p : PAIRS)
+                {
+                    if ((pass == 0) && (isDot(dots, x + p[0], y + p[1]) || isDot(dots, x + p[2], y + p[3]))) continue;
+
+                    int a = srcBuf.CFA_getPixel(x + p[0], y + p[1]);
+                    int b = srcBuf.CFA_getPixel(x + p[2], y + p[3]);
+                    int g = Math.abs(a - b);
+                    if (g < minG)
+                    {
+                        minG = g;
+                        newVal = (a + b) * 0.5;
+                    }
+                }
+                if (minG != Integer.MAX_VALUE) return (int) newVal;
+            }
+
+            // not reached, the second pass uses all pairs
+            return srcBuf.CFA_getPixel(x, y);
+        }
+    }
+
+    /**
+     * Sets the pixel to 0, which RAW processors treat as a dead pixel
+     */
+    static class Mark implements RemovalStrategy
+    {
+        public String getName()
+        {
+            return "mark";
+        }
+
+        public String getDescription()
+        {
+            return "Set Dead Pixel";
+        }
+
+        public Tier getTier()
+        {
+            return null;
+        }
+
+        public int getNeighborhood()
+        {
+            return 0;
+        }
+
+        public int getCost()
+        {
+            return 5;
+        }
+
+        public boolean canFix(int x, int y, int w, int h)
+        {
+            return !((x < 0) || (x >= w) || (y < 0) || (y >= h));
+        }
+
+        public int getValue(Generic_CFA_PixBuf srcBuf, int x, int y, DotMask dots)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Copies the same-colored pixel to the left, or to the right at the left image border
+     */
+    static class Nearest implements RemovalStrategy
+    {
+        public String getName()
+        {
+            return "nearest";
+        }
+
+        public String getDescription()
+        {
+            return "Copy Neighbor (Preview)";
+        }
+
+        public Tier getTier()
+        {
+            return Tier.PREVIEW;
+        }
+
+        public int getNeighborhood()
+        {
+            return 2;
+        }
+
+        public int getCost()
+        {
+            return 10;
+        }
+
+        public boolean canFix(int x, int y, int w, int h)
+        {
+            return !((x < 0) || (x >= w) || (y < 0) || (y >= h) || ((x < 2) && (x + 2 >= w)));
+        }
+
+        public int getValue(Generic_CFA_PixBuf srcBuf, int x, int y, DotMask dots)
+        {
+            // the right neighbor if the left one is a dot or outside of the image
+            boolean right = (x < 2) || (isDot(dots, x - 2, y) && (x + 2 < srcBuf.imgWidth()) && !(isDot(dots, x + 2, y)));
+
+            return srcBuf.CFA_getPixel(right ? x + 2 : x - 2, y);
+        }
+    }
+
+    /**
+     * The median of the eight same-colored neighbors without dots; robust
+     * against outliers like hot pixels
+     */
+    static class Median implements RemovalStrategy
+    {
+        public String getName()
+        {
+            return "median";
+        }
+
+        public String getDescription()
+        {
+            return "Median (Master)";
+        }
+
+        public Tier getTier()
+        {
+            return Tier.MASTER;
+        }
+
+        public int getNeighborhood()
+        {
+            return 2;
+        }
+
+        public int getCost()
+        {
+            return 180;
+        }
+
+        public boolean canFix(int x, int y, int w, int h)
+        {
+            return !((x < 2) || (x > (w - 3)) || (y < 2) || (y > (h - 3)));
+        }
+
+        public int getValue(Generic_CFA_PixBuf srcBuf, int x, int y, DotMask dots)
+        {
+            int[] v = new int[8];
+            int n = 0;
+            for (int pass = 0; (pass < 2) && (n == 0); pass++)
+            {
+                for (int dy = -2; dy <= 2; dy += 2)
+                {
+                    for (int dx = -2; dx <= 2; dx += 2)
+                    {
+                        if ((dx == 0) && (dy == 0)) continue;
+                        if ((pass == 0) && isDot(dots, x + dx, y + dy)) continue;
+
+                        v[n++] = srcBuf.CFA_getPixel(x + dx, y + dy);
+                    }
+                }
+            }
+            Arrays.sort(v, 0, n);
+
+            return (v[(n - 1) / 2] + v[n / 2]) / 2;
+        }
+    }
+}
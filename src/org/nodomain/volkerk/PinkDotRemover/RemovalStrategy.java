@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import org.nodomain.volkerk.SimpleTIFFlib.Generic_CFA_PixBuf;
+
+/**
+ * Calculates the new value of a dot pixel.
+ *
+ * A strategy only reads pixels within its neighborhood around the dot, so
+ * the engine reads only these rows or tiles of an image, and it must be
+ * stateless: the same instance is used by several threads at the same time.
+ * Strategies should avoid neighbors that are dots themselves, see DotMask.
+ * Strategies are registered in RemovalStrategies.
+ */
+public interface RemovalStrategy
+{
+    /**
+     * The quality tiers; each tier has a default strategy, see RemovalStrategies.forTier()
+     */
+    enum Tier
+    {
+        /**
+         * Fast, for previews and proxies
+         */
+        PREVIEW,
+
+        /**
+         * The regular conversion
+         */
+        STANDARD,
+
+        /**
+         * Best quality for masters, at a higher cost
+         */
+        MASTER
+    }
+
+    /**
+     * @return the unique name that is used on the command line, by the HTTP service and in shard markers
+     */
+    String getName();
+
+    /**
+     * @return a short description for the GUI
+     */
+    String getDescription();
+
+    /**
+     * @return the tier that this strategy is the default for or null if it's not the default for any tier
+     */
+    Tier getTier();
+
+    /**
+     * @return the maximum distance in pixels between a dot and a pixel that is read for fixing it
+     */
+    int getNeighborhood();
+
+    /**
+     * @return the relative cost per dot; the directional interpolation has a cost of 100
+     */
+    int getCost();
+
+    /**
+     * Checks whether a dot can be fixed; dots that can't be fixed remain unmodified
+     *
+     * @param x the dot's x-coordinate
+     * @param y the dot's y-coordinate
+     * @param w the image width
+     * @param h the image height
+     *
+     * @return true if the dot is inside the image and all pixels read for it are inside the image
+     */
+    boolean canFix(int x, int y, int w, int h);
+
+    /**
+     * Calculates the new value of a dot pixel; only called if canFix() returned true
+     *
+     * @param srcBuf the unmodified image
+     * @param x the dot's x-coordinate
+     * @param y the dot's y-coordinate
+     * @param dots the mask of all dots of the image; null if the neighbors aren't checked
+     *
+     * @return the new pixel value
+     */
+    int getValue(Generic_CFA_PixBuf srcBuf, int x, int y, DotMask dots);
+}
@@ -7,78 +7,220 @@ package org.nodomain.volkerk.PinkDotRemover;
 import java.io.File;
 import javax.swing.SwingWorker;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JOptionPane;
 
 /**
- *
+ * Runs a BatchConverter in the background. The main window polls the progress
+ * and the changed jobs on a timer, so the conversion threads never wait for
+ * the event dispatch thread.
+ * 
  * @author volker
  */
-public class RemoverWorker extends SwingWorker<ArrayList<File>, Integer>
+public class RemoverWorker extends SwingWorker<Void, Void> implements BatchConverter.Listener
 {
-    protected ArrayList<File> fList;
+    /**
+     * The jobs to start with
+     */
+    protected ArrayList<ConversionJob> initialJobs;
+    
+    /**
+     * File --> job for all files of this conversion, including files that have been added later on
+     */
+    protected ConcurrentHashMap<File, ConversionJob> jobsByFile;
+    
+    /**
+     * Released by closeInput(); the conversion can't finish before
+     */
+    protected CountDownLatch inputClosed;
+    
+    /**
+     * Set by closeInput(); only accessed on the event dispatch thread
+     */
+    protected boolean inputClosedFlag;
     protected MainFrame parent;
-    protected boolean doInterpolation;
+    protected RemovalStrategy strategy;
     protected DotLocationDB db;
     protected String camType;
     
-    public RemoverWorker(MainFrame _parent, DotLocationDB _db, String _camType, ArrayList<File> _fList, boolean _doInterpolation)
+    /**
+     * The conversion engine
+     */
+    protected BatchConverter batch;
+    
+    /**
+     * The number of files that have been finished (successfully or not)
+     */
+    protected AtomicInteger processedFiles;
+    
+    /**
+     * The number of files that have been skipped because of cancellation
+     */
+    protected AtomicInteger skippedFiles;
+    
+    /**
+     * Jobs whose status has changed since the main window's last poll
+     */
+    protected ConcurrentLinkedQueue<ConversionJob> changedJobs;
+    
+    public RemoverWorker(MainFrame _parent, DotLocationDB _db, String _camType, List<ConversionJob> jobs, RemovalStrategy _strategy, int threadCount)
     {
-        fList = _fList;
+        initialJobs = new ArrayList<ConversionJob>(jobs);
+        jobsByFile = new ConcurrentHashMap<File, ConversionJob>();
+        for (ConversionJob job : jobs) jobsByFile.put(job.getFile(), job);
+        inputClosed = new CountDownLatch(1);
+        inputClosedFlag = false;
         parent = _parent;
-        doInterpolation = _doInterpolation;
+        strategy = _strategy;
         db = _db;
         camType = _camType;
+        processedFiles = new AtomicInteger();
+        skippedFiles = new AtomicInteger();
+        changedJobs = new ConcurrentLinkedQueue<ConversionJob>();
+        
+        batch = new BatchConverter(db, camType, strategy, threadCount, this);
     }
     
     @Override
-    protected ArrayList<File> doInBackground()
+    protected Void doInBackground() throws InterruptedException
     {
-        int processedFiles = 0;
+        for (ConversionJob job : initialJobs) batch.submit(job.getFile());
         
-        int i=0;
-        while (i < fList.size())
-        {
-            File f = fList.get(i);
-            
-            // try to convert the file
-            PinkDotRemover pdr;
-            try
-            {
-                pdr = new PinkDotRemover(f.toString(), db, camType);
-                if (!(pdr.doRemoval(doInterpolation)))
-                {
-                    i++;
-                }
-                else
-                {
-                    fList.remove(i);
-                }
-            }
-            catch (Exception e)
-            {
-                i++;
-            }
-            
-            processedFiles++;
-            publish(processedFiles);
-        }
+        // further files might be added until the input is closed
+        inputClosed.await();
+        batch.awaitCompletion();
         
-        return fList;
+        return null;
     }
     
-    @Override
-    protected void process(List<Integer> count)
+    /**
+     * Adds a file to the running conversion. Must be called on the event dispatch thread.
+     * 
+     * @param job the job for the file
+     * 
+     * @return true if the file has been queued, false if the input has already been closed
+     */
+    public boolean submit(ConversionJob job)
     {
-        for (int i : count) parent.globalUpdateHook(fList, i);
+        if (inputClosedFlag) return false;
+        if (jobsByFile.putIfAbsent(job.getFile(), job) != null) return false;
+        
+        batch.submit(job.getFile());
+        return true;
+    }
+    
+    /**
+     * Declares that no further files will be submitted; the conversion
+     * finishes as soon as all files have been processed. Must be called
+     * on the event dispatch thread.
+     */
+    public void closeInput()
+    {
+        inputClosedFlag = true;
+        inputClosed.countDown();
+    }
+    
+    /**
+     * Stops the conversion after the current frame of each file that is being converted.
+     * Must be called on the event dispatch thread.
+     */
+    public void cancelConversion()
+    {
+        batch.cancel();
+        closeInput();
+    }
+    
+    /**
+     * @return true if the conversion has been cancelled
+     */
+    public boolean isConversionCancelled()
+    {
+        return batch.isCancelled();
+    }
+    
+    /**
+     * @return the frame and byte progress of the conversion
+     */
+    public ConversionProgress getConversionProgress()
+    {
+        return batch.getProgress();
+    }
+    
+    /**
+     * @return the number of files in this conversion
+     */
+    public int getFileCount()
+    {
+        return jobsByFile.size();
+    }
+    
+    /**
+     * @return the number of files that have been finished (successfully or not)
+     */
+    public int getProcessedFiles()
+    {
+        return processedFiles.get();
+    }
+    
+    /**
+     * Retrieves the next job whose status has changed since the last call
+     * 
+     * @return the job or null if there are no more changes
+     */
+    public ConversionJob pollChangedJob()
+    {
+        return changedJobs.poll();
+    }
+    
+    /**
+     * Sets the new status of a job and queues the job for repainting
+     * 
+     * @param f the file of the job
+     * @param s the new status
+     */
+    protected void setStatus(File f, ConversionJob.Status s)
+    {
+        ConversionJob job = jobsByFile.get(f);
+        if (job == null) return;
+        
+        job.setStatus(s);
+        changedJobs.offer(job);
+    }
+    
+    public void fileStarted(File f)
+    {
+        setStatus(f, ConversionJob.Status.RUNNING);
+    }
+    
+    public void fileFinished(File f, boolean success)
+    {
+        setStatus(f, success ? ConversionJob.Status.DONE : ConversionJob.Status.FAILED);
+        processedFiles.incrementAndGet();
+    }
+    
+    public void fileSkipped(File f)
+    {
+        // the file remains queued
+        setStatus(f, ConversionJob.Status.QUEUED);
+        skippedFiles.incrementAndGet();
     }
     
     @Override
     protected void done()
     {
-        parent.globalUpdateHook(fList, -1);
-        if (fList.size() != 0)
+        parent.conversionFinished();
+        
+        int failed = batch.getFailCount();
+        if (batch.isCancelled())
+        {
+            JOptionPane.showMessageDialog(parent, "Conversion cancelled; " + (failed + skippedFiles.get()) + " file(s) have not been converted completely", "Cancelled", JOptionPane.WARNING_MESSAGE);
+        }
+        else if (failed != 0)
         {
-            JOptionPane.showMessageDialog(parent, "One or more files could not be converted", "Error", JOptionPane.ERROR_MESSAGE);
+            JOptionPane.showMessageDialog(parent, failed + " file(s) could not be converted", "Error", JOptionPane.ERROR_MESSAGE);
         }
         else
         {
@@ -0,0 +1,236 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.nodomain.volkerk.SimpleTIFFlib.Generic_CFA_PixBuf;
+
+/**
+ * Fixes the dots of a single image on several threads.
+ *
+ * The row sorted dot list is split recursively into bands of complete rows.
+ * All bands read from the same unmodified source image and write to disjoint
+ * rows of the destination image, so no locking is needed as long as the
+ * destination stores each row separately (see isRowSafe()).
+ */
+public class RowBandKernel extends RecursiveAction {
+
+    /**
+     * Images with fewer dots are always processed by the calling thread;
+     * below this size, the fork / join overhead outweighs the gain
+     */
+    public static final int PARALLEL_MIN_DOTS = 65536;
+
+    /**
+     * The minimum number of dots per band
+     */
+    protected static final int MIN_BAND_DOTS = 8192;
+
+    /**
+     * The pool for all kernels; created on first use
+     */
+    protected static ForkJoinPool pool = null;
+
+    /**
+     * The remover that provides the actual pixel operations
+     */
+    protected final PinkDotRemover remover;
+
+    /**
+     * The unmodified source image
+     */
+    protected final Generic_CFA_PixBuf srcBuf;
+
+    /**
+     * The destination image
+     */
+    protected final Generic_CFA_PixBuf dstBuf;
+
+    /**
+     * All dots, sorted by rows
+     */
+    protected final int[][] dots;
+
+    /**
+     * The first dot of this band and the dot after the last dot of this band
+     */
+    protected final int from;
+    protected final int to;
+
+    /**
+     * Calculates the new pixel values
+     */
+    protected final RemovalStrategy strategy;
+
+    /**
+     * The mask of all dots of the image
+     */
+    protected final DotMask mask;
+
+    /**
+     * The minimum number of dots per band
+     */
+    protected final int minBandDots;
+
+    /**
+     * Constructor for a band of dots
+     *
+     * @param _remover the remover that provides the actual pixel operations
+     * @param _srcBuf the unmodified source image
+     * @param _dstBuf the destination image
+     * @param _dots all dots, sorted by rows
+     * @param _from the first dot of this band
+     * @param _to the dot after the last dot of this band
+     * @param _strategy calculates the new pixel values
+     * @param _mask the mask of all dots of the image
+     * @param _minBandDots the minimum number of dots per band
+     */
+    protected RowBandKernel(PinkDotRemover _remover, Generic_CFA_PixBuf _srcBuf, Generic_CFA_PixBuf _dstBuf,
+            int[][] _dots, int _from, int _to, RemovalStrategy _strategy, DotMask _mask, int _minBandDots)
+    {
+        remover = _remover;
+        srcBuf = _srcBuf;
+        dstBuf = _dstBuf;
+        dots = _dots;
+        from = _from;
+        to = _to;
+        strategy = _strategy;
+        mask = _mask;
+        minBandDots = _minBandDots;
+    }
+
+    /**
+     * Checks whether it's worth to fix the dots of an image on several threads
+     *
+     * @param dstBuf the destination image
+     * @param dotCount the number of dots in the image
+     * @param strategy the removal strategy; cheaper strategies need more dots
+     *
+     * @return true if the image is large enough and can be written concurrently
+     */
+    public static boolean isWorthwhile(Generic_CFA_PixBuf dstBuf, int dotCount, RemovalStrategy strategy)
+    {
+        return isWorthwhile(dstBuf, dotCount, strategy, PARALLEL_MIN_DOTS);
+    }
+
+    /**
+     * Same as isWorthwhile() above, but with another threshold, e.g. for
+     * testing the parallel path with small images
+     *
+     * @param dstBuf the destination image
+     * @param dotCount the number of dots in the image
+     * @param strategy the removal strategy; cheaper strategies need more dots
+     * @param minDots the minimum number of dots for the interpolation
+     *
+     * @return true if the image is large enough and can be written concurrently
+     */
+    static boolean isWorthwhile(Generic_CFA_PixBuf dstBuf, int dotCount, RemovalStrategy strategy, int minDots)
+    {
+        // the threshold applies to the interpolation
+        long work = (long) dotCount * strategy.getCost();
+        if (work < (long) minDots * RemovalStrategies.INTERPOLATE.getCost()) return false;
+        if (Runtime.getRuntime().availableProcessors() < 2) return false;
+
+        return isRowSafe(dstBuf);
+    }
+
+    /**
+     * Checks whether different rows of an image can be written by different
+     * threads at the same time. That's only guaranteed for our own image
+     * buffers which keep each row in a separate array; the buffers of the TIFF
+     * library might pack rows without byte alignment.
+     *
+     * @param buf the image buffer
+     *
+     * @return true if concurrent writes to different rows are safe
+     */
+    public static boolean isRowSafe(Generic_CFA_PixBuf buf)
+    {
+        return (buf instanceof PackedBand);
+    }
+
+    /**
+     * Fixes all dots of an image on the shared fork / join pool and waits for the result
+     *
+     * @param remover the remover that provides the actual pixel operations
+     * @param srcBuf the unmodified source image
+     * @param dstBuf the destination image
+     * @param plan the dots of the image
+     * @param strategy calculates the new pixel values
+     */
+    public static void run(PinkDotRemover remover, Generic_CFA_PixBuf srcBuf, Generic_CFA_PixBuf dstBuf,
+            DotPlan plan, RemovalStrategy strategy)
+    {
+        run(remover, srcBuf, dstBuf, plan, strategy, MIN_BAND_DOTS);
+    }
+
+    /**
+     * Same as run() above, but with another band size, e.g. for testing
+     * the splitting with small images
+     *
+     * @param remover the remover that provides the actual pixel operations
+     * @param srcBuf the unmodified source image
+     * @param dstBuf the destination image
+     * @param plan the dots of the image
+     * @param strategy calculates the new pixel values
+     * @param minBandDots the minimum number of dots per band
+     */
+    static void run(PinkDotRemover remover, Generic_CFA_PixBuf srcBuf, Generic_CFA_PixBuf dstBuf,
+            DotPlan plan, RemovalStrategy strategy, int minBandDots)
+    {
+        int[][] dots = plan.getDots();
+        DotMask mask = plan.getMask((int) srcBuf.imgWidth(), (int) srcBuf.imgHeight());
+        getKernelPool().invoke(new RowBandKernel(remover, srcBuf, dstBuf, dots, 0, dots.length, strategy, mask, minBandDots));
+    }
+
+    /**
+     * @return the pool for all kernels
+     */
+    protected static synchronized ForkJoinPool getKernelPool()
+    {
+        if (pool == null) pool = new ForkJoinPool();
+
+        return pool;
+    }
+
+    @Override
+    protected void compute()
+    {
+        if (to - from <= 2 * minBandDots)
+        {
+            processBand();
+            return;
+        }
+
+        // split in the middle, but never within a row
+        int mid = (from + to) / 2;
+        while ((mid < to) && (dots[mid][1] == dots[mid - 1][1])) mid++;
+        if (mid >= to)
+        {
+            processBand();
+            return;
+        }
+
+        invokeAll(new RowBandKernel(remover, srcBuf, dstBuf, dots, from, mid, strategy, mask, minBandDots),
+                new RowBandKernel(remover, srcBuf, dstBuf, dots, mid, to, strategy, mask, minBandDots));
+    }
+
+    /**
+     * Fixes all dots of this band on the current thread
+     */
+    protected void processBand()
+    {
+        remover.fixDots(strategy, srcBuf, dstBuf, dots, from, to, mask);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+import org.nodomain.volkerk.SimpleTIFFlib.Generic_CFA_PixBuf;
+
+/**
+ * A marker file that records the successful conversion of a range of frames
+ * of a RAW file, e.g. by one process of a render farm.
+ *
+ * The marker is named "<raw file>.frames-<first>-<last>.done" and is only
+ * written after all frames of the range have been written back. Besides the
+ * range, it contains a CRC32 of all dot pixels of the range after the
+ * conversion, so that verify() can detect frames that have been overwritten
+ * or never been written back.
+ */
+public class ShardMarker extends LoggingClass {
+
+    protected static final String INFIX = ".frames-";
+    protected static final String SUFFIX = ".done";
+
+    protected final int first;
+    protected final int last;
+    protected final int frameCount;
+    protected final long fileSize;
+    protected final int dotsPerFrame;
+    protected final long checksum;
+    protected final String camType;
+    protected final String mode;
+
+    /**
+     * Constructor
+     *
+     * @param _first the first converted frame
+     * @param _last the last converted frame (inclusive)
+     * @param _frameCount the number of frames in the file
+     * @param _fileSize the size of the RAW file
+     * @param _dotsPerFrame the number of dots per frame
+     * @param _checksum the CRC32 of all dot pixels of the range after the conversion
+     * @param _camType the camera type
+     * @param _mode the name of the removal strategy
+     */
+    public ShardMarker(int _first, int _last, int _frameCount, long _fileSize, int _dotsPerFrame,
+            long _checksum, String _camType, String _mode)
+    {
+        first = _first;
+        last = _last;
+        frameCount = _frameCount;
+        fileSize = _fileSize;
+        dotsPerFrame = _dotsPerFrame;
+        checksum = _checksum;
+        camType = _camType;
+        mode = _mode;
+    }
+
+    /**
+     * @param raw the RAW file
+     * @param first the first frame of the range
+     * @param last the last frame of the range (inclusive)
+     *
+     * @return the marker file for a range of frames
+     */
+    public static File getMarkerFile(File raw, int first, int last)
+    {
+        return new File(raw.getAbsoluteFile().getParentFile(), raw.getName() + INFIX + first + "-" + last + SUFFIX);
+    }
+
+    /**
+     * Adds the values of all dot pixels of a frame to a checksum
+     *
+     * @param crc the checksum
+     * @param buf the frame
+     * @param dots the dot locations in any order; they are checksummed sorted by rows
+     */
+    public static void updateChecksum(CRC32 crc, Generic_CFA_PixBuf buf, int[][] dots)
+    {
+        dots = DotPlan.sortedByRows(dots);
+        int w = (int) buf.imgWidth();
+        int h = (int) buf.imgHeight();
+        for (int[] dot : dots)
+        {
+            if ((dot[0] < 0) || (dot[0] >= w) || (dot[1] < 0) || (dot[1] >= h)) continue;
+
+            int v = buf.CFA_getPixel(dot[0], dot[1]);
+            crc.update(v >> 8);
+            crc.update(v);
+        }
+    }
+
+    /**
+     * Writes the marker atomically next to the RAW file
+     *
+     * @param raw the RAW file
+     *
+     * @throws IOException in case of write errors
+     */
+    public void write(File raw) throws IOException
+    {
+        Properties p = new Properties();
+        p.setProperty("file", raw.getName());
+        p.setProperty("first", String.valueOf(first));
+        p.setProperty("last", String.valueOf(last));
+        p.setProperty("frameCount", String.valueOf(frameCount));
+        p.setProperty("fileSize", String.valueOf(fileSize));
+        p.setProperty("dotsPerFrame", String.valueOf(dotsPerFrame));
+        p.setProperty("crc32", Long.toHexString(checksum));
+        p.setProperty("cam", camType);
+        p.setProperty("mode", mode);
+
+        File dst = getMarkerFile(raw, first, last);
+        File tmp = new File(dst.getPath() + ".tmp");
+        OutputStream out = Files.newOutputStream(tmp.toPath());
+        try
+        {
+            p.store(out, "PinkDotRemover frame range");
+        }
+        finally
+        {
+            out.close();
+        }
+        try
+        {
+            Files.move(tmp.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(tmp.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads a marker file
+     *
+     * @param marker the marker file
+     *
+     * @return the marker or null if the file is not a valid marker
+     */
+    public static ShardMarker read(File marker)
+    {
+        Properties p = new Properties();
+        try
+        {
+            InputStream in = Files.newInputStream(marker.toPath());
+            try
+            {
+                p.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+
+            return new ShardMarker(Integer.parseInt(p.getProperty("first")), Integer.parseInt(p.getProperty("last")),
+                    Integer.parseInt(p.getProperty("frameCount")), Long.parseLong(p.getProperty("fileSize")),
+                    Integer.parseInt(p.getProperty("dotsPerFrame")), Long.parseLong(p.getProperty("crc32"), 16),
+                    p.getProperty("cam"), p.getProperty("mode"));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        catch (RuntimeException e)
+        {
+            // missing or malformed entries
+            return null;
+        }
+    }
+
+    /**
+     * Finds all markers of a RAW file, sorted by their first frame
+     *
+     * @param raw the RAW file
+     *
+     * @return the markers; invalid marker files are skipped
+     */
+    public static List<ShardMarker> findAll(File raw)
+    {
+        ArrayList<ShardMarker> result = new ArrayList<ShardMarker>();
+        File dir = raw.getAbsoluteFile().getParentFile();
+        File[] files = (dir != null) ? dir.listFiles() : null;
+        if (files == null) return result;
+
+        String prefix = raw.getName() + INFIX;
+        for (File f : files)
+        {
+            if (!(f.getName().startsWith(prefix) && f.getName().endsWith(SUFFIX))) continue;
+
+            ShardMarker m = read(f);
+            if (m == null) failed("Invalid marker file ", f);
+            else result.add(m);
+        }
+
+        Collections.sort(result, new Comparator<ShardMarker>() {
+            public int compare(ShardMarker a, ShardMarker b)
+            {
+                return (a.first < b.first) ? -1 : ((a.first == b.first) ? 0 : 1);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Checks that the markers of a RAW file cover all frames exactly once and
+     * that the dot pixels of each range still match the recorded checksum.
+     * Prints one line per marker and a summary to stdout.
+     *
+     * @param raw the RAW file
+     * @param db the database with the dot locations
+     *
+     * @return true if the whole file has been converted and all checksums match
+     */
+    public static boolean verify(File raw, DotLocationDB db)
+    {
+        List<ShardMarker> markers = findAll(raw);
+        if (markers.size() == 0)
+        {
+            System.out.println("MISSING\t" + raw + "\tno frame ranges have been completed");
+            return false;
+        }
+
+        boolean ok = true;
+        int frameCount = markers.get(0).frameCount;
+        int next = 0;
+        for (ShardMarker m : markers)
+        {
+            String status = "OK";
+            if ((m.frameCount != frameCount) || (m.fileSize != raw.length())) status = "FILE_CHANGED";
+            else if (m.first > next) status = "GAP_BEFORE";
+            else if (m.first < next) status = "OVERLAP";
+            else
+            {
+                try
+                {
+                    PinkDotRemover pdr = new PinkDotRemover(raw.toString(), db, m.camType, true);
+                    if (pdr.dotChecksum(m.first, m.last) != m.checksum) status = "CHECKSUM_MISMATCH";
+                }
+                catch (Exception e)
+                {
+                    failed("Could not read ", raw, ": ", e.getMessage());
+                    status = "ERROR";
+                }
+            }
+
+            System.out.println(status + "\t" + raw + "\tframes " + m.first + "-" + m.last + " of " + frameCount);
+            if (!(status.equals("OK"))) ok = false;
+            next = Math.max(next, m.last + 1);
+        }
+
+        if (next < frameCount)
+        {
+            System.out.println("INCOMPLETE\t" + raw + "\tframes " + next + "-" + (frameCount - 1) + " have not been completed");
+            ok = false;
+        }
+
+        return ok;
+    }
+}
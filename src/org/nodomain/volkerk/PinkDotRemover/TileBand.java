@@ -0,0 +1,195 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A band of rows of a CFA image that is stored in lossless JPEG compressed
+ * tiles (or strips).
+ *
+ * Only some of the tiles in the band's rows are decoded; accessing a pixel of
+ * a tile that hasn't been decoded is an error. The decoded pixels are kept
+ * packed per row and tile, so modifications are tracked per row segment. A
+ * tile is re-encoded if any of its row segments has been modified; this is
+ * done by DngFile.writeBlocks(), because the new tile data usually has a
+ * different size and the tile tables have to be updated.
+ */
+public class TileBand extends PackedBand {
+
+    /**
+     * The number of rows per tile
+     */
+    protected final int blockRows;
+
+    /**
+     * The decoded tiles per tile index as read from the file; null for tiles that haven't been decoded.
+     * They provide the frame parameters and the padding below the image for re-encoding.
+     */
+    protected final LosslessJpeg[] blocks;
+
+    /**
+     * Constructor for an empty band; the tiles are added by the creator
+     *
+     * @param _width the width of the whole image
+     * @param _height the height of the whole image
+     * @param _y0 the first row of the band; must be the first row of a tile
+     * @param _y1 the row after the last row of the band; must be the end of a tile or the image
+     * @param _bitsPerSample the number of bits per pixel (1...16)
+     * @param _blockWidth the width of a tile
+     * @param _blockRows the height of a tile
+     * @param _blocksAcross the number of tiles per row of tiles
+     * @param _blockCount the total number of tiles in the image
+     */
+    public TileBand(int _width, int _height, int _y0, int _y1, int _bitsPerSample, int _blockWidth, int _blockRows,
+            int _blocksAcross, int _blockCount)
+    {
+        super(_width, _height, _y0, _y1, _bitsPerSample, false, false, _blockWidth, _blocksAcross);
+
+        blockRows = _blockRows;
+        blocks = new LosslessJpeg[_blockCount];
+    }
+
+    /**
+     * Stores the pixels of a decoded tile; called while reading the band
+     *
+     * @param block the tile index
+     * @param img the decoded tile; its samples map linearly onto the tile's pixels. A tile
+     * at the bottom of the image may end with the image instead of being padded.
+     */
+    void setBlock(int block, LosslessJpeg img)
+    {
+        int seg = block % segCount;
+        int top = (block / segCount) * blockRows;
+        if ((top < y0) || (Math.min(top + blockRows, height) > y1)) throw new IllegalArgumentException("Tile " + block + " is outside of the band");
+
+        int[] s = img.getSamples();
+        int imgRows = Math.min(blockRows, height - top);
+        if ((s.length != segWidth * blockRows) && (s.length != segWidth * imgRows))
+        {
+            throw new IllegalArgumentException("Tile " + block + " has " + s.length + " samples instead of " + segWidth * blockRows);
+        }
+
+        int segBytes = (int) (((long) segWidth * bitsPerSample + 7) / 8);
+        for (int r=0; r < imgRows; r++)
+        {
+            int idx = (top + r - y0) * segCount + seg;
+            data[idx] = new byte[segBytes];
+            fileOffsets[idx] = -1;
+            for (int xs=0; xs < segWidth; xs++) pack(data[idx], xs, s[r * segWidth + xs]);
+        }
+        blocks[block] = img;
+    }
+
+    @Override
+    public TileBand getCopy()
+    {
+        TileBand result = new TileBand(width, height, y0, y1, bitsPerSample, segWidth, blockRows, segCount, blocks.length);
+        for (int i=0; i < data.length; i++)
+        {
+            if (data[i] == null) continue;
+
+            result.data[i] = data[i].clone();
+            result.fileOffsets[i] = fileOffsets[i];
+        }
+        System.arraycopy(blocks, 0, result.blocks, 0, blocks.length);
+
+        return result;
+    }
+
+    @Override
+    protected int segIndex(int x, int y)
+    {
+        int idx = super.segIndex(x, y);
+        if (data[idx] == null)
+        {
+            throw new IllegalArgumentException("Pixel " + x + "," + y + " is in tile " + ((y / blockRows) * segCount + x / segWidth) + ", which hasn't been decoded");
+        }
+
+        return idx;
+    }
+
+    /**
+     * @return the indices of all decoded tiles
+     */
+    public List<Integer> getDecodedBlocks()
+    {
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        for (int b=0; b < blocks.length; b++)
+        {
+            if (blocks[b] != null) result.add(b);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the indices of all tiles with modified pixels
+     */
+    public List<Integer> getModifiedBlocks()
+    {
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        for (int b=0; b < blocks.length; b++)
+        {
+            if (blocks[b] == null) continue;
+
+            int top = (b / segCount) * blockRows;
+            int imgRows = Math.min(blockRows, height - top);
+            for (int r=0; r < imgRows; r++)
+            {
+                if (dirty[(top + r - y0) * segCount + b % segCount])
+                {
+                    result.add(b);
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Encodes a decoded tile with its current pixels, using the frame parameters of the original tile
+     *
+     * @param block the tile index
+     *
+     * @return the lossless JPEG data of the tile
+     */
+    public byte[] encodeBlock(int block)
+    {
+        if (blocks[block] == null) throw new IllegalArgumentException("Tile " + block + " hasn't been decoded");
+
+        int seg = block % segCount;
+        int top = (block / segCount) * blockRows;
+        int imgRows = Math.min(blockRows, height - top);
+        int[] s = blocks[block].getSamples().clone();
+        for (int r=0; r < imgRows; r++)
+        {
+            byte[] b = data[(top + r - y0) * segCount + seg];
+            for (int xs=0; xs < segWidth; xs++) s[r * segWidth + xs] = unpack(b, xs);
+        }
+
+        return blocks[block].withSamples(s).encode();
+    }
+
+    /**
+     * Re-encodes the modified tiles; their size changes, so the tile tables of the copy are updated, too
+     */
+    @Override
+    long writePatches(DngFile src, DngFile.PatchTarget dst) throws IOException
+    {
+        return src.writeBlocks(this, dst);
+    }
+}
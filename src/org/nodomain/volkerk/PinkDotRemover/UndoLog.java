@@ -0,0 +1,598 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+import org.nodomain.volkerk.SimpleTIFFlib.Generic_CFA_PixBuf;
+
+/**
+ * The original values of the dot pixels of a RAW file, recorded while the
+ * frames are modified in place, so that a conversion can be undone without
+ * a backup of the whole file.
+ *
+ * The sidecar is named "<raw file>.undo" ("<raw file>.frames-<first>-<last>.undo"
+ * for frame ranges, so that several processes never write the same sidecar).
+ * Each conversion appends a session with the dot locations, followed by one
+ * deflated record per frame with the original dot values. A record is handed
+ * to the operating system before its frame is written back. Converting a file
+ * again appends a new session; restore() always restores the oldest recorded
+ * value of each pixel.
+ *
+ * Each session has a sequence number that is larger than those of all
+ * sessions of the file so far, in any of its sidecars. restore() orders the
+ * sessions of all sidecars by these numbers, because the modification times
+ * of the sidecars change whenever a session is appended.
+ */
+public class UndoLog extends LoggingClass {
+
+    protected static final String SUFFIX = ".undo";
+
+    protected static final int VERSION = 2;
+
+    /**
+     * The record types
+     */
+    protected static final byte TAG_SESSION = 'S';
+    protected static final byte TAG_FRAME = 'F';
+
+    /**
+     * The size of a record header: tag, frame or version, payload length
+     */
+    protected static final int RECORD_HEADER_SIZE = 9;
+
+    protected final FileChannel channel;
+
+    /**
+     * The dots inside the image, in the order of the records
+     */
+    protected final int[][] dots;
+
+    protected final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    /**
+     * Constructor; use create()
+     */
+    protected UndoLog(FileChannel _channel, int[][] _dots)
+    {
+        channel = _channel;
+        dots = _dots;
+    }
+
+    /**
+     * @param raw the RAW file
+     * @param range the converted frames or null if all frames are converted
+     * @param first the first converted frame
+     * @param last the last converted frame (inclusive)
+     *
+     * @return the undo sidecar of a conversion
+     */
+    public static File getUndoFile(File raw, FrameRange range, int first, int last)
+    {
+        if (range == null) return new File(raw.getAbsoluteFile().getParentFile(), raw.getName() + SUFFIX);
+
+        File marker = ShardMarker.getMarkerFile(raw, first, last);
+        String name = marker.getName();
+        return new File(marker.getParentFile(), name.substring(0, name.length() - ShardMarker.SUFFIX.length()) + SUFFIX);
+    }
+
+    /**
+     * Opens the undo sidecar of a conversion and starts a new session; an incomplete
+     * record at the end of an existing sidecar (e.g. after a crash) is discarded, as
+     * is a sidecar that has been recorded for a different file layout
+     *
+     * @param raw the RAW file
+     * @param f the sidecar, see getUndoFile()
+     * @param w the image width
+     * @param h the image height
+     * @param bits the number of bits per pixel
+     * @param frameCount the number of frames
+     * @param dots all [x,y] dot locations; dots outside of the image are not recorded
+     *
+     * @return the log
+     *
+     * @throws IOException in case of write errors
+     */
+    public static UndoLog create(File raw, File f, int w, int h, int bits, int frameCount, int[][] dots) throws IOException
+    {
+        // the clock is only a hint for sessions that are started in parallel on different frame ranges
+        long sequence = Math.max(getLastSequence(raw) + 1, System.currentTimeMillis());
+
+        ArrayList<int[]> inside = new ArrayList<int[]>();
+        for (int[] dot : dots)
+        {
+            if ((dot[0] >= 0) && (dot[0] < w) && (dot[1] >= 0) && (dot[1] < h)) inside.add(dot);
+        }
+
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            if (matchesLayout(ch, w, h, bits, frameCount)) ch.truncate(findValidEnd(ch));
+            else
+            {
+                dbg("Replacing the undo sidecar ", f, ", it has been recorded for a different file");
+                ch.truncate(0);
+            }
+            ch.position(ch.size());
+
+            UndoLog log = new UndoLog(ch, inside.toArray(new int[inside.size()][]));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(w);
+            out.writeInt(h);
+            out.writeInt(bits);
+            out.writeInt(frameCount);
+            out.writeLong(sequence);
+            out.writeInt(log.dots.length);
+
+            // the dots are listed row by row, so the deltas are small
+            int prevX = 0;
+            int prevY = 0;
+            for (int[] dot : log.dots)
+            {
+                out.writeShort(dot[0] - prevX);
+                out.writeShort(dot[1] - prevY);
+                prevX = dot[0];
+                prevY = dot[1];
+            }
+            log.writeRecord(TAG_SESSION, VERSION, bytes.toByteArray());
+
+            return log;
+        }
+        catch (IOException e)
+        {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Records the original dot values of a frame; must be called before the frame is modified
+     *
+     * @param frame the frame number
+     * @param buf the unmodified frame
+     *
+     * @throws IOException in case of write errors
+     */
+    public void record(int frame, Generic_CFA_PixBuf buf) throws IOException
+    {
+        // neighboring dots mostly have the same color, so the deltas are small
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 * dots.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int prev = 0;
+        for (int[] dot : dots)
+        {
+            int v = buf.CFA_getPixel(dot[0], dot[1]);
+            out.writeShort(v - prev);
+            prev = v;
+        }
+        writeRecord(TAG_FRAME, frame, bytes.toByteArray());
+    }
+
+    /**
+     * Deflates and appends a record
+     */
+    protected void writeRecord(byte tag, int value, byte[] data) throws IOException
+    {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream packed = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] chunk = new byte[8192];
+        while (!(deflater.finished()))
+        {
+            int n = deflater.deflate(chunk);
+            packed.write(chunk, 0, n);
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + packed.size());
+        buf.put(tag);
+        buf.putInt(value);
+        buf.putInt(packed.size());
+        buf.put(packed.toByteArray());
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf);
+    }
+
+    /**
+     * Flushes the sidecar to the disk and closes it
+     *
+     * @throws IOException in case of write errors
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            channel.force(false);
+        }
+        finally
+        {
+            channel.close();
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param ch an undo sidecar
+     *
+     * @return true if the sidecar is empty or its first session has been recorded for the given layout
+     */
+    protected static boolean matchesLayout(FileChannel ch, int w, int h, int bits, int frameCount) throws IOException
+    {
+        if (findValidEnd(ch) == 0) return true;
+
+        ByteBuffer header = readFully(ch, 0, RECORD_HEADER_SIZE);
+        if ((header.get() != TAG_SESSION) || (header.getInt() != VERSION)) return false;
+
+        DataInputStream body = inflate(readFully(ch, RECORD_HEADER_SIZE, header.getInt()).array());
+        return (body.readInt() == w) && (body.readInt() == h) && (body.readInt() == bits) && (body.readInt() == frameCount);
+    }
+
+    /**
+     * Reads a range of a file
+     */
+    protected static ByteBuffer readFully(FileChannel ch, long pos, int len) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining())
+        {
+            if (ch.read(buf, pos + buf.position()) < 0) throw new EOFException();
+        }
+        buf.flip();
+
+        return buf;
+    }
+
+    /**
+     * @param ch an undo sidecar
+     *
+     * @return the size of the sidecar without an incomplete record at its end
+     */
+    protected static long findValidEnd(FileChannel ch) throws IOException
+    {
+        long size = ch.size();
+        long pos = 0;
+        while (pos + RECORD_HEADER_SIZE <= size)
+        {
+            ByteBuffer header = readFully(ch, pos, RECORD_HEADER_SIZE);
+            byte tag = header.get();
+            header.getInt();
+            int len = header.getInt();
+            if (((tag != TAG_SESSION) && (tag != TAG_FRAME)) || (len < 0) || (pos + RECORD_HEADER_SIZE + len > size)) break;
+
+            pos += RECORD_HEADER_SIZE + len;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Finds all undo sidecars of a RAW file
+     *
+     * @param raw the RAW file
+     *
+     * @return the sidecars
+     */
+    public static List<File> findAll(File raw)
+    {
+        ArrayList<File> result = new ArrayList<File>();
+        File dir = raw.getAbsoluteFile().getParentFile();
+        File[] files = (dir != null) ? dir.listFiles() : null;
+        if (files == null) return result;
+
+        String full = raw.getName() + SUFFIX;
+        String prefix = raw.getName() + ShardMarker.INFIX;
+        for (File f : files)
+        {
+            if (f.getName().equals(full) || (f.getName().startsWith(prefix) && f.getName().endsWith(SUFFIX))) result.add(f);
+        }
+
+        Collections.sort(result);
+
+        return result;
+    }
+
+    /**
+     * @param raw the RAW file
+     *
+     * @return the largest session sequence number in all undo sidecars of the file; 0 if there are none
+     *
+     * @throws IOException in case of read errors
+     */
+    protected static long getLastSequence(File raw) throws IOException
+    {
+        long last = 0;
+        for (File f : findAll(raw))
+        {
+            FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            try
+            {
+                long end = findValidEnd(ch);
+                long pos = 0;
+                while (pos < end)
+                {
+                    ByteBuffer header = readFully(ch, pos, RECORD_HEADER_SIZE);
+                    byte tag = header.get();
+                    int value = header.getInt();
+                    int len = header.getInt();
+                    if ((tag == TAG_SESSION) && (value == VERSION))
+                    {
+                        DataInputStream body = inflate(readFully(ch, pos + RECORD_HEADER_SIZE, len).array());
+                        body.skipBytes(16);
+                        last = Math.max(last, body.readLong());
+                    }
+                    pos += RECORD_HEADER_SIZE + len;
+                }
+            }
+            finally
+            {
+                ch.close();
+            }
+        }
+
+        return last;
+    }
+
+    /**
+     * Inflates the payload of a record
+     */
+    protected static DataInputStream inflate(byte[] packed) throws IOException
+    {
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(packed);
+            ByteArrayOutputStream data = new ByteArrayOutputStream(4 * packed.length);
+            byte[] chunk = new byte[8192];
+            while (!(inflater.finished()))
+            {
+                int n = inflater.inflate(chunk);
+                if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("Corrupt undo record");
+                data.write(chunk, 0, n);
+            }
+
+            return new DataInputStream(new ByteArrayInputStream(data.toByteArray()));
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Corrupt undo record: " + e.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * The original values of one frame, as read from a sidecar
+     */
+    protected static class FrameValues
+    {
+        final long sequence;
+        final int[][] dots;
+        final int[] values;
+
+        FrameValues(long _sequence, int[][] _dots, int[] _values)
+        {
+            sequence = _sequence;
+            dots = _dots;
+            values = _values;
+        }
+    }
+
+    /**
+     * Orders the records of a frame by the sequence numbers of their sessions
+     */
+    protected static final Comparator<FrameValues> SESSION_ORDER = new Comparator<FrameValues>() {
+        public int compare(FrameValues a, FrameValues b)
+        {
+            return (a.sequence < b.sequence) ? -1 : ((a.sequence == b.sequence) ? 0 : 1);
+        }
+    };
+
+    /**
+     * Reads all records of a sidecar
+     *
+     * @param f the sidecar
+     * @param raw the RAW file; the image layout of all sessions must match
+     * @param frames receives the records of each frame, in the order of the sidecar
+     *
+     * @throws IOException in case of read errors or if the sidecar doesn't match the RAW file
+     */
+    protected static void readAll(File f, RawFile raw, Map<Integer, List<FrameValues>> frames) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(f.toPath())));
+        try
+        {
+            int[][] dots = null;
+            long sequence = 0;
+            while (true)
+            {
+                byte tag;
+                try
+                {
+                    tag = in.readByte();
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                int value;
+                byte[] packed;
+                try
+                {
+                    value = in.readInt();
+                    packed = new byte[in.readInt()];
+                    in.readFully(packed);
+                }
+                catch (EOFException e)
+                {
+                    // the conversion has been interrupted while writing the record; its frame is unmodified
+                    dbg("Skipping the incomplete record at the end of ", f);
+                    break;
+                }
+
+                if (tag == TAG_SESSION)
+                {
+                    if (value != VERSION) throw new IOException("Unsupported undo version " + value + " in " + f);
+
+                    DataInputStream body = inflate(packed);
+                    int w = body.readInt();
+                    int h = body.readInt();
+                    int bits = body.readInt();
+                    int frameCount = body.readInt();
+                    sequence = body.readLong();
+                    int n = body.readInt();
+                    if ((w != raw.getWidth()) || (h != raw.getHeight()) || (bits != raw.getBitsPerSample()) || (frameCount != raw.getFrameCount()))
+                    {
+                        throw new IOException(f + " was recorded for a different file layout");
+                    }
+
+                    dots = new int[n][];
+                    int x = 0;
+                    int y = 0;
+                    for (int i = 0; i < n; i++)
+                    {
+                        x += body.readShort();
+                        y += body.readShort();
+                        dots[i] = new int[] {x, y};
+                    }
+                }
+                else if ((tag == TAG_FRAME) && (dots != null))
+                {
+                    if ((value < 0) || (value >= raw.getFrameCount())) throw new IOException("Invalid frame " + value + " in " + f);
+
+                    DataInputStream body = inflate(packed);
+                    int[] values = new int[dots.length];
+                    int v = 0;
+                    for (int i = 0; i < dots.length; i++)
+                    {
+                        v = (v + body.readShort()) & 0xffff;
+                        values[i] = v;
+                    }
+
+                    List<FrameValues> l = frames.get(value);
+                    if (l == null)
+                    {
+                        l = new ArrayList<FrameValues>();
+                        frames.put(value, l);
+                    }
+                    l.add(new FrameValues(sequence, dots, values));
+                }
+                else throw new IOException("Corrupt undo sidecar " + f);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Restores the original dot values of a RAW file from all its undo sidecars
+     * and deletes the sidecars, the shard markers and the digest sidecar afterwards,
+     * because they describe the converted file
+     *
+     * @param raw the RAW file
+     *
+     * @return true if the file has been restored, false if there's nothing to restore or in case of errors
+     */
+    public static boolean restore(File raw)
+    {
+        List<File> logs = findAll(raw);
+        if (logs.isEmpty())
+        {
+            failed("No undo information for ", raw);
+            return false;
+        }
+
+        RawFile rf = null;
+        try
+        {
+            rf = RawFile.open(raw.toString());
+            if (rf == null)
+            {
+                failed("Unsupported RAW layout: ", raw);
+                return false;
+            }
+
+            // everything is read before the first frame is touched
+            dbg("Reading ", logs.size(), " undo sidecar(s) of ", raw);
+            TreeMap<Integer, List<FrameValues>> frames = new TreeMap<Integer, List<FrameValues>>();
+            for (File f : logs) readAll(f, rf, frames);
+            for (List<FrameValues> l : frames.values()) Collections.sort(l, SESSION_ORDER);
+
+            dbg("Restoring ", frames.size(), " frames of ", raw);
+            for (Map.Entry<Integer, List<FrameValues>> e : frames.entrySet())
+            {
+                int y0 = rf.getHeight();
+                int y1 = 0;
+                for (FrameValues fv : e.getValue())
+                {
+                    for (int[] dot : fv.dots)
+                    {
+                        y0 = Math.min(y0, dot[1]);
+                        y1 = Math.max(y1, dot[1] + 1);
+                    }
+                }
+                if (y1 <= y0) continue;
+
+                // the newest values first, so that the oldest ones win
+                CfaBand band = rf.readBand(e.getKey(), y0, y1);
+                List<FrameValues> l = e.getValue();
+                for (int i = l.size() - 1; i >= 0; i--)
+                {
+                    FrameValues fv = l.get(i);
+                    for (int k = 0; k < fv.dots.length; k++) band.CFA_setPixel(fv.dots[k][0], fv.dots[k][1], fv.values[k]);
+                }
+                rf.writeBand(band);
+            }
+        }
+        catch (IOException e)
+        {
+            failed("Could not restore ", raw, ": ", e.getMessage());
+            return false;
+        }
+        finally
+        {
+            if (rf != null) rf.close();
+        }
+
+        for (File f : logs) f.delete();
+        for (ShardMarker m : ShardMarker.findAll(raw)) ShardMarker.getMarkerFile(raw, m.first, m.last).delete();
+        OutputDigest.getSidecar(raw.toPath()).toFile().delete();
+
+        return true;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the preflight plan of a batch
+ */
+public class BatchPlannerTest extends SyntheticTestBase {
+    
+    @Test
+    public void testPreflightPlan() throws Exception
+    {
+        ArrayList<File> files = new ArrayList<File>();
+        for (String res : new String[] {"1280x720", "1808x727", "1808x1190"})
+        {
+            files.add(Paths.get(testInputDataDir(), res + "_14bit_le_650D.dng").toFile());
+        }
+        
+        // a RAW file with the resolution of one of the DNGs and a broken file
+        SyntheticCorpus gen = new SyntheticCorpus(db, "650D", 1280, 720, 14, 2);
+        Path rawFile = writeRaw(gen, "preflight.raw");
+        files.add(rawFile.toFile());
+        Path broken = outFile("preflightBroken.dng");
+        Files.write(broken, new byte[] {'I', 'I', 42, 0, 8, 0, 0, 0, 0, 0});
+        files.add(broken.toFile());
+        
+        BatchPlanner plan = BatchPlanner.plan(db, "650D", files, 3);
+        assertEquals(5, plan.getProbes().size());
+        assertEquals(3, plan.getGroups().size());
+        assertEquals(2, plan.getGroup(files.get(0)).getFiles().size());
+        assertEquals(2, plan.getProbes().get(3).getFrameCount());
+        assertEquals(Arrays.asList(broken.toFile()), plan.getUnsupported());
+        assertNull(plan.getGroup(broken.toFile()));
+        assertNotNull(plan.getProblem(broken.toFile()));
+        
+        // the precompiled plan yields the same result as the lookup
+        File inFile = files.get(1);
+        String outFile = Paths.get(outDir(), inFile.getName()).toString();
+        BatchPlanner.Group g = plan.getGroup(inFile);
+        assertEquals(DotAnalysis.Verdict.SPECIFIC, g.getVerdict());
+        PinkDotRemover pdr = new PinkDotRemover(inFile.toString(), db, "650D");
+        pdr.setDotPlan(g.getWidth(), g.getHeight(), g.getPlan());
+        assertTrue(pdr.doRemoval(true));
+        pdr.writeResultToFile(outFile);
+        assertTrue(cmpFilesBinary(outFile, Paths.get(testInputDataDir(), "ref_" + inFile.getName()).toString()));
+        
+        // no dot sets for an unknown camera
+        plan = BatchPlanner.plan(db, "NoSuchCam", files, 2);
+        assertEquals(5, plan.getUnsupported().size());
+        assertEquals(DotAnalysis.Verdict.UNSUPPORTED, plan.getGroup(files.get(0)).getVerdict());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Damages and outdates the compiled dot database and checks that it is rebuilt from the text files
+ */
+public class CompiledDotDBTest extends TstBaseClass {
+    
+    @Test
+    public void testRebuild() throws Exception
+    {
+        File dir = copyDotData("compiledDotData");
+        File dbFile = new File(dir, DotLocationDB.COMPILED_DB_NAME);
+        File txtFile = new File(dir, "EOSM.txt");
+        
+        // without a compiled database, the text files are parsed
+        assertFalse(dbFile.exists());
+        DotSetSnapshot parsed = new DotLocationDB(dir.toString()).getSnapshot();
+        assertTrue(dbFile.isFile());
+        assertTrue(parsed.getAllModels().length > 0);
+        assertSameDotSets(parsed, new DotLocationDB(dir.toString()).getSnapshot());
+        
+        // a corrupt header and a modified text file
+        invertByte(dbFile, 10);
+        assertTrue(txtFile.setLastModified(txtFile.lastModified() + 2000));
+        long fingerprint = CompiledDotDB.fingerprint(new File[] {new File(dir, "650D.txt"), new File(dir, "CropMode.txt"), txtFile});
+        assertNull(CompiledDotDB.open(dbFile, fingerprint));
+        DotLocationDB db = new DotLocationDB(dir.toString());
+        assertNotNull(CompiledDotDB.open(dbFile, fingerprint));
+        assertSameDotSets(parsed, db.getSnapshot());
+        assertSameDotSets(parsed, new DotLocationDB(dir.toString()).getSnapshot());
+        
+        // a corrupt camera section is only detected when the camera is loaded
+        invertByte(dbFile, dbFile.length() - 1);
+        db = new DotLocationDB(dir.toString());
+        assertNotNull(CompiledDotDB.open(dbFile, fingerprint));
+        String[] models = parsed.getAllModels();
+        String lastModel = models[models.length - 1];
+        DotSet ds = parsed.getDotSets(lastModel).get(0);
+        int w = (ds.getWidth() > 0) ? ds.getWidth() : 1280;
+        int h = (ds.getHeight() > 0) ? ds.getHeight() : 720;
+        assertTrue(Arrays.deepEquals(parsed.getAllDots(lastModel, w, h), db.getAllDots(lastModel, w, h)));
+        assertFalse(db.getSnapshot().isDamaged());
+        assertSameDotSets(parsed, new DotLocationDB(dir.toString()).getSnapshot());
+    }
+    
+    /**
+     * Inverts one byte of a file
+     *
+     * @param f the file
+     * @param pos the position of the byte
+     */
+    protected void invertByte(File f, long pos) throws Exception
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try
+        {
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xff);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Checks that two snapshots contain the same dot sets
+     */
+    protected void assertSameDotSets(DotSetSnapshot expected, DotSetSnapshot actual)
+    {
+        assertEquals(Arrays.asList(expected.getAllModels()), Arrays.asList(actual.getAllModels()));
+        for (String model : expected.getAllModels())
+        {
+            List<DotSet> e = expected.getDotSets(model);
+            List<DotSet> a = actual.getDotSets(model);
+            assertEquals(e.size(), a.size());
+            for (int i = 0; i < e.size(); i++)
+            {
+                assertEquals(e.get(i).getCombinedName(), a.get(i).getCombinedName());
+                assertEquals(e.get(i).isRoundDown(), a.get(i).isRoundDown());
+                assertTrue(Arrays.deepEquals(e.get(i).getGridInfo(), a.get(i).getGridInfo()));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Converts synthetic DNG files with lossless JPEG compressed tiles and strips
+ */
+public class CompressedDngTest extends SyntheticTestBase {
+    
+    @Test
+    public void testCompressedConversion() throws IOException
+    {
+        // cam, width, height, bits per sample, tile size
+        String[][] cases = new String[][] {
+            {"650D", "1280", "720", "14", "256"},
+            {"Crop Mode", "1808", "1190", "12", "128"}
+        };
+        
+        for (String[] c : cases)
+        {
+            int w = Integer.parseInt(c[1]);
+            int h = Integer.parseInt(c[2]);
+            int tileSize = Integer.parseInt(c[4]);
+            SyntheticCorpus gen = new SyntheticCorpus(db, c[0], w, h, Integer.parseInt(c[3]), 1);
+            
+            Path inFile = writeDng(gen, "compressed.dng", tileSize);
+            Path outFile = convertedFile(inFile);
+            
+            DngFile src = DngFile.open(inFile.toString());
+            assertTrue(src.isCompressed());
+            assertEquals(gen.getRecoverableDotCount(), gen.countErrors(src.readBand(0, h), 0));
+            
+            PinkDotRemover pdr = new PinkDotRemover(inFile.toString(), db, c[0]);
+            assertTrue(pdr.doRemoval(true));
+            DngFile dst = DngFile.open(outFile.toString());
+            assertEquals(0, gen.countErrors(dst.readBand(0, h), 0));
+            
+            // tiles without dots must be untouched
+            int across = (w + tileSize - 1) / tileSize;
+            boolean[] hasDots = new boolean[src.blockOffsets.length];
+            for (int[] dot : gen.getDots()) hasDots[(dot[1] / tileSize) * across + dot[0] / tileSize] = true;
+            byte[] inBytes = Files.readAllBytes(inFile);
+            byte[] outBytes = Files.readAllBytes(outFile);
+            int untouched = 0;
+            for (int b=0; b < hasDots.length; b++)
+            {
+                if (hasDots[b]) continue;
+                
+                assertEquals(src.blockOffsets[b], dst.blockOffsets[b]);
+                assertEquals(src.blockByteCounts[b], dst.blockByteCounts[b]);
+                int off = (int) src.blockOffsets[b];
+                int len = (int) src.blockByteCounts[b];
+                assertArrayEquals(Arrays.copyOfRange(inBytes, off, off + len), Arrays.copyOfRange(outBytes, off, off + len));
+                untouched++;
+            }
+            assertTrue(untouched > 0);
+        }
+    }
+    
+    @Test
+    public void testPartialLastStrip() throws IOException
+    {
+        // 720 = 400 + 320, so the last strip has only 320 rows; the dots reach into it
+        int w = 1280;
+        int h = 720;
+        int rowsPerStrip = 400;
+        int lastTop = (h / rowsPerStrip) * rowsPerStrip;
+        SyntheticCorpus gen = new SyntheticCorpus(db, "650D", w, h, 14, 1);
+        int lastStripDots = 0;
+        for (int[] dot : gen.getDots())
+        {
+            if (dot[1] >= lastTop) lastStripDots++;
+        }
+        assertTrue(lastStripDots > 0);
+        
+        Path inFile = outFile("partialStrip.dng");
+        gen.writeStripDng(inFile, rowsPerStrip);
+        Path outFile = convertedFile(inFile);
+        
+        DngFile src = DngFile.open(inFile.toString());
+        assertTrue(src.isCompressed());
+        assertEquals(h / rowsPerStrip + 1, src.blockOffsets.length);
+        assertEquals(gen.getRecoverableDotCount(), gen.countErrors(src.readBand(0, h), 0));
+        
+        PinkDotRemover pdr = new PinkDotRemover(inFile.toString(), db, "650D");
+        assertTrue(pdr.doRemoval(true));
+        DngFile dst = DngFile.open(outFile.toString());
+        assertEquals(0, gen.countErrors(dst.readBand(0, h), 0));
+        assertEquals(0, gen.countErrors(dst.readBand(lastTop, h), 0));
+        
+        // the re-encoded last strip still ends with the image
+        int last = src.blockOffsets.length - 1;
+        byte[] outBytes = Files.readAllBytes(outFile);
+        LosslessJpeg img = LosslessJpeg.decode(outBytes, (int) dst.blockOffsets[last], (int) dst.blockByteCounts[last]);
+        assertEquals(h - lastTop, img.getRows());
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the HTTP conversion service on localhost
+ */
+public class ConversionServerTest extends TstBaseClass {
+
+    protected static final String TEST_FILE = "1280x720_14bit_le_650D.dng";
+
+    protected ConversionServer server;
+
+    @Before
+    public void startServer() throws IOException
+    {
+        DotLocationDB db = new DotLocationDB(Paths.get(projRootDir(), "dotData").toString());
+        server = new ConversionServer(db, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, 2);
+        server.start();
+    }
+
+    @After
+    public void stopServer()
+    {
+        server.stop(0);
+    }
+
+    /**
+     * Sends a request to the server
+     *
+     * @param method GET or POST
+     * @param pathAndQuery the request path including the query
+     * @param body the request body or null
+     * @param response receives the response body
+     *
+     * @return the HTTP status code
+     */
+    protected int request(String method, String pathAndQuery, byte[] body, ByteArrayOutputStream response) throws IOException
+    {
+        return request(method, pathAndQuery, new HashMap<String, String>(), body, response);
+    }
+
+    /**
+     * Sends a request with additional headers to the server
+     *
+     * @param method GET or POST
+     * @param pathAndQuery the request path including the query
+     * @param headers the additional request headers
+     * @param body the request body or null
+     * @param response receives the response body
+     *
+     * @return the HTTP status code
+     */
+    protected int request(String method, String pathAndQuery, Map<String, String> headers, byte[] body, ByteArrayOutputStream response) throws IOException
+    {
+        URL url = new URL("http://localhost:" + server.getPort() + pathAndQuery);
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod(method);
+        for (Map.Entry<String, String> h : headers.entrySet()) con.setRequestProperty(h.getKey(), h.getValue());
+        if (body != null)
+        {
+            con.setDoOutput(true);
+            con.setFixedLengthStreamingMode(body.length);
+            OutputStream out = con.getOutputStream();
+            out.write(body);
+            out.close();
+        }
+
+        int status = con.getResponseCode();
+        InputStream in = (status < 400) ? con.getInputStream() : con.getErrorStream();
+        if (in != null)
+        {
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) > 0) response.write(buf, 0, n);
+            in.close();
+        }
+
+        return status;
+    }
+
+    @Test
+    public void testUpload() throws IOException
+    {
+        byte[] dng = Files.readAllBytes(Paths.get(testInputDataDir(), TEST_FILE));
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+        assertEquals(200, request("POST", "/convert?cam=650D&name=" + TEST_FILE, dng, response));
+
+        String outFile = Paths.get(outDir(), "_" + TEST_FILE).toString();
+        Files.write(Paths.get(outFile), response.toByteArray());
+        assertTrue(cmpFilesBinary(outFile, Paths.get(testInputDataDir(), "ref_" + TEST_FILE).toString()));
+    }
+
+    @Test
+    public void testLocalPathWithSummary() throws IOException
+    {
+        Path src = Paths.get(outDir(), TEST_FILE);
+        Files.copy(Paths.get(testInputDataDir(), TEST_FILE), src);
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+        assertEquals(200, request("POST", "/convert?path=" + URLEncoder.encode(src.toString(), "UTF-8"), localClient(), new byte[0], response));
+
+        String summary = new String(response.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(summary.contains("\"frames\":1"));
+        assertTrue(summary.contains("\"dotsPerFrame\":"));
+
+        // dots on the image borders can't be interpolated and are not patched
+        DotLocationDB db = new DotLocationDB(Paths.get(projRootDir(), "dotData").toString());
+        int fixable = 0;
+        for (int[] dot : db.getAllDots("650D", 1280, 720))
+        {
+            if (RemovalStrategies.INTERPOLATE.canFix(dot[0], dot[1], 1280, 720)) fixable++;
+        }
+        assertTrue(summary.contains("\"pixelsPatched\":" + fixable + ","));
+        assertTrue(cmpFilesBinary(Paths.get(outDir(), "_" + TEST_FILE).toString(),
+                Paths.get(testInputDataDir(), "ref_" + TEST_FILE).toString()));
+    }
+
+    @Test
+    public void testInvalidRequests() throws IOException
+    {
+        assertEquals(405, request("GET", "/convert?name=" + TEST_FILE, null, new ByteArrayOutputStream()));
+        assertEquals(400, request("POST", "/convert?cam=NoSuchCam&name=" + TEST_FILE, new byte[0], new ByteArrayOutputStream()));
+        assertEquals(400, request("POST", "/convert?name=image.jpg", new byte[0], new ByteArrayOutputStream()));
+        assertEquals(404, request("POST", "/convert?path=" + URLEncoder.encode(Paths.get(outDir(), "missing.dng").toString(), "UTF-8"), localClient(), new byte[0], new ByteArrayOutputStream()));
+
+        // an empty upload is not a valid DNG file
+        assertEquals(422, request("POST", "/convert?name=empty.dng", new byte[0], new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testRequestsFromWebPages() throws IOException
+    {
+        Path src = Paths.get(outDir(), TEST_FILE);
+        Files.copy(Paths.get(testInputDataDir(), TEST_FILE), src);
+        String pathQuery = "/convert?path=" + URLEncoder.encode(src.toString(), "UTF-8");
+
+        // a plain POST, as a web page could send it
+        assertEquals(403, request("POST", pathQuery, new byte[0], new ByteArrayOutputStream()));
+
+        // requests of web pages carry an Origin header
+        assertEquals(403, requestFromWebPage(pathQuery, ConversionServer.LOCAL_CLIENT_HEADER + ": test\r\n"));
+        assertEquals(403, requestFromWebPage("/convert?name=" + TEST_FILE, ""));
+
+        assertFalse(Files.exists(Paths.get(outDir(), "_" + TEST_FILE)));
+    }
+
+    @Test
+    public void testBusyServer() throws Exception
+    {
+        // uploads that never finish hold the two workers and the two queue slots
+        ArrayList<Socket> stalled = new ArrayList<Socket>();
+        try
+        {
+            for (int i = 0; i < 4; i++) stalled.add(startUpload("/convert?name=stalled" + i + ".dng", 1000000));
+
+            // the stalled requests are admitted in the background
+            long timeout = System.currentTimeMillis() + 10000;
+            while ((server.admission.availablePermits() > 0) && (System.currentTimeMillis() < timeout)) Thread.sleep(20);
+            assertEquals(0, server.admission.availablePermits());
+
+            URL url = new URL("http://localhost:" + server.getPort() + "/convert?name=empty.dng");
+            HttpURLConnection con = (HttpURLConnection) url.openConnection();
+            con.setRequestMethod("POST");
+            con.setDoOutput(true);
+            con.setFixedLengthStreamingMode(0);
+            con.getOutputStream().close();
+            int status = con.getResponseCode();
+            String retryAfter = con.getHeaderField("Retry-After");
+            con.disconnect();
+            assertEquals(503, status);
+            assertEquals("1", retryAfter);
+        }
+        finally
+        {
+            for (Socket sock : stalled) sock.close();
+        }
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        assertEquals(200, request("GET", "/metrics", null, response));
+        assertTrue(new String(response.toByteArray(), StandardCharsets.UTF_8).contains("pinkdot_rejected_total 1"));
+    }
+
+    /**
+     * Starts an upload and sends only the request headers and a few bytes of the body
+     *
+     * @param pathAndQuery the request path including the query
+     * @param length the announced length of the body
+     *
+     * @return the open connection
+     */
+    protected Socket startUpload(String pathAndQuery, int length) throws IOException
+    {
+        Socket sock = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        String req = "POST " + pathAndQuery + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + length + "\r\n\r\nII*";
+        sock.getOutputStream().write(req.getBytes(StandardCharsets.US_ASCII));
+        sock.getOutputStream().flush();
+
+        return sock;
+    }
+
+    /**
+     * Sends an empty POST request with an Origin header; HttpURLConnection doesn't send that header
+     *
+     * @param pathAndQuery the request path including the query
+     * @param headers further header lines, each terminated by CRLF
+     *
+     * @return the HTTP status code
+     */
+    protected int requestFromWebPage(String pathAndQuery, String headers) throws IOException
+    {
+        Socket sock = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        try
+        {
+            String req = "POST " + pathAndQuery + " HTTP/1.1\r\nHost: localhost\r\nOrigin: http://example.com\r\n" +
+                    headers + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+            sock.getOutputStream().write(req.getBytes(StandardCharsets.US_ASCII));
+
+            // "HTTP/1.1 403 Forbidden"
+            String statusLine = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            return Integer.parseInt(statusLine.split(" ")[1]);
+        }
+        finally
+        {
+            sock.close();
+        }
+    }
+
+    /**
+     * @return the headers of a local client for requests with local paths
+     */
+    protected Map<String, String> localClient()
+    {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(ConversionServer.LOCAL_CLIENT_HEADER, "test");
+
+        return headers;
+    }
+
+    @Test
+    public void testHealthAndMetrics() throws IOException
+    {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        assertEquals(200, request("GET", "/health", null, response));
+        assertTrue(new String(response.toByteArray(), StandardCharsets.UTF_8).contains("\"status\":\"ok\""));
+
+        response = new ByteArrayOutputStream();
+        assertEquals(200, request("GET", "/metrics", null, response));
+        String metrics = new String(response.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(metrics.contains("pinkdot_requests_total 2"));
+        assertTrue(metrics.contains("pinkdot_workers 2"));
+    }
+}
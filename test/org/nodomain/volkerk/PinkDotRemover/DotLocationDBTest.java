@@ -0,0 +1,75 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Modifies the dot data of a database and checks that earlier snapshots are not affected
+ */
+public class DotLocationDBTest extends TstBaseClass {
+    
+    @Test
+    public void testSnapshotReload() throws Exception
+    {
+        File dir = copyDotData("snapshotDotData");
+        
+        // the first instance compiles the database, the second one uses it
+        new DotLocationDB(dir.toString());
+        DotLocationDB db = new DotLocationDB(dir.toString());
+        DotSetSnapshot snap = db.getSnapshot();
+        assertFalse(db.reload());
+        assertSame(snap, db.getSnapshot());
+        
+        // the dot sets of the compiled database are decoded on first request, so ask the
+        // other database for the reference and the old snapshot only after the reload
+        int[][] oldDots = new DotLocationDB(dir.toString()).getAllDots("EOSM", 1280, 720);
+        assertNotNull(oldDots);
+        
+        writeDotSet(dir, "-2, -84, 91, 8, 12");
+        assertTrue(db.reload());
+        DotSetSnapshot reloaded = db.getSnapshot();
+        assertNotSame(snap, reloaded);
+        int[][] newDots = db.getAllDots("EOSM", 1280, 720);
+        assertNotNull(newDots);
+        assertFalse(Arrays.deepEquals(oldDots, newDots));
+        assertTrue(Arrays.deepEquals(oldDots, snap.getAllDots("EOSM", 1280, 720)));
+        assertTrue(Arrays.deepEquals(newDots, reloaded.getAllDots("EOSM", 1280, 720)));
+        
+        // the watcher reloads on its own
+        assertTrue(db.startWatching());
+        try
+        {
+            writeDotSet(dir, "-2, -84, 91, 8, 12\n-3, -83, 91, 8, 12");
+            long timeout = System.currentTimeMillis() + 10000;
+            while ((db.getSnapshot() == reloaded) && (System.currentTimeMillis() < timeout)) Thread.sleep(50);
+        }
+        finally
+        {
+            db.stopWatching();
+        }
+        assertNotSame(reloaded, db.getSnapshot());
+        assertTrue(Arrays.deepEquals(newDots, reloaded.getAllDots("EOSM", 1280, 720)));
+        assertTrue(db.getAllDots("EOSM", 1280, 720).length > newDots.length);
+    }
+    
+    /**
+     * Replaces the dot data of the EOS M with a single generic dot set
+     *
+     * @param dir the dot data directory
+     * @param grid the grid blocks of the dot set
+     */
+    protected void writeDotSet(File dir, String grid) throws IOException
+    {
+        String content = "N :: EOSM :: 0, 0\n" + grid + "\n";
+        Files.write(new File(dir, "EOSM.txt").toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the dot bitmask and that neighbors which are dots are skipped
+ */
+public class DotMaskTest extends SyntheticTestBase {
+    
+    @Test
+    public void testDotMask() throws IOException
+    {
+        // only the rows with dots are stored, dots outside of the image are ignored
+        DotMask mask = new DotMask(new int[][] {{10, 100}, {12, 102}, {5, -3}, {2000, 150}}, 1280, 720);
+        assertTrue(mask.isDot(10, 100));
+        assertTrue(mask.isDot(12, 102));
+        assertFalse(mask.isDot(11, 100));
+        assertFalse(mask.isDot(5, -3));
+        assertFalse(mask.isDot(10, 99));
+        assertFalse(mask.isDot(10, 103));
+        assertTrue(mask.matches(1280, 720));
+        assertEquals(8 * ((3 * 1280 + 63) / 64), mask.getByteCount());
+        
+        // the mask is compiled once per plan and shared with other neighborhoods
+        DotPlan plan = new DotPlan(new int[][] {{10, 100}});
+        assertSame(plan.getMask(1280, 720), plan.getMask(1280, 720));
+        assertSame(plan.getMask(1280, 720), plan.withNeighborhood(4).getMask(1280, 720));
+        
+        // a neighbor that is a dot as well is skipped, even if it has the smallest gradient
+        int w = 1280;
+        int h = 720;
+        SyntheticCorpus gen = new SyntheticCorpus(db, "EOSM", w, h, 14, 1);
+        byte[] frame = readFirstFrame(gen, "dotMask.raw");
+        assertTrue(new PinkDotRemover(db, "EOSM").removeFrameDots(frame, w, h, 14, RemovalStrategies.INTERPOLATE));
+        CfaBand band = RawFile.readBand(ByteBuffer.wrap(frame), w, h, 14, 0, h);
+        
+        int x = 0;
+        int y = 0;
+        for (int[] dot : gen.getDots())
+        {
+            if (!(gen.isRecoverable(dot[0], dot[1]))) continue;
+            x = dot[0];
+            y = dot[1];
+            break;
+        }
+        int clean = gen.cleanValue(x, y, 0);
+        assertEquals(clean, band.CFA_getPixel(x, y));
+        band.CFA_setPixel(x - 2, y, band.CFA_getPixel(x + 2, y));
+        assertTrue(RemovalStrategies.INTERPOLATE.getValue(band, x, y, null) != clean);
+        mask = new DotMask(new int[][] {{x, y}, {x - 2, y}}, w, h);
+        assertEquals(clean, RemovalStrategies.INTERPOLATE.getValue(band, x, y, mask));
+        assertEquals(gen.cleanValue(x + 2, y, 0), RemovalStrategies.NEAREST.getValue(band, x, y, mask));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Analyzes synthetic files and checks that a dry run doesn't write anything
+ */
+public class DryRunTest extends SyntheticTestBase {
+    
+    @Test
+    public void testDryRun() throws Exception
+    {
+        ArrayList<File> files = new ArrayList<File>();
+        files.add(writeRaw(new SyntheticCorpus(db, "EOSM", 1280, 720, 14, 3), "dryRun.raw").toFile());
+        files.add(writeDng(new SyntheticCorpus(db, "EOSM", 1280, 720, 14, 1), "dryRun.dng", 0).toFile());
+        files.add(writeDng(new SyntheticCorpus(db, "EOSM", 1280, 720, 14, 1), "dryRunTiled.dng", 256).toFile());
+        
+        // old modification times, so that any write would be noticed
+        long mtime = (System.currentTimeMillis() / 1000 - 3600) * 1000;
+        byte[][] content = new byte[files.size()][];
+        for (int i = 0; i < files.size(); i++)
+        {
+            assertTrue(files.get(i).setLastModified(mtime));
+            content[i] = Files.readAllBytes(files.get(i).toPath());
+        }
+        File dir = files.get(0).getParentFile();
+        String[] before = dir.list();
+        Arrays.sort(before);
+        
+        for (File f : files)
+        {
+            DotAnalysis a = new PinkDotRemover(f.toString(), db, "EOSM", true).analyze();
+            assertTrue(a.isConvertible());
+            assertEquals(1280, a.getWidth());
+            assertEquals(720, a.getHeight());
+            assertTrue(a.getDotCount() > 0);
+            assertTrue(a.getPixelsToFix() > 0);
+        }
+        assertTrue(PinkDotRemoverCLI.analyzeFiles(db, "EOSM", files, 2));
+        
+        // neither the files nor the directory have changed
+        for (int i = 0; i < files.size(); i++)
+        {
+            Path p = files.get(i).toPath();
+            assertEquals(mtime, files.get(i).lastModified());
+            assertArrayEquals(content[i], Files.readAllBytes(p));
+        }
+        String[] after = dir.list();
+        Arrays.sort(after);
+        assertEquals(Arrays.asList(before), Arrays.asList(after));
+        for (String name : after)
+        {
+            assertFalse(name.startsWith("_"));
+            assertFalse(name.endsWith(".undo"));
+            assertFalse(name.endsWith(ShardMarker.SUFFIX));
+            assertFalse(name.endsWith(OutputDigest.SUFFIX));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the partition of a batch into file shards
+ */
+public class FileShardTest {
+    
+    @Test
+    public void testFileShard()
+    {
+        assertNull(FileShard.parse("0/3"));
+        assertNull(FileShard.parse("4/3"));
+        assertNull(FileShard.parse("3"));
+        
+        ArrayList<File> files = new ArrayList<File>();
+        for (int i = 0; i < 100; i++) files.add(new File("/mnt/share/clips", "M" + i + ".RAW"));
+        
+        // every file belongs to exactly one shard, independent of the directory and of the other files
+        int total = 0;
+        for (int k = 1; k <= 3; k++)
+        {
+            FileShard shard = FileShard.parse(k + "/3");
+            List<File> part = shard.select(files);
+            assertTrue(part.size() > 10);
+            for (File f : part)
+            {
+                assertEquals(k, FileShard.getShardOf(f.getName(), 3));
+                assertTrue(shard.contains(new File("/other/mount", f.getName())));
+                assertEquals(1, shard.select(Arrays.asList(f)).size());
+            }
+            total += part.size();
+        }
+        assertEquals(files.size(), total);
+        assertEquals(files, FileShard.parse("1/1").select(files));
+    }
+}
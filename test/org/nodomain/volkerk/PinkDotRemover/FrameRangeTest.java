@@ -0,0 +1,78 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the parsing of frame ranges and shards and the frames they cover
+ */
+public class FrameRangeTest {
+    
+    @Test
+    public void testParseShard()
+    {
+        assertNull(FrameRange.parseShard("0/3"));
+        assertNull(FrameRange.parseShard("4/3"));
+        assertNull(FrameRange.parseShard("1/0"));
+        assertNull(FrameRange.parseShard("-1/3"));
+        assertNull(FrameRange.parseShard("x/3"));
+        assertNull(FrameRange.parseShard("3"));
+        
+        FrameRange r = FrameRange.parseShard(" 2 / 3 ");
+        assertTrue(r.isShard());
+        assertEquals(2, r.getShard());
+        assertEquals(3, r.getShardCount());
+        assertEquals("shard 2/3", r.toString());
+        
+        // the shards cover every frame exactly once, even with more shards than frames
+        for (int frameCount : new int[] {1, 2, 3, 10, 97})
+        {
+            for (int n : new int[] {1, 2, 3, 5, 16})
+            {
+                int next = 0;
+                int empty = 0;
+                for (int k = 1; k <= n; k++)
+                {
+                    r = FrameRange.parseShard(k + "/" + n);
+                    int first = r.getFirst(frameCount);
+                    int last = r.getLast(frameCount);
+                    if (last < first)
+                    {
+                        empty++;
+                        continue;
+                    }
+                    
+                    assertEquals(next, first);
+                    next = last + 1;
+                }
+                assertEquals(frameCount, next);
+                assertEquals(Math.max(0, n - frameCount), empty);
+            }
+        }
+    }
+    
+    @Test
+    public void testParseFrames()
+    {
+        assertNull(FrameRange.parseFrames("-1"));
+        assertNull(FrameRange.parseFrames("5-3"));
+        assertNull(FrameRange.parseFrames("a-b"));
+        
+        FrameRange r = FrameRange.parseFrames("3-");
+        assertFalse(r.isShard());
+        assertEquals(3, r.getFirst(10));
+        assertEquals(9, r.getLast(10));
+        
+        // explicit ranges are clipped to the file
+        r = FrameRange.parseFrames("2-20");
+        assertEquals(2, r.getFirst(10));
+        assertEquals(9, r.getLast(10));
+        r = FrameRange.parseFrames("7");
+        assertEquals(7, r.getFirst(10));
+        assertEquals(7, r.getLast(10));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Converts RAW frames and DNG images in memory
+ */
+public class InMemoryConversionTest extends SyntheticTestBase {
+    
+    @Test
+    public void testInMemoryConversion() throws IOException
+    {
+        PinkDotRemover pdr = new PinkDotRemover(db, "EOSM");
+        int w = 1280;
+        int h = 720;
+        
+        // the second frame of a RAW file on the heap, converted in place
+        SyntheticCorpus gen = new SyntheticCorpus(db, "EOSM", w, h, 12, 2);
+        byte[] raw = Files.readAllBytes(writeRaw(gen, "inMemory.raw"));
+        int frameSize = RawFile.getFrameSize(w, h, 12);
+        byte[] frame = Arrays.copyOfRange(raw, frameSize, 2 * frameSize);
+        assertTrue(pdr.removeFrameDots(frame, w, h, 12, RemovalStrategies.INTERPOLATE));
+        assertEquals(0, gen.countErrors(RawFile.readBand(ByteBuffer.wrap(frame), w, h, 12, 0, h), 1));
+        
+        // the same frame from a direct buffer into another one; the source remains unmodified
+        ByteBuffer src = ByteBuffer.allocateDirect(raw.length);
+        src.put(raw);
+        src.position(frameSize);
+        ByteBuffer dst = ByteBuffer.allocateDirect(frameSize + 16);
+        dst.position(16);
+        assertTrue(pdr.removeFrameDots(src, dst, w, h, 12, RemovalStrategies.INTERPOLATE));
+        assertEquals(frameSize, src.position());
+        assertEquals(16, dst.position());
+        assertEquals(gen.getRecoverableDotCount(), gen.countErrors(RawFile.readBand(src, w, h, 12, 0, h), 1));
+        byte[] out = new byte[frameSize];
+        dst.get(out);
+        assertArrayEquals(frame, out);
+        
+        // DNG images must be converted exactly like DNG files
+        for (int tileSize : new int[] {0, 256})
+        {
+            gen = new SyntheticCorpus(db, "EOSM", w, h, 14, 1);
+            Path inFile = writeDng(gen, "inMemory.dng", tileSize);
+            byte[] dng = Files.readAllBytes(inFile);
+            
+            assertTrue(new PinkDotRemover(inFile.toString(), db, "EOSM").doRemoval(true));
+            byte[] ref = Files.readAllBytes(convertedFile(inFile));
+            
+            assertEquals(dng.length, pdr.removeDngDots(dng, RemovalStrategies.INTERPOLATE));
+            assertArrayEquals(ref, dng);
+        }
+        
+        // no dot set for this camera
+        assertFalse(new PinkDotRemover(db, "NoSuchCam").removeFrameDots(frame, w, h, 12, RemovalStrategies.INTERPOLATE));
+    }
+}
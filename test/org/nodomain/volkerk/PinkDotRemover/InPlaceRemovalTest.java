@@ -0,0 +1,66 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the in-place dot removal with the removal on a copy
+ */
+public class InPlaceRemovalTest extends TstBaseClass {
+    
+    @Test
+    public void testAdjacentDots()
+    {
+        int w = 1280;
+        int h = 720;
+        
+        // noise instead of a smooth image; there, a dot that has been fixed too early
+        // would pass the same value on to its neighbors
+        byte[] frame = new byte[RawFile.getFrameSize(w, h, 14)];
+        new Random(36).nextBytes(frame);
+        CfaBand src = RawFile.readBand(ByteBuffer.wrap(frame), w, h, 14, 0, h);
+        
+        // dots on every second pixel of a block of rows, so that every neighbor of the same color is a dot as well
+        ArrayList<int[]> dots = new ArrayList<int[]>();
+        for (int y = 100; y < 110; y++)
+        {
+            for (int x = 0; x < w; x += 2) dots.add(new int[] {x, y});
+        }
+        for (int y = 200; y < 600; y += 2) dots.add(new int[] {640, y});
+        DotPlan plan = new DotPlan(dots.toArray(new int[dots.size()][]));
+        
+        PinkDotRemover pdr = new PinkDotRemover(new DotLocationDB(Paths.get(projRootDir(), "dotData").toString()), "EOSM");
+        
+        // fixing the dots one after another in the same image uses fixed dots as neighbors
+        CfaBand naive = src.getCopy();
+        CfaBand inPlace = src.getCopy();
+        int[][] dotList = plan.getDots();
+        pdr.fixDots(RemovalStrategies.INTERPOLATE, naive, naive, dotList, 0, dotList.length, plan.getMask(w, h));
+        pdr.fixPixelsInPlace(RemovalStrategies.INTERPOLATE, inPlace, plan, new int[dotList.length]);
+        assertFalse(Arrays.equals(naive.getSegment(105, 0), inPlace.getSegment(105, 0)));
+        
+        // but the two passes of the in-place removal must yield the same result as a copy
+        for (RemovalStrategy s : RemovalStrategies.getAll())
+        {
+            CfaBand copied = src.getCopy();
+            pdr.fixPixels(s, src, copied, plan);
+            
+            inPlace = src.getCopy();
+            pdr.fixPixelsInPlace(s, inPlace, plan, new int[dotList.length]);
+            
+            for (int y = 0; y < h; y++)
+            {
+                assertArrayEquals(copied.getSegment(y, 0), inPlace.getSegment(y, 0));
+            }
+        }
+    }
+}
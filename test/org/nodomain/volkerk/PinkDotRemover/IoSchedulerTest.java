@@ -0,0 +1,76 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the order of the files and the I/O permits per device
+ */
+public class IoSchedulerTest extends TstBaseClass {
+    
+    @Test
+    public void testIoScheduler() throws Exception
+    {
+        assertNull(IoScheduler.parse("0", 4));
+        assertNull(IoScheduler.parse("2/x", 4));
+        assertEquals(2, IoScheduler.parse("2", 4).readLimit);
+        assertEquals(3, IoScheduler.parse("1/3", 4).writeLimit);
+        assertTrue(IoScheduler.parse("auto", 4).adaptive);
+        
+        // one device: sorted by directory and name
+        File dirA = new File(outDir(), "ioA");
+        File dirB = new File(outDir(), "ioB");
+        dirA.mkdirs();
+        dirB.mkdirs();
+        List<File> files = Arrays.asList(new File(dirB, "a.raw"), new File(dirA, "c.raw"), new File(dirB, "0.dng"), new File(dirA, "b.dng"));
+        assertEquals(Arrays.asList(files.get(3), files.get(1), files.get(2), files.get(0)), IoScheduler.order(files));
+        
+        // never more concurrent reads than permitted, writes are limited separately
+        final IoScheduler sched = new IoScheduler(2, 1, false);
+        final File f = files.get(0);
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        IoScheduler.Permit write = sched.acquireWrite(f);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    for (int k = 0; k < 10; k++)
+                    {
+                        IoScheduler.Permit p = sched.acquireRead(f);
+                        int n = active.incrementAndGet();
+                        synchronized (maxActive)
+                        {
+                            maxActive.set(Math.max(maxActive.get(), n));
+                        }
+                        Thread.yield();
+                        active.decrementAndGet();
+                        p.release(1000);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+        write.release(1000);
+        assertTrue((maxActive.get() >= 1) && (maxActive.get() <= 2));
+        
+        // the adaptive limits start sequential and stay within their bounds
+        IoScheduler auto = IoScheduler.parse("auto", 4);
+        assertEquals(1, auto.getReadLimit(f));
+        for (int k = 0; k < 200; k++) auto.acquireRead(f).release(1 << 20);
+        assertTrue((auto.getReadLimit(f) >= 1) && (auto.getReadLimit(f) <= 4));
+        assertEquals(0, IoScheduler.NONE.getReadLimit(f));
+    }
+}
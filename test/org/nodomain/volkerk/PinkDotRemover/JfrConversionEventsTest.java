@@ -0,0 +1,129 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Records the conversion of a synthetic RAW and DNG file with JFR and checks the events
+ */
+public class JfrConversionEventsTest extends SyntheticTestBase {
+    
+    protected static final String PREFIX = "org.nodomain.volkerk.PinkDotRemover.";
+    
+    @Test
+    public void testRecording() throws Exception
+    {
+        assertTrue(ConversionEvents.get().isSupported());
+        
+        int w = 1280;
+        int h = 720;
+        int frames = 3;
+        String rawFile = writeRaw(new SyntheticCorpus(db, "EOSM", w, h, 14, frames), "jfrEvents.raw").toString();
+        Path dngFile = writeDng(new SyntheticCorpus(db, "650D", w, h, 14, 1), "jfrEvents.dng", 0);
+        int frameSize = RawFile.getFrameSize(w, h, 14);
+        
+        Recording rec = new Recording();
+        String[] names = new String[] {"FileOpen", "DotSetLookup", "Kernel", "FrameRead", "FrameWrite", "OutputSave"};
+        for (String n : names) rec.enable(PREFIX + n);
+        rec.start();
+        try
+        {
+            assertTrue(new PinkDotRemover(rawFile, db, "EOSM").doRemoval(true));
+            assertTrue(new PinkDotRemover(dngFile.toString(), db, "650D").doRemoval(true));
+        }
+        finally
+        {
+            rec.stop();
+        }
+        Path jfrFile = outFile("jfrEvents.jfr");
+        rec.dump(jfrFile);
+        rec.close();
+        
+        List<RecordedEvent> events = RecordingFile.readAllEvents(jfrFile);
+        
+        // the RAW file: one open and one read, kernel run and write per frame
+        assertEquals(1, eventsOf(events, "FileOpen", rawFile).size());
+        RecordedEvent open = eventsOf(events, "FileOpen", rawFile).get(0);
+        assertEquals(w, open.getInt("width"));
+        assertEquals(h, open.getInt("height"));
+        assertEquals(frames, open.getInt("frameCount"));
+        for (String n : new String[] {"FrameRead", "Kernel", "FrameWrite"})
+        {
+            List<RecordedEvent> l = eventsOf(events, n, rawFile);
+            assertEquals(frames, l.size());
+            HashSet<Integer> seen = new HashSet<Integer>();
+            for (RecordedEvent e : l)
+            {
+                seen.add(e.getInt("frame"));
+                assertEquals(w, e.getInt("width"));
+                assertEquals(h, e.getInt("height"));
+                
+                // only the rows with dots are read and written
+                if (n.equals("Kernel")) continue;
+                assertTrue(e.getLong("bytes") > 0);
+                assertTrue(e.getLong("bytes") <= frameSize);
+            }
+            assertEquals(frames, seen.size());
+        }
+        
+        // the DNG file is saved to a new file
+        assertEquals(1, eventsOf(events, "FileOpen", dngFile.toString()).size());
+        assertEquals(1, eventsOf(events, "Kernel", dngFile.toString()).size());
+        assertFalse(eventsOf(events, "FrameRead", dngFile.toString()).isEmpty());
+        int saves = 0;
+        for (RecordedEvent e : events)
+        {
+            if (!(e.getEventType().getName().equals(PREFIX + "OutputSave"))) continue;
+            
+            assertEquals(dngFile.toString(), e.getString("srcFile"));
+            assertEquals(convertedFile(dngFile).toString(), e.getString("dstFile"));
+            assertEquals(convertedFile(dngFile).toFile().length(), e.getLong("bytes"));
+            saves++;
+        }
+        assertEquals(1, saves);
+        
+        // the dot sets of both cameras have been looked up
+        HashSet<String> models = new HashSet<String>();
+        for (RecordedEvent e : events)
+        {
+            if (!(e.getEventType().getName().equals(PREFIX + "DotSetLookup"))) continue;
+            
+            assertTrue(e.getBoolean("found"));
+            assertEquals(w, e.getInt("width"));
+            models.add(e.getString("model"));
+        }
+        assertTrue(models.contains("EOSM"));
+        assertTrue(models.contains("650D"));
+    }
+    
+    /**
+     * Collects the events of one type for one file
+     *
+     * @param events all recorded events
+     * @param name the event name without the package prefix
+     * @param file the file name
+     *
+     * @return the matching events
+     */
+    protected List<RecordedEvent> eventsOf(List<RecordedEvent> events, String name, String file)
+    {
+        ArrayList<RecordedEvent> result = new ArrayList<RecordedEvent>();
+        for (RecordedEvent e : events)
+        {
+            if (e.getEventType().getName().equals(PREFIX + name) && file.equals(e.getString("file"))) result.add(e);
+        }
+        
+        return result;
+    }
+}
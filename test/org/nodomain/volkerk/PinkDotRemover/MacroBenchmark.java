@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Drives the command line interface against a corpus (see SyntheticCorpus)
+ * and reports the end-to-end throughput and the peak memory usage.
+ *
+ * Each run starts a fresh JVM that executes PinkDotRemoverCLI, so that JIT
+ * warm-up, class loading and the dot database initialization are included
+ * and the peak resident set size (VmHWM) belongs to the conversion only.
+ * The peak RSS is only available on Linux.
+ *
+ * Usage:
+ *
+ *   MacroBenchmark [--runs n] [--jvm option] ... <corpusDir> [CLI arguments]
+ *
+ * Converted DNGs ("_*.dng") are deleted before each run. RAW files are
+ * modified in place, so their dots are simply fixed again in later runs.
+ */
+public class MacroBenchmark {
+
+    /**
+     * The prefix of the line with the peak RSS that the child JVM prints on exit
+     */
+    protected static final String RSS_MARKER = "MACRO_BENCHMARK_PEAK_RSS_KB=";
+
+    /**
+     * Entry point for the child JVM: runs the CLI and reports VmHWM on exit
+     */
+    public static class Child
+    {
+        public static void main(String[] args)
+        {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run()
+                {
+                    System.out.println(RSS_MARKER + readPeakRssKB());
+                }
+            });
+
+            PinkDotRemoverCLI.main(args);
+        }
+    }
+
+    /**
+     * @return the peak resident set size of this process in kB or -1 if unknown
+     */
+    protected static long readPeakRssKB()
+    {
+        try
+        {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII))
+            {
+                if (!(line.startsWith("VmHWM:"))) continue;
+
+                return Long.parseLong(line.substring(6).replace("kB", "").trim());
+            }
+        }
+        catch (IOException e)
+        {
+            // not on Linux
+        }
+        catch (NumberFormatException e)
+        {
+            // unexpected format
+        }
+
+        return -1;
+    }
+
+    /**
+     * Deletes the converted DNGs of a previous run
+     *
+     * @param corpus the corpus directory
+     */
+    protected static void deleteOutputs(File corpus)
+    {
+        File[] files = corpus.listFiles();
+        if (files == null) return;
+
+        for (File f : files)
+        {
+            if (f.getName().startsWith("_")) f.delete();
+        }
+    }
+
+    /**
+     * @param args the command line arguments, see class description
+     *
+     * @throws Exception in case of I/O errors or if the child JVM can't be started
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int runs = 3;
+        List<String> jvmOpts = new ArrayList<String>();
+        int i = 0;
+        while ((i < args.length) && args[i].startsWith("--"))
+        {
+            if (args[i].equals("--runs") && (i + 1 < args.length)) runs = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--jvm") && (i + 1 < args.length)) jvmOpts.add(args[++i]);
+            else break;
+            i++;
+        }
+        if (i >= args.length)
+        {
+            System.err.println("Usage: MacroBenchmark [--runs n] [--jvm option] ... <corpusDir> [CLI arguments]");
+            System.exit(2);
+        }
+
+        File corpus = new File(args[i]);
+        List<String> cliArgs = new ArrayList<String>(Arrays.asList(args).subList(i + 1, args.length));
+        cliArgs.add(corpus.getPath());
+
+        // determine the amount of work once
+        deleteOutputs(corpus);
+        long bytes = 0;
+        long frames = 0;
+        int files = 0;
+        File[] inputs = corpus.listFiles();
+        if (inputs == null) throw new IOException("Can't read " + corpus);
+        for (File f : inputs)
+        {
+            if (!(f.isFile()) || f.getName().startsWith("_") || !(PinkDotRemover.isSupportedFile(f))) continue;
+
+            files++;
+            bytes += f.length();
+            if (f.getName().toLowerCase().endsWith("raw")) frames += Math.max(0, SyntheticCorpus.readRawFrameCount(f.toPath()));
+            else frames++;
+        }
+        System.out.println(String.format(Locale.ROOT, "Corpus %s: %d files, %d frames, %.1f MB", corpus, files, frames, bytes / 1e6));
+
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.addAll(jvmOpts);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(Child.class.getName());
+        cmd.addAll(cliArgs);
+
+        for (int run = 1; run <= runs; run++)
+        {
+            deleteOutputs(corpus);
+
+            long t0 = System.nanoTime();
+            Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+
+            // the CLI logs a lot; only keep the marker
+            long peakRss = -1;
+            BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = out.readLine()) != null)
+            {
+                if (line.startsWith(RSS_MARKER)) peakRss = Long.parseLong(line.substring(RSS_MARKER.length()).trim());
+            }
+            int exitCode = p.waitFor();
+            double secs = (System.nanoTime() - t0) / 1e9;
+
+            System.out.println(String.format(Locale.ROOT,
+                    "Run %d: exit %d, %.2f s, %.1f MB/s, %.1f frames/s, %.1f files/s, peak RSS %s",
+                    run, exitCode, secs, bytes / 1e6 / secs, frames / secs, files / secs,
+                    (peakRss < 0) ? "n/a" : String.format(Locale.ROOT, "%.1f MB", peakRss / 1024.0)));
+        }
+    }
+}
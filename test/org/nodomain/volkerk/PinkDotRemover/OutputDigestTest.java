@@ -0,0 +1,67 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the digest of the converted files against the written files
+ */
+public class OutputDigestTest extends SyntheticTestBase {
+    
+    @Test
+    public void testOutputDigest() throws IOException
+    {
+        int w = 1280;
+        int h = 720;
+        
+        // the streamed copy must be identical to the patched copy
+        for (int tileSize : new int[] {0, 256})
+        {
+            SyntheticCorpus gen = new SyntheticCorpus(db, "EOSM", w, h, 14, 1);
+            Path inFile = writeDng(gen, "digest.dng", tileSize);
+            Path outFile = convertedFile(inFile);
+            
+            assertTrue(new PinkDotRemover(inFile.toString(), db, "EOSM").doRemoval(true));
+            byte[] ref = Files.readAllBytes(outFile);
+            assertNull(OutputDigest.readSidecar(outFile));
+            
+            PinkDotRemover pdr = new PinkDotRemover(inFile.toString(), db, "EOSM");
+            pdr.setOutputDigest(true);
+            assertTrue(pdr.doRemoval(true));
+            assertArrayEquals(ref, Files.readAllBytes(outFile));
+            assertEquals(OutputDigest.ofFile(outFile), pdr.getOutputDigest());
+            assertEquals(pdr.getOutputDigest(), OutputDigest.readSidecar(outFile));
+            Files.delete(OutputDigest.getSidecar(outFile));
+        }
+        
+        // RAW files are digested frame by frame
+        SyntheticCorpus gen = new SyntheticCorpus(db, "EOSM", w, h, 12, 3);
+        Path rawFile = writeRaw(gen, "digest.raw");
+        PinkDotRemover pdr = new PinkDotRemover(rawFile.toString(), db, "EOSM");
+        pdr.setOutputDigest(true);
+        assertTrue(pdr.doRemoval(true));
+        assertEquals(OutputDigest.ofFile(rawFile), pdr.getOutputDigest());
+        assertEquals(pdr.getOutputDigest(), OutputDigest.readSidecar(rawFile));
+        Files.delete(OutputDigest.getSidecar(rawFile));
+        
+        // a range of frames doesn't cover the whole file
+        pdr = new PinkDotRemover(rawFile.toString(), db, "EOSM");
+        pdr.setOutputDigest(true);
+        pdr.setFrameRange(FrameRange.parseFrames("1-2"));
+        assertTrue(pdr.doRemoval(true));
+        assertNull(pdr.getOutputDigest());
+        assertNull(OutputDigest.readSidecar(rawFile));
+        for (File f : rawFile.getParent().toFile().listFiles())
+        {
+            if (f.getName().endsWith(".done")) assertTrue(f.delete());
+        }
+    }
+}
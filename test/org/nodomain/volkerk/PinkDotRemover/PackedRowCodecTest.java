@@ -0,0 +1,45 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the specialized codecs for packed rows with the generic one
+ */
+public class PackedRowCodecTest {
+    
+    @Test
+    public void testPackedRowCodecs()
+    {
+        Random rnd = new Random(42);
+        for (int bits = 1; bits <= 16; bits++)
+        {
+            for (int swap = 0; swap < 2; swap++)
+            {
+                // the specialized codecs must behave exactly like the generic bit window
+                PackedRowCodec codec = PackedRowCodec.create(bits, swap == 0, swap != 0);
+                PackedRowCodec ref = new PackedRowCodec.Generic(bits, swap);
+                int pixels = 64;
+                byte[] row = new byte[(codec.getRowBytes(pixels) + 1) & ~1];
+                rnd.nextBytes(row);
+                byte[] refRow = row.clone();
+                
+                for (int i = 0; i < 1000; i++)
+                {
+                    int xs = rnd.nextInt(pixels);
+                    int val = rnd.nextInt(1 << bits);
+                    if (bits < 16) assertEquals(ref.get(refRow, xs), codec.get(row, xs));
+                    codec.set(row, xs, val);
+                    ref.set(refRow, xs, val);
+                    assertEquals(val, codec.get(row, xs));
+                    if (bits < 16) assertArrayEquals(refRow, row);
+                }
+            }
+        }
+    }
+}
@@ -53,4 +53,4 @@ public class PinkDotRemoverTest extends TstBaseClass {
         }
         cleanupOutDir();
     }
-}
\ No newline at end of file
+}
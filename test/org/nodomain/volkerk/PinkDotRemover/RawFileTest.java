@@ -0,0 +1,59 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the row based access to RAW files
+ */
+public class RawFileTest extends SyntheticTestBase {
+    
+    @Test
+    public void testBandReuse() throws IOException
+    {
+        int w = 1280;
+        int h = 720;
+        SyntheticCorpus gen = new SyntheticCorpus(db, "EOSM", w, h, 14, 3);
+        Path rawFile = writeRaw(gen, "bandReuse.raw");
+        DotPlan plan = new DotPlan(gen.getDots());
+        
+        RawFile raw = RawFile.open(rawFile.toString());
+        try
+        {
+            // the band of the previous frame is refilled, including its rows
+            CfaBand band = raw.readDotBand(0, plan, null);
+            byte[] firstRow = band.getSegment(band.getFirstRow(), 0);
+            band.CFA_setPixel(0, band.getFirstRow(), 0);
+            for (int n = 1; n < 3; n++)
+            {
+                CfaBand reused = raw.readDotBand(n, plan, band);
+                assertSame(band, reused);
+                assertSame(firstRow, reused.getSegment(reused.getFirstRow(), 0));
+                
+                // identical to a fresh read and not modified
+                CfaBand fresh = raw.readDotBand(n, plan);
+                for (int y = fresh.getFirstRow(); y < fresh.getEndRow(); y++)
+                {
+                    assertArrayEquals(fresh.getSegment(y, 0), reused.getSegment(y, 0));
+                }
+                assertEquals(0, raw.writeBand(reused));
+                assertEquals(gen.getRecoverableDotCount(), gen.countErrors(reused, n));
+            }
+            
+            // a band with other rows is replaced
+            CfaBand other = raw.readBand(0, 0, 8, band);
+            assertNotSame(band, other);
+            assertEquals(8, other.getEndRow());
+        }
+        finally
+        {
+            raw.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the removal strategies and their lookup by name and quality tier
+ */
+public class RemovalStrategiesTest extends SyntheticTestBase {
+    
+    @Test
+    public void testRemovalStrategies() throws IOException
+    {
+        assertSame(RemovalStrategies.INTERPOLATE, RemovalStrategies.find("standard"));
+        assertSame(RemovalStrategies.NEAREST, RemovalStrategies.find("Preview"));
+        assertSame(RemovalStrategies.MEDIAN, RemovalStrategies.find("master"));
+        assertSame(RemovalStrategies.MARK, RemovalStrategies.find("MARK"));
+        assertNull(RemovalStrategies.find("blur"));
+        assertEquals(RemovalStrategies.MARK, RemovalStrategies.getAll().get(0));
+        
+        PinkDotRemover pdr = new PinkDotRemover(db, "EOSM");
+        int w = 1280;
+        int h = 720;
+        SyntheticCorpus gen = new SyntheticCorpus(db, "EOSM", w, h, 14, 1);
+        byte[] raw = readFirstFrame(gen, "strategies.raw");
+        
+        // the median of a linear ramp is exact, like the interpolation
+        for (RemovalStrategy s : new RemovalStrategy[] {RemovalStrategies.INTERPOLATE, RemovalStrategies.MEDIAN})
+        {
+            byte[] frame = raw.clone();
+            assertTrue(pdr.removeFrameDots(frame, w, h, 14, s));
+            assertEquals(0, gen.countErrors(RawFile.readBand(ByteBuffer.wrap(frame), w, h, 14, 0, h), 0));
+        }
+        
+        // the cheap strategies only touch the dots; at 14 bits, the neighbors differ from the clean value
+        for (RemovalStrategy s : new RemovalStrategy[] {RemovalStrategies.MARK, RemovalStrategies.NEAREST})
+        {
+            byte[] frame = raw.clone();
+            assertTrue(pdr.removeFrameDots(frame, w, h, 14, s));
+            CfaBand band = RawFile.readBand(ByteBuffer.wrap(frame), w, h, 14, 0, h);
+            assertEquals(gen.getRecoverableDotCount(), gen.countErrors(band, 0));
+            for (int[] dot : gen.getDots())
+            {
+                if (!(gen.isRecoverable(dot[0], dot[1]))) continue;
+                
+                int expected = (s == RemovalStrategies.MARK) ? 0 : gen.cleanValue(dot[0] - 2, dot[1], 0);
+                assertEquals(expected, band.CFA_getPixel(dot[0], dot[1]));
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the parallel dot removal with the sequential one
+ */
+public class RowBandKernelTest extends SyntheticTestBase {
+    
+    @Test
+    public void testParallelRemoval() throws IOException
+    {
+        int w = 1280;
+        int h = 720;
+        SyntheticCorpus gen = new SyntheticCorpus(db, "EOSM", w, h, 14, 1);
+        byte[] frame = readFirstFrame(gen, "rowBandKernel.raw");
+        CfaBand src = RawFile.readBand(ByteBuffer.wrap(frame), w, h, 14, 0, h);
+        PinkDotRemover pdr = new PinkDotRemover(db, "EOSM");
+        
+        // the synthetic images are far below the default thresholds
+        DotPlan plan = new DotPlan(gen.getDots());
+        int[][] dots = plan.getDots();
+        assertFalse(RowBandKernel.isWorthwhile(src, dots.length, RemovalStrategies.INTERPOLATE));
+        if (Runtime.getRuntime().availableProcessors() > 1)
+        {
+            assertTrue(RowBandKernel.isWorthwhile(src, dots.length, RemovalStrategies.INTERPOLATE, 16));
+        }
+        
+        // bands of a few dots split the image in many row bands, but the result must not change
+        for (RemovalStrategy s : new RemovalStrategy[] {RemovalStrategies.INTERPOLATE, RemovalStrategies.MEDIAN})
+        {
+            CfaBand seq = src.getCopy();
+            pdr.fixDots(s, src, seq, dots, 0, dots.length, plan.getMask(w, h));
+            assertEquals(0, gen.countErrors(seq, 0));
+            
+            for (int minBandDots : new int[] {1, 16, 1000})
+            {
+                CfaBand par = src.getCopy();
+                RowBandKernel.run(pdr, src, par, plan, s, minBandDots);
+                for (int y = 0; y < h; y++)
+                {
+                    for (int x = 0; x < w; x++) assertEquals(seq.CFA_getPixel(x, y), par.CFA_getPixel(x, y));
+                }
+            }
+        }
+    }
+}
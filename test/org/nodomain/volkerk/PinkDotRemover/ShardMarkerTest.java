@@ -0,0 +1,121 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Converts a RAW file in shards and verifies the markers of the shards
+ */
+public class ShardMarkerTest extends SyntheticTestBase {
+    
+    @Test
+    public void testVerify() throws IOException
+    {
+        int w = 1280;
+        int h = 720;
+        int frames = 4;
+        SyntheticCorpus gen = new SyntheticCorpus(db, "EOSM", w, h, 14, frames);
+        Path rawFile = writeRaw(gen, "shardMarker.raw");
+        File raw = rawFile.toFile();
+        for (File f : UndoLog.findAll(raw)) f.delete();
+        for (ShardMarker m : ShardMarker.findAll(raw)) ShardMarker.getMarkerFile(raw, m.first, m.last).delete();
+        assertFalse(ShardMarker.verify(raw, db));
+        
+        // complete coverage
+        for (int k = 1; k <= 2; k++)
+        {
+            PinkDotRemover pdr = new PinkDotRemover(rawFile.toString(), db, "EOSM");
+            pdr.setFrameRange(FrameRange.parseShard(k + "/2"));
+            assertTrue(pdr.doRemoval(true));
+            assertTrue(ShardMarker.getMarkerFile(raw, 2 * k - 2, 2 * k - 1).isFile());
+        }
+        assertEquals(2, ShardMarker.findAll(raw).size());
+        assertTrue(ShardMarker.verify(raw, db));
+        
+        // a gap: the first shard is missing
+        File firstMarker = ShardMarker.getMarkerFile(raw, 0, 1);
+        ShardMarker first = ShardMarker.read(firstMarker);
+        assertNotNull(first);
+        assertTrue(firstMarker.delete());
+        assertFalse(ShardMarker.verify(raw, db));
+        first.write(raw);
+        assertTrue(ShardMarker.verify(raw, db));
+        
+        // an overlap: another process converted frames 1-2 as well
+        ShardMarker overlap = new ShardMarker(1, 2, frames, raw.length(), first.dotsPerFrame, first.checksum, "EOSM", first.mode);
+        overlap.write(raw);
+        assertFalse(ShardMarker.verify(raw, db));
+        assertTrue(ShardMarker.getMarkerFile(raw, 1, 2).delete());
+        assertTrue(ShardMarker.verify(raw, db));
+        
+        // the file has changed since the conversion
+        byte[] converted = Files.readAllBytes(rawFile);
+        RandomAccessFile f = new RandomAccessFile(raw, "rw");
+        try
+        {
+            f.setLength(converted.length + 1);
+        }
+        finally
+        {
+            f.close();
+        }
+        assertFalse(ShardMarker.verify(raw, db));
+        Files.write(rawFile, converted);
+        assertTrue(ShardMarker.verify(raw, db));
+        
+        // a dot pixel of the first frame has been overwritten
+        int x = -1;
+        int y = -1;
+        for (int[] dot : gen.getDots())
+        {
+            if (!(gen.isRecoverable(dot[0], dot[1]))) continue;
+            x = dot[0];
+            y = dot[1];
+            break;
+        }
+        assertTrue(x >= 0);
+        int before = readPixel(raw, x, y);
+        
+        // invert the 16 bit word that holds the first bit of the pixel
+        int pitch = w * 14 / 8;
+        int pos = y * pitch + (x * 14 / 16) * 2;
+        byte[] tampered = converted.clone();
+        tampered[pos] ^= 0xff;
+        tampered[pos + 1] ^= 0xff;
+        Files.write(rawFile, tampered);
+        assertTrue(readPixel(raw, x, y) != before);
+        assertFalse(ShardMarker.verify(raw, db));
+        
+        // the second shard is unaffected
+        PinkDotRemover pdr = new PinkDotRemover(rawFile.toString(), db, "EOSM", true);
+        assertEquals(ShardMarker.read(ShardMarker.getMarkerFile(raw, 2, 3)).checksum, pdr.dotChecksum(2, 3));
+        
+        Files.write(rawFile, converted);
+        assertTrue(ShardMarker.verify(raw, db));
+    }
+    
+    /**
+     * @return a pixel of the first frame of a RAW file
+     */
+    protected int readPixel(File raw, int x, int y) throws IOException
+    {
+        RawFile rf = RawFile.open(raw.toString());
+        try
+        {
+            return rf.readBand(0, 0, rf.getHeight()).CFA_getPixel(x, y);
+        }
+        finally
+        {
+            rf.close();
+        }
+    }
+}
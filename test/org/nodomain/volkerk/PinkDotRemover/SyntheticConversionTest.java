@@ -0,0 +1,71 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Converts synthetic DNG and RAW files and compares them with their ground truth
+ */
+public class SyntheticConversionTest extends SyntheticTestBase {
+    
+    @Test
+    public void testSyntheticConversion() throws IOException
+    {
+        // cam, width, height, bits per sample
+        String[][] cases = new String[][] {
+            {"650D", "1280", "720", "14"},
+            {"EOSM", "1280", "720", "12"},
+            {"Crop Mode", "1808", "1190", "16"},
+            {"EOSM", "1600", "900", "10"}
+        };
+        
+        for (String[] c : cases)
+        {
+            int w = Integer.parseInt(c[1]);
+            int h = Integer.parseInt(c[2]);
+            SyntheticCorpus gen = new SyntheticCorpus(db, c[0], w, h, Integer.parseInt(c[3]), 1);
+            assertTrue(gen.getRecoverableDotCount() > 0);
+            
+            Path inFile = writeDng(gen, "synthConversion.dng", 0);
+            
+            // the planted dots must be visible before and gone afterwards
+            assertEquals(gen.getRecoverableDotCount(), gen.countErrors(DngFile.open(inFile.toString()).readBand(0, h), 0));
+            
+            PinkDotRemover pdr = new PinkDotRemover(inFile.toString(), db, c[0]);
+            assertTrue(pdr.doRemoval(true));
+            assertEquals(0, gen.countErrors(DngFile.open(convertedFile(inFile).toString()).readBand(0, h), 0));
+        }
+    }
+    
+    @Test
+    public void testSyntheticRawConversion() throws IOException
+    {
+        for (int bits : new int[] {10, 12, 14})
+        {
+            int w = 1280;
+            int h = 720;
+            int frames = 3;
+            SyntheticCorpus gen = new SyntheticCorpus(db, "EOSM", w, h, bits, frames);
+            
+            String rawFile = writeRaw(gen, "synthRawConversion" + bits + ".raw").toString();
+            RawFile raw = RawFile.open(rawFile);
+            assertNotNull(raw);
+            assertEquals(bits, raw.getBitsPerSample());
+            for (int n = 0; n < frames; n++) assertEquals(gen.getRecoverableDotCount(), gen.countErrors(raw.readBand(n, 0, h), n));
+            raw.close();
+            
+            PinkDotRemover pdr = new PinkDotRemover(rawFile, db, "EOSM");
+            assertTrue(pdr.doRemoval(true));
+            
+            raw = RawFile.open(rawFile);
+            for (int n = 0; n < frames; n++) assertEquals(0, gen.countErrors(raw.readBand(n, 0, h), n));
+            raw.close();
+        }
+    }
+}
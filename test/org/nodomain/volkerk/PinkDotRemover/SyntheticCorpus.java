@@ -0,0 +1,647 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import org.nodomain.volkerk.SimpleTIFFlib.Generic_CFA_PixBuf;
+
+/**
+ * Generates synthetic DNG and RAW files with planted dots and a known ground truth.
+ *
+ * The clean image is a linear intensity ramp per CFA color. For a linear ramp,
+ * each pair of opposite neighbors used by the interpolation averages to exactly
+ * the original value, so every dot whose neighbors aren't dots themselves must be
+ * restored to cleanValue(). The dots are planted by lifting the clean value by
+ * an eighth of the intensity range.
+ *
+ * Can be used as a command line tool for creating load test corpora:
+ *
+ *   SyntheticCorpus <outDir> <cam> <width>x<height> <bits> <frames> <count> <dng|lj92|raw> [dotDataDir]
+ *
+ * "lj92" creates DNGs with lossless JPEG compressed tiles of 256x256 pixels.
+ */
+public class SyntheticCorpus {
+
+    /**
+     * The size of the footer of Magic Lantern's RAW files
+     */
+    public static final int RAW_FOOTER_SIZE = 192;
+
+    /**
+     * The number of distinct frame offsets before the frame pattern repeats
+     */
+    protected static final int FRAME_PERIOD = 8;
+
+    protected final String camType;
+    protected final int width;
+    protected final int height;
+    protected final int bitsPerSample;
+    protected final int frameCount;
+
+    /**
+     * All [x,y] dot locations inside the image
+     */
+    protected final int[][] dots;
+
+    /**
+     * The dot locations as y * width + x for quick lookups
+     */
+    protected final HashSet<Long> dotIndex = new HashSet<Long>();
+
+    /**
+     * The parameters of the intensity ramp
+     */
+    protected final int maxVal;
+    protected final int slope;
+    protected final int dotLift;
+
+    /**
+     * Constructor
+     *
+     * @param db the dot database that defines the dot locations
+     * @param _camType the camera type
+     * @param _width the image width in pixels
+     * @param _height the image height in pixels
+     * @param _bitsPerSample the number of bits per pixel (8...16)
+     * @param _frameCount the number of frames for RAW files; DNGs always contain one frame
+     */
+    public SyntheticCorpus(DotLocationDB db, String _camType, int _width, int _height, int _bitsPerSample, int _frameCount)
+    {
+        if ((_bitsPerSample < 8) || (_bitsPerSample > 16)) throw new IllegalArgumentException("Unsupported bit depth " + _bitsPerSample);
+
+        camType = _camType;
+        width = _width;
+        height = _height;
+        bitsPerSample = _bitsPerSample;
+        frameCount = Math.max(1, _frameCount);
+
+        int[][] allDots = db.getAllDots(camType, width, height);
+        if (allDots == null) throw new IllegalArgumentException("No dot set for " + camType + " " + width + "x" + height);
+
+        ArrayList<int[]> inside = new ArrayList<int[]>();
+        for (int[] dot : allDots)
+        {
+            if ((dot[0] < 0) || (dot[0] >= width) || (dot[1] < 0) || (dot[1] >= height)) continue;
+            if (dotIndex.add((long) dot[1] * width + dot[0])) inside.add(dot);
+        }
+        dots = inside.toArray(new int[inside.size()][]);
+
+        // base (max. 1/2) + ramp (max. 1/4) + frame (max. 1/16) + dot (1/8) never clips
+        maxVal = (1 << bitsPerSample) - 1;
+        slope = (maxVal / 4) / (width + height);
+        dotLift = maxVal / 8;
+    }
+
+    /**
+     * @param x the x-coordinate
+     * @param y the y-coordinate
+     *
+     * @return true if a dot has been planted at this location
+     */
+    public boolean isDot(int x, int y)
+    {
+        if ((x < 0) || (x >= width) || (y < 0) || (y >= height)) return false;
+
+        return dotIndex.contains((long) y * width + x);
+    }
+
+    /**
+     * @return all planted [x,y] dot locations (without duplicates)
+     */
+    public int[][] getDots()
+    {
+        return dots;
+    }
+
+    /**
+     * The ground truth: the pixel intensity without dots
+     *
+     * @param x the x-coordinate
+     * @param y the y-coordinate
+     * @param frame the frame number
+     *
+     * @return the intensity
+     */
+    public int cleanValue(int x, int y, int frame)
+    {
+        int color = (y % 2) * 2 + (x % 2);
+        int base = (maxVal / 8) * (color + 1);
+
+        return base + slope * (x + y) + (frame % FRAME_PERIOD) * (maxVal / 128);
+    }
+
+    /**
+     * @param x the x-coordinate
+     * @param y the y-coordinate
+     * @param frame the frame number
+     *
+     * @return the intensity as stored in the generated file
+     */
+    public int plantedValue(int x, int y, int frame)
+    {
+        int v = cleanValue(x, y, frame);
+
+        return isDot(x, y) ? Math.min(maxVal, v + dotLift) : v;
+    }
+
+    /**
+     * Checks whether a dot can be restored exactly: it must be far enough from
+     * the borders and none of the interpolation neighbors may be a dot
+     *
+     * @param x the x-coordinate
+     * @param y the y-coordinate
+     *
+     * @return true if the interpolation must yield cleanValue()
+     */
+    public boolean isRecoverable(int x, int y)
+    {
+        if (!(PinkDotRemover.canInterpolate(x, y, width, height))) return false;
+
+        for (int dy = -2; dy <= 2; dy += 2)
+        {
+            for (int dx = -2; dx <= 2; dx += 2)
+            {
+                if ((dx == 0) && (dy == 0)) continue;
+                if (isDot(x + dx, y + dy)) return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compares a converted frame with the ground truth
+     *
+     * @param buf the converted frame; may be a band, in which case only its rows are checked
+     * @param frame the frame number
+     *
+     * @return the number of pixels that differ from the ground truth (dots that can't be restored exactly are skipped)
+     */
+    public long countErrors(Generic_CFA_PixBuf buf, int frame)
+    {
+        int y0 = 0;
+        int y1 = height;
+        if (buf instanceof PackedBand)
+        {
+            y0 = ((PackedBand) buf).getFirstRow();
+            y1 = ((PackedBand) buf).getEndRow();
+        }
+
+        long errors = 0;
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                if (isDot(x, y) && !(isRecoverable(x, y))) continue;
+                if (buf.CFA_getPixel(x, y) != cleanValue(x, y, frame)) errors++;
+            }
+        }
+
+        return errors;
+    }
+
+    /**
+     * @return the number of planted dots that must be restored exactly
+     */
+    public int getRecoverableDotCount()
+    {
+        int n = 0;
+        for (int[] dot : dots)
+        {
+            if (isRecoverable(dot[0], dot[1])) n++;
+        }
+
+        return n;
+    }
+
+    /**
+     * Packs a row of pixels as an MSB first bit stream
+     *
+     * @param y the row
+     * @param frame the frame number
+     * @param out receives the packed row; must hold at least ceil(width * bitsPerSample / 8) bytes
+     * @param swapWords if true, each pair of bytes is swapped (16 bit little endian words)
+     */
+    protected void packRow(int y, int frame, byte[] out, boolean swapWords)
+    {
+        long acc = 0;
+        int accBits = 0;
+        int pos = 0;
+        for (int x = 0; x < width; x++)
+        {
+            acc = (acc << bitsPerSample) | plantedValue(x, y, frame);
+            accBits += bitsPerSample;
+            while (accBits >= 8)
+            {
+                accBits -= 8;
+                out[pos++] = (byte) (acc >> accBits);
+            }
+        }
+        if (accBits > 0) out[pos++] = (byte) (acc << (8 - accBits));
+        while (pos < out.length) out[pos++] = 0;
+
+        if (!(swapWords)) return;
+        for (int i = 0; i + 1 < out.length; i += 2)
+        {
+            byte tmp = out[i];
+            out[i] = out[i + 1];
+            out[i + 1] = tmp;
+        }
+    }
+
+    /**
+     * Writes a little endian DNG with a single uncompressed strip.
+     * 16 bit samples are stored little endian, smaller bit depths as MSB first bit stream.
+     *
+     * @param dst the file to create; existing files are overwritten
+     *
+     * @throws IOException in case of write errors
+     */
+    public void writeDng(Path dst) throws IOException
+    {
+        writeDng(dst, 0);
+    }
+
+    /**
+     * Writes a little endian DNG, either with a single uncompressed strip or
+     * with lossless JPEG compressed square tiles. Each tile is encoded as two
+     * interleaved components of half the tile width, like most DNG converters do.
+     *
+     * @param dst the file to create; existing files are overwritten
+     * @param tileSize the width and height of the tiles (a multiple of 16) or 0 for an uncompressed strip
+     *
+     * @throws IOException in case of write errors
+     */
+    public void writeDng(Path dst, int tileSize) throws IOException
+    {
+        if ((tileSize < 0) || (tileSize % 16 != 0)) throw new IllegalArgumentException("Invalid tile size " + tileSize);
+
+        writeDng(dst, tileSize, 0);
+    }
+
+    /**
+     * Writes a little endian DNG with lossless JPEG compressed strips. If the height
+     * isn't a multiple of rowsPerStrip, the last strip ends with the image.
+     *
+     * @param dst the file to create; existing files are overwritten
+     * @param rowsPerStrip the number of rows per strip
+     *
+     * @throws IOException in case of write errors
+     */
+    public void writeStripDng(Path dst, int rowsPerStrip) throws IOException
+    {
+        if (rowsPerStrip < 1) throw new IllegalArgumentException("Invalid strip size " + rowsPerStrip);
+
+        writeDng(dst, 0, rowsPerStrip);
+    }
+
+    /**
+     * Writes a little endian DNG with an uncompressed strip, compressed tiles or compressed strips
+     *
+     * @param dst the file to create; existing files are overwritten
+     * @param tileSize the width and height of compressed tiles or 0 for strips
+     * @param rowsPerStrip the number of rows per compressed strip or 0 for a single uncompressed strip
+     *
+     * @throws IOException in case of write errors
+     */
+    protected void writeDng(Path dst, int tileSize, int rowsPerStrip) throws IOException
+    {
+        boolean tiled = (tileSize != 0);
+        boolean compressed = tiled || (rowsPerStrip != 0);
+        int rowBytes = (width * bitsPerSample + 7) / 8;
+        byte[][] tiles = tiled ? encodeTiles(tileSize) : (compressed ? encodeStrips(rowsPerStrip) : new byte[0][]);
+        long dataBytes = (long) rowBytes * height;
+        if (compressed)
+        {
+            dataBytes = 0;
+            for (byte[] t : tiles) dataBytes += (t.length + 1) & ~1;
+        }
+        if (dataBytes > 0xffffffffL - 4096) throw new IllegalArgumentException("Image too large for a TIFF file");
+
+        String model = "Synthetic " + camType;
+        byte[] make = "Canon\0".getBytes(StandardCharsets.US_ASCII);
+        byte[] modelBytes = (model + "\0").getBytes(StandardCharsets.US_ASCII);
+
+        // IFD with 19 (strip) or 20 (tiles) entries, followed by the out-of-line values and the image data
+        final int entryCount = tiled ? 20 : 19;
+        int ifdOffset = 8;
+        int extOffset = ifdOffset + 2 + 12 * entryCount + 4;
+        int makeOffset = extOffset;
+        int modelOffset = makeOffset + make.length;
+        int matrixOffset = (modelOffset + modelBytes.length + 1) & ~1;
+        int tableOffset = matrixOffset + 9 * 8;
+        int dataOffset = (tableOffset + 8 * tiles.length + 15) & ~15;
+
+        ByteBuffer hdr = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        hdr.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifdOffset);
+        hdr.putShort((short) entryCount);
+        putEntry(hdr, 254, 4, 1, 0);                                  // NewSubFileType: main image
+        putEntry(hdr, 256, 4, 1, width);
+        putEntry(hdr, 257, 4, 1, height);
+        putEntry(hdr, 258, 3, 1, bitsPerSample);
+        putEntry(hdr, 259, 3, 1, compressed ? 7 : 1);                 // lossless JPEG or no compression
+        putEntry(hdr, 262, 3, 1, 32803);                              // CFA
+        putEntry(hdr, 271, 2, make.length, makeOffset);
+        putEntry(hdr, 272, 2, modelBytes.length, modelOffset);
+        // StripOffsets; a single strip or tile is stored in the entry itself
+        if (!(tiled)) putEntry(hdr, 273, 4, Math.max(1, tiles.length), (tiles.length > 1) ? tableOffset : dataOffset);
+        putEntry(hdr, 277, 3, 1, 1);                                  // SamplesPerPixel
+        if (!(tiled))
+        {
+            putEntry(hdr, 278, 4, 1, compressed ? rowsPerStrip : height); // RowsPerStrip
+            putEntry(hdr, 279, 4, Math.max(1, tiles.length), (tiles.length > 1) ? tableOffset + 4 * tiles.length : (compressed ? tiles[0].length : (int) dataBytes));
+        }
+        putEntry(hdr, 284, 3, 1, 1);                                  // PlanarConfiguration
+        if (tiled)
+        {
+            putEntry(hdr, 322, 3, 1, tileSize);                       // TileWidth
+            putEntry(hdr, 323, 3, 1, tileSize);                       // TileLength
+            putEntry(hdr, 324, 4, tiles.length, (tiles.length == 1) ? dataOffset : tableOffset);
+            putEntry(hdr, 325, 4, tiles.length, (tiles.length == 1) ? tiles[0].length : tableOffset + 4 * tiles.length);
+        }
+        putEntry(hdr, 33421, 3, 2, (2 << 16) | 2);                    // CFARepeatPatternDim
+        putEntry(hdr, 33422, 1, 4, 0x02010100);                       // CFAPattern RGGB
+        putEntry(hdr, 50706, 1, 4, 0x00000301);                       // DNGVersion 1.3
+        putEntry(hdr, 50708, 2, modelBytes.length, modelOffset);      // UniqueCameraModel
+        putEntry(hdr, 50717, 4, 1, maxVal);                           // WhiteLevel
+        putEntry(hdr, 50721, 10, 9, matrixOffset);                    // ColorMatrix1
+        hdr.putInt(0);
+
+        hdr.position(makeOffset);
+        hdr.put(make);
+        hdr.put(modelBytes);
+        hdr.position(matrixOffset);
+        for (int i = 0; i < 9; i++) hdr.putInt((i % 4 == 0) ? 1 : 0).putInt(1);
+
+        // the tile or strip offsets and byte counts; each one starts at a word boundary
+        long pos = dataOffset;
+        for (byte[] t : tiles)
+        {
+            hdr.putInt((int) pos);
+            pos += (t.length + 1) & ~1;
+        }
+        for (byte[] t : tiles) hdr.putInt(t.length);
+        hdr.position(0);
+
+        FileChannel ch = FileChannel.open(dst, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            writeFully(ch, hdr);
+            if (compressed)
+            {
+                for (byte[] t : tiles)
+                {
+                    writeFully(ch, ByteBuffer.wrap(t));
+                    if (t.length % 2 != 0) writeFully(ch, ByteBuffer.allocate(1));
+                }
+                return;
+            }
+
+            byte[] row = new byte[rowBytes];
+            for (int y = 0; y < height; y++)
+            {
+                packRow(y, 0, row, bitsPerSample == 16);
+                writeFully(ch, ByteBuffer.wrap(row));
+            }
+        }
+        finally
+        {
+            ch.close();
+        }
+    }
+
+    /**
+     * Encodes the image as lossless JPEG tiles; pixels outside the image are 0
+     *
+     * @param tileSize the width and height of the tiles
+     *
+     * @return the tiles row by row
+     */
+    protected byte[][] encodeTiles(int tileSize)
+    {
+        int across = (width + tileSize - 1) / tileSize;
+        int down = (height + tileSize - 1) / tileSize;
+        byte[][] result = new byte[across * down][];
+        for (int t = 0; t < result.length; t++)
+        {
+            int[] samples = new int[tileSize * tileSize];
+            for (int r = 0; r < tileSize; r++)
+            {
+                int y = (t / across) * tileSize + r;
+                for (int c = 0; c < tileSize; c++)
+                {
+                    int x = (t % across) * tileSize + c;
+                    if ((x < width) && (y < height)) samples[r * tileSize + c] = plantedValue(x, y, 0);
+                }
+            }
+            result[t] = new LosslessJpeg(tileSize / 2, tileSize, 2, bitsPerSample, 1, 0, samples).encode();
+        }
+
+        return result;
+    }
+
+    /**
+     * Encodes the image as lossless JPEG strips; the last strip isn't padded
+     *
+     * @param rowsPerStrip the number of rows per strip
+     *
+     * @return the strips from top to bottom
+     */
+    protected byte[][] encodeStrips(int rowsPerStrip)
+    {
+        byte[][] result = new byte[(height + rowsPerStrip - 1) / rowsPerStrip][];
+        for (int t = 0; t < result.length; t++)
+        {
+            int top = t * rowsPerStrip;
+            int rows = Math.min(rowsPerStrip, height - top);
+            int[] samples = new int[width * rows];
+            for (int r = 0; r < rows; r++)
+            {
+                for (int x = 0; x < width; x++) samples[r * width + x] = plantedValue(x, top + r, 0);
+            }
+            result[t] = new LosslessJpeg(width / 2, rows, 2, bitsPerSample, 1, 0, samples).encode();
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes a Magic Lantern RAW file: all frames packed as MSB first bit stream
+     * in 16 bit little endian words, followed by the lv_rec footer
+     *
+     * @param dst the file to create; existing files are overwritten
+     *
+     * @throws IOException in case of write errors
+     */
+    public void writeRaw(Path dst) throws IOException
+    {
+        if ((width * bitsPerSample) % 16 != 0) throw new IllegalArgumentException("Rows must consist of complete 16 bit words");
+
+        int pitch = width * bitsPerSample / 8;
+        int frameSize = pitch * height;
+
+        FileChannel ch = FileChannel.open(dst, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            byte[] row = new byte[pitch];
+            for (int n = 0; n < frameCount; n++)
+            {
+                for (int y = 0; y < height; y++)
+                {
+                    packRow(y, n, row, true);
+                    writeFully(ch, ByteBuffer.wrap(row));
+                }
+            }
+
+            ByteBuffer footer = ByteBuffer.allocate(RAW_FOOTER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            footer.put((byte) 'R').put((byte) 'A').put((byte) 'W').put((byte) 'M');
+            footer.putShort((short) width).putShort((short) height);
+            footer.putInt(frameSize);
+            footer.putInt(frameCount);
+            footer.putInt(0);                       // frame skip
+            footer.putInt(24000);                   // fps * 1000
+            footer.putInt(0).putInt(0);             // reserved
+
+            // raw_info
+            footer.putInt(1);                       // api version
+            footer.putInt(0);                       // buffer
+            footer.putInt(height).putInt(width).putInt(pitch);
+            footer.putInt(frameSize);
+            footer.putInt(bitsPerSample);
+            footer.putInt(0);                       // black level
+            footer.putInt(maxVal);                  // white level
+            footer.putInt(0).putInt(0).putInt(height).putInt(width);  // active area y1, x1, y2, x2
+            footer.putInt(0).putInt(0).putInt(width).putInt(height);  // crop origin and size
+            footer.putInt(0).putInt(0);             // exposure bias
+            footer.putInt(0x02010100);              // cfa pattern RGGB
+            footer.putInt(21);                      // calibration illuminant: D65
+            for (int i = 0; i < 9; i++) footer.putInt((i % 4 == 0) ? 10000 : 0).putInt(10000);
+            footer.putInt(1100);                    // dynamic range * 100
+            footer.position(0);
+            writeFully(ch, footer);
+        }
+        finally
+        {
+            ch.close();
+        }
+    }
+
+    /**
+     * Reads the frame count from the footer of a RAW file
+     *
+     * @param raw the RAW file
+     *
+     * @return the number of frames or -1 if the file has no valid footer
+     *
+     * @throws IOException in case of read errors
+     */
+    public static int readRawFrameCount(Path raw) throws IOException
+    {
+        FileChannel ch = FileChannel.open(raw, StandardOpenOption.READ);
+        try
+        {
+            if (ch.size() < RAW_FOOTER_SIZE) return -1;
+
+            ByteBuffer footer = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            long pos = ch.size() - RAW_FOOTER_SIZE;
+            while (footer.hasRemaining())
+            {
+                int n = ch.read(footer, pos);
+                if (n < 0) return -1;
+                pos += n;
+            }
+            if ((footer.get(0) != 'R') || (footer.get(1) != 'A') || (footer.get(2) != 'W') || (footer.get(3) != 'M')) return -1;
+
+            return footer.getInt(12);
+        }
+        finally
+        {
+            ch.close();
+        }
+    }
+
+    /**
+     * Appends a little endian IFD entry with a value or offset that fits into four bytes
+     */
+    protected static void putEntry(ByteBuffer buf, int tag, int type, int count, int value)
+    {
+        buf.putShort((short) tag).putShort((short) type).putInt(count);
+        if ((type == 3) && (count == 1)) buf.putShort((short) value).putShort((short) 0);
+        else buf.putInt(value);
+    }
+
+    /**
+     * Writes the complete contents of a buffer at the channel's current position
+     */
+    protected static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException
+    {
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    /**
+     * Creates a corpus of synthetic files
+     *
+     * @param args outDir, cam, WxH, bits, frames, count, dng|lj92|raw, optionally the dot data dir
+     *
+     * @throws IOException in case of write errors
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if ((args.length < 7) || !(args[2].contains("x")))
+        {
+            System.err.println("Usage: SyntheticCorpus <outDir> <cam> <width>x<height> <bits> <frames> <count> <dng|lj92|raw> [dotDataDir]");
+            System.exit(2);
+        }
+
+        Path outDir = Paths.get(args[0]);
+        String cam = args[1];
+        int w = Integer.parseInt(args[2].substring(0, args[2].indexOf('x')));
+        int h = Integer.parseInt(args[2].substring(args[2].indexOf('x') + 1));
+        int bits = Integer.parseInt(args[3]);
+        int frames = Integer.parseInt(args[4]);
+        int count = Integer.parseInt(args[5]);
+        boolean raw = args[6].equalsIgnoreCase("raw");
+        int tileSize = args[6].equalsIgnoreCase("lj92") ? 256 : 0;
+        String dotData = (args.length > 7) ? args[7] : DotLocationDB.DEFAULT_DOT_DATA_DIR;
+
+        Files.createDirectories(outDir);
+        SyntheticCorpus gen = new SyntheticCorpus(new DotLocationDB(dotData), cam, w, h, bits, raw ? frames : 1);
+
+        // all files of a corpus have the same content, so the first one is just copied
+        String suffix = "_" + w + "x" + h + "_" + bits + "bit_" + cam.replace(' ', '_') + (raw ? ".raw" : ".dng");
+        long t0 = System.currentTimeMillis();
+        Path first = null;
+        for (int i = 0; i < count; i++)
+        {
+            Path dst = outDir.resolve(String.format("synth_%05d%s", i, suffix));
+            if (first != null) Files.copy(first, dst, StandardCopyOption.REPLACE_EXISTING);
+            else if (raw) gen.writeRaw(dst);
+            else gen.writeDng(dst, tileSize);
+            if (first == null) first = dst;
+        }
+
+        System.out.println(count + " files with " + gen.getDots().length + " dots each (" + gen.getRecoverableDotCount()
+                + " exactly recoverable) written to " + outDir + " in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+}
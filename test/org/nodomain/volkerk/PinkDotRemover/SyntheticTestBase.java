@@ -0,0 +1,100 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import org.junit.Before;
+
+/**
+ * A base class for the test fixtures that work on files of the SyntheticCorpus.
+ *
+ * All test classes share the output directory, so every test names its
+ * files after itself instead of reusing the same file names.
+ */
+public abstract class SyntheticTestBase extends TstBaseClass {
+    
+    /**
+     * The dot database of the project
+     */
+    protected DotLocationDB db;
+    
+    @Before
+    public void openDotData()
+    {
+        db = new DotLocationDB(Paths.get(projRootDir(), "dotData").toString());
+    }
+    
+    /**
+     * @param name the file name; should be unique per test
+     * 
+     * @return the path of the file in the output directory
+     */
+    protected Path outFile(String name)
+    {
+        return Paths.get(outDir(), name);
+    }
+    
+    /**
+     * @param dng a DNG file
+     * 
+     * @return the file that PinkDotRemover writes the converted DNG to
+     */
+    protected Path convertedFile(Path dng)
+    {
+        return dng.resolveSibling("_" + dng.getFileName());
+    }
+    
+    /**
+     * Writes the RAW file of a corpus to the output directory
+     * 
+     * @param gen the corpus
+     * @param name the file name; should be unique per test
+     * 
+     * @return the path of the file
+     */
+    protected Path writeRaw(SyntheticCorpus gen, String name) throws IOException
+    {
+        Path p = outFile(name);
+        gen.writeRaw(p);
+        
+        return p;
+    }
+    
+    /**
+     * Writes the first frame of a corpus as DNG file to the output directory
+     * 
+     * @param gen the corpus
+     * @param name the file name; should be unique per test
+     * @param tileSize the size of lossless JPEG compressed tiles or 0 for an uncompressed image
+     * 
+     * @return the path of the file
+     */
+    protected Path writeDng(SyntheticCorpus gen, String name, int tileSize) throws IOException
+    {
+        Path p = outFile(name);
+        gen.writeDng(p, tileSize);
+        
+        return p;
+    }
+    
+    /**
+     * Writes the RAW file of a corpus and returns its first frame
+     * 
+     * @param gen the corpus
+     * @param name the name of the RAW file; should be unique per test
+     * 
+     * @return the packed pixels of the first frame
+     */
+    protected byte[] readFirstFrame(SyntheticCorpus gen, String name) throws IOException
+    {
+        byte[] raw = Files.readAllBytes(writeRaw(gen, name));
+        
+        return Arrays.copyOf(raw, RawFile.getFrameSize(gen.width, gen.height, gen.bitsPerSample));
+    }
+}
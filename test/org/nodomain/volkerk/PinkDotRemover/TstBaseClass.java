@@ -151,6 +151,34 @@ public class TstBaseClass {
         doCleanup = false;
     }
 		
+//----------------------------------------------------------------------------		
+
+    /**
+     * Copies the dot set definition files of the project to a fresh
+     * subdirectory of the output directory, e.g. for modifying them
+     * 
+     * @param name the name of the subdirectory; should be unique per test
+     * 
+     * @return the directory with the copied files
+     */
+    protected File copyDotData(String name) throws IOException
+    {
+        File dst = new File(outDir(), name);
+        if (dst.exists())
+        {
+            for (File f : dst.listFiles()) f.delete();
+        }
+        dst.mkdirs();
+        
+        for (File f : Paths.get(projRootDir(), "dotData").toFile().listFiles())
+        {
+            if (!(f.getName().endsWith(".txt"))) continue;
+            Files.copy(f.toPath(), new File(dst, f.getName()).toPath());
+        }
+        
+        return dst;
+    }
+		
 //----------------------------------------------------------------------------		
     /**
      * Is called after the last test case is executed and removes temp files
@@ -0,0 +1,73 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.PinkDotRemover;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Converts RAW files in place and restores them from their undo logs
+ */
+public class UndoLogTest extends SyntheticTestBase {
+    
+    @Test
+    public void testUndoLog() throws IOException
+    {
+        int w = 1280;
+        int h = 720;
+        SyntheticCorpus gen = new SyntheticCorpus(db, "EOSM", w, h, 14, 4);
+        Path rawFile = writeRaw(gen, "undo.raw");
+        for (File f : UndoLog.findAll(rawFile.toFile())) f.delete();
+        byte[] original = Files.readAllBytes(rawFile);
+        
+        // converting again must not replace the recorded originals
+        assertTrue(new PinkDotRemover(rawFile.toString(), db, "EOSM").doRemoval(RemovalStrategies.INTERPOLATE));
+        assertTrue(new PinkDotRemover(rawFile.toString(), db, "EOSM").doRemoval(RemovalStrategies.MARK));
+        assertFalse(Arrays.equals(original, Files.readAllBytes(rawFile)));
+        File undo = UndoLog.getUndoFile(rawFile.toFile(), null, 0, 3);
+        assertTrue(undo.isFile());
+        assertTrue(undo.length() < original.length / 100);
+        
+        // an interrupted record at the end is ignored
+        Files.write(undo.toPath(), new byte[] {'F', 0, 0}, StandardOpenOption.APPEND);
+        
+        assertTrue(UndoLog.restore(rawFile.toFile()));
+        assertArrayEquals(original, Files.readAllBytes(rawFile));
+        assertFalse(undo.exists());
+        assertFalse(UndoLog.restore(rawFile.toFile()));
+        
+        // frame ranges have their own sidecars
+        PinkDotRemover pdr = new PinkDotRemover(rawFile.toString(), db, "EOSM");
+        pdr.setFrameRange(FrameRange.parseFrames("1-2"));
+        assertTrue(pdr.doRemoval(RemovalStrategies.INTERPOLATE));
+        assertEquals(1, UndoLog.findAll(rawFile.toFile()).size());
+        assertTrue(UndoLog.getUndoFile(rawFile.toFile(), pdr.frameRange, 1, 2).isFile());
+        assertTrue(UndoLog.restore(rawFile.toFile()));
+        assertArrayEquals(original, Files.readAllBytes(rawFile));
+        assertTrue(ShardMarker.findAll(rawFile.toFile()).isEmpty());
+        
+        // the sessions are restored in the order of the conversions, not of the sidecars' modification times
+        pdr = new PinkDotRemover(rawFile.toString(), db, "EOSM");
+        pdr.setFrameRange(FrameRange.parseFrames("1-2"));
+        assertTrue(pdr.doRemoval(RemovalStrategies.INTERPOLATE));
+        assertTrue(new PinkDotRemover(rawFile.toString(), db, "EOSM").doRemoval(RemovalStrategies.MARK));
+        File rangeUndo = UndoLog.getUndoFile(rawFile.toFile(), pdr.frameRange, 1, 2);
+        assertTrue(rangeUndo.setLastModified(UndoLog.getUndoFile(rawFile.toFile(), null, 0, 3).lastModified() + 60000));
+        assertTrue(UndoLog.restore(rawFile.toFile()));
+        assertArrayEquals(original, Files.readAllBytes(rawFile));
+        
+        // nothing is recorded if disabled
+        pdr = new PinkDotRemover(rawFile.toString(), db, "EOSM");
+        pdr.setUndoLog(false);
+        assertTrue(pdr.doRemoval(RemovalStrategies.INTERPOLATE));
+        assertTrue(UndoLog.findAll(rawFile.toFile()).isEmpty());
+    }
+}